@@ -0,0 +1,24 @@
+package android.util;
+
+import java.util.HashMap;
+
+/**
+ * Host stand-in for the part of android.util.SparseArray the app's mesh
+ * classes use, so that the Java drivers compile them off the device.
+ */
+public class SparseArray<E> {
+
+    private final HashMap<Integer, E> mValues = new HashMap<Integer, E>();
+
+    public E get(int key) {
+        return mValues.get(key);
+    }
+
+    public void put(int key, E value) {
+        mValues.put(key, value);
+    }
+
+    public void remove(int key) {
+        mValues.remove(key);
+    }
+}
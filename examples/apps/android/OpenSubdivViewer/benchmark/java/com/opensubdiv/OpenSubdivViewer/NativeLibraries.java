@@ -0,0 +1,24 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+/**
+ * Host stand-in for the app's NativeLibraries : loads the host build of
+ * the native library, without GL, named by the opensubdiv.jni.library
+ * system property, rather than the device libraries.
+ */
+final class NativeLibraries {
+
+    static final String LIBRARY_PROPERTY = "opensubdiv.jni.library";
+
+    private NativeLibraries() {
+    }
+
+    static void load() {
+        String library = System.getProperty(LIBRARY_PROPERTY);
+        if (library == null) {
+            throw new UnsatisfiedLinkError(
+                "set " + LIBRARY_PROPERTY + " to the path of the host " +
+                "build of libOpenSubdivjni");
+        }
+        System.load(library);
+    }
+}
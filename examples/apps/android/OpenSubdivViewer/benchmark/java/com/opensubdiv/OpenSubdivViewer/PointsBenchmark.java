@@ -0,0 +1,195 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compares the two ways of passing the control points across JNI, through
+ * the host build of the native library (libOpenSubdivjni, built next to
+ * osd_benchmark) :
+ *
+ *   java -Dopensubdiv.jni.library=/path/to/libOpenSubdivjni.so
+ *        -cp osd_jni_benchmark.jar
+ *        com.opensubdiv.OpenSubdivViewer.PointsBenchmark
+ *        [-iterations n] [-warmup n] [-level n]
+ *
+ * Each synthetic grid cage of about 1k, 10k and 100k points is animated
+ * and updated with UpdatePoints(float[]), then with UpdatePoints(FloatBuffer)
+ * from a direct buffer. The report is written to stdout as JSON : per path,
+ * the p50 in nanoseconds of the Java write of the points ("fill") and of
+ * the UpdatePoints call ("update"), and the average FRAME_STAT_COPY_NANOS
+ * of the native frame records ("copy"). Direct buffers are read in place,
+ * so runs whose buffer updates record a copy count as failures, and the
+ * exit status is the number of failures.
+ */
+public class PointsBenchmark {
+
+    private static final int[] CAGE_POINTS = { 1000, 10000, 100000 };
+
+    private static int sIterations = 100;
+    private static int sWarmup = 5;
+    private static int sLevel = 1;
+
+    private static final LongBuffer sStats =
+        ByteBuffer.allocateDirect(OpenSubdiv.FRAME_STATS_CAPACITY *
+                                  OpenSubdiv.NUM_FRAME_STATS * 8)
+                  .order(ByteOrder.nativeOrder())
+                  .asLongBuffer();
+
+    public static void main(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            int value = Integer.parseInt(args[i + 1]);
+            if (args[i].equals("-iterations")) {
+                sIterations = Math.max(value, 1);
+            } else if (args[i].equals("-warmup")) {
+                sWarmup = Math.max(value, 0);
+            } else if (args[i].equals("-level")) {
+                sLevel = value;
+            } else {
+                System.err.println("unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        int failures = 0;
+        System.out.println("[");
+        for (int c = 0; c < CAGE_POINTS.length; ++c) {
+            failures += run(CAGE_POINTS[c], c + 1 == CAGE_POINTS.length);
+        }
+        System.out.println("]");
+
+        if (failures > 0) {
+            System.err.println("failures " + failures);
+        }
+        System.exit(failures);
+    }
+
+    // Runs both paths over an n x n quad grid of about numPoints points.
+    private static int run(int numPoints, boolean last) {
+        int n = (int) Math.round(Math.sqrt(numPoints)) - 1;
+        int np = (n + 1) * (n + 1);
+
+        int[] nverts = new int[n * n];
+        int[] verts = new int[n * n * 4];
+        for (int j = 0; j < n; ++j) {
+            for (int i = 0; i < n; ++i) {
+                int f = j * n + i;
+                int p = j * (n + 1) + i;
+                nverts[f] = 4;
+                verts[f * 4] = p;
+                verts[f * 4 + 1] = p + 1;
+                verts[f * 4 + 2] = p + n + 2;
+                verts[f * 4 + 3] = p + n + 1;
+            }
+        }
+        float[] points = new float[np * 3];
+        fill(points, n, 0);
+
+        int id = OpenSubdiv.CreateCatmarkMesh(sLevel, nverts, verts, 3, points);
+        if (id == 0) {
+            System.err.println(np + " points : mesh creation fails");
+            return 1;
+        }
+
+        FloatBuffer buffer = ByteBuffer.allocateDirect(np * 3 * 4)
+                                       .order(ByteOrder.nativeOrder())
+                                       .asFloatBuffer();
+
+        long[] arrayFill = new long[sIterations];
+        long[] arrayUpdate = new long[sIterations];
+        for (int i = -sWarmup; i < sIterations; ++i) {
+            long start = System.nanoTime();
+            fill(points, n, i);
+            long filled = System.nanoTime();
+            OpenSubdiv.UpdatePoints(id, sLevel, points);
+            long updated = System.nanoTime();
+            if (i >= 0) {
+                arrayFill[i] = filled - start;
+                arrayUpdate[i] = updated - filled;
+            }
+        }
+        double arrayCopy = averageCopyNanos(id);
+
+        long[] bufferFill = new long[sIterations];
+        long[] bufferUpdate = new long[sIterations];
+        for (int i = -sWarmup; i < sIterations; ++i) {
+            long start = System.nanoTime();
+            fill(buffer, n, i);
+            long filled = System.nanoTime();
+            OpenSubdiv.UpdatePoints(id, sLevel, buffer);
+            long updated = System.nanoTime();
+            if (i >= 0) {
+                bufferFill[i] = filled - start;
+                bufferUpdate[i] = updated - filled;
+            }
+        }
+        double bufferCopy = averageCopyNanos(id);
+
+        OpenSubdiv.DeleteMesh(id);
+
+        System.out.println(String.format(Locale.US,
+            "  { \"points\" : %d, \"level\" : %d,\n" +
+            "    \"array\" : { \"fill\" : %d, \"copy\" : %.0f, \"update\" : %d },\n" +
+            "    \"buffer\" : { \"fill\" : %d, \"copy\" : %.0f, \"update\" : %d } }%s",
+            np, sLevel,
+            p50(arrayFill), arrayCopy, p50(arrayUpdate),
+            p50(bufferFill), bufferCopy, p50(bufferUpdate),
+            last ? "" : ","));
+
+        if (bufferCopy != 0.0) {
+            System.err.println(np + " points : buffer updates copy the points");
+            return 1;
+        }
+        return 0;
+    }
+
+    // Grid points, waving with frame.
+    private static void fill(float[] points, int n, int frame) {
+        for (int j = 0; j <= n; ++j) {
+            for (int i = 0; i <= n; ++i) {
+                int p = (j * (n + 1) + i) * 3;
+                points[p] = i;
+                points[p + 1] = j;
+                points[p + 2] = (float) Math.sin((i + frame) * 0.1);
+            }
+        }
+    }
+
+    private static void fill(FloatBuffer points, int n, int frame) {
+        for (int j = 0; j <= n; ++j) {
+            for (int i = 0; i <= n; ++i) {
+                int p = (j * (n + 1) + i) * 3;
+                points.put(p, i);
+                points.put(p + 1, j);
+                points.put(p + 2, (float) Math.sin((i + frame) * 0.1));
+            }
+        }
+    }
+
+    // Average copy time of the frame records left by the last updates.
+    private static double averageCopyNanos(int id) {
+        sStats.clear();
+        int count = OpenSubdiv.GetFrameStats(id, sStats);
+        int numRecords = Math.min(count, sIterations);
+        if (numRecords == 0) {
+            return 0.0;
+        }
+        long sum = 0;
+        int first = count - numRecords;
+        for (int r = first; r < first + numRecords; ++r) {
+            sum += sStats.get(r * OpenSubdiv.NUM_FRAME_STATS +
+                              OpenSubdiv.FRAME_STAT_COPY_NANOS);
+        }
+        return (double) sum / numRecords;
+    }
+
+    private static long p50(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,317 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks ShapeImporter on small inline shapes; it needs no native library :
+ *
+ *   java -cp osd_jni_benchmark.jar
+ *        com.opensubdiv.OpenSubdivViewer.ShapeImporterCheck
+ *
+ * Faces and their tags, negative indices, CRLF line endings, lines longer
+ * than the read buffer, streams that return a few bytes per read and
+ * malformed records are imported, and the points must convert exactly as
+ * Float.parseFloat does. The exit status is the number of failures.
+ */
+public class ShapeImporterCheck {
+
+    private static final int NUM_RANDOM_FLOATS = 100000;
+
+    private static final String QUAD =
+        "v 0 0 0\n" +
+        "v 1 0 0\n" +
+        "v 1 1 0\n" +
+        "v 0 1 0\n";
+
+    private static int sFailures;
+
+    public static void main(String[] args) {
+        checkFacesAndTags();
+        checkNegativeIndices();
+        checkLineEndings();
+        checkLongLines();
+        checkMalformed();
+        checkFloats();
+
+        if (sFailures == 0) {
+            System.out.println("All importer checks passed.");
+        } else {
+            System.out.println("Total failures : " + sFailures);
+        }
+        System.exit(sFailures);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            System.out.println("FAILED : " + what);
+            ++sFailures;
+        }
+    }
+
+    private static Shape read(String text) throws IOException {
+        return ShapeImporter.read(
+            new ByteArrayInputStream(text.getBytes("US-ASCII")));
+    }
+
+    // Reads text, or returns null and counts a failure if it is rejected.
+    private static Shape readValid(String text, String what) {
+        try {
+            return read(text);
+        } catch (IOException e) {
+            check(false, what + " : " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void checkFacesAndTags() {
+        Shape shape = readValid(
+            "# comment\n" +
+            QUAD +
+            "v 2 0 0\n" +
+            "v 2 1 0\n" +
+            "vt 0.5 0.5\n" +
+            "vn 0 0 1\n" +
+            "f 1/1/1 2/1/1 3/1/1 4/1/1\n" +
+            "f 2//1 5//1 6//1 3//1\n" +
+            "t crease 4/2/0 0 1 1 2 2.5 1.5\n" +
+            "t corner 2/1/0 4 5 3\n" +
+            "t interpolateboundary 1/0/0 1\n" +
+            "t hole 1/0/0 1\n", "faces and tags");
+        if (shape == null) {
+            return;
+        }
+        check(Arrays.equals(shape.nverts, new int[] { 4, 4 }),
+              "face sizes " + Arrays.toString(shape.nverts));
+        check(Arrays.equals(shape.verts,
+                            new int[] { 0, 1, 2, 3, 1, 4, 5, 2 }),
+              "face vertices " + Arrays.toString(shape.verts));
+        check(shape.getNumPoints() == 6,
+              "points " + shape.getNumPoints());
+        check(Arrays.equals(shape.creases, new int[] { 0, 1, 1, 2 }),
+              "crease edges " + Arrays.toString(shape.creases));
+        check(Arrays.equals(shape.creaseSharpness,
+                            new float[] { 2.5f, 1.5f }),
+              "crease sharpness " + Arrays.toString(shape.creaseSharpness));
+        check(Arrays.equals(shape.corners, new int[] { 4, 5 }),
+              "corners " + Arrays.toString(shape.corners));
+        check(Arrays.equals(shape.cornerSharpness,
+                            new float[] { 3.0f, 3.0f }),
+              "corner sharpness " + Arrays.toString(shape.cornerSharpness));
+        check(shape.interpolateBoundary ==
+              Shape.INTERPOLATE_BOUNDARY_EDGE_AND_CORNER,
+              "interpolateboundary " + shape.interpolateBoundary);
+    }
+
+    // negative indices count back from the last point read so far
+    private static void checkNegativeIndices() {
+        Shape shape = readValid(
+            QUAD +
+            "f -4 -3 -2 -1\n" +
+            "v 2 0 0\n" +
+            "v 2 1 0\n" +
+            "f 2 -2 -1 -4\n", "negative indices");
+        if (shape == null) {
+            return;
+        }
+        check(Arrays.equals(shape.verts,
+                            new int[] { 0, 1, 2, 3, 1, 4, 5, 2 }),
+              "negative indices " + Arrays.toString(shape.verts));
+    }
+
+    private static void checkLineEndings() {
+        String text =
+            QUAD +
+            "v 2 0 0\n" +
+            "v 2 1 0\n" +
+            "f 1 2 3 4\n" +
+            "f 2 5 6 3 \n" +
+            "t crease 2/1/0 1 4 3.0\n" +
+            "t interpolateboundary 1/0/0 2";
+        Shape lf = readValid(text, "LF line endings");
+        Shape crlf = readValid(text.replace("\n", "\r\n") + "\r\n",
+                               "CRLF line endings");
+        if (lf == null || crlf == null) {
+            return;
+        }
+        check(sameShape(lf, crlf), "CRLF shape differs from LF");
+        check(lf.interpolateBoundary == Shape.INTERPOLATE_BOUNDARY_EDGE_ONLY,
+              "last line without end of line is dropped");
+    }
+
+    // Lines much longer than the 64KB read buffer, and streams returning
+    // a few bytes per read, which split every line across reads.
+    private static void checkLongLines() {
+        int n = 30000;
+        StringBuilder text = new StringBuilder();
+        StringBuilder face = new StringBuilder("f");
+        for (int i = 0; i < n; ++i) {
+            double angle = 2.0 * Math.PI * i / n;
+            text.append(String.format(Locale.US, "v %.9f %.9f 0\n",
+                                      Math.cos(angle), Math.sin(angle)));
+            face.append(' ').append(i + 1).append("/1/1");
+        }
+        text.append(face).append('\n');
+        StringBuilder padded = new StringBuilder("v");
+        for (int i = 0; i < 100000; ++i) {
+            padded.append(' ');
+        }
+        text.append(padded).append("0.5 0.25 0.125\n");
+
+        Shape shape = readValid(text.toString(), "long lines");
+        if (shape == null) {
+            return;
+        }
+        check(shape.nverts.length == 1 && shape.nverts[0] == n,
+              "long face of " + n + " vertices");
+        check(shape.getNumPoints() == n + 1, "points " + shape.getNumPoints());
+        check(shape.points[n * 3] == 0.5f && shape.points[n * 3 + 1] == 0.25f &&
+              shape.points[n * 3 + 2] == 0.125f, "padded point");
+
+        try {
+            byte[] bytes = text.toString().getBytes("US-ASCII");
+            Shape trickled = ShapeImporter.read(new TrickleInputStream(bytes));
+            check(sameShape(shape, trickled), "shape read in small reads");
+        } catch (IOException e) {
+            check(false, "small reads : " + e.getMessage());
+        }
+    }
+
+    private static void checkMalformed() {
+        String[] malformed = {
+            "v 1 2 x\n",
+            "v 1 2\n",
+            "v 1e 2 3\n",
+            "v - 1 2\n",
+            "v 1 2 1e99999999999\n",
+            QUAD + "f 1 2\n",
+            QUAD + "f 0 1 2\n",
+            QUAD + "f 1 2 5\n",
+            QUAD + "f 1 2 -5\n",
+            QUAD + "f 1 2 a\n",
+            QUAD + "f 1 2 3 99999999999\n",
+            QUAD + "t crease 2/0/0 1 2\n",
+            QUAD + "t crease 2/1/0 1 7 1.0\n",
+            QUAD + "t corner 1/0/0 1\n",
+            QUAD + "t crease 2 1 0 1 2 1.0\n",
+            QUAD + "t crease 2/1/0 1\n",
+            QUAD + "t interpolateboundary 1/0/0 3\n",
+        };
+        for (int i = 0; i < malformed.length; ++i) {
+            try {
+                read(malformed[i]);
+                check(false, "accepted " + malformed[i].replace("\n", "\\n"));
+            } catch (IOException e) {
+                // rejected, as expected
+            } catch (RuntimeException e) {
+                check(false, e + " on " + malformed[i].replace("\n", "\\n"));
+            }
+        }
+    }
+
+    // Decimals of every length, including those which round differently
+    // through a double, must convert as Float.parseFloat does.
+    private static void checkFloats() {
+        String[] fixed = {
+            "0.1", "-2.5e-3", "+1.5", ".5", "5.", "1E3", "16777216",
+            "16777217", "123456789", "0.30000001192092896",
+            "1.00000005960464477539", "7.038531e-26", "3.4028235e38",
+            "3.4028236e38", "1.4e-45", "1e-46", "0.000000000001",
+            "12345678901234567890123", "1e10", "1e11", "1e-10", "1e-11",
+        };
+        StringBuilder text = new StringBuilder();
+        String[] tokens = new String[fixed.length + NUM_RANDOM_FLOATS];
+        System.arraycopy(fixed, 0, tokens, 0, fixed.length);
+        Random random = new Random(1);
+        for (int i = fixed.length; i < tokens.length; ++i) {
+            tokens[i] = randomDecimal(random);
+        }
+        int numTokens = tokens.length - tokens.length % 3;
+        for (int i = 0; i < numTokens; i += 3) {
+            text.append("v ").append(tokens[i]).append(' ')
+                .append(tokens[i + 1]).append(' ')
+                .append(tokens[i + 2]).append('\n');
+        }
+
+        Shape shape = readValid(text.toString(), "floats");
+        if (shape == null) {
+            return;
+        }
+        int mismatches = 0;
+        for (int i = 0; i < numTokens; ++i) {
+            float expected = Float.parseFloat(tokens[i]);
+            if (Float.floatToIntBits(shape.points[i]) !=
+                Float.floatToIntBits(expected)) {
+                if (mismatches++ < 10) {
+                    System.out.println(String.format(Locale.US,
+                        "%s : %s instead of %s", tokens[i],
+                        Float.toString(shape.points[i]),
+                        Float.toString(expected)));
+                }
+            }
+        }
+        check(mismatches == 0, mismatches + " float conversions");
+    }
+
+    // Up to 20 significant digits, a decimal point anywhere and an
+    // optional exponent.
+    private static String randomDecimal(Random random) {
+        StringBuilder s = new StringBuilder();
+        if (random.nextBoolean()) {
+            s.append('-');
+        }
+        int numDigits = 1 + random.nextInt(20);
+        int point = random.nextInt(numDigits + 1);
+        for (int d = 0; d < numDigits; ++d) {
+            if (d == point) {
+                s.append('.');
+            }
+            s.append((char) ('0' + random.nextInt(10)));
+        }
+        if (random.nextInt(4) == 0) {
+            s.append('e').append(random.nextInt(80) - 40);
+        }
+        return s.toString();
+    }
+
+    private static boolean sameShape(Shape a, Shape b) {
+        return Arrays.equals(a.nverts, b.nverts) &&
+               Arrays.equals(a.verts, b.verts) &&
+               Arrays.equals(a.points, b.points) &&
+               Arrays.equals(a.creases, b.creases) &&
+               Arrays.equals(a.creaseSharpness, b.creaseSharpness) &&
+               Arrays.equals(a.corners, b.corners) &&
+               Arrays.equals(a.cornerSharpness, b.cornerSharpness) &&
+               a.interpolateBoundary == b.interpolateBoundary;
+    }
+
+    // Returns at most 7 bytes per read.
+    private static final class TrickleInputStream extends InputStream {
+        private final byte[] mBytes;
+        private int mPos;
+
+        TrickleInputStream(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return mPos < mBytes.length ? mBytes[mPos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (mPos == mBytes.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(length, 7), mBytes.length - mPos);
+            System.arraycopy(mBytes, mPos, buffer, offset, n);
+            mPos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks the native skinning against the Java reference, Skin.skin, through
+ * the host build of the native library (see PointsBenchmark) :
+ *
+ *   java -Dopensubdiv.jni.library=/path/to/libOpenSubdivjni.so
+ *        -cp osd_jni_benchmark.jar
+ *        com.opensubdiv.OpenSubdivViewer.SkinCheck
+ *
+ * A grid cage is skinned with random rigs of 1 to MAX_SKIN_INFLUENCES
+ * influences per point and a few random poses each; the skinned points
+ * must be within MAX_ERROR of Skin.skin. Skins with out of range bone
+ * indices must be rejected. The exit status is the number of failures.
+ */
+public class SkinCheck {
+
+    private static final float MAX_ERROR = 1e-5f;
+
+    private static final int GRID = 40;
+    private static final int NUM_BONES = 7;
+    private static final int NUM_POSES = 5;
+    private static final int LEVEL = 2;
+
+    public static void main(String[] args) {
+        int n = GRID;
+        int np = (n + 1) * (n + 1);
+
+        int[] nverts = new int[n * n];
+        int[] verts = new int[n * n * 4];
+        for (int j = 0; j < n; ++j) {
+            for (int i = 0; i < n; ++i) {
+                int f = j * n + i;
+                int p = j * (n + 1) + i;
+                nverts[f] = 4;
+                verts[f * 4] = p;
+                verts[f * 4 + 1] = p + 1;
+                verts[f * 4 + 2] = p + n + 2;
+                verts[f * 4 + 3] = p + n + 1;
+            }
+        }
+        float[] points = new float[np * 3];
+        for (int j = 0; j <= n; ++j) {
+            for (int i = 0; i <= n; ++i) {
+                int p = (j * (n + 1) + i) * 3;
+                points[p] = i * 0.1f;
+                points[p + 1] = j * 0.1f;
+                points[p + 2] = (float) Math.sin(i * 0.3) * 0.2f;
+            }
+        }
+
+        Random random = new Random(1);
+        int failures = 0;
+
+        for (int ni = 1; ni <= OpenSubdiv.MAX_SKIN_INFLUENCES; ++ni) {
+            int[] boneIndices = new int[np * ni];
+            float[] weights = new float[np * ni];
+            for (int p = 0; p < np; ++p) {
+                float sum = 0.0f;
+                for (int k = 0; k < ni; ++k) {
+                    boneIndices[p * ni + k] = random.nextInt(NUM_BONES);
+                    weights[p * ni + k] = random.nextFloat();
+                    sum += weights[p * ni + k];
+                }
+                for (int k = 0; k < ni; ++k) {
+                    weights[p * ni + k] /= sum;
+                }
+            }
+
+            MeshHandle mesh = MeshHandle.createCatmark(LEVEL, nverts, verts,
+                                                       3, points);
+            Skin skin = new Skin(3, points, ni, boneIndices, weights,
+                                 NUM_BONES);
+            if (!mesh.setSkin(skin)) {
+                System.out.println(ni + " influences : skin is rejected");
+                ++failures;
+                mesh.close();
+                continue;
+            }
+
+            float maxError = 0.0f;
+            float[] boneMatrices = new float[NUM_BONES * 16];
+            for (int pose = 0; pose < NUM_POSES; ++pose) {
+                for (int b = 0; b < NUM_BONES; ++b) {
+                    double angle = random.nextDouble() * 6.0;
+                    float c = (float) Math.cos(angle);
+                    float s = (float) Math.sin(angle);
+                    float[] matrix = {
+                        c, s, 0, 0,
+                        -s, c, 0, 0,
+                        0, 0, 1, 0,
+                        random.nextFloat() * 2, random.nextFloat(),
+                        random.nextFloat() - 0.5f, 1,
+                    };
+                    System.arraycopy(matrix, 0, boneMatrices, b * 16, 16);
+                }
+                mesh.updateSkinnedPoints(LEVEL, boneMatrices);
+
+                float error = skin.getMaxError(mesh, boneMatrices);
+                if (error < 0.0f || error > MAX_ERROR) {
+                    System.out.println(String.format(Locale.US,
+                        "%d influences : pose %d error %g", ni, pose, error));
+                    ++failures;
+                }
+                maxError = Math.max(maxError, error);
+            }
+
+            // bone indices up to NUM_BONES-1 with only 2 bones
+            if (mesh.setSkin(new Skin(3, points, ni, boneIndices, weights, 2))) {
+                System.out.println(ni + " influences : bad bone index is accepted");
+                ++failures;
+            }
+
+            mesh.close();
+
+            System.out.println(String.format(Locale.US,
+                "%d influences : max error %g", ni, maxError));
+        }
+
+        if (failures == 0) {
+            System.out.println("All skin checks passed.");
+        } else {
+            System.out.println("Total failures : " + failures);
+        }
+        System.exit(failures);
+    }
+}
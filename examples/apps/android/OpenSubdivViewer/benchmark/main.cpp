@@ -0,0 +1,996 @@
+// Headless refinement benchmark of the viewer's mesh wrapper.
+//
+// Builds OpenSubdiv.cpp with OSD_HEADLESS, so that meshes refine into cpu
+// vertex buffers without a GL context, and runs the pipeline of the Java
+// binding over the Catmull-Clark regression shapes : topology creation,
+// then per update the smooth normals, the write of the coarse vertices,
+// Refine() and, for adaptive meshes, the patch tessellation.
+//
+// Each shape and level is created and updated a few times to warm up, then
+// timed over the given number of iterations. The report is written to
+// stdout as JSON : p50 and p99 per stage in nanoseconds, heap allocations
+// per iteration, the peak heap of each run, and the vertex cache misses
+// per triangle (ACMR) of the triangles before and after their reordering.
+// Once warmed up, updates must not allocate : runs whose timed updates do
+// count as failures, so keep -warmup at 1 or more.
+//
+// After the updates, the chunks of the mesh are culled from a close-up
+// camera, see cameraMatrix : the "cull" stage times the culling and
+// "visibleTriangles" counts what is left to draw.
+//
+// With the packed vertex layout (-layout 2), each run also checks the
+// decoded vertices against the float ones : positions must be within half
+// a quantization step of the refined bounding box, normals within
+// kMaxNormalErrorDegrees. Runs beyond those bounds count as failures.
+//
+// With -crowd n, each run also updates n instances of the mesh, sharing its
+// topology, one after the other ("crowdSerial") and as one batch on the
+// worker threads of UpdatePointsBatch ("crowdBatch"). The batch should be
+// about "batchThreads" times faster; use the cpu or stencil backend, the
+// threaded backends would run threads within threads.
+//
+// With -skin, the updates skin the cage with a synthetic rig of 16 bones
+// and 4 influences per point, see createRig, instead of passing its
+// points; "skin" times the skinning. A last update with the cage points
+// leaves the mesh as the other runs for the checks that follow.
+//
+// With -morph, the updates weight 4 at a time of 32 synthetic morph
+// targets, see createMorphs, instead; "morph" times the morphing, and
+// "morphError" compares the last morphed update with a full update of the
+// same points. Runs beyond kMaxMorphError count as failures.
+//
+//     osd_benchmark [-iterations n] [-warmup n] [-levels min max]
+//                   [-adaptive] [-backend b] [-threads n] [-layout l]
+//                   [-shape name] [-crowd n] [-skin | -morph]
+
+#include "../jni/OsdBenchmark.h"
+
+#include <common/mutex.h>
+#include <common/shape_utils.h>
+
+#include <sys/resource.h>
+#include <time.h>
+
+#include <algorithm>
+#include <new>
+#include <string>
+#include <vector>
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+////////
+// Heap accounting
+////////
+
+// Every allocation of the process goes through these, with its size stored
+// in front of the block so that the live heap can be tracked on release.
+
+static const size_t kHeaderSize = 16;
+
+static volatile long long g_numAllocations = 0;
+static volatile long long g_heapBytes = 0;
+static volatile long long g_peakHeapBytes = 0;
+
+static void *
+_Allocate(size_t size)
+{
+    char *block = static_cast<char *>(malloc(size + kHeaderSize));
+    if (not block) {
+        throw std::bad_alloc();
+    }
+    *reinterpret_cast<size_t *>(block) = size;
+
+    __sync_fetch_and_add(&g_numAllocations, 1);
+    long long heap = __sync_add_and_fetch(&g_heapBytes, (long long)size);
+    // the peak is only approximate when several threads allocate at once
+    if (heap > g_peakHeapBytes) {
+        g_peakHeapBytes = heap;
+    }
+    return block + kHeaderSize;
+}
+
+static void
+_Release(void *ptr)
+{
+    if (not ptr) {
+        return;
+    }
+    char *block = static_cast<char *>(ptr) - kHeaderSize;
+    __sync_fetch_and_sub(&g_heapBytes,
+                         (long long)*reinterpret_cast<size_t *>(block));
+    free(block);
+}
+
+// the replacements must repeat the exception specifications of <new>,
+// which C++11 dropped from operator new and turned into noexcept
+#if __cplusplus < 201103L
+#define BENCHMARK_THROW_BAD_ALLOC throw(std::bad_alloc)
+#define BENCHMARK_NOEXCEPT throw()
+#else
+#define BENCHMARK_THROW_BAD_ALLOC
+#define BENCHMARK_NOEXCEPT noexcept
+#endif
+
+void *
+operator new(size_t size) BENCHMARK_THROW_BAD_ALLOC
+{
+    return _Allocate(size);
+}
+
+void *
+operator new[](size_t size) BENCHMARK_THROW_BAD_ALLOC
+{
+    return _Allocate(size);
+}
+
+void
+operator delete(void *ptr) BENCHMARK_NOEXCEPT
+{
+    _Release(ptr);
+}
+
+void
+operator delete[](void *ptr) BENCHMARK_NOEXCEPT
+{
+    _Release(ptr);
+}
+
+////////
+// Shapes
+////////
+
+struct BenchmarkShape {
+    BenchmarkShape(char const * name, char const * data) :
+        name(name), data(data) {}
+
+    char const * name;
+    char const * data;
+};
+
+static std::vector<BenchmarkShape> g_shapes;
+
+static void
+initShapes()
+{
+#include <shapes/catmark_cube_corner0.h>
+    g_shapes.push_back(BenchmarkShape("catmark_cube_corner0", catmark_cube_corner0));
+
+#include <shapes/catmark_cube_corner1.h>
+    g_shapes.push_back(BenchmarkShape("catmark_cube_corner1", catmark_cube_corner1));
+
+#include <shapes/catmark_cube_corner2.h>
+    g_shapes.push_back(BenchmarkShape("catmark_cube_corner2", catmark_cube_corner2));
+
+#include <shapes/catmark_cube_corner3.h>
+    g_shapes.push_back(BenchmarkShape("catmark_cube_corner3", catmark_cube_corner3));
+
+#include <shapes/catmark_cube_corner4.h>
+    g_shapes.push_back(BenchmarkShape("catmark_cube_corner4", catmark_cube_corner4));
+
+#include <shapes/catmark_cube_creases0.h>
+    g_shapes.push_back(BenchmarkShape("catmark_cube_creases0", catmark_cube_creases0));
+
+#include <shapes/catmark_cube_creases1.h>
+    g_shapes.push_back(BenchmarkShape("catmark_cube_creases1", catmark_cube_creases1));
+
+#include <shapes/catmark_cube.h>
+    g_shapes.push_back(BenchmarkShape("catmark_cube", catmark_cube));
+
+#include <shapes/catmark_dart_edgecorner.h>
+    g_shapes.push_back(BenchmarkShape("catmark_dart_edgecorner", catmark_dart_edgecorner));
+
+#include <shapes/catmark_dart_edgeonly.h>
+    g_shapes.push_back(BenchmarkShape("catmark_dart_edgeonly", catmark_dart_edgeonly));
+
+#include <shapes/catmark_edgecorner.h>
+    g_shapes.push_back(BenchmarkShape("catmark_edgecorner", catmark_edgecorner));
+
+#include <shapes/catmark_edgeonly.h>
+    g_shapes.push_back(BenchmarkShape("catmark_edgeonly", catmark_edgeonly));
+
+#include <shapes/catmark_gregory_test1.h>
+    g_shapes.push_back(BenchmarkShape("catmark_gregory_test1", catmark_gregory_test1));
+
+#include <shapes/catmark_gregory_test2.h>
+    g_shapes.push_back(BenchmarkShape("catmark_gregory_test2", catmark_gregory_test2));
+
+#include <shapes/catmark_gregory_test3.h>
+    g_shapes.push_back(BenchmarkShape("catmark_gregory_test3", catmark_gregory_test3));
+
+#include <shapes/catmark_gregory_test4.h>
+    g_shapes.push_back(BenchmarkShape("catmark_gregory_test4", catmark_gregory_test4));
+
+#include <shapes/catmark_pyramid_creases0.h>
+    g_shapes.push_back(BenchmarkShape("catmark_pyramid_creases0", catmark_pyramid_creases0));
+
+#include <shapes/catmark_pyramid_creases1.h>
+    g_shapes.push_back(BenchmarkShape("catmark_pyramid_creases1", catmark_pyramid_creases1));
+
+#include <shapes/catmark_pyramid_creases2.h>
+    g_shapes.push_back(BenchmarkShape("catmark_pyramid_creases2", catmark_pyramid_creases2));
+
+#include <shapes/catmark_pyramid.h>
+    g_shapes.push_back(BenchmarkShape("catmark_pyramid", catmark_pyramid));
+
+#include <shapes/catmark_tent_creases0.h>
+    g_shapes.push_back(BenchmarkShape("catmark_tent_creases0", catmark_tent_creases0));
+
+#include <shapes/catmark_tent_creases1.h>
+    g_shapes.push_back(BenchmarkShape("catmark_tent_creases1", catmark_tent_creases1));
+
+#include <shapes/catmark_tent.h>
+    g_shapes.push_back(BenchmarkShape("catmark_tent", catmark_tent));
+
+#include <shapes/catmark_torus.h>
+    g_shapes.push_back(BenchmarkShape("catmark_torus", catmark_torus));
+
+#include <shapes/catmark_torus_creases0.h>
+    g_shapes.push_back(BenchmarkShape("catmark_torus_creases0", catmark_torus_creases0));
+
+#include <shapes/catmark_torus_creases1.h>
+    g_shapes.push_back(BenchmarkShape("catmark_torus_creases1", catmark_torus_creases1));
+
+#include <shapes/catmark_bishop.h>
+    g_shapes.push_back(BenchmarkShape("catmark_bishop", catmark_bishop));
+
+#include <shapes/catmark_car.h>
+    g_shapes.push_back(BenchmarkShape("catmark_car", catmark_car));
+
+#include <shapes/catmark_helmet.h>
+    g_shapes.push_back(BenchmarkShape("catmark_helmet", catmark_helmet));
+
+#include <shapes/catmark_pawn.h>
+    g_shapes.push_back(BenchmarkShape("catmark_pawn", catmark_pawn));
+
+#include <shapes/catmark_rook.h>
+    g_shapes.push_back(BenchmarkShape("catmark_rook", catmark_rook));
+}
+
+// Converts a parsed shape to a cage, with the tags the mesh wrapper
+// supports : creases, corners and the boundary interpolation.
+static void
+createCage(shape const * sh, OsdBenchmarkCage & cage)
+{
+    cage.nverts = sh->nvertsPerFace;
+    cage.verts = sh->faceverts;
+    cage.points = sh->verts;
+
+    for (int i=0; i<(int)sh->tags.size(); ++i) {
+        shape::tag const * t = sh->tags[i];
+        int nfloat = (int)t->floatargs.size();
+
+        if (t->name == "crease") {
+            for (int j=0; j<(int)t->intargs.size()-1; j += 2) {
+                cage.creases.push_back(t->intargs[j]);
+                cage.creases.push_back(t->intargs[j+1]);
+                cage.creaseSharpness.push_back(
+                    nfloat > 1 ? t->floatargs[j] : t->floatargs[0]);
+            }
+        } else if (t->name == "corner") {
+            for (int j=0; j<(int)t->intargs.size(); ++j) {
+                cage.corners.push_back(t->intargs[j]);
+                cage.cornerSharpness.push_back(
+                    nfloat > 1 ? t->floatargs[j] : t->floatargs[0]);
+            }
+        } else if (t->name == "interpolateboundary" and
+                   t->intargs.size() == 1) {
+            cage.interpolateBoundary = t->intargs[0];
+        }
+    }
+}
+
+////////
+// Statistics
+////////
+
+static long long
+getTimeNanos()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (long long)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+// Nearest rank percentile, samples is sorted in place.
+static long long
+percentile(std::vector<long long> & samples, int p)
+{
+    if (samples.empty()) {
+        return 0;
+    }
+    std::sort(samples.begin(), samples.end());
+    size_t rank = (samples.size() * p + 99) / 100;
+    return samples[std::max(rank, (size_t)1) - 1];
+}
+
+static void
+printStage(char const * name, std::vector<long long> & samples, bool last)
+{
+    long long p50 = percentile(samples, 50);
+    long long p99 = percentile(samples, 99);
+    printf("        \"%s\": { \"p50\": %lld, \"p99\": %lld }%s\n",
+           name, p50, p99, last ? "" : ",");
+}
+
+struct Options {
+    Options() :
+        iterations(50), warmup(5), minLevel(1), maxLevel(4),
+        adaptive(false), backend(0), numThreads(1), layout(0), shape(0),
+        crowd(0), skin(false), morph(false) {}
+
+    int iterations;
+    int warmup;
+    int minLevel;
+    int maxLevel;
+    bool adaptive;
+    int backend;
+    int numThreads;
+    int layout;
+    char const * shape;
+    int crowd;
+    bool skin;
+    bool morph;
+};
+
+static const int kLayoutPacked = 2;         // OpenSubdiv.VERTEX_LAYOUT_PACKED
+
+////////
+// Skinning
+////////
+
+// A synthetic rig for -skin : kSkinBones bones stacked along the y extent
+// of the cage, each point weighted between the kSkinInfluences nearest.
+static const int kSkinBones = 16;
+static const int kSkinInfluences = 4;
+
+struct Rig {
+    std::vector<int> boneIndices;
+    std::vector<float> weights;
+    float centers[kSkinBones][2];       // x, y of the bone pivots
+};
+
+static void
+createRig(OsdBenchmarkCage const & cage, Rig & rig)
+{
+    int numPoints = (int)cage.points.size() / 3;
+
+    float xmin = cage.points[0], xmax = cage.points[0];
+    float ymin = cage.points[1], ymax = cage.points[1];
+    for (int i=1; i<numPoints; ++i) {
+        xmin = std::min(xmin, cage.points[i*3]);
+        xmax = std::max(xmax, cage.points[i*3]);
+        ymin = std::min(ymin, cage.points[i*3+1]);
+        ymax = std::max(ymax, cage.points[i*3+1]);
+    }
+    float slab = std::max(ymax - ymin, 1e-6f) / kSkinBones;
+    for (int b=0; b<kSkinBones; ++b) {
+        rig.centers[b][0] = 0.5f * (xmin + xmax);
+        rig.centers[b][1] = ymin + (b + 0.5f) * slab;
+    }
+
+    rig.boneIndices.resize(numPoints * kSkinInfluences);
+    rig.weights.resize(numPoints * kSkinInfluences);
+    for (int i=0; i<numPoints; ++i) {
+        // the kSkinInfluences bones around the point's slab
+        float s = (cage.points[i*3+1] - ymin) / slab - 0.5f;
+        int first = std::max(0, std::min(kSkinBones - kSkinInfluences,
+                                         int(floorf(s)) - kSkinInfluences/2 + 1));
+        float sum = 0.0f;
+        for (int j=0; j<kSkinInfluences; ++j) {
+            float w = 1.0f / (1.0f + fabsf(s - (first + j)));
+            rig.boneIndices[i*kSkinInfluences+j] = first + j;
+            rig.weights[i*kSkinInfluences+j] = w;
+            sum += w;
+        }
+        for (int j=0; j<kSkinInfluences; ++j) {
+            rig.weights[i*kSkinInfluences+j] /= sum;
+        }
+    }
+}
+
+// Column-major matrices rotating each bone about z around its pivot, by an
+// angle growing along the stack and with time, as a bending column.
+static void
+poseRig(Rig const & rig, float time, float *matrices)
+{
+    for (int b=0; b<kSkinBones; ++b) {
+        float angle = 0.02f * b * sinf(time);
+        float c = cosf(angle), s = sinf(angle);
+        float px = rig.centers[b][0], py = rig.centers[b][1];
+
+        float *m = matrices + b*16;
+        memset(m, 0, 16 * sizeof(float));
+        m[0] = c;
+        m[1] = s;
+        m[4] = -s;
+        m[5] = c;
+        m[10] = 1.0f;
+        m[12] = px - (c*px - s*py);
+        m[13] = py - (s*px + c*py);
+        m[15] = 1.0f;
+    }
+}
+
+////////
+// Morph Targets
+////////
+
+// Synthetic morph targets for -morph : kMorphTargets bumps, each pushing
+// the cage points within kMorphRadius of the cage size of one of them
+// along y, kActiveMorphTargets of which are weighted at a time.
+static const int kMorphTargets = 32;
+static const int kActiveMorphTargets = 4;
+static const float kMorphRadius = 0.05f;
+
+// bound of the difference between morphed updates and full updates of
+// the same points, relative to the size of the cage
+static const double kMaxMorphError = 1e-5;
+
+struct Morphs {
+    std::vector<std::vector<int> > indices;
+    std::vector<std::vector<float> > deltas;
+};
+
+static float
+cageSize(OsdBenchmarkCage const & cage)
+{
+    int numPoints = (int)cage.points.size() / 3;
+    float bmin[3], bmax[3];
+    for (int k=0; k<3; ++k) {
+        bmin[k] = bmax[k] = cage.points[k];
+    }
+    for (int i=3; i<numPoints*3; ++i) {
+        bmin[i%3] = std::min(bmin[i%3], cage.points[i]);
+        bmax[i%3] = std::max(bmax[i%3], cage.points[i]);
+    }
+    float d[3] = { bmax[0]-bmin[0], bmax[1]-bmin[1], bmax[2]-bmin[2] };
+    return std::max(sqrtf(d[0]*d[0] + d[1]*d[1] + d[2]*d[2]), 1e-6f);
+}
+
+static void
+createMorphs(OsdBenchmarkCage const & cage, Morphs & morphs)
+{
+    int numPoints = (int)cage.points.size() / 3;
+    float radius = kMorphRadius * cageSize(cage);
+
+    morphs.indices.resize(kMorphTargets);
+    morphs.deltas.resize(kMorphTargets);
+    for (int t=0; t<kMorphTargets; ++t) {
+        const float *center = &cage.points[((t * 7919) % numPoints) * 3];
+        for (int i=0; i<numPoints; ++i) {
+            const float *p = &cage.points[i*3];
+            float dx = p[0]-center[0], dy = p[1]-center[1], dz = p[2]-center[2];
+            float distance = sqrtf(dx*dx + dy*dy + dz*dz);
+            if (distance < radius) {
+                morphs.indices[t].push_back(i);
+                morphs.deltas[t].push_back(0.0f);
+                morphs.deltas[t].push_back(0.1f * (radius - distance));
+                morphs.deltas[t].push_back(0.0f);
+            }
+        }
+    }
+}
+
+// Weights of a frame : kActiveMorphTargets consecutive targets, moving on
+// by one every frame. Returns the number of weighted deltas.
+static int
+weighMorphs(Morphs const & morphs, int frame, float *weights)
+{
+    int numDeltas = 0;
+    int first = ((frame % kMorphTargets) + kMorphTargets) % kMorphTargets;
+    std::fill(weights, weights + kMorphTargets, 0.0f);
+    for (int j=0; j<kActiveMorphTargets; ++j) {
+        int t = (first + j) % kMorphTargets;
+        weights[t] = 0.5f + 0.5f * sinf(0.1f * frame + j);
+        numDeltas += (int)morphs.indices[t].size();
+    }
+    return numDeltas;
+}
+
+// Measures the difference between the draw vertices of mesh, after morphed
+// updates, and those of another mesh of the same layout updated with the
+// morphed points in full, relative to the size of the cage.
+static double
+checkMorphs(OsdBenchmarkCage const & cage, int level, int layout,
+            OsdBenchmarkMesh *mesh, Morphs const & morphs,
+            const float *weights)
+{
+    std::vector<float> points = cage.points;
+    for (int t=0; t<kMorphTargets; ++t) {
+        if (fabsf(weights[t]) < 1e-4f) {        // OpenSubdiv.MIN_MORPH_WEIGHT
+            continue;
+        }
+        for (int i=0; i<(int)morphs.indices[t].size(); ++i) {
+            for (int k=0; k<3; ++k) {
+                points[morphs.indices[t][i]*3+k] +=
+                    weights[t] * morphs.deltas[t][i*3+k];
+            }
+        }
+    }
+
+    OsdBenchmarkMesh *reference = OsdBenchmarkMesh::Create(cage, level, 0);
+    reference->SetVertexLayout(layout);
+    OsdBenchmarkStages stages;
+    reference->UpdatePoints(&points[0], &stages);
+
+    int numVertices = mesh->GetNumDrawVertices();
+    std::vector<float> positions(numVertices*3), normals(numVertices*3);
+    std::vector<float> refPositions(numVertices*3), refNormals(numVertices*3);
+    if (numVertices > 0) {
+        mesh->ReadDrawVertices(&positions[0], &normals[0]);
+        reference->ReadDrawVertices(&refPositions[0], &refNormals[0]);
+    }
+    delete reference;
+
+    double size = cageSize(cage), maxError = 0.0;
+    for (int i=0; i<numVertices*3; ++i) {
+        maxError = std::max(maxError,
+                            fabs(positions[i] - refPositions[i]) / size);
+        maxError = std::max(maxError, (double)fabs(normals[i] - refNormals[i]));
+    }
+    return maxError;
+}
+
+// Column-major model-view-projection matrix of a camera looking down -z at
+// the center of the cage, half its radius in front of it, with a 45 degree
+// field of view, so that part of the surface is out of the frustum and part
+// of it faces away. eye is set to the camera position.
+static void
+cameraMatrix(OsdBenchmarkCage const & cage, float *mvp, float *eye)
+{
+    float bmin[3], bmax[3];
+    for (int k=0; k<3; ++k) {
+        bmin[k] = bmax[k] = cage.points[k];
+    }
+    for (int i=3; i<(int)cage.points.size(); ++i) {
+        bmin[i%3] = std::min(bmin[i%3], cage.points[i]);
+        bmax[i%3] = std::max(bmax[i%3], cage.points[i]);
+    }
+    float center[3], radius2 = 0.0f;
+    for (int k=0; k<3; ++k) {
+        center[k] = 0.5f * (bmin[k] + bmax[k]);
+        radius2 += 0.25f * (bmax[k] - bmin[k]) * (bmax[k] - bmin[k]);
+    }
+    float radius = std::max(sqrtf(radius2), 1e-3f);
+
+    eye[0] = center[0];
+    eye[1] = center[1];
+    eye[2] = bmax[2] + 0.5f * radius;
+
+    float zNear = 0.01f * radius, zFar = 10.0f * radius;
+    float f = 1.0f / tanf(0.5f * 45.0f * float(M_PI) / 180.0f);
+    for (int i=0; i<16; ++i) {
+        mvp[i] = 0.0f;
+    }
+    // projection times a translation by -eye
+    mvp[0] = f;
+    mvp[5] = f;
+    mvp[10] = (zFar + zNear) / (zNear - zFar);
+    mvp[11] = -1.0f;
+    mvp[12] = -f * eye[0];
+    mvp[13] = -f * eye[1];
+    mvp[14] = -mvp[10] * eye[2] + 2.0f * zFar * zNear / (zNear - zFar);
+    mvp[15] = eye[2];
+}
+
+// bounds of the packed layout error, see checkPacked : half a step, and
+// the float rounding of the quantization
+static const double kMaxPositionErrorSteps = 0.55;
+static const double kMaxNormalErrorDegrees = 0.005;
+
+// Measures the error of the packed vertices of mesh against the float
+// vertices of another mesh of the same cage and level : the position error
+// in quantization steps of the refined bounding box, and the normal error
+// in degrees.
+static void
+checkPacked(OsdBenchmarkCage const & cage, int level, OsdBenchmarkMesh *mesh,
+            double *positionErrorSteps, double *normalErrorDegrees)
+{
+    OsdBenchmarkMesh *reference = OsdBenchmarkMesh::Create(cage, level, 0);
+    OsdBenchmarkStages stages;
+    reference->UpdatePoints(&cage.points[0], &stages);
+
+    int numVertices = mesh->GetNumDrawVertices();
+    if (numVertices == 0) {
+        delete reference;
+        *positionErrorSteps = *normalErrorDegrees = 0.0;
+        return;
+    }
+    std::vector<float> positions(numVertices*3), normals(numVertices*3);
+    std::vector<float> refPositions(numVertices*3), refNormals(numVertices*3);
+    mesh->ReadDrawVertices(&positions[0], &normals[0]);
+    reference->ReadDrawVertices(&refPositions[0], &refNormals[0]);
+    delete reference;
+
+    float bmin[3], bmax[3];
+    for (int k=0; k<3; ++k) {
+        bmin[k] = bmax[k] = refPositions[k];
+    }
+    for (int i=3; i<numVertices*3; ++i) {
+        bmin[i%3] = std::min(bmin[i%3], refPositions[i]);
+        bmax[i%3] = std::max(bmax[i%3], refPositions[i]);
+    }
+    double step[3];
+    for (int k=0; k<3; ++k) {
+        double halfExtent = 0.5 * (bmax[k] - bmin[k]);
+        step[k] = (halfExtent > 0.0 ? halfExtent : 1.0) / 32767.0;
+    }
+
+    double maxSteps = 0.0, maxAngle = 0.0;
+    for (int i=0; i<numVertices; ++i) {
+        for (int k=0; k<3; ++k) {
+            double d = fabs(positions[i*3+k] - refPositions[i*3+k]);
+            maxSteps = std::max(maxSteps, d / step[k]);
+        }
+
+        // in double, acos of the dot product of floats can't resolve
+        // such small angles
+        double n[3], r[3];
+        for (int k=0; k<3; ++k) {
+            n[k] = normals[i*3+k];
+            r[k] = refNormals[i*3+k];
+        }
+        double cross[3] = { n[1]*r[2] - n[2]*r[1],
+                            n[2]*r[0] - n[0]*r[2],
+                            n[0]*r[1] - n[1]*r[0] };
+        double sine = sqrt(cross[0]*cross[0] + cross[1]*cross[1] +
+                           cross[2]*cross[2]);
+        double cosine = n[0]*r[0] + n[1]*r[1] + n[2]*r[2];
+        // degenerate vertices have no normal to compare with
+        if (r[0] != 0.0 or r[1] != 0.0 or r[2] != 0.0) {
+            maxAngle = std::max(maxAngle, atan2(sine, cosine));
+        }
+    }
+    *positionErrorSteps = maxSteps;
+    *normalErrorDegrees = maxAngle * 180.0 / M_PI;
+}
+
+// Runs one shape at one level and prints its JSON object. Returns false
+// if the mesh can't be built.
+static bool
+runBenchmark(char const * name, OsdBenchmarkCage const & cage, int level,
+             Options const & options, bool first)
+{
+    int tessLevel = options.adaptive ? level : 0;
+    int iterations = std::max(options.iterations, 1);
+
+    // creation, from the cage to a mesh ready to be updated
+    std::vector<long long> create;
+    create.reserve(iterations);
+    long long createAllocations = 0;
+    long long heapBase = g_heapBytes;
+    g_peakHeapBytes = heapBase;
+
+    for (int i=-options.warmup; i<iterations; ++i) {
+        long long allocations = g_numAllocations;
+        long long start = getTimeNanos();
+        OsdBenchmarkMesh *mesh =
+            OsdBenchmarkMesh::Create(cage, level, tessLevel);
+        long long elapsed = getTimeNanos() - start;
+        long long allocated = g_numAllocations - allocations;
+        if (not mesh) {
+            fprintf(stderr, "%s : failed to create level %d mesh\n",
+                    name, level);
+            return false;
+        }
+        delete mesh;
+
+        if (i >= 0) {
+            create.push_back(elapsed);
+            createAllocations += allocated;
+        }
+    }
+
+    // updates of one mesh
+    OsdBenchmarkMesh *mesh = OsdBenchmarkMesh::Create(cage, level, tessLevel);
+    if (not mesh->SetComputeBackend(options.backend, options.numThreads)) {
+        fprintf(stderr, "backend %d is not available\n", options.backend);
+        delete mesh;
+        return false;
+    }
+    if (not mesh->SetVertexLayout(options.layout)) {
+        fprintf(stderr, "%s : layout %d is not supported\n",
+                name, options.layout);
+        delete mesh;
+        return false;
+    }
+
+    Rig rig;
+    std::vector<float> boneMatrices(kSkinBones * 16);
+    if (options.skin) {
+        createRig(cage, rig);
+        mesh->SetSkin(&cage.points[0], kSkinInfluences,
+                      &rig.boneIndices[0], &rig.weights[0], kSkinBones);
+    }
+
+    Morphs morphs;
+    std::vector<float> morphWeights(kMorphTargets);
+    int morphDeltas = 0;
+    if (options.morph) {
+        createMorphs(cage, morphs);
+        mesh->SetMorphBase(&cage.points[0]);
+        for (int t=0; t<kMorphTargets; ++t) {
+            mesh->AddMorphTarget((int)morphs.indices[t].size(),
+                                 &morphs.indices[t][0], &morphs.deltas[t][0]);
+        }
+    }
+
+    std::vector<long long> update, normals, write, refine, tessellate, pack;
+    std::vector<long long> skin, morph;
+    std::vector<long long> * stageTimes[] = {
+        &update, &normals, &write, &refine, &tessellate, &pack, &skin, &morph };
+    for (int k=0; k<int(sizeof(stageTimes)/sizeof(stageTimes[0])); ++k) {
+        stageTimes[k]->reserve(iterations);
+    }
+    long long updateAllocations = 0;
+
+    for (int i=-options.warmup; i<iterations; ++i) {
+        if (options.skin) {
+            poseRig(rig, 0.1f * i, &boneMatrices[0]);
+        } else if (options.morph) {
+            morphDeltas = weighMorphs(morphs, i, &morphWeights[0]);
+        }
+
+        OsdBenchmarkStages stages;
+        long long allocations = g_numAllocations;
+        long long start = getTimeNanos();
+        if (options.skin) {
+            mesh->UpdateSkinnedPoints(&boneMatrices[0], &stages);
+        } else if (options.morph) {
+            mesh->UpdateMorphWeights(&morphWeights[0], kMorphTargets, &stages);
+        } else {
+            mesh->UpdatePoints(&cage.points[0], &stages);
+        }
+        long long elapsed = getTimeNanos() - start;
+        // taken before the push_backs below, which may allocate
+        long long allocated = g_numAllocations - allocations;
+
+        if (i >= 0) {
+            update.push_back(elapsed);
+            normals.push_back(stages.normals);
+            write.push_back(stages.write);
+            refine.push_back(stages.refine);
+            tessellate.push_back(stages.tessellate);
+            pack.push_back(stages.pack);
+            skin.push_back(stages.skin);
+            morph.push_back(stages.morph);
+            updateAllocations += allocated;
+        }
+    }
+
+    long long peakHeapBytes = g_peakHeapBytes - heapBase;
+
+    bool accurate = true;
+    if (updateAllocations > 0) {
+        fprintf(stderr, "%s : level %d updates made %lld allocations\n",
+                name, level, updateAllocations);
+        accurate = false;
+    }
+    double morphError = 0.0;
+    if (options.morph and not options.adaptive) {
+        morphError = checkMorphs(cage, level, options.layout, mesh, morphs,
+                                 &morphWeights[0]);
+        if (morphError > kMaxMorphError) {
+            fprintf(stderr, "%s : level %d morphed vertices are off by %g\n",
+                    name, level, morphError);
+            accurate = false;
+        }
+    }
+
+    // the rest pose only matches the cage up to rounding, which the
+    // packed check would count
+    if (options.skin or options.morph) {
+        OsdBenchmarkStages stages;
+        mesh->UpdatePoints(&cage.points[0], &stages);
+    }
+
+    float mvp[16], eye[3];
+    cameraMatrix(cage, mvp, eye);
+    std::vector<long long> cull;
+    int visibleTriangles = 0;
+    for (int i=-options.warmup; i<iterations; ++i) {
+        long long start = getTimeNanos();
+        visibleTriangles = mesh->CullChunks(mvp, eye);
+        if (i >= 0) {
+            cull.push_back(getTimeNanos() - start);
+        }
+    }
+
+    // updates of a crowd of instances, serial then batched
+    std::vector<long long> crowdSerial, crowdBatch;
+    if (options.crowd > 0) {
+        std::vector<OsdBenchmarkMesh *> crowd(options.crowd);
+        std::vector<const float *> crowdPoints(options.crowd, &cage.points[0]);
+        for (int m=0; m<options.crowd; ++m) {
+            crowd[m] = OsdBenchmarkMesh::Create(cage, level, tessLevel);
+            crowd[m]->SetComputeBackend(options.backend, options.numThreads);
+            crowd[m]->SetVertexLayout(options.layout);
+        }
+
+        for (int i=-options.warmup; i<iterations; ++i) {
+            long long start = getTimeNanos();
+            for (int m=0; m<options.crowd; ++m) {
+                OsdBenchmarkStages stages;
+                crowd[m]->UpdatePoints(crowdPoints[m], &stages);
+            }
+            long long serial = getTimeNanos() - start;
+
+            start = getTimeNanos();
+            OsdBenchmarkMesh::UpdatePointsBatch(&crowd[0], &crowdPoints[0],
+                                                options.crowd);
+            long long batch = getTimeNanos() - start;
+
+            if (i >= 0) {
+                crowdSerial.push_back(serial);
+                crowdBatch.push_back(batch);
+            }
+        }
+
+        for (int m=0; m<options.crowd; ++m) {
+            delete crowd[m];
+        }
+    }
+
+    double positionErrorSteps = 0.0, normalErrorDegrees = 0.0;
+    if (options.layout == kLayoutPacked) {
+        checkPacked(cage, level, mesh,
+                    &positionErrorSteps, &normalErrorDegrees);
+        if (positionErrorSteps > kMaxPositionErrorSteps or
+            normalErrorDegrees > kMaxNormalErrorDegrees) {
+            accurate = false;
+            fprintf(stderr, "%s : level %d packed vertices are off by %g "
+                    "steps, %g degrees\n", name, level,
+                    positionErrorSteps, normalErrorDegrees);
+        }
+    }
+
+    printf("%s    {\n", first ? "" : ",\n");
+    printf("      \"shape\": \"%s\",\n", name);
+    printf("      \"level\": %d,\n", level);
+    printf("      \"adaptive\": %s,\n", options.adaptive ? "true" : "false");
+    printf("      \"faces\": %d,\n", (int)cage.nverts.size());
+    printf("      \"refinedVertices\": %d,\n", mesh->GetNumRefinedVertices());
+    printf("      \"drawVertices\": %d,\n", mesh->GetNumDrawVertices());
+    printf("      \"triangles\": %d,\n", mesh->GetNumTriangles());
+    printf("      \"chunks\": %d,\n", mesh->GetNumChunks());
+    printf("      \"visibleTriangles\": %d,\n", visibleTriangles);
+    printf("      \"inputACMR\": %.3f,\n", mesh->GetInputACMR());
+    printf("      \"ACMR\": %.3f,\n", mesh->GetACMR());
+    printf("      \"nanos\": {\n");
+    printStage("create", create, false);
+    printStage("update", update, false);
+    printStage("normals", normals, false);
+    printStage("write", write, false);
+    printStage("refine", refine, false);
+    printStage("tessellate", tessellate, false);
+    printStage("pack", pack, false);
+    if (options.skin) {
+        printStage("skin", skin, false);
+    }
+    if (options.morph) {
+        printStage("morph", morph, false);
+    }
+    printStage("cull", cull, options.crowd == 0);
+    if (options.crowd > 0) {
+        printStage("crowdSerial", crowdSerial, false);
+        printStage("crowdBatch", crowdBatch, true);
+    }
+    printf("      },\n");
+    if (options.morph) {
+        printf("      \"morphDeltas\": %d,\n", morphDeltas);
+        printf("      \"morphError\": %.3g,\n", morphError);
+    }
+    if (options.layout == kLayoutPacked) {
+        printf("      \"packedPositionErrorSteps\": %.4f,\n",
+               positionErrorSteps);
+        printf("      \"packedNormalErrorDegrees\": %.5f,\n",
+               normalErrorDegrees);
+    }
+    printf("      \"allocationsPerCreate\": %.1f,\n",
+           double(createAllocations) / iterations);
+    printf("      \"allocationsPerUpdate\": %.1f,\n",
+           double(updateAllocations) / iterations);
+    printf("      \"peakHeapBytes\": %lld\n", peakHeapBytes);
+    printf("    }");
+
+    delete mesh;
+    return accurate;
+}
+
+static void
+usage(char const * program)
+{
+    fprintf(stderr,
+            "usage : %s [-iterations n] [-warmup n] [-levels min max]\n"
+            "           [-adaptive] [-backend b] [-threads n] [-layout l]\n"
+            "           [-shape name] [-crowd n] [-skin | -morph]\n",
+            program);
+    exit(1);
+}
+
+int
+main(int argc, char ** argv)
+{
+    Options options;
+    for (int i=1; i<argc; ++i) {
+        if (not strcmp(argv[i], "-iterations") and i+1 < argc) {
+            options.iterations = atoi(argv[++i]);
+        } else if (not strcmp(argv[i], "-warmup") and i+1 < argc) {
+            options.warmup = atoi(argv[++i]);
+        } else if (not strcmp(argv[i], "-levels") and i+2 < argc) {
+            options.minLevel = atoi(argv[++i]);
+            options.maxLevel = atoi(argv[++i]);
+        } else if (not strcmp(argv[i], "-adaptive")) {
+            options.adaptive = true;
+        } else if (not strcmp(argv[i], "-backend") and i+1 < argc) {
+            options.backend = atoi(argv[++i]);
+        } else if (not strcmp(argv[i], "-threads") and i+1 < argc) {
+            options.numThreads = atoi(argv[++i]);
+        } else if (not strcmp(argv[i], "-layout") and i+1 < argc) {
+            options.layout = atoi(argv[++i]);
+        } else if (not strcmp(argv[i], "-shape") and i+1 < argc) {
+            options.shape = argv[++i];
+        } else if (not strcmp(argv[i], "-crowd") and i+1 < argc) {
+            options.crowd = atoi(argv[++i]);
+        } else if (not strcmp(argv[i], "-skin")) {
+            options.skin = true;
+        } else if (not strcmp(argv[i], "-morph")) {
+            options.morph = true;
+        } else {
+            usage(argv[0]);
+        }
+    }
+
+    if (options.skin and options.morph) {
+        usage(argv[0]);
+    }
+
+    initShapes();
+
+    printf("{\n");
+    printf("  \"iterations\": %d,\n", options.iterations);
+    printf("  \"warmup\": %d,\n", options.warmup);
+    printf("  \"backend\": %d,\n", options.backend);
+    printf("  \"threads\": %d,\n", options.numThreads);
+    printf("  \"layout\": %d,\n", options.layout);
+    printf("  \"crowd\": %d,\n", options.crowd);
+    printf("  \"skin\": %s,\n", options.skin ? "true" : "false");
+    printf("  \"morph\": %s,\n", options.morph ? "true" : "false");
+    printf("  \"batchThreads\": %d,\n", OsdBenchmarkMesh::GetNumBatchThreads());
+    printf("  \"runs\": [\n");
+
+    int failures = 0;
+    bool first = true;
+    for (int i=0; i<(int)g_shapes.size(); ++i) {
+        if (options.shape and strcmp(options.shape, g_shapes[i].name)) {
+            continue;
+        }
+
+        shape * sh = shape::parseShape(g_shapes[i].data);
+        OsdBenchmarkCage cage;
+        createCage(sh, cage);
+        delete sh;
+
+        for (int level=options.minLevel; level<=options.maxLevel; ++level) {
+            if (runBenchmark(g_shapes[i].name, cage, level, options, first)) {
+                first = false;
+            } else {
+                ++failures;
+            }
+            fflush(stdout);
+        }
+    }
+
+    struct rusage usage;
+    getrusage(RUSAGE_SELF, &usage);
+
+    printf("\n  ],\n");
+    printf("  \"failures\": %d,\n", failures);
+    printf("  \"maxResidentKilobytes\": %ld\n", usage.ru_maxrss);
+    printf("}\n");
+
+    return failures ? 1 : 0;
+}
@@ -3,11 +3,17 @@ LOCAL_PATH:= $(call my-dir)
 include $(CLEAR_VARS)
 
 LOCAL_MODULE    := OpenSubdivjni
-LOCAL_CFLAGS    := -Werror
+LOCAL_CFLAGS    := -Werror -DOPENSUBDIV_HAS_PTHREADS
 LOCAL_SRC_FILES := OpenSubdiv.cpp
 LOCAL_LDLIBS    := -llog -lEGL -lGLESv2
 LOCAL_SHARED_LIBRARIES    := OpenSubdivOsdCPU OpenSubdivOsdGPU
 
+# Set OSD_HAS_OPENMP=true when libosdCPU was built with OpenMP support
+ifeq ($(OSD_HAS_OPENMP),true)
+LOCAL_CFLAGS    += -DOPENSUBDIV_HAS_OPENMP -fopenmp
+LOCAL_LDFLAGS   += -fopenmp
+endif
+
 include $(BUILD_SHARED_LIBRARY)
 
 $(call import-module, OpenSubdiv)
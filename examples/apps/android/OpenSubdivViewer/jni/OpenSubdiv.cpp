@@ -1,5 +1,7 @@
 #include <jni.h>
+#ifndef OSD_HEADLESS
 #include <android/log.h>
+#endif
 
 // XXXdyu-api
 #include <version.h>
@@ -31,341 +33,6112 @@ typedef OpenSubdiv::HbrVertex<OpenSubdiv::OsdVertex>   OsdHbrVertex;
 typedef OpenSubdiv::HbrFace<OpenSubdiv::OsdVertex>     OsdHbrFace;
 typedef OpenSubdiv::HbrHalfedge<OpenSubdiv::OsdVertex> OsdHbrHalfedge;
 
+#include "OsdLimitStencil.h"
+
+#include <far/meshFactory.h>
+#include <far/meshSerializer.h>
+#ifdef OSD_HEADLESS
+#include <osd/cpuVertexBuffer.h>
+#else
 #include <osd/cpuGLVertexBuffer.h>
+#endif
+#include <osd/cpuComputeContext.h>
 #include <osd/cpuComputeController.h>
-#include <osd/glDrawContext.h>
-#include <osd/glMesh.h>
-
+#include <osd/cpuStencilTables.h>
+#ifdef OPENSUBDIV_HAS_OPENMP
+#include <osd/ompComputeController.h>
+#include <omp.h>
+#endif
+#ifdef OPENSUBDIV_HAS_PTHREADS
+#include <osd/pthreadComputeController.h>
+#endif
+#ifndef OSD_HEADLESS
 #include <EGL/egl.h>
 #include <GLES2/gl2.h>
 #include <GLES2/gl2ext.h>
 
+#include "OsdGLBufferRing.h"
+#endif
+
 #include <tr1/memory>
+#include <algorithm>
+#include <map>
+#include <string>
 #include <vector>
 
+#include <pthread.h>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
 #include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
 #include <math.h>
+#include <time.h>
 
 #define  LOG_TAG    "AndroidOsd"
+
+// OSD_HEADLESS builds the wrapper for the host, without GL : the meshes
+// refine into cpu vertex buffers and have no GL buffers or draw context.
+// See benchmark/ and OsdBenchmark.h.
+#ifdef OSD_HEADLESS
+#define  LOGI(...)  (fprintf(stderr, LOG_TAG ": " __VA_ARGS__), fputc('\n', stderr))
+#define  LOGE(...)  (fprintf(stderr, LOG_TAG ": " __VA_ARGS__), fputc('\n', stderr))
+
+typedef unsigned int GLuint;
+#define GL_UNSIGNED_SHORT 0x1403
+#define GL_UNSIGNED_INT 0x1405
+typedef OpenSubdiv::OsdCpuVertexBuffer OsdMeshVertexBuffer;
+
+#include "OsdBenchmark.h"
+#else
 #define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
 #define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
 
-typedef std::tr1::shared_ptr<class OsdMeshWrapper> OsdMeshWrapperSharedPtr;
+typedef OpenSubdiv::OsdCpuGLVertexBuffer OsdMeshVertexBuffer;
+#endif
 
-class OsdMeshWrapper {
+class ScopedLock {
 public:
-    OsdMeshWrapper() :
-        _meshHandleId(++_meshHandleIdGen),
-        _level(0),
-        _numPoints(0), _numFloatsPerPoint(0),
-        _osdMesh(0),
-        _trianglesIndexBuffer(0), _trianglesIndexCount(0) {}
-    ~OsdMeshWrapper();
+    explicit ScopedLock(pthread_mutex_t *mutex) : _mutex(mutex) {
+        pthread_mutex_lock(_mutex);
+    }
+    ~ScopedLock() {
+        pthread_mutex_unlock(_mutex);
+    }
+private:
+    pthread_mutex_t *_mutex;
+};
+
+static jlong
+_GetTimeNanos()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return jlong(ts.tv_sec) * 1000000000LL + ts.tv_nsec;
+}
+
+// Flat binary serialization in native byte order, for the topology disk
+// cache. Readers advance *data and return false rather than read past end.
+
+static void
+_AppendBytes(std::vector<char> & buffer, const void *data, size_t size)
+{
+    const char *bytes = static_cast<const char *>(data);
+    buffer.insert(buffer.end(), bytes, bytes+size);
+}
 
-    int GetMeshHandleId() const {
-        return _meshHandleId;
+static bool
+_ReadBytes(const char **data, const char *end, void *result, size_t size)
+{
+    if (size > size_t(end - *data)) {
+        return false;
     }
+    memcpy(result, *data, size);
+    *data += size;
+    return true;
+}
 
-    GLuint GetVertexBufferId() const {
-        return _osdMesh->BindVertexBuffer();
+template <class T> static void
+_AppendVector(std::vector<char> & buffer, std::vector<T> const & v)
+{
+    int size = (int)v.size();
+    _AppendBytes(buffer, &size, sizeof(int));
+    if (size > 0) {
+        _AppendBytes(buffer, &v[0], size*sizeof(T));
     }
+}
 
-    GLuint GetTrianglesIndexBufferId() const {
-        return _trianglesIndexBuffer;
+template <class T> static bool
+_ReadVector(const char **data, const char *end, std::vector<T> *v)
+{
+    int size = 0;
+    if (not _ReadBytes(data, end, &size, sizeof(int)) or size < 0 or
+        size_t(size) > size_t(end - *data)/sizeof(T)) {
+        return false;
     }
+    v->resize(size);
+    return size == 0 or _ReadBytes(data, end, &(*v)[0], size*sizeof(T));
+}
 
-    GLuint GetTrianglesIndexCount() const {
-        return _trianglesIndexCount;
+// FNV-1a of size bytes, to tell corrupted data apart.
+static unsigned int
+_Checksum(const char *data, size_t size)
+{
+    unsigned int hash = 2166136261u;
+    for (size_t i=0; i<size; ++i) {
+        hash = (hash ^ (unsigned char)data[i]) * 16777619u;
     }
+    return hash;
+}
 
-    void CreateCatmarkMesh(
-        int level, int numPoints, int numFloatsPerPoint,
-        int nvertsSize, const jint *nverts,
-        int vertsSize, const jint *verts);
+////////
+// Limit Evaluation
+////////
+
+// Tables locating limit surface points within the refined vertices of a
+// uniformly refined catmark mesh. Faces are addressed as ptex faces : one
+// per quad, and one per vertex of any other face, numbered in face order.
+// The refined vertices of a ptex face form a regular grid of cells. Cells
+// whose four corners are regular smooth vertices are bicubic B-spline
+// patches of their 4x4 grid neighborhood, which evaluate exactly to the
+// limit surface. Other cells, next to extraordinary vertices, creases or
+// boundaries, interpolate the limit positions of their corners bilinearly.
+
+typedef std::tr1::shared_ptr<class OsdLimitTables> OsdLimitTablesSharedPtr;
+
+class OsdLimitTables {
+public:
+    // Builds the tables from an Hbr mesh refined uniformly to level, remap
+    // mapping Hbr vertex ids to refined vertex indices.
+    static OsdLimitTablesSharedPtr Create(OsdHbrMesh *hmesh, int level,
+                                          std::vector<int> const & remap);
+
+    int GetNumFaces() const {
+        return (int)_faces.size();
+    }
+
+    // Evaluates the limit position and its u and v derivatives (9 floats)
+    // at (u,v) on a ptex face, from refined positions (3 floats per vertex).
+    // Returns false if the face can not be evaluated.
+    bool Evaluate(const float *positions, int face, float u, float v,
+                  float *result) const;
+
+    // Appends the tables to buffer, for the topology disk cache.
+    void Write(std::vector<char> & buffer) const;
 
-    void UpdatePoints(int level, jfloat *points);
+    // Reads tables written by Write at *data, advancing *data. Returns an
+    // empty pointer if the data is truncated.
+    static OsdLimitTablesSharedPtr Read(const char **data, const char *end);
 
 private:
-    static int _meshHandleIdGen;
-    int _meshHandleId;
+    struct PtexFace {
+        int resolution;         // number of cells per side
+        int gridOffset;         // (resolution+3)^2 vertices, with a ring
+        int cellOffset;         // resolution^2 regular flags
+        int cornerOffset;       // (resolution+1)^2 corner stencils
+    };
 
-    int _level;
-    int _numPoints;
-    int _numFloatsPerPoint;
+    typedef std::map<int, int> StencilMap;
 
-    OpenSubdiv::OsdGLMeshInterface *_osdMesh;
+    void addFace(OsdHbrFace *face, int depth,
+                 std::vector<int> const & remap, StencilMap *stencils);
 
-    GLuint _trianglesIndexBuffer;
-    int _trianglesIndexCount;
+    void addCells(PtexFace const & ptexFace, OsdHbrFace *face, int rotation,
+                  int depth, int i0, int j0, int size,
+                  std::vector<int> const & remap, StencilMap *stencils);
 
-    std::vector<int> _nverts;
-    std::vector<int> _verts;
-};
+    void addCell(PtexFace const & ptexFace, OsdHbrFace *face, int rotation,
+                 int i0, int j0,
+                 std::vector<int> const & remap, StencilMap *stencils);
 
-int OsdMeshWrapper::_meshHandleIdGen = 0;
+    int addStencil(OsdHbrVertex *vertex,
+                   std::vector<int> const & remap, StencilMap *stencils);
 
-OsdMeshWrapper::~OsdMeshWrapper()
+    void evaluateStencil(const float *positions, int stencil,
+                         float *result) const;
+
+    std::vector<PtexFace> _faces;
+    std::vector<int> _grid;
+    std::vector<unsigned char> _cellIsRegular;
+    std::vector<int> _cornerStencils;
+
+    // limit position stencils of the corners of irregular cells
+    std::vector<int> _stencilOffsets;
+    std::vector<int> _stencilIndices;
+    std::vector<float> _stencilWeights;
+};
+
+OsdLimitTablesSharedPtr
+OsdLimitTables::Create(OsdHbrMesh *hmesh, int level,
+                       std::vector<int> const & remap)
 {
-    delete _osdMesh;
+    OsdLimitTablesSharedPtr tables(new OsdLimitTables());
+    tables->_stencilOffsets.push_back(0);
+
+    StencilMap stencils;
+    int numFaces = hmesh->GetNumCoarseFaces();
+    for (int i=0; i<numFaces; ++i) {
+        OsdHbrFace *face = hmesh->GetFace(i);
+        int numVertsInFace = face->GetNumVertices();
+        if (numVertsInFace == 4) {
+            tables->addFace(face, level, remap, &stencils);
+        } else {
+            // (0,0) is the vertex, (1,0) the middle of its leading edge
+            for (int j=0; j<numVertsInFace; ++j) {
+                tables->addFace(level > 0 ? face->GetChild(j) : NULL,
+                                level-1, remap, &stencils);
+            }
+        }
+    }
+    return tables;
 }
 
 void
-OsdMeshWrapper::CreateCatmarkMesh(
-    int level, int numPoints, int numFloatsPerPoint,
-    int nvertsSize, const jint *nverts,
-    int vertsSize, const jint *verts)
+OsdLimitTables::Write(std::vector<char> & buffer) const
 {
-    static OpenSubdiv::HbrCatmarkSubdivision<OpenSubdiv::OsdVertex> catmark;
-    OsdHbrMesh *hmesh = new OsdHbrMesh(&catmark);
+    _AppendVector(buffer, _faces);
+    _AppendVector(buffer, _grid);
+    _AppendVector(buffer, _cellIsRegular);
+    _AppendVector(buffer, _cornerStencils);
+    _AppendVector(buffer, _stencilOffsets);
+    _AppendVector(buffer, _stencilIndices);
+    _AppendVector(buffer, _stencilWeights);
+}
 
-    // create new empty vertices
-    OpenSubdiv::OsdVertex v;
-    for (int i=0; i<numPoints; ++i) {
-        hmesh->NewVertex(i, v);
+OsdLimitTablesSharedPtr
+OsdLimitTables::Read(const char **data, const char *end)
+{
+    OsdLimitTablesSharedPtr tables(new OsdLimitTables());
+    if (not _ReadVector(data, end, &tables->_faces) or
+        not _ReadVector(data, end, &tables->_grid) or
+        not _ReadVector(data, end, &tables->_cellIsRegular) or
+        not _ReadVector(data, end, &tables->_cornerStencils) or
+        not _ReadVector(data, end, &tables->_stencilOffsets) or
+        not _ReadVector(data, end, &tables->_stencilIndices) or
+        not _ReadVector(data, end, &tables->_stencilWeights)) {
+        return OsdLimitTablesSharedPtr();
     }
+    return tables;
+}
 
-    // assign base mesh topology
-    const jint *faceIndices = verts;
-    for (int i=0; i<nvertsSize; ++i) {
-        int numVertsInFace = nverts[ i ];
+void
+OsdLimitTables::addFace(OsdHbrFace *face, int depth,
+                        std::vector<int> const & remap, StencilMap *stencils)
+{
+    PtexFace ptexFace;
+    ptexFace.resolution = (face and depth >= 0) ? (1 << depth) : 0;
+    int res = ptexFace.resolution;
 
-        bool faceIsValid = true;
-        for (int j=0; j<numVertsInFace; ++j) {
-            int i0 = faceIndices[ j ];
-            int i1 = faceIndices[ (j+1) % numVertsInFace ];
+    ptexFace.gridOffset = (int)_grid.size();
+    ptexFace.cellOffset = (int)_cellIsRegular.size();
+    ptexFace.cornerOffset = (int)_cornerStencils.size();
 
-            OsdHbrVertex *v0 = hmesh->GetVertex(i0);
-            OsdHbrVertex *v1 = hmesh->GetVertex(i1);
+    if (res > 0) {
+        _grid.resize(_grid.size() + (res+3)*(res+3), -1);
+        _cellIsRegular.resize(_cellIsRegular.size() + res*res, 0);
+        _cornerStencils.resize(_cornerStencils.size() + (res+1)*(res+1), -1);
 
-            // XXXdyu-api check for topology errors
-        }
+        addCells(ptexFace, face, 0, depth, 0, 0, res, remap, stencils);
+    }
+    _faces.push_back(ptexFace);
+}
 
-        if (faceIsValid) {
-            OsdHbrFace * face =
-                hmesh->NewFace(numVertsInFace, const_cast<int *>(faceIndices), 0);
+// Quad children keep the parametric orientation of their parent : child k
+// holds corner k of the parent at its own corner k.
+void
+OsdLimitTables::addCells(PtexFace const & ptexFace, OsdHbrFace *face,
+                         int rotation, int depth, int i0, int j0, int size,
+                         std::vector<int> const & remap, StencilMap *stencils)
+{
+    if (depth == 0) {
+        addCell(ptexFace, face, rotation, i0, j0, remap, stencils);
+        return;
+    }
+
+    static const int quadrants[4][2] = { {0, 0}, {1, 0}, {1, 1}, {0, 1} };
+    int half = size/2;
+    for (int q=0; q<4; ++q) {
+        OsdHbrFace *child = face->GetChild((rotation+q)%4);
+        if (child) {
+            addCells(ptexFace, child, rotation, depth-1,
+                     i0 + quadrants[q][0]*half, j0 + quadrants[q][1]*half,
+                     half, remap, stencils);
         }
+    }
+}
 
-        faceIndices += numVertsInFace;
+static bool
+_IsRegularVertex(OsdHbrVertex *vertex)
+{
+    return not vertex->OnBoundary() and vertex->GetValence() == 4 and
+           vertex->GetMask(false) == 0 and not vertex->IsVolatile();
+}
+
+void
+OsdLimitTables::addCell(PtexFace const & ptexFace, OsdHbrFace *face,
+                        int rotation, int i0, int j0,
+                        std::vector<int> const & remap, StencilMap *stencils)
+{
+    int res = ptexFace.resolution;
+    int *grid = &_grid[ptexFace.gridOffset];
+#define GRID(i, j) grid[((j)+1)*(res+3) + (i)+1]
+
+    // corners in parametric order (0,0) (1,0) (1,1) (0,1)
+    OsdHbrVertex *c[4];
+    OsdHbrHalfedge *e[4];
+    bool regular = true;
+    for (int m=0; m<4; ++m) {
+        c[m] = face->GetVertex((rotation+m)%4);
+        e[m] = face->GetEdge((rotation+m)%4);
+        regular = regular and _IsRegularVertex(c[m]);
     }
 
-    hmesh->Finish();
+    GRID(i0,   j0  ) = remap[c[0]->GetID()];
+    GRID(i0+1, j0  ) = remap[c[1]->GetID()];
+    GRID(i0+1, j0+1) = remap[c[2]->GetID()];
+    GRID(i0,   j0+1) = remap[c[3]->GetID()];
 
-    _level = level;
-    _numPoints = numPoints;
-    _numFloatsPerPoint = numFloatsPerPoint;
+    if (regular) {
+        // across edge m (c[m] to c[m+1]) : a is next to c[m], b next to
+        // c[m+1], and d is diagonal to c[m].
+        int a[4], b[4], d[4];
+        for (int m=0; m<4; ++m) {
+            OsdHbrHalfedge *opposite = e[m]->GetOpposite();
+            OsdHbrHalfedge *next = opposite->GetNext();
+            a[m] = remap[next->GetDestVertex()->GetID()];
+            b[m] = remap[next->GetNext()->GetDestVertex()->GetID()];
+            d[m] = remap[next->GetOpposite()->GetPrev()->GetOrgVertex()->GetID()];
+        }
+        GRID(i0-1, j0-1) = d[0];
+        GRID(i0,   j0-1) = a[0];
+        GRID(i0+1, j0-1) = b[0];
+        GRID(i0+2, j0-1) = d[1];
+        GRID(i0+2, j0  ) = a[1];
+        GRID(i0+2, j0+1) = b[1];
+        GRID(i0+2, j0+2) = d[2];
+        GRID(i0+1, j0+2) = a[2];
+        GRID(i0,   j0+2) = b[2];
+        GRID(i0-1, j0+2) = d[3];
+        GRID(i0-1, j0+1) = a[3];
+        GRID(i0-1, j0  ) = b[3];
+
+        _cellIsRegular[ptexFace.cellOffset + j0*res + i0] = 1;
+    } else {
+        static const int corners[4][2] = { {0, 0}, {1, 0}, {1, 1}, {0, 1} };
+        for (int m=0; m<4; ++m) {
+            int i = i0 + corners[m][0], j = j0 + corners[m][1];
+            _cornerStencils[ptexFace.cornerOffset + j*(res+1) + i] =
+                addStencil(c[m], remap, stencils);
+        }
+    }
+#undef GRID
+}
 
-    OpenSubdiv::OsdMeshBitset bits;
-    bits.set(OpenSubdiv::MeshAdaptive, false);
+// Limit position masks of the corners of irregular cells, see
+// OsdGetLimitStencil.
+int
+OsdLimitTables::addStencil(OsdHbrVertex *vertex,
+                           std::vector<int> const & remap, StencilMap *stencils)
+{
+    int index = remap[vertex->GetID()];
 
-    _osdMesh = new OpenSubdiv::OsdMesh<OpenSubdiv::OsdCpuGLVertexBuffer,
-                                       OpenSubdiv::OsdCpuComputeController,
-                                       OpenSubdiv::OsdGLDrawContext>
-                                       (hmesh, _numFloatsPerPoint+3, _level, bits); //XXXdyu
+    StencilMap::const_iterator it = stencils->find(index);
+    if (it != stencils->end()) {
+        return it->second;
+    }
 
-    delete hmesh;
+    std::vector<OsdHbrVertex *> vertices;
+    std::vector<float> weights;
+    OsdGetLimitStencil(vertex, &vertices, &weights);
+    for (int i=0; i<(int)vertices.size(); ++i) {
+        _stencilIndices.push_back(remap[vertices[i]->GetID()]);
+        _stencilWeights.push_back(weights[i]);
+    }
 
-    _nverts.assign(nverts, nverts+nvertsSize);
-    _verts.assign(verts, verts+vertsSize);
+    int stencil = (int)_stencilOffsets.size()-1;
+    _stencilOffsets.push_back((int)_stencilIndices.size());
+    (*stencils)[index] = stencil;
+    return stencil;
 }
 
-static void
-_Cross(float *r, const float *a, const float *b, const float *c)
+void
+OsdLimitTables::evaluateStencil(const float *positions, int stencil,
+                                float *result) const
 {
-    float p[3] = { b[0]-a[0], b[1]-a[1], b[2]-a[2] };
-    float q[3] = { c[0]-a[0], c[1]-a[1], c[2]-a[2] };
-    r[0] = p[1]*q[2] - p[2]*q[1];
-    r[1] = p[2]*q[0] - p[0]*q[2];
-    r[2] = p[0]*q[1] - p[1]*q[0];
+    result[0] = result[1] = result[2] = 0.0f;
+    for (int i=_stencilOffsets[stencil]; i<_stencilOffsets[stencil+1]; ++i) {
+        const float *p = &positions[_stencilIndices[i]*3];
+        float w = _stencilWeights[i];
+        result[0] += w*p[0];
+        result[1] += w*p[1];
+        result[2] += w*p[2];
+    }
 }
 
 static void
-_Normalize(float *r)
+_BSplineWeights(float t, float *w, float *dw)
 {
-    float d = 1.0 / sqrt( r[0]*r[0] + r[1]*r[1] + r[2]*r[2] );
-    r[0] *= d;
-    r[1] *= d;
-    r[2] *= d;
+    float t2 = t*t, t3 = t2*t, s = 1.0f - t;
+
+    w[0] = s*s*s / 6.0f;
+    w[1] = (3.0f*t3 - 6.0f*t2 + 4.0f) / 6.0f;
+    w[2] = (-3.0f*t3 + 3.0f*t2 + 3.0f*t + 1.0f) / 6.0f;
+    w[3] = t3 / 6.0f;
+
+    dw[0] = -s*s / 2.0f;
+    dw[1] = (3.0f*t2 - 4.0f*t) / 2.0f;
+    dw[2] = (-3.0f*t2 + 2.0f*t + 1.0f) / 2.0f;
+    dw[3] = t2 / 2.0f;
 }
 
-static void
-_ComputeSmoothNormals(
-        const std::vector<int> & nverts,
-        const std::vector<int> & verts,
-        int numPoints, int numFloatsPerPoint, const jfloat *points,
-        std::vector<float> *normals)
+bool
+OsdLimitTables::Evaluate(const float *positions, int face, float u, float v,
+                         float *result) const
 {
-    normals->resize(3 * numPoints, 0.0f);
+    if (face < 0 or face >= (int)_faces.size()) {
+        return false;
+    }
+    PtexFace const & ptexFace = _faces[face];
+    int res = ptexFace.resolution;
+    if (res == 0) {
+        return false;
+    }
 
-    const int * v = verts.data();
-    for (int i=-0; i<nverts.size(); ++i) {
-        int numVertsInFace = nverts[ i ];
+    u = std::min(std::max(u, 0.0f), 1.0f) * res;
+    v = std::min(std::max(v, 0.0f), 1.0f) * res;
+    int i = std::min((int)u, res-1);
+    int j = std::min((int)v, res-1);
+    float s = u - i, t = v - j;
 
-        for (int j=0; j<numVertsInFace; ++j) {
-            int a = v[ j ];
-            int b = v[ ((j+1) < numVertsInFace ? j+1 : j+1 - numVertsInFace) ];
-            int c = v[ ((j+2) < numVertsInFace ? j+2 : j+2 - numVertsInFace) ];
+    const int *grid = &_grid[ptexFace.gridOffset];
 
-            float n[3];
-            _Cross(n, &points[ a*numFloatsPerPoint ],
-                      &points[ b*numFloatsPerPoint ],
-                      &points[ c*numFloatsPerPoint ]);
-            (*normals)[b*3 + 0] -= n[0];
-            (*normals)[b*3 + 1] -= n[1];
-            (*normals)[b*3 + 2] -= n[2];
-        }
+    for (int k=0; k<9; ++k) {
+        result[k] = 0.0f;
+    }
 
-        v += numVertsInFace;
+    if (_cellIsRegular[ptexFace.cellOffset + j*res + i]) {
+        float wu[4], dwu[4], wv[4], dwv[4];
+        _BSplineWeights(s, wu, dwu);
+        _BSplineWeights(t, wv, dwv);
+
+        for (int row=0; row<4; ++row) {
+            const int *gridRow = &grid[(j+row)*(res+3) + i];
+            for (int col=0; col<4; ++col) {
+                const float *p = &positions[gridRow[col]*3];
+                float w = wu[col]*wv[row];
+                float du = dwu[col]*wv[row]*res;
+                float dv = wu[col]*dwv[row]*res;
+                for (int k=0; k<3; ++k) {
+                    result[k] += w*p[k];
+                    result[3+k] += du*p[k];
+                    result[6+k] += dv*p[k];
+                }
+            }
+        }
+        return true;
     }
 
-    for (int i=0; i<normals->size()/3; ++i) {
-        _Normalize(&((*normals)[i*3]));
+    // bilinear interpolation of the corner limit positions
+    const int *stencils = &_cornerStencils[ptexFace.cornerOffset];
+    int corners[4] = { stencils[j*(res+1) + i],     stencils[j*(res+1) + i+1],
+                       stencils[(j+1)*(res+1) + i+1], stencils[(j+1)*(res+1) + i] };
+    float p[4][3];
+    for (int m=0; m<4; ++m) {
+        if (corners[m] < 0) {
+            return false;
+        }
+        evaluateStencil(positions, corners[m], p[m]);
+    }
+    for (int k=0; k<3; ++k) {
+        result[k] = (p[0][k]*(1.0f-s) + p[1][k]*s)*(1.0f-t) +
+                    (p[3][k]*(1.0f-s) + p[2][k]*s)*t;
+        result[3+k] = ((p[1][k]-p[0][k])*(1.0f-t) + (p[2][k]-p[3][k])*t)*res;
+        result[6+k] = ((p[3][k]-p[0][k])*(1.0f-s) + (p[2][k]-p[1][k])*s)*res;
     }
+    return true;
 }
 
-void
-OsdMeshWrapper::UpdatePoints(int level, jfloat *points)
-{
-    std::vector<float> normals;
-    _ComputeSmoothNormals(_nverts, _verts,
-                          _numPoints, _numFloatsPerPoint, points,
-                          &normals);
+// Evaluates the limit surface of one mesh instance from a copy of its
+// refined positions, so that queries can run on any thread while the GL
+// thread keeps refining the instance.
 
-    std::vector<float> interleaved;
-    for (int i=0; i<_numPoints; ++i) {
-        for (int j=0; j<_numFloatsPerPoint; ++j) {
-            interleaved.push_back(points[i*_numFloatsPerPoint + j]);
-        }
-        interleaved.push_back(normals[i*3 + 0]);
-        interleaved.push_back(normals[i*3 + 1]);
-        interleaved.push_back(normals[i*3 + 2]);
+typedef std::tr1::shared_ptr<class OsdLimitEvaluator> OsdLimitEvaluatorSharedPtr;
+
+class OsdLimitEvaluator {
+public:
+    OsdLimitEvaluator(OsdLimitTablesSharedPtr const & tables, int numVertices) :
+        _tables(tables), _positions(numVertices*3), _valid(false) {
+        pthread_mutex_init(&_mutex, NULL);
     }
 
-    _osdMesh->UpdateVertexBuffer(interleaved.data(), _numPoints);
+    ~OsdLimitEvaluator() {
+        pthread_mutex_destroy(&_mutex);
+    }
 
-    _osdMesh->Refine();
+    int GetNumFaces() const {
+        return _tables->GetNumFaces();
+    }
 
-    _trianglesIndexBuffer = _osdMesh->GetDrawContext()->patchTrianglesIndexBuffer;
-    _trianglesIndexCount = (_osdMesh->GetDrawContext()->patchArrays[0].numIndices/4)*6;
-}
+    // Copies the positions of the refined vertices, stride floats apart.
+    void UpdateVertices(const float *vertices, int stride);
 
-////////
-// Mesh Wrapper Registry
-////////
+    // Evaluates numQueries (face, u, v) queries into 9 floats each : the
+    // limit position and its u and v derivatives. Queries which can not be
+    // evaluated yield zeros. Returns the number of evaluated queries.
+    int Evaluate(int numQueries, const jint *faces, const jfloat *uvs,
+                 jfloat *results);
 
-static OsdMeshWrapperSharedPtr registry;
+private:
+    OsdLimitTablesSharedPtr _tables;
 
-static
-OsdMeshWrapperSharedPtr
-NewWrapper()
-{
-    registry.reset(new OsdMeshWrapper());
-    return registry;
-}
+    pthread_mutex_t _mutex;
+    std::vector<float> _positions;
+    bool _valid;
+};
 
-static
-OsdMeshWrapperSharedPtr
-GetWrapper(int meshHandleId)
+void
+OsdLimitEvaluator::UpdateVertices(const float *vertices, int stride)
 {
-    return registry;
+    ScopedLock lock(&_mutex);
+
+    int numVertices = (int)_positions.size()/3;
+    float *dst = &_positions[0];
+    for (int i=0; i<numVertices; ++i, vertices+=stride, dst+=3) {
+        dst[0] = vertices[0];
+        dst[1] = vertices[1];
+        dst[2] = vertices[2];
+    }
+    _valid = true;
 }
 
-static
-void
-DeleteWrapper(int meshHandleId)
+int
+OsdLimitEvaluator::Evaluate(int numQueries, const jint *faces,
+                            const jfloat *uvs, jfloat *results)
 {
-    registry.reset();
+    ScopedLock lock(&_mutex);
+
+    int numEvaluated = 0;
+    for (int i=0; i<numQueries; ++i) {
+        float *result = &results[i*9];
+        if (_valid and _tables->Evaluate(&_positions[0], faces[i],
+                                         uvs[i*2], uvs[i*2+1], result)) {
+            ++numEvaluated;
+        } else {
+            std::fill(result, result+9, 0.0f);
+        }
+    }
+    return numEvaluated;
 }
 
 ////////
-// JNI Wrapper methods
+// Adaptive Tessellation
 ////////
 
-extern "C" {
-    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateCatmarkMesh(
-        JNIEnv * env, jclass,
-        jint level, jintArray nvertsArray, jintArray vertsArray,
-        jint numFloatsPerPoint, jfloatArray pointsArray);
+// Cpu tessellation of the patches of a feature adaptive far mesh. GLES2 has
+// no tessellation shaders, so the patches are evaluated on the cpu into a
+// triangle mesh instead : regular, boundary and corner patches (and their
+// transition variants, which only differ in how the gpu splits them) as
+// bicubic B-splines, and the Gregory patches around extraordinary vertices
+// with the construction of osd/glslPatchBoundaryGregory.glsl.
+//
+// A patch at level l is sampled on a grid of 2^(tessLevel-l) segments per
+// side, i.e. at the same parametric spacing as a uniform refinement to
+// tessLevel, so that samples line up across patches of different levels.
+// Samples on the corners and edges of patches of the same level are shared
+// by keying them on the refined vertices at the patch corners.
 
-    JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_DeleteMesh(
-        JNIEnv * env, jobject obj, jint meshHandleId);
+class OsdPatchTessellator {
+public:
+    enum { kMaxGregoryValence = 29 };
 
-    JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdatePoints(
-        JNIEnv * env, jclass, jint meshHandleId,
-        jint level, jfloatArray pointsArray);
+    // tessLevel is raised to the deepest patch level if needed. Returns
+    // NULL if a Gregory patch vertex has a valence beyond
+    // kMaxGregoryValence.
+    static OsdPatchTessellator * Create(
+        OpenSubdiv::FarPatchTables const *patchTables, int tessLevel);
 
-    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetVertexBufferId(
-        JNIEnv * env, jclass, jint meshHandleId);
+    int GetTessLevel() const {
+        return _tessLevel;
+    }
 
-    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetTrianglesIndexBufferId(
-        JNIEnv * env, jclass, jint meshHandleId);
+    int GetNumPatches() const {
+        return (int)_patches.size();
+    }
 
-    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetTrianglesIndexCount(
-        JNIEnv * env, jclass, jint meshHandleId);
+    int GetNumVertices() const {
+        return (int)_samples.size();
+    }
+
+    // Moves the triangles, 3 indices each into the tessellated vertices,
+    // into triangles. The topology reorders and draws them.
+    void TakeTriangles(std::vector<int> *triangles) {
+        triangles->swap(_triangles);
+        std::vector<int>().swap(_triangles);
+    }
+
+    // Evaluates every patch from the refined vertices (stride floats per
+    // vertex, position first) into the tessellated vertices, 6 floats each :
+    // position and unit normal.
+    void Tessellate(const float *vertices, int stride, float *result) const;
+
+private:
+    enum PatchType {
+        kRegular = 0,
+        kBoundary,
+        kCorner,
+        kGregory,
+    };
+
+    struct Patch {
+        unsigned char type;
+        unsigned char segments;     // log2 of the segments per side
+        int cvs;                    // offset into _cvs
+        int quadOffsets;            // Gregory patches only
+        int firstSample;            // offset into _samples
+    };
+
+    // Per vertex data of a Gregory patch corner, see
+    // Patches.TessVertexBoundaryGregory.
+    struct GregoryVertex {
+        int valence;                // negative on boundaries
+        int zerothNeighbor;
+        float org[3];
+        float position[3];
+        float e0[3], e1[3];
+        float r[kMaxGregoryValence][3];
+    };
+
+    explicit OsdPatchTessellator(int tessLevel) :
+        _tessLevel(tessLevel), _maxValence(0) { }
+
+    void addPatches(OpenSubdiv::FarPatchTables::PTable const & table,
+                    int ringSize, PatchType type, int quadOffsetBase);
+
+    void addPatch(PatchType type, int level, const unsigned int *cvs,
+                  int ringSize, int quadOffsets);
+
+    int addEdge(int v0, int v1, int numSegments,
+                int i0, int j0, int di, int dj);
+
+    void evaluateBSpline(Patch const & patch, int numSamples,
+                         const float *vertices, int stride,
+                         float *result) const;
+
+    void evaluateGregory(Patch const & patch, int numSamples,
+                         const float *vertices, int stride,
+                         float *result) const;
+
+    void computeGregoryVertex(int vertex, const float *vertices, int stride,
+                              GregoryVertex & g) const;
+
+    int _tessLevel;
+    int _maxValence;
+
+    std::vector<Patch> _patches;
+    std::vector<int> _cvs;
+    std::vector<unsigned int> _quadOffsets;
+    std::vector<int> _valenceTable;
+
+    // grid coordinates (i | j<<16) of each tessellated vertex in the patch
+    // evaluating it : patch p owns [_patches[p].firstSample,
+    // _patches[p+1].firstSample).
+    std::vector<int> _samples;
+    std::vector<int> _triangles;
+
+    // construction only : shared corner and edge samples, keyed by refined
+    // vertex indices
+    std::map<int, int> _cornerSamples;
+    std::map<std::pair<int, int>, int> _edgeSamples;
 };
 
-JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateCatmarkMesh(
-    JNIEnv * env, jclass,
-    jint level, jintArray nvertsArray, jintArray vertsArray,
-    jint numFloatsPerPoint, jfloatArray pointsArray)
+// cvs at the corners (0,0), (1,0), (1,1) and (0,1) of each patch type
+static const int _patchCornerCvs[4][4] = {
+    { 5, 6, 10, 9 },        // regular
+    { 2, 6, 5, 1 },         // boundary
+    { 2, 5, 4, 1 },         // corner
+    { 0, 1, 2, 3 },         // Gregory
+};
+
+OsdPatchTessellator *
+OsdPatchTessellator::Create(OpenSubdiv::FarPatchTables const *patchTables,
+                            int tessLevel)
 {
-    int nvertsSize = env->GetArrayLength(nvertsArray);
-    jint *nverts = env->GetIntArrayElements(nvertsArray, 0);
+    typedef OpenSubdiv::FarPatchTables FarPatchTables;
 
-    int vertsSize = env->GetArrayLength(vertsArray);
-    jint *verts = env->GetIntArrayElements(vertsArray, 0);
+    FarPatchTables::PTable const & gregory =
+        patchTables->GetFullGregoryPatches();
+    FarPatchTables::PTable const & boundaryGregory =
+        patchTables->GetFullBoundaryGregoryPatches();
 
-    int pointsSize = env->GetArrayLength(pointsArray);
-    int numPoints = pointsSize / numFloatsPerPoint;
+    // patch levels go up to the number of level markers - 2
+    int maxLevel = (int)patchTables->GetFullRegularPatches().GetMarkers().size() - 2;
+    tessLevel = std::max(tessLevel, maxLevel);
+    if (tessLevel > 7) {
+        LOGE("OsdPatchTessellator: tessellation level %d too high", tessLevel);
+        return NULL;
+    }
 
-    OsdMeshWrapperSharedPtr wrapper = NewWrapper();
-    wrapper->CreateCatmarkMesh(level,
-                      numPoints, numFloatsPerPoint,
-                      nvertsSize, nverts, vertsSize, verts);
+    bool hasGregory = not (gregory.IsEmpty() and boundaryGregory.IsEmpty());
+    if (hasGregory and patchTables->GetMaxValence() > kMaxGregoryValence) {
+        LOGE("OsdPatchTessellator: valence %d too high for Gregory patches",
+             patchTables->GetMaxValence());
+        return NULL;
+    }
 
-    env->ReleaseIntArrayElements(nvertsArray, nverts, 0);
-    env->ReleaseIntArrayElements(vertsArray, verts, 0);
+    OsdPatchTessellator *tessellator = new OsdPatchTessellator(tessLevel);
 
-    return jint(wrapper->GetMeshHandleId());
-}
+    if (hasGregory) {
+        tessellator->_maxValence = patchTables->GetMaxValence();
+        tessellator->_quadOffsets = patchTables->GetQuadOffsetTable();
+        tessellator->_valenceTable = patchTables->GetVertexValenceTable();
+    }
 
-JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdatePoints(
-    JNIEnv * env, jclass, jint meshHandleId,
-    jint level, jfloatArray pointsArray)
-{
-    int pointsSize = env->GetArrayLength(pointsArray);
-    jfloat *points = env->GetFloatArrayElements(pointsArray, 0);
+    tessellator->addPatches(patchTables->GetFullRegularPatches(),
+                            patchTables->GetRegularPatchRingsize(), kRegular, 0);
+    tessellator->addPatches(patchTables->GetFullBoundaryPatches(),
+                            patchTables->GetBoundaryPatchRingsize(), kBoundary, 0);
+    tessellator->addPatches(patchTables->GetFullCornerPatches(),
+                            patchTables->GetCornerPatchRingsize(), kCorner, 0);
 
-    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    // boundary Gregory quad offsets follow the full Gregory ones
+    tessellator->addPatches(gregory, 4, kGregory, 0);
+    tessellator->addPatches(boundaryGregory, 4, kGregory, gregory.GetSize());
 
-    wrapper->UpdatePoints(level, points);
+    for (int p=0; p<5; ++p) {
+        tessellator->addPatches(patchTables->GetTransitionRegularPatches(p),
+                                patchTables->GetRegularPatchRingsize(), kRegular, 0);
+        for (int r=0; r<4; ++r) {
+            tessellator->addPatches(patchTables->GetTransitionBoundaryPatches(p, r),
+                                    patchTables->GetBoundaryPatchRingsize(), kBoundary, 0);
+            tessellator->addPatches(patchTables->GetTransitionCornerPatches(p, r),
+                                    patchTables->GetCornerPatchRingsize(), kCorner, 0);
+        }
+    }
 
-    env->ReleaseFloatArrayElements(pointsArray, points, 0);
+    tessellator->_cornerSamples.clear();
+    tessellator->_edgeSamples.clear();
+
+    return tessellator;
 }
 
-JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_DeleteMesh(
-    JNIEnv * env, jclass, jint meshHandleId)
+void
+OsdPatchTessellator::addPatches(OpenSubdiv::FarPatchTables::PTable const & table,
+                                int ringSize, PatchType type, int quadOffsetBase)
 {
-    DeleteWrapper(meshHandleId);
+    if (table.IsEmpty()) {
+        return;
+    }
+    int quadOffsets = quadOffsetBase;
+    for (int level=0; level<(int)table.GetMarkers().size()-1; ++level) {
+        const unsigned int *cvs = table[level];
+        int numPatches = table.GetNumElements(level) / ringSize;
+        for (int i=0; i<numPatches; ++i, quadOffsets += 4) {
+            addPatch(type, level, cvs + i*ringSize, ringSize, quadOffsets);
+        }
+    }
 }
 
-JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetVertexBufferId(
-    JNIEnv * env, jclass, jint meshHandleId)
+// Adds the samples of the edge from grid point (i0,j0) towards (di,dj)
+// which this patch is the first to reach, and returns the sample index of
+// the edge's first inner point, the points being ordered from the lower
+// to the higher refined vertex index.
+int
+OsdPatchTessellator::addEdge(int v0, int v1, int numSegments,
+                             int i0, int j0, int di, int dj)
 {
-    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
-    return jint(wrapper->GetVertexBufferId());
+    std::pair<int, int> key(std::min(v0, v1), std::max(v0, v1));
+    std::map<std::pair<int, int>, int>::iterator it = _edgeSamples.find(key);
+    if (it != _edgeSamples.end()) {
+        return it->second;
+    }
+
+    int first = (int)_samples.size();
+    for (int m=1; m<numSegments; ++m) {
+        int k = (v0 < v1) ? m : numSegments-m;
+        _samples.push_back((i0 + k*di) | ((j0 + k*dj) << 16));
+    }
+    _edgeSamples[key] = first;
+    return first;
 }
 
-JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetTrianglesIndexBufferId(
+void
+OsdPatchTessellator::addPatch(PatchType type, int level,
+                              const unsigned int *cvs, int ringSize,
+                              int quadOffsets)
+{
+    Patch patch;
+    patch.type = (unsigned char)type;
+    patch.segments = (unsigned char)(_tessLevel - level);
+    patch.cvs = (int)_cvs.size();
+    patch.quadOffsets = quadOffsets;
+    patch.firstSample = (int)_samples.size();
+    _patches.push_back(patch);
+
+    _cvs.insert(_cvs.end(), cvs, cvs + ringSize);
+
+    int n = 1 << patch.segments;
+    std::vector<int> grid((n+1)*(n+1));
+
+    // corners, shared by the patches around their refined vertex
+    const int corners[4][2] = { { 0, 0 }, { n, 0 }, { n, n }, { 0, n } };
+    int cornerVertices[4];
+    for (int k=0; k<4; ++k) {
+        int vertex = (int)cvs[_patchCornerCvs[type][k]];
+        std::map<int, int>::iterator it = _cornerSamples.find(vertex);
+        int sample;
+        if (it == _cornerSamples.end()) {
+            sample = (int)_samples.size();
+            _samples.push_back(corners[k][0] | (corners[k][1] << 16));
+            _cornerSamples[vertex] = sample;
+        } else {
+            sample = it->second;
+        }
+        grid[corners[k][1]*(n+1) + corners[k][0]] = sample;
+        cornerVertices[k] = vertex;
+    }
+
+    // edges, shared with the patch on the other side
+    for (int k=0; k<4; ++k) {
+        int v0 = cornerVertices[k], v1 = cornerVertices[(k+1)%4];
+        int i0 = corners[k][0], j0 = corners[k][1];
+        int di = (corners[(k+1)%4][0] - i0) / n;
+        int dj = (corners[(k+1)%4][1] - j0) / n;
+
+        int first = addEdge(v0, v1, n, i0, j0, di, dj);
+        for (int m=1; m<n; ++m) {
+            int sample = first + ((v0 < v1) ? m-1 : n-1-m);
+            grid[(j0 + m*dj)*(n+1) + i0 + m*di] = sample;
+        }
+    }
+
+    // inner samples
+    for (int j=1; j<n; ++j) {
+        for (int i=1; i<n; ++i) {
+            grid[j*(n+1) + i] = (int)_samples.size();
+            _samples.push_back(i | (j << 16));
+        }
+    }
+
+    for (int j=0; j<n; ++j) {
+        for (int i=0; i<n; ++i) {
+            const int *cell = &grid[j*(n+1) + i];
+            int quad[4] = { cell[0], cell[1], cell[n+2], cell[n+1] };
+            _triangles.push_back(quad[0]);
+            _triangles.push_back(quad[1]);
+            _triangles.push_back(quad[2]);
+
+            _triangles.push_back(quad[2]);
+            _triangles.push_back(quad[3]);
+            _triangles.push_back(quad[0]);
+        }
+    }
+}
+
+static void
+_StoreVertex(float *result, const float *p, const float *ds, const float *dt)
+{
+    float n[3] = { ds[1]*dt[2] - ds[2]*dt[1],
+                   ds[2]*dt[0] - ds[0]*dt[2],
+                   ds[0]*dt[1] - ds[1]*dt[0] };
+    float length = sqrtf(n[0]*n[0] + n[1]*n[1] + n[2]*n[2]);
+    float scale = (length > 0.0f) ? 1.0f / length : 0.0f;
+
+    result[0] = p[0];
+    result[1] = p[1];
+    result[2] = p[2];
+    result[3] = n[0]*scale;
+    result[4] = n[1]*scale;
+    result[5] = n[2]*scale;
+}
+
+void
+OsdPatchTessellator::Tessellate(const float *vertices, int stride,
+                                float *result) const
+{
+    int numPatches = (int)_patches.size();
+    for (int i=0; i<numPatches; ++i) {
+        Patch const & patch = _patches[i];
+        int end = (i+1 < numPatches) ? _patches[i+1].firstSample
+                                     : (int)_samples.size();
+        int numSamples = end - patch.firstSample;
+        float *patchResult = result + patch.firstSample*6;
+        if (patch.type == kGregory) {
+            evaluateGregory(patch, numSamples, vertices, stride, patchResult);
+        } else {
+            evaluateBSpline(patch, numSamples, vertices, stride, patchResult);
+        }
+    }
+}
+
+// Gathers the 4x4 B-spline control points, rows along t and columns along
+// s. Boundary patches hold 3 rows of 4 cvs, the first one on the boundary,
+// and corner patches 3 rows of 3 cvs, with the first row and the last
+// column on the boundaries. The missing rows and columns are mirrored
+// across the boundaries (2*boundary - inner), and both are rotated so that
+// their parametrization agrees with the regular patches.
+void
+OsdPatchTessellator::evaluateBSpline(Patch const & patch, int numSamples,
+                                     const float *vertices, int stride,
+                                     float *result) const
+{
+    const int *cvs = &_cvs[patch.cvs];
+    float cp[4][4][3];
+
+    if (patch.type == kRegular) {
+        for (int r=0; r<4; ++r) {
+            for (int c=0; c<4; ++c) {
+                memcpy(cp[r][c], vertices + cvs[r*4+c]*stride, 3*sizeof(float));
+            }
+        }
+    } else {
+        float ext[4][4][3];
+        int numCols = (patch.type == kBoundary) ? 4 : 3;
+        for (int a=0; a<3; ++a) {
+            for (int b=0; b<numCols; ++b) {
+                memcpy(ext[a+1][b], vertices + cvs[a*numCols+b]*stride,
+                       3*sizeof(float));
+            }
+            if (numCols == 3) {
+                for (int k=0; k<3; ++k) {
+                    ext[a+1][3][k] = 2.0f*ext[a+1][2][k] - ext[a+1][1][k];
+                }
+            }
+        }
+        for (int b=0; b<4; ++b) {
+            for (int k=0; k<3; ++k) {
+                ext[0][b][k] = 2.0f*ext[1][b][k] - ext[2][b][k];
+            }
+        }
+        for (int r=0; r<4; ++r) {
+            for (int c=0; c<4; ++c) {
+                memcpy(cp[r][c], ext[c][3-r], 3*sizeof(float));
+            }
+        }
+    }
+
+    int n = 1 << patch.segments;
+    float scale = 1.0f / n;
+    for (int m=0; m<numSamples; ++m) {
+        int sample = _samples[patch.firstSample + m];
+        float ws[4], dws[4], wt[4], dwt[4];
+        _BSplineWeights((sample & 0xffff)*scale, ws, dws);
+        _BSplineWeights((sample >> 16)*scale, wt, dwt);
+
+        float p[3] = { 0, 0, 0 }, ds[3] = { 0, 0, 0 }, dt[3] = { 0, 0, 0 };
+        for (int r=0; r<4; ++r) {
+            for (int c=0; c<4; ++c) {
+                float w = ws[c]*wt[r], wu = dws[c]*wt[r], wv = ws[c]*dwt[r];
+                for (int k=0; k<3; ++k) {
+                    p[k] += w*cp[r][c][k];
+                    ds[k] += wu*cp[r][c][k];
+                    dt[k] += wv*cp[r][c][k];
+                }
+            }
+        }
+        _StoreVertex(result + m*6, p, ds, dt);
+    }
+}
+
+// ef[] and csf() of osd/glslPatchCommon.glsl
+static const float _gregoryEF[27] = {
+    0.812816f, 0.500000f, 0.363644f, 0.287514f,
+    0.238688f, 0.204544f, 0.179229f, 0.159657f,
+    0.144042f, 0.131276f, 0.120632f, 0.111614f,
+    0.103872f, 0.09715f, 0.0912559f, 0.0860444f,
+    0.0814022f, 0.0772401f, 0.0734867f, 0.0700842f,
+    0.0669851f, 0.0641504f, 0.0615475f, 0.0591488f,
+    0.0569311f, 0.0548745f, 0.0529621f
+};
+
+static float
+_Csf(int n, int j)
+{
+    if (j%2 == 0) {
+        return cosf((2.0f * float(M_PI) * float(j/2)) / float(n));
+    } else {
+        return sinf((2.0f * float(M_PI) * float((j-1)/2)) / float(n));
+    }
+}
+
+void
+OsdPatchTessellator::computeGregoryVertex(int vertex,
+                                          const float *vertices, int stride,
+                                          GregoryVertex & g) const
+{
+#define POSITION(index) (vertices + (index)*stride)
+
+    int tableSize = 2*_maxValence + 1;
+    const int *table = &_valenceTable[vertex*tableSize];
+
+    int valence = table[0];
+    int n = abs(valence);
+    const float *pos = POSITION(vertex);
+
+    g.valence = valence;
+    memcpy(g.org, pos, 3*sizeof(float));
+
+    float f[kMaxGregoryValence][3];
+    float opos[3] = { 0, 0, 0 };
+
+    int boundaryEdgeNeighbors[2] = { 0, 0 };
+    int currNeighbor = 0;
+    int ibefore = 0;
+    int zerothNeighbor = 0;
+
+    for (int i=0; i<n; ++i) {
+        int im = (i+n-1)%n;
+        int ip = (i+1)%n;
+
+        int idxNeighbor = table[2*i + 1];
+        int valenceNeighbor = _valenceTable[idxNeighbor*tableSize];
+        if (valenceNeighbor < 0 and currNeighbor < 2) {
+            boundaryEdgeNeighbors[currNeighbor++] = idxNeighbor;
+            if (currNeighbor == 1) {
+                ibefore = i;
+                zerothNeighbor = i;
+            } else if (i-ibefore == 1) {
+                std::swap(boundaryEdgeNeighbors[0], boundaryEdgeNeighbors[1]);
+                zerothNeighbor = i;
+            }
+        }
+
+        const float *neighbor = POSITION(idxNeighbor);
+        const float *diagonal = POSITION(table[2*i + 2]);
+        const float *neighborP = POSITION(table[2*ip + 1]);
+        const float *neighborM = POSITION(table[2*im + 1]);
+        const float *diagonalM = POSITION(table[2*im + 2]);
+
+        for (int k=0; k<3; ++k) {
+            f[i][k] = (pos[k]*n + (neighborP[k] + neighbor[k])*2.0f +
+                       diagonal[k]) / (n + 5.0f);
+            opos[k] += f[i][k];
+            g.r[i][k] = (neighborP[k] - neighborM[k])/3.0f +
+                        (diagonal[k] - diagonalM[k])/6.0f;
+        }
+    }
+
+    for (int k=0; k<3; ++k) {
+        g.position[k] = opos[k] / n;
+        g.e0[k] = g.e1[k] = 0.0f;
+    }
+    g.zerothNeighbor = zerothNeighbor;
+
+    if (currNeighbor == 1) {
+        boundaryEdgeNeighbors[1] = boundaryEdgeNeighbors[0];
+    }
+
+    if (n >= 3) {
+        for (int i=0; i<n; ++i) {
+            int im = (i+n-1)%n;
+            float c0 = _Csf(n, 2*i), c1 = _Csf(n, 2*i+1);
+            for (int k=0; k<3; ++k) {
+                float e = 0.5f * (f[i][k] + f[im][k]);
+                g.e0[k] += c0*e;
+                g.e1[k] += c1*e;
+            }
+        }
+        for (int k=0; k<3; ++k) {
+            g.e0[k] *= _gregoryEF[n-3];
+            g.e1[k] *= _gregoryEF[n-3];
+        }
+    }
+
+    if (valence < 0) {
+        const float *b0 = POSITION(boundaryEdgeNeighbors[0]);
+        const float *b1 = POSITION(boundaryEdgeNeighbors[1]);
+
+        for (int k=0; k<3; ++k) {
+            g.position[k] = (n > 2) ? (b0[k] + b1[k] + 4.0f*pos[k]) / 6.0f
+                                    : pos[k];
+            g.e0[k] = (b0[k] - b1[k]) / 6.0f;
+        }
+
+        float kf = float(n - 1);    // number of faces
+        float c = cosf(float(M_PI)/kf);
+        float s = sinf(float(M_PI)/kf);
+        float gamma = -(4.0f*s)/(3.0f*kf+c);
+        float alpha0k = -((1.0f+2.0f*c)*sqrtf(1.0f+c))/((3.0f*kf+c)*sqrtf(1.0f-c));
+        float beta0 = s/(3.0f*kf+c);
+
+        const float *diagonal = POSITION(abs(table[2*zerothNeighbor + 2]));
+        for (int k=0; k<3; ++k) {
+            g.e1[k] = gamma*pos[k] + alpha0k*b0[k] + alpha0k*b1[k] +
+                      beta0*diagonal[k];
+        }
+
+        for (int x=1; x<n-1; ++x) {
+            int curri = (x + zerothNeighbor)%n;
+            float alpha = (4.0f*sinf((float(M_PI)*x)/kf))/(3.0f*kf+c);
+            float beta = (sinf((float(M_PI)*x)/kf) +
+                          sinf((float(M_PI)*(x+1))/kf))/(3.0f*kf+c);
+
+            const float *neighbor = POSITION(abs(table[2*curri + 1]));
+            diagonal = POSITION(table[2*curri + 2]);
+            for (int k=0; k<3; ++k) {
+                g.e1[k] += alpha*neighbor[k] + beta*diagonal[k];
+            }
+        }
+        for (int k=0; k<3; ++k) {
+            g.e1[k] /= 3.0f;
+        }
+    }
+#undef POSITION
+}
+
+// Ep, Em, Fp and Fm of each corner as in Patches.TessControlBoundaryGregory,
+// then evaluated as in Patches.TessEvalBoundaryGregory.
+void
+OsdPatchTessellator::evaluateGregory(Patch const & patch, int numSamples,
+                                     const float *vertices, int stride,
+                                     float *result) const
+{
+    const int *cvs = &_cvs[patch.cvs];
+    const unsigned int *quadOffsets = &_quadOffsets[patch.quadOffsets];
+
+    GregoryVertex g[4];
+    for (int i=0; i<4; ++i) {
+        computeGregoryVertex(cvs[i], vertices, stride, g[i]);
+    }
+
+    // p[5*i] : position, Ep, Em, Fp, Fm of corner i
+    float p[20][3];
+
+    for (int i=0; i<4; ++i) {
+        int ip = (i+1)%4;
+        int im = (i+3)%4;
+        int n = abs(g[i].valence);
+        int ivalence = n;
+        int np = abs(g[ip].valence);
+        int nm = abs(g[im].valence);
+
+        int start = quadOffsets[i] & 0x00ff;
+        int prev = (quadOffsets[i] & 0xff00) / 256;
+        int prevP = (quadOffsets[ip] & 0xff00) / 256;
+        int startM = quadOffsets[im] & 0x00ff;
+
+        float EmIp[3], EpIm[3];
+        if (g[ip].valence < -2) {
+            int j = (np + prevP - g[ip].zerothNeighbor) % np;
+            float c = cosf((float(M_PI)*j)/float(np-1));
+            float s = sinf((float(M_PI)*j)/float(np-1));
+            for (int k=0; k<3; ++k) {
+                EmIp[k] = g[ip].position[k] + c*g[ip].e0[k] + s*g[ip].e1[k];
+            }
+        } else {
+            float c = _Csf(np, 2*prevP), s = _Csf(np, 2*prevP+1);
+            for (int k=0; k<3; ++k) {
+                EmIp[k] = g[ip].position[k] + c*g[ip].e0[k] + s*g[ip].e1[k];
+            }
+        }
+        if (g[im].valence < -2) {
+            int j = (nm + startM - g[im].zerothNeighbor) % nm;
+            float c = cosf((float(M_PI)*j)/float(nm-1));
+            float s = sinf((float(M_PI)*j)/float(nm-1));
+            for (int k=0; k<3; ++k) {
+                EpIm[k] = g[im].position[k] + c*g[im].e0[k] + s*g[im].e1[k];
+            }
+        } else {
+            float c = _Csf(nm, 2*startM), s = _Csf(nm, 2*startM+1);
+            for (int k=0; k<3; ++k) {
+                EpIm[k] = g[im].position[k] + c*g[im].e0[k] + s*g[im].e1[k];
+            }
+        }
+
+        if (g[i].valence < 0) n = (n-1)*2;
+        if (g[im].valence < 0) nm = (nm-1)*2;
+        if (g[ip].valence < 0) np = (np-1)*2;
+
+        const float *pos = g[i].position;
+        float *Ep = p[5*i+1], *Em = p[5*i+2], *Fp = p[5*i+3], *Fm = p[5*i+4];
+        memcpy(p[5*i], pos, 3*sizeof(float));
+
+        if (g[i].valence > 2 or g[i].valence < -2) {
+            float cp, sp, cm, sm;
+            if (g[i].valence > 2) {
+                cp = _Csf(n, 2*start);
+                sp = _Csf(n, 2*start+1);
+                cm = _Csf(n, 2*prev);
+                sm = _Csf(n, 2*prev+1);
+            } else {
+                int j = (ivalence + start - g[i].zerothNeighbor) % ivalence;
+                cp = cosf((float(M_PI)*j)/float(ivalence-1));
+                sp = sinf((float(M_PI)*j)/float(ivalence-1));
+                j = (ivalence + prev - g[i].zerothNeighbor) % ivalence;
+                cm = cosf((float(M_PI)*j)/float(ivalence-1));
+                sm = sinf((float(M_PI)*j)/float(ivalence-1));
+            }
+
+            float s1p = 3.0f - 2.0f*_Csf(n, 2) - _Csf(np, 2);
+            float s1m = 3.0f - 2.0f*cosf(2.0f*float(M_PI)/n) -
+                        cosf(2.0f*float(M_PI)/nm);
+            float s2 = 2.0f*_Csf(n, 2);
+            const float *rStart = g[i].r[start], *rPrev = g[i].r[prev];
+
+            for (int k=0; k<3; ++k) {
+                Ep[k] = pos[k] + cp*g[i].e0[k] + sp*g[i].e1[k];
+                Em[k] = pos[k] + cm*g[i].e0[k] + sm*g[i].e1[k];
+                Fp[k] = (_Csf(np, 2)*pos[k] + s1p*Ep[k] + s2*EmIp[k] + rStart[k])/3.0f;
+                Fm[k] = (_Csf(nm, 2)*pos[k] + s1m*Em[k] + s2*EpIm[k] - rPrev[k])/3.0f;
+            }
+
+            if (g[i].valence < -2) {
+                if (g[im].valence < 0) {
+                    memcpy(Fm, Fp, 3*sizeof(float));
+                } else if (g[ip].valence < 0) {
+                    memcpy(Fp, Fm, 3*sizeof(float));
+                }
+            }
+        } else if (g[i].valence == -2) {
+            const float *org = g[i].org, *orgP = g[ip].org;
+            const float *orgM = g[im].org, *orgD = g[(i+2)%4].org;
+            for (int k=0; k<3; ++k) {
+                Ep[k] = (2.0f*org[k] + orgP[k])/3.0f;
+                Em[k] = (2.0f*org[k] + orgM[k])/3.0f;
+                Fp[k] = Fm[k] = (4.0f*org[k] + orgD[k] +
+                                 2.0f*orgP[k] + 2.0f*orgM[k])/9.0f;
+            }
+        } else {
+            for (int k=0; k<3; ++k) {
+                Ep[k] = Em[k] = Fp[k] = Fm[k] = pos[k];
+            }
+        }
+    }
+
+    // bicubic Bezier points q[i + 4*j], i along s and j along t, whose
+    // inner points blend the face points Fp and Fm
+    static const int corners[12][2] = {
+        { 0, 0 }, { 1, 1 }, { 2, 7 }, { 3, 5 }, { 4, 2 }, { 7, 6 },
+        { 8, 16 }, { 11, 12 }, { 12, 15 }, { 13, 17 }, { 14, 11 }, { 15, 10 },
+    };
+    float q[16][3];
+    for (int m=0; m<12; ++m) {
+        memcpy(q[corners[m][0]], p[corners[m][1]], 3*sizeof(float));
+    }
+
+    int n = 1 << patch.segments;
+    float scale = 1.0f / n;
+    for (int m=0; m<numSamples; ++m) {
+        int sample = _samples[patch.firstSample + m];
+        // u and v of the shader, u along t and v along s
+        float v = (sample & 0xffff)*scale, u = (sample >> 16)*scale;
+        float U = 1.0f-u, V = 1.0f-v;
+
+        float d11 = (u+v == 0.0f) ? 1.0f : u+v;
+        float d12 = (U+v == 0.0f) ? 1.0f : U+v;
+        float d21 = (u+V == 0.0f) ? 1.0f : u+V;
+        float d22 = (U+V == 0.0f) ? 1.0f : U+V;
+
+        for (int k=0; k<3; ++k) {
+            q[ 5][k] = (u*p[3][k] + v*p[4][k])/d11;
+            q[ 6][k] = (U*p[9][k] + v*p[8][k])/d12;
+            q[ 9][k] = (u*p[19][k] + V*p[18][k])/d21;
+            q[10][k] = (U*p[13][k] + V*p[14][k])/d22;
+        }
+
+        float bu[4] = { U*U*U, 3.0f*u*U*U, 3.0f*u*u*U, u*u*u };
+        float du[4] = { -U*U, U*U - 2.0f*u*U, 2.0f*u*U - u*u, u*u };
+        float bv[4] = { V*V*V, 3.0f*v*V*V, 3.0f*v*v*V, v*v*v };
+        float dv[4] = { -V*V, V*V - 2.0f*v*V, 2.0f*v*V - v*v, v*v };
+
+        float pos[3] = { 0, 0, 0 }, ds[3] = { 0, 0, 0 }, dt[3] = { 0, 0, 0 };
+        for (int i=0; i<4; ++i) {
+            for (int j=0; j<4; ++j) {
+                float w = bv[i]*bu[j], wu = bv[i]*du[j], wv = dv[i]*bu[j];
+                for (int k=0; k<3; ++k) {
+                    pos[k] += w*q[i+4*j][k];
+                    dt[k] += wu*q[i+4*j][k];
+                    ds[k] += wv*q[i+4*j][k];
+                }
+            }
+        }
+        _StoreVertex(result + m*6, pos, ds, dt);
+    }
+}
+
+////////
+// Vertex Cache Optimization
+////////
+
+// Reorders triangles for the post-transform vertex cache with Tipsify
+// (Sander, Nehab and Barczak 2007) : triangles are emitted in fans around
+// a vertex, and the next fanning vertex is the one still used by other
+// triangles that will stay in a FIFO cache of kVertexCacheSize the longest.
+// It runs in linear time, once per topology since topologies are static.
+
+static const int kVertexCacheSize = 16;
+
+// Average number of cache misses per triangle of the given triangles with a
+// FIFO cache of cacheSize vertices : 3 when nothing is shared, around 0.5
+// for an ideal order of a large regular grid.
+template <class T> static float
+_ComputeACMR(std::vector<T> const & triangles, int numVertices, int cacheSize)
+{
+    if (triangles.empty()) {
+        return 0.0f;
+    }
+    // a vertex is cached until cacheSize more misses happen after its own
+    std::vector<int> missTime(numVertices, -cacheSize-1);
+    int numMisses = 0;
+    for (int i=0; i<(int)triangles.size(); ++i) {
+        int v = triangles[i];
+        if (numMisses - missTime[v] > cacheSize) {
+            missTime[v] = numMisses++;
+        }
+    }
+    return float(numMisses) / float(triangles.size() / 3);
+}
+
+static void
+_OptimizeVertexCache(std::vector<unsigned short> & triangles, int numVertices,
+                     int cacheSize)
+{
+    int numTriangles = (int)triangles.size() / 3;
+    if (numTriangles == 0) {
+        return;
+    }
+
+    // triangles of each vertex, and the number not emitted yet
+    std::vector<int> offsets(numVertices+1, 0);
+    for (int i=0; i<numTriangles*3; ++i) {
+        ++offsets[triangles[i]+1];
+    }
+    for (int v=0; v<numVertices; ++v) {
+        offsets[v+1] += offsets[v];
+    }
+    std::vector<int> vertexTriangles(numTriangles*3);
+    std::vector<int> live(numVertices, 0);
+    for (int i=0; i<numTriangles*3; ++i) {
+        int v = triangles[i];
+        vertexTriangles[offsets[v] + live[v]++] = i/3;
+    }
+
+    // with the time counting misses, a vertex is cached while
+    // time - cacheTime[v] <= cacheSize
+    std::vector<int> cacheTime(numVertices, 0);
+    int time = cacheSize + 1;
+
+    std::vector<char> emitted(numTriangles, 0);
+    std::vector<int> deadEnds;
+    std::vector<int> candidates;
+    std::vector<unsigned short> result;
+    result.reserve(numTriangles*3);
+
+    int cursor = 0;
+    int fan = triangles[0];
+    while (fan >= 0) {
+        candidates.clear();
+        for (int j=offsets[fan]; j<offsets[fan+1]; ++j) {
+            int t = vertexTriangles[j];
+            if (emitted[t]) {
+                continue;
+            }
+            emitted[t] = 1;
+            for (int k=0; k<3; ++k) {
+                int v = triangles[t*3+k];
+                result.push_back((unsigned short)v);
+                deadEnds.push_back(v);
+                candidates.push_back(v);
+                --live[v];
+                if (time - cacheTime[v] > cacheSize) {
+                    cacheTime[v] = time++;
+                }
+            }
+        }
+
+        // the candidate cached for the longest, if its remaining triangles
+        // still fit in the cache
+        fan = -1;
+        int bestPriority = -1;
+        for (int i=0; i<(int)candidates.size(); ++i) {
+            int v = candidates[i];
+            if (live[v] == 0) {
+                continue;
+            }
+            int priority = 0;
+            if (time - cacheTime[v] + 2*live[v] <= cacheSize) {
+                priority = time - cacheTime[v];
+            }
+            if (priority > bestPriority) {
+                bestPriority = priority;
+                fan = v;
+            }
+        }
+
+        // otherwise the most recent vertex left with triangles, then the
+        // next one in index order
+        while (fan < 0 and not deadEnds.empty()) {
+            int v = deadEnds.back();
+            deadEnds.pop_back();
+            if (live[v] > 0) {
+                fan = v;
+            }
+        }
+        while (fan < 0 and cursor < numVertices) {
+            if (live[cursor] > 0) {
+                fan = cursor;
+            }
+            ++cursor;
+        }
+    }
+
+    triangles.swap(result);
+}
+
+////////
+// Mesh Topology
+////////
+
+// The edges of a cage, each listed once however many faces share it. A
+// corner is an index into the cage verts, see buildAdjacency, and starts
+// the edge to the next corner of its face. Edges are looked up by their
+// points, either way, in an open addressing hash table.
+class OsdEdgeTable {
+public:
+    OsdEdgeTable() : _mask(0) { }
+
+    void Build(std::vector<int> const & nverts, std::vector<int> const & verts);
+
+    int GetNumEdges() const {
+        return (int)_numFaces.size();
+    }
+
+    // Returns the edge between points a and b, or -1 if there is none.
+    int Find(int a, int b) const {
+        return _slots.empty() ? -1 : _slots[findSlot(a, b)];
+    }
+
+    // 2 points per edge, in the order of their first corner
+    std::vector<int> const & GetEdgePoints() const {
+        return _points;
+    }
+
+    // The first corner starting each edge.
+    int GetEdgeCorner(int edge) const {
+        return _corners[edge];
+    }
+
+    // The number of faces sharing each edge : 1 on boundaries, 2 on a
+    // manifold, more on non-manifold edges.
+    int GetNumEdgeFaces(int edge) const {
+        return _numFaces[edge];
+    }
+
+    // The edge each corner starts.
+    std::vector<int> const & GetCornerEdges() const {
+        return _cornerEdges;
+    }
+
+private:
+    // Returns the slot of the edge between a and b, or the empty slot
+    // where it would go.
+    int findSlot(int a, int b) const;
+
+    std::vector<int> _slots;    // edges, -1 when empty
+    unsigned int _mask;
+
+    std::vector<int> _points;
+    std::vector<int> _corners;
+    std::vector<int> _numFaces;
+    std::vector<int> _cornerEdges;
+};
+
+void
+OsdEdgeTable::Build(std::vector<int> const & nverts,
+                    std::vector<int> const & verts)
+{
+    int numCorners = (int)verts.size();
+
+    // at most one edge per corner, the table kept under half full
+    unsigned int numSlots = 16;
+    while (numSlots < 2u * (unsigned int)numCorners) {
+        numSlots *= 2;
+    }
+    _slots.assign(numSlots, -1);
+    _mask = numSlots - 1;
+
+    _points.clear();
+    _corners.clear();
+    _numFaces.clear();
+    _cornerEdges.resize(numCorners);
+
+    int first = 0;
+    for (int i=0; i<(int)nverts.size(); ++i) {
+        int numVertsInFace = nverts[i];
+        for (int j=0; j<numVertsInFace; ++j) {
+            int a = verts[first + j];
+            int b = verts[first + (j+1) % numVertsInFace];
+            int & edge = _slots[findSlot(a, b)];
+            if (edge < 0) {
+                edge = (int)_numFaces.size();
+                _points.push_back(a);
+                _points.push_back(b);
+                _corners.push_back(first + j);
+                _numFaces.push_back(0);
+            }
+            ++_numFaces[edge];
+            _cornerEdges[first + j] = edge;
+        }
+        first += numVertsInFace;
+    }
+}
+
+int
+OsdEdgeTable::findSlot(int a, int b) const
+{
+    unsigned long long key = ((unsigned long long)(unsigned int)std::min(a, b)
+                              << 32) | (unsigned int)std::max(a, b);
+    // Fibonacci hashing, the high bits are the best mixed
+    unsigned int slot = (unsigned int)((key * 0x9E3779B97F4A7C15ULL) >> 32);
+    for (;; ++slot) {
+        slot &= _mask;
+        int edge = _slots[slot];
+        if (edge < 0) {
+            return (int)slot;
+        }
+        int p = _points[edge*2], q = _points[edge*2+1];
+        if ((p == a and q == b) or (p == b and q == a)) {
+            return (int)slot;
+        }
+    }
+}
+
+// The drawn triangles are split in chunks, each culled as a whole : a group
+// of coarse faces of uniform topologies, a run of patches of adaptive ones.
+// Indices are 16 bit, relative to the baseVertex of their chunk, which the
+// attribute pointers are offset by. Consecutive chunks share their
+// baseVertex while their vertices fit within 65536 of it.
+struct OsdMeshChunk {
+    int firstIndex;
+    int numIndices;
+    int baseVertex;
+    int firstVertex;    // of the chunk's vertices, see GetChunkVertices
+    int numVertices;
+};
+
+// chunks are closed past kChunkTriangles, between coarse faces, and split
+// within a coarse face past kMaxChunkTriangles to keep their vertices under
+// 65536
+static const int kChunkTriangles = 512;
+static const int kMaxChunkTriangles = 16384;
+
+// The refined topology of a mesh : far subdivision tables, compute context,
+// stencil tables and the chunks of the triangles index buffer, in vertex
+// cache order. Topologies are immutable once created and are shared by every
+// mesh instance built from the same control cage topology, each instance
+// owning only its vertex buffer.
+//
+// Adaptive topologies refine only around extraordinary features and draw
+// the cpu tessellation of their patches instead of the refined quads, as it
+// is while it fits in 16 bit indices, gathered as below past that.
+// Uniform topologies draw a copy of the vertices of their finest quads,
+// gathered chunk by chunk in the order the triangles use them, so that
+// chunks own a compact range of draw vertices however many vertices are
+// refined.
+
+enum OsdMeshScheme {
+    kSchemeCatmark = 0,
+    kSchemeCatmarkAdaptive,
+};
+
+// Sharpness tags of a cage, which are part of its refined topology, see
+// Shape.java : creases are pairs of point indices with one sharpness per
+// edge, corners point indices with their sharpness.
+struct OsdMeshTags {
+    OsdMeshTags() : interpolateBoundary(0) {}
+
+    bool operator==(OsdMeshTags const & other) const {
+        return creases == other.creases and
+               creaseSharpness == other.creaseSharpness and
+               corners == other.corners and
+               cornerSharpness == other.cornerSharpness and
+               interpolateBoundary == other.interpolateBoundary;
+    }
+
+    std::vector<int> creases;
+    std::vector<float> creaseSharpness;
+    std::vector<int> corners;
+    std::vector<float> cornerSharpness;
+    int interpolateBoundary;    // Shape.INTERPOLATE_BOUNDARY_*
+};
+
+typedef std::tr1::shared_ptr<class OsdMeshTopology> OsdMeshTopologySharedPtr;
+
+class OsdMeshTopology {
+public:
+    ~OsdMeshTopology();
+
+    // Returns the cached topology matching the given cage topology, tags,
+    // level and scheme, or builds and caches a new one. tessLevel is only
+    // used by adaptive topologies and is 0 otherwise. Returns an empty
+    // pointer if the topology can't be built.
+    static OsdMeshTopologySharedPtr FindOrCreate(
+        OsdMeshScheme scheme, int level, int tessLevel,
+        int numPoints, int numFloatsPerPoint,
+        int nvertsSize, const jint *nverts,
+        int vertsSize, const jint *verts,
+        OsdMeshTags const & tags);
+
+    // Sets the directory where FindOrCreate caches topologies between runs,
+    // see SetTopologyCacheDir in OpenSubdiv.java. An empty dir disables the
+    // disk cache.
+    static void SetCacheDirectory(std::string const & dir);
+
+    // Uploads the triangles and hull index buffers the first time an
+    // instance is bound. Everything else in a topology is cpu only and may
+    // be built on any thread, this must be called on the GL thread.
+    void BindIndexBuffer();
+
+    OpenSubdiv::FarMesh<OpenSubdiv::OsdVertex> * GetFarMesh() const {
+        return _farMesh;
+    }
+
+    // Returns the stencil tables of the topology, building them the first
+    // time they are needed since they take more memory than the subdivision
+    // tables. Adaptive topologies have stencils for every level, uniform
+    // ones only for the finest. May be called from any thread. Returns NULL
+    // if the stencils can't be built.
+    OpenSubdiv::OsdCpuStencilTables const * GetStencilTables();
+
+    GLuint GetTrianglesIndexBufferId() const {
+        return _trianglesIndexBuffer;
+    }
+
+    int GetTrianglesIndexCount() const {
+        return _trianglesIndexBuffer ? (int)_triangles.size() : 0;
+    }
+
+    // GL_LINES over the cage points, 2 indices per edge of the cage.
+    GLuint GetHullIndexBufferId() const {
+        return _hullIndexBuffer;
+    }
+
+    int GetHullIndexCount() const {
+        return _hullIndexBuffer ? 2 * _edges.GetNumEdges() : 0;
+    }
+
+    // Bytes per hull index, 2 or 4 past 65536 points.
+    int GetHullIndexSize() const {
+        return _numPoints > 65536 ? 4 : 2;
+    }
+
+    // Number of triangles drawn, whether or not they are bound yet.
+    int GetNumTriangles() const {
+        return (int)_triangles.size() / 3;
+    }
+
+    // 3 indices per triangle, relative to the baseVertex of their chunk
+    std::vector<unsigned short> const & GetTriangles() const {
+        return _triangles;
+    }
+
+    std::vector<OsdMeshChunk> const & GetChunks() const {
+        return _chunks;
+    }
+
+    int GetNumDrawVertices() const {
+        return IsTessellationDrawn() ? _tessellator->GetNumVertices()
+                                     : (int)_drawVertices.size();
+    }
+
+    // Whether the tessellated vertices of an adaptive topology are drawn
+    // as they are, rather than gathered into the draw vertices.
+    bool IsTessellationDrawn() const {
+        return _tessellator and _drawVertices.empty();
+    }
+
+    // The draw vertices each chunk uses, once each, so that its bounds
+    // are taken without walking its triangles.
+    std::vector<int> const & GetChunkVertices() const {
+        return _chunkVertices;
+    }
+
+    // True if every edge of the cage is shared by exactly two faces, so
+    // that the back faces of the surface are never seen.
+    bool IsClosed() const {
+        return _closed;
+    }
+
+    // Uniform topologies only : the refined vertex of each draw vertex.
+    // Adaptive topologies draw the tessellated vertices as they are.
+    std::vector<int> const & GetDrawVertices() const {
+        return _drawVertices;
+    }
+
+    // Average cache misses per triangle of the triangles in the order they
+    // were refined or tessellated, and in the order they are drawn, see
+    // _ComputeACMR.
+    float GetInputACMR() const {
+        return _inputACMR;
+    }
+
+    float GetACMR() const {
+        return _ACMR;
+    }
+
+    OsdMeshScheme GetScheme() const {
+        return _scheme;
+    }
+
+    int GetLevel() const {
+        return _level;
+    }
+
+    int GetTessLevel() const {
+        return _tessLevel;
+    }
+
+    // Adaptive topologies only, NULL otherwise.
+    OsdPatchTessellator const * GetTessellator() const {
+        return _tessellator;
+    }
+
+    int GetNumPoints() const {
+        return _numPoints;
+    }
+
+    int GetNumFloatsPerPoint() const {
+        return _numFloatsPerPoint;
+    }
+
+    std::vector<int> const & GetNVerts() const {
+        return _nverts;
+    }
+
+    std::vector<int> const & GetVerts() const {
+        return _verts;
+    }
+
+    // Face-vertex adjacency and edges of the cage, see buildAdjacency.
+
+    OsdEdgeTable const & GetEdges() const {
+        return _edges;
+    }
+
+    std::vector<int> const & GetFaceOffsets() const {
+        return _faceOffsets;
+    }
+
+    std::vector<int> const & GetCornerFaces() const {
+        return _cornerFaces;
+    }
+
+    std::vector<int> const & GetPointCornerOffsets() const {
+        return _pointCornerOffsets;
+    }
+
+    std::vector<int> const & GetPointCorners() const {
+        return _pointCorners;
+    }
+
+    OsdLimitTablesSharedPtr const & GetLimitTables() const {
+        return _limitTables;
+    }
+
+    bool Matches(OsdMeshScheme scheme, int level, int tessLevel,
+                 int numPoints, int numFloatsPerPoint,
+                 int nvertsSize, const jint *nverts,
+                 int vertsSize, const jint *verts,
+                 OsdMeshTags const & tags) const;
+
+private:
+    OsdMeshTopology(OsdMeshScheme scheme, int level, int tessLevel,
+                    int numPoints, int numFloatsPerPoint,
+                    OsdMeshTags const & tags);
+
+    void applyTags(OsdHbrMesh *hmesh) const;
+
+    bool createCatmark(int nvertsSize, const jint *nverts,
+                       int vertsSize, const jint *verts);
+
+    // Disk cache : a file holds the cage topology the topology was built
+    // from, its far mesh serialized by FarMeshSerializer, for uniform
+    // topologies its limit tables, and its chunks. Everything else is
+    // rebuilt on load.
+    bool loadCache(std::string const & path,
+                   int nvertsSize, const jint *nverts,
+                   int vertsSize, const jint *verts);
+
+    bool saveCache(std::string const & path) const;
+
+    // Builds what isn't cached once _farMesh and _limitTables are set.
+    // quadFaces is the coarse face of each refined quad of uniform
+    // topologies, NULL when the chunks were loaded.
+    bool finish(std::vector<int> const *quadFaces);
+
+    // Copies the cage topology and builds its adjacency, before anything
+    // else since applyTags finds creases among its edges.
+    void buildAdjacency(int nvertsSize, const jint *nverts,
+                        int vertsSize, const jint *verts);
+
+    // Builds the chunks and _triangles from the refined quads or the
+    // tessellation, and reorders them.
+    void buildChunks(std::vector<int> const *quadFaces);
+
+    // Appends the chunk of the given triangles, in refined or tessellated
+    // vertex indices.
+    void addChunk(std::vector<int> const & triangles, bool gather,
+                  std::vector<int> & localIndices);
+
+    OsdMeshScheme _scheme;
+    int _level;
+    int _tessLevel;
+    int _numPoints;
+    int _numFloatsPerPoint;
+
+    std::vector<int> _nverts;
+    std::vector<int> _verts;
+    OsdMeshTags _tags;
+
+    std::vector<int> _faceOffsets;
+    std::vector<int> _cornerFaces;
+    std::vector<int> _pointCornerOffsets;
+    std::vector<int> _pointCorners;
+    OsdEdgeTable _edges;
+
+    OsdLimitTablesSharedPtr _limitTables;
+
+    OpenSubdiv::FarMesh<OpenSubdiv::OsdVertex> *_farMesh;
+
+    pthread_mutex_t _stencilTablesMutex;
+    OpenSubdiv::OsdCpuStencilTables *_stencilTables;
+    bool _stencilTablesBuilt;
+
+    OsdPatchTessellator *_tessellator;
+
+    // 3 indices per drawn triangle, see OsdMeshChunk
+    std::vector<unsigned short> _triangles;
+    std::vector<OsdMeshChunk> _chunks;
+    std::vector<int> _chunkVertices;
+    std::vector<int> _drawVertices;
+    float _inputACMR;
+    float _ACMR;
+    GLuint _trianglesIndexBuffer;
+    GLuint _hullIndexBuffer;
+
+    bool _closed;
+};
+
+OsdMeshTopology::OsdMeshTopology(OsdMeshScheme scheme, int level, int tessLevel,
+                                 int numPoints, int numFloatsPerPoint,
+                                 OsdMeshTags const & tags) :
+    _scheme(scheme), _level(level), _tessLevel(tessLevel),
+    _numPoints(numPoints), _numFloatsPerPoint(numFloatsPerPoint),
+    _tags(tags),
+    _farMesh(0),
+    _stencilTables(0), _stencilTablesBuilt(false),
+    _tessellator(0), _inputACMR(0.0f), _ACMR(0.0f), _trianglesIndexBuffer(0),
+    _hullIndexBuffer(0), _closed(false)
+{
+    pthread_mutex_init(&_stencilTablesMutex, NULL);
+}
+
+OsdMeshTopology::~OsdMeshTopology()
+{
+#ifndef OSD_HEADLESS
+    if (_trianglesIndexBuffer) {
+        glDeleteBuffers(1, &_trianglesIndexBuffer);
+    }
+    if (_hullIndexBuffer) {
+        glDeleteBuffers(1, &_hullIndexBuffer);
+    }
+#endif
+    delete _tessellator;
+    delete _stencilTables;
+    delete _farMesh;
+    pthread_mutex_destroy(&_stencilTablesMutex);
+}
+
+// shared by all Hbr meshes, at file scope so that its construction doesn't
+// race between worker threads.
+static OpenSubdiv::HbrCatmarkSubdivision<OpenSubdiv::OsdVertex> catmark;
+
+bool
+OsdMeshTopology::createCatmark(
+    int nvertsSize, const jint *nverts,
+    int vertsSize, const jint *verts)
+{
+    buildAdjacency(nvertsSize, nverts, vertsSize, verts);
+
+    OsdHbrMesh *hmesh = new OsdHbrMesh(&catmark);
+
+    // create new empty vertices
+    OpenSubdiv::OsdVertex v;
+    for (int i=0; i<_numPoints; ++i) {
+        hmesh->NewVertex(i, v);
+    }
+
+    // assign base mesh topology
+    const jint *faceIndices = verts;
+    for (int i=0; i<nvertsSize; ++i) {
+        int numVertsInFace = nverts[ i ];
+
+        bool faceIsValid = true;
+        for (int j=0; j<numVertsInFace; ++j) {
+            int i0 = faceIndices[ j ];
+            int i1 = faceIndices[ (j+1) % numVertsInFace ];
+
+            OsdHbrVertex *v0 = hmesh->GetVertex(i0);
+            OsdHbrVertex *v1 = hmesh->GetVertex(i1);
+
+            // XXXdyu-api check for topology errors
+        }
+
+        if (faceIsValid) {
+            OsdHbrFace * face =
+                hmesh->NewFace(numVertsInFace, const_cast<int *>(faceIndices), 0);
+        }
+
+        faceIndices += numVertsInFace;
+    }
+
+    applyTags(hmesh);
+
+    hmesh->Finish();
+
+    bool adaptive = (_scheme == kSchemeCatmarkAdaptive);
+
+    OpenSubdiv::FarMeshFactory<OpenSubdiv::OsdVertex> meshFactory(hmesh, _level, adaptive);
+    _farMesh = meshFactory.Create();
+
+    // the far mesh lists the refined quads in the order of the Hbr faces
+    std::vector<int> quadFaces;
+    if (not adaptive) {
+        _limitTables = OsdLimitTables::Create(hmesh, _level,
+                                              meshFactory.GetRemappingTable());
+
+        // GetNumFaces counts them
+        int numFaces = hmesh->GetNumFaces();
+        for (int i=0; i<numFaces; ++i) {
+            OsdHbrFace *face = hmesh->GetFace(i);
+            if (not face or face->GetDepth() != _level) {
+                continue;
+            }
+            while (face->GetParent()) {
+                face = face->GetParent();
+            }
+            quadFaces.push_back(face->GetID());
+        }
+    }
+
+    delete hmesh;
+
+    return finish(&quadFaces);
+}
+
+// As applyTags in regression/common/shape_utils.h
+void
+OsdMeshTopology::applyTags(OsdHbrMesh *hmesh) const
+{
+    switch (_tags.interpolateBoundary) {
+    case 1:
+        hmesh->SetInterpolateBoundaryMethod(
+            OsdHbrMesh::k_InterpolateBoundaryEdgeAndCorner);
+        break;
+    case 2:
+        hmesh->SetInterpolateBoundaryMethod(
+            OsdHbrMesh::k_InterpolateBoundaryEdgeOnly);
+        break;
+    default:
+        break;
+    }
+
+    // the Hbr faces are the cage faces, their edges start at their corners
+    for (int i=0; i<(int)_tags.creaseSharpness.size(); ++i) {
+        int i0 = _tags.creases[2*i], i1 = _tags.creases[2*i+1];
+        int edge = _edges.Find(i0, i1);
+        if (edge >= 0) {
+            int corner = _edges.GetEdgeCorner(edge);
+            int face = _cornerFaces[corner];
+            OsdHbrFace *hface = hmesh->GetFace(face);
+            if (hface) {
+                hface->GetEdge(corner - _faceOffsets[face])->SetSharpness(
+                    std::max(0.0f, _tags.creaseSharpness[i]));
+            } else {
+                LOGE("no face %d for crease (%d, %d)", face, i0, i1);
+            }
+        } else {
+            LOGE("no edge for crease (%d, %d)", i0, i1);
+        }
+    }
+
+    for (int i=0; i<(int)_tags.cornerSharpness.size(); ++i) {
+        int index = _tags.corners[i];
+        if (index >= 0 and index < _numPoints) {
+            hmesh->GetVertex(index)->SetSharpness(
+                std::max(0.0f, _tags.cornerSharpness[i]));
+        } else {
+            LOGE("no vertex for corner %d", index);
+        }
+    }
+}
+
+bool
+OsdMeshTopology::finish(std::vector<int> const *quadFaces)
+{
+    if (_scheme == kSchemeCatmarkAdaptive) {
+        _tessellator = OsdPatchTessellator::Create(_farMesh->GetPatchTables(),
+                                                   _tessLevel);
+        if (not _tessellator) {
+            return false;
+        }
+    }
+
+    if (quadFaces) {
+        buildChunks(quadFaces);
+    } else if (_tessellator) {
+        // already in the chunks
+        std::vector<int> triangles;
+        _tessellator->TakeTriangles(&triangles);
+    }
+    return true;
+}
+
+void
+OsdMeshTopology::buildChunks(std::vector<int> const *quadFaces)
+{
+    jlong start = _GetTimeNanos();
+
+    // the triangles, and the first triangle of each chunk
+    std::vector<int> triangles;
+    std::vector<int> chunkStarts;
+    int numVertices;
+    if (_tessellator) {
+        _tessellator->TakeTriangles(&triangles);
+        numVertices = _tessellator->GetNumVertices();
+
+        for (int t=0; t<(int)triangles.size()/3; t+=kChunkTriangles) {
+            chunkStarts.push_back(t);
+        }
+    } else {
+        numVertices = _farMesh->GetNumVertices();
+
+        // quads split as OsdGLDrawContext does
+        std::vector<int> const & quads = _farMesh->GetFaceVertices(_level);
+        int numQuads = (int)quads.size() / 4;
+        if ((int)quadFaces->size() != numQuads) {
+            LOGE("%d coarse faces for %d quads, chunks ignore faces",
+                 (int)quadFaces->size(), numQuads);
+            quadFaces = NULL;
+        }
+        triangles.resize(numQuads * 6);
+        int chunkTriangles = 0;
+        for (int i=0; i<numQuads; ++i) {
+            const int *quad = &quads[i*4];
+            int *tris = &triangles[i*6];
+            tris[0] = quad[0];
+            tris[1] = quad[1];
+            tris[2] = quad[2];
+
+            tris[3] = quad[2];
+            tris[4] = quad[3];
+            tris[5] = quad[0];
+
+            bool newFace = (i == 0) or not quadFaces or
+                           (*quadFaces)[i] != (*quadFaces)[i-1];
+            if (i == 0 or (newFace and chunkTriangles >= kChunkTriangles) or
+                chunkTriangles >= kMaxChunkTriangles) {
+                chunkStarts.push_back(i*2);
+                chunkTriangles = 0;
+            }
+            chunkTriangles += 2;
+        }
+    }
+    int numTriangles = (int)triangles.size() / 3;
+    chunkStarts.push_back(numTriangles);
+
+    _inputACMR = _ComputeACMR(triangles, numVertices, kVertexCacheSize);
+
+    // tessellations past 16 bit indices are gathered as well
+    bool gather = not _tessellator or numVertices > 65536;
+
+    std::vector<int> localIndices(numVertices, -1);
+    std::vector<int> chunkTriangles;
+    for (int c=0; c+1<(int)chunkStarts.size(); ++c) {
+        chunkTriangles.assign(triangles.begin() + chunkStarts[c]*3,
+                              triangles.begin() + chunkStarts[c+1]*3);
+        addChunk(chunkTriangles, gather, localIndices);
+    }
+
+    std::vector<int> drawn(_triangles.size());
+    for (int c=0; c<(int)_chunks.size(); ++c) {
+        OsdMeshChunk const & chunk = _chunks[c];
+        for (int i=0; i<chunk.numIndices; ++i) {
+            drawn[chunk.firstIndex + i] =
+                chunk.baseVertex + _triangles[chunk.firstIndex + i];
+        }
+    }
+    int numDrawVertices = GetNumDrawVertices();
+    _ACMR = _ComputeACMR(drawn, numDrawVertices, kVertexCacheSize);
+
+    LOGI("%d triangles in %d chunks, %d draw vertices for %d refined in "
+         "%lld us, ACMR %.3f -> %.3f", numTriangles, (int)_chunks.size(),
+         numDrawVertices, numVertices,
+         (long long)((_GetTimeNanos() - start)/1000), _inputACMR, _ACMR);
+}
+
+// localIndices maps vertices to the chunk's, it is left all -1.
+void
+OsdMeshTopology::addChunk(std::vector<int> const & triangles, bool gather,
+                          std::vector<int> & localIndices)
+{
+    if (triangles.empty()) {
+        return;
+    }
+
+    // the chunk's own vertices, so that optimizing takes its size only
+    std::vector<int> vertices;
+    std::vector<unsigned short> local(triangles.size());
+    for (int i=0; i<(int)triangles.size(); ++i) {
+        int v = triangles[i];
+        if (localIndices[v] < 0) {
+            localIndices[v] = (int)vertices.size();
+            vertices.push_back(v);
+        }
+        local[i] = (unsigned short)localIndices[v];
+    }
+    for (int i=0; i<(int)vertices.size(); ++i) {
+        localIndices[vertices[i]] = -1;
+    }
+
+    _OptimizeVertexCache(local, (int)vertices.size(), kVertexCacheSize);
+
+    OsdMeshChunk chunk;
+    chunk.firstIndex = (int)_triangles.size();
+    chunk.numIndices = (int)local.size();
+    chunk.baseVertex = 0;
+    chunk.firstVertex = (int)_chunkVertices.size();
+    chunk.numVertices = (int)vertices.size();
+
+    if (not gather) {
+        for (int i=0; i<(int)local.size(); ++i) {
+            _triangles.push_back((unsigned short)vertices[local[i]]);
+        }
+        _chunkVertices.insert(_chunkVertices.end(),
+                              vertices.begin(), vertices.end());
+        _chunks.push_back(chunk);
+        return;
+    }
+
+    // draw vertices in the order the triangles first use them
+    int firstVertex = (int)_drawVertices.size();
+    if (not _chunks.empty()) {
+        chunk.baseVertex = _chunks.back().baseVertex;
+    }
+    if (firstVertex + (int)vertices.size() - chunk.baseVertex > 65536) {
+        chunk.baseVertex = firstVertex;
+    }
+    std::vector<int> order(vertices.size(), -1);
+    for (int i=0; i<(int)local.size(); ++i) {
+        int & drawVertex = order[local[i]];
+        if (drawVertex < 0) {
+            drawVertex = (int)_drawVertices.size();
+            _drawVertices.push_back(vertices[local[i]]);
+        }
+        _triangles.push_back((unsigned short)(drawVertex - chunk.baseVertex));
+    }
+    _chunkVertices.insert(_chunkVertices.end(), order.begin(), order.end());
+    _chunks.push_back(chunk);
+}
+
+// Cache files start with kTopologyCacheMagic and kTopologyCacheVersion,
+// which must be bumped whenever the layout written by saveCache changes.
+// The far mesh carries OPENSUBDIV_VERSION, so files written by another
+// version of the library fail to load and are overwritten. The header also
+// holds the size and checksum of the rest of the file : the indices it
+// holds are used as they are, so truncated or corrupted files must be
+// rebuilt rather than read.
+
+static const char kTopologyCacheMagic[4] = { 'O', 'S', 'D', 'T' };
+static const int kTopologyCacheVersion = 4;
+
+bool
+OsdMeshTopology::loadCache(std::string const & path,
+                           int nvertsSize, const jint *nverts,
+                           int vertsSize, const jint *verts)
+{
+    int fd = open(path.c_str(), O_RDONLY);
+    if (fd < 0) {
+        return false;
+    }
+
+    struct stat st;
+    void *mapped = MAP_FAILED;
+    if (fstat(fd, &st) == 0 and st.st_size > 0) {
+        mapped = mmap(NULL, size_t(st.st_size), PROT_READ, MAP_PRIVATE, fd, 0);
+    }
+    close(fd);
+    if (mapped == MAP_FAILED) {
+        return false;
+    }
+
+    const char *data = static_cast<const char *>(mapped);
+    const char *end = data + st.st_size;
+
+    char magic[4];
+    std::vector<int> header, cachedNVerts, cachedVerts;
+    OsdMeshTags cachedTags;
+    bool valid =
+        _ReadBytes(&data, end, magic, sizeof(magic)) and
+        memcmp(magic, kTopologyCacheMagic, sizeof(magic)) == 0 and
+        _ReadVector(&data, end, &header) and header.size() == 9 and
+        header[0] == kTopologyCacheVersion and header[1] == _scheme and
+        header[2] == _level and header[3] == _tessLevel and
+        header[4] == _numPoints and header[5] == _numFloatsPerPoint and
+        size_t(end - data) == size_t(unsigned(header[7])) and
+        _Checksum(data, size_t(end - data)) == unsigned(header[8]) and
+        _ReadVector(&data, end, &cachedNVerts) and
+        (int)cachedNVerts.size() == nvertsSize and
+        std::equal(cachedNVerts.begin(), cachedNVerts.end(), nverts) and
+        _ReadVector(&data, end, &cachedVerts) and
+        (int)cachedVerts.size() == vertsSize and
+        std::equal(cachedVerts.begin(), cachedVerts.end(), verts) and
+        _ReadVector(&data, end, &cachedTags.creases) and
+        _ReadVector(&data, end, &cachedTags.creaseSharpness) and
+        _ReadVector(&data, end, &cachedTags.corners) and
+        _ReadVector(&data, end, &cachedTags.cornerSharpness);
+    if (valid) {
+        cachedTags.interpolateBoundary = header[6];
+        valid = (cachedTags == _tags);
+    }
+
+    if (valid) {
+        size_t consumed = 0;
+        _farMesh = OpenSubdiv::FarMeshSerializer<OpenSubdiv::OsdVertex>::Read(
+            data, size_t(end - data), &consumed);
+        data += consumed;
+        valid = (_farMesh != NULL);
+    }
+    if (valid and _scheme != kSchemeCatmarkAdaptive) {
+        _limitTables = OsdLimitTables::Read(&data, end);
+        valid = (_limitTables != NULL);
+    }
+    std::vector<float> acmr;
+    valid = valid and
+        _ReadVector(&data, end, &_triangles) and
+        _ReadVector(&data, end, &_chunks) and
+        _ReadVector(&data, end, &_chunkVertices) and
+        _ReadVector(&data, end, &_drawVertices) and
+        _ReadVector(&data, end, &acmr) and acmr.size() == 2;
+    if (valid) {
+        _inputACMR = acmr[0];
+        _ACMR = acmr[1];
+    }
+
+    munmap(mapped, size_t(st.st_size));
+
+    if (not valid) {
+        return false;
+    }
+    buildAdjacency(nvertsSize, nverts, vertsSize, verts);
+    return finish(NULL);
+}
+
+// Writes a temporary file renamed into place, so that concurrent loads
+// never see a partial file.
+bool
+OsdMeshTopology::saveCache(std::string const & path) const
+{
+    std::vector<char> buffer;
+
+    _AppendVector(buffer, _nverts);
+    _AppendVector(buffer, _verts);
+    _AppendVector(buffer, _tags.creases);
+    _AppendVector(buffer, _tags.creaseSharpness);
+    _AppendVector(buffer, _tags.corners);
+    _AppendVector(buffer, _tags.cornerSharpness);
+
+    if (not OpenSubdiv::FarMeshSerializer<OpenSubdiv::OsdVertex>::Write(
+            _farMesh, buffer)) {
+        return false;
+    }
+    if (_limitTables) {
+        _limitTables->Write(buffer);
+    }
+    _AppendVector(buffer, _triangles);
+    _AppendVector(buffer, _chunks);
+    _AppendVector(buffer, _chunkVertices);
+    _AppendVector(buffer, _drawVertices);
+    std::vector<float> acmr;
+    acmr.push_back(_inputACMR);
+    acmr.push_back(_ACMR);
+    _AppendVector(buffer, acmr);
+
+    std::vector<int> header;
+    header.push_back(kTopologyCacheVersion);
+    header.push_back(_scheme);
+    header.push_back(_level);
+    header.push_back(_tessLevel);
+    header.push_back(_numPoints);
+    header.push_back(_numFloatsPerPoint);
+    header.push_back(_tags.interpolateBoundary);
+    header.push_back(int(buffer.size()));
+    header.push_back(int(_Checksum(&buffer[0], buffer.size())));
+
+    std::vector<char> prefix;
+    _AppendBytes(prefix, kTopologyCacheMagic, sizeof(kTopologyCacheMagic));
+    _AppendVector(prefix, header);
+    buffer.insert(buffer.begin(), prefix.begin(), prefix.end());
+
+    char suffix[64];
+    snprintf(suffix, sizeof(suffix), ".%d.%lx.tmp",
+             (int)getpid(), (unsigned long)pthread_self());
+    std::string tmpPath = path + suffix;
+
+    FILE *file = fopen(tmpPath.c_str(), "wb");
+    if (not file) {
+        return false;
+    }
+    bool written = fwrite(&buffer[0], 1, buffer.size(), file) == buffer.size();
+    written = (fclose(file) == 0) and written;
+
+    if (not written or rename(tmpPath.c_str(), path.c_str()) != 0) {
+        unlink(tmpPath.c_str());
+        return false;
+    }
+    return true;
+}
+
+// A corner is an index into _verts, i.e. a face-vertex. The corners of face
+// f are [_faceOffsets[f], _faceOffsets[f+1]), and the corners of point p,
+// in face order, are _pointCorners[_pointCornerOffsets[p] ...
+// _pointCornerOffsets[p+1]]. The edges are in _edges.
+void
+OsdMeshTopology::buildAdjacency(int nvertsSize, const jint *nverts,
+                                int vertsSize, const jint *verts)
+{
+    _nverts.assign(nverts, nverts+nvertsSize);
+    _verts.assign(verts, verts+vertsSize);
+
+    int numFaces = (int)_nverts.size();
+    int numCorners = (int)_verts.size();
+
+    _faceOffsets.resize(numFaces+1);
+    _cornerFaces.resize(numCorners);
+    _faceOffsets[0] = 0;
+    for (int i=0; i<numFaces; ++i) {
+        _faceOffsets[i+1] = _faceOffsets[i] + _nverts[i];
+        std::fill(_cornerFaces.begin() + _faceOffsets[i],
+                  _cornerFaces.begin() + _faceOffsets[i+1], i);
+    }
+
+    _pointCornerOffsets.assign(_numPoints+1, 0);
+    for (int i=0; i<numCorners; ++i) {
+        ++_pointCornerOffsets[_verts[i]+1];
+    }
+    for (int i=0; i<_numPoints; ++i) {
+        _pointCornerOffsets[i+1] += _pointCornerOffsets[i];
+    }
+
+    _pointCorners.resize(numCorners);
+    std::vector<int> fill(_pointCornerOffsets.begin(),
+                          _pointCornerOffsets.end()-1);
+    for (int i=0; i<numCorners; ++i) {
+        _pointCorners[fill[_verts[i]]++] = i;
+    }
+
+    // closed if every edge is shared by the faces on either side
+    _edges.Build(_nverts, _verts);
+    _closed = true;
+    for (int i=0; _closed and i<_edges.GetNumEdges(); ++i) {
+        _closed = (_edges.GetNumEdgeFaces(i) == 2);
+    }
+}
+
+OpenSubdiv::OsdCpuStencilTables const *
+OsdMeshTopology::GetStencilTables()
+{
+    ScopedLock lock(&_stencilTablesMutex);
+
+    if (not _stencilTablesBuilt) {
+        _stencilTables = OpenSubdiv::OsdCpuStencilTables::Create(
+            _farMesh, _scheme == kSchemeCatmarkAdaptive);
+        _stencilTablesBuilt = true;
+        if (_stencilTables) {
+            LOGI("stencil tables : %d stencils, %d bytes (subdivision tables "
+                 "%d bytes)", _stencilTables->GetNumStencils(),
+                 _stencilTables->GetMemoryUsed(),
+                 _farMesh->GetSubdivisionTables()->GetMemoryUsed());
+        }
+    }
+    return _stencilTables;
+}
+
+void
+OsdMeshTopology::BindIndexBuffer()
+{
+#ifndef OSD_HEADLESS
+    // the triangles are the same for every instance.
+    if (not _trianglesIndexBuffer and not _triangles.empty()) {
+        glGenBuffers(1, &_trianglesIndexBuffer);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, _trianglesIndexBuffer);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER,
+                     _triangles.size() * sizeof(unsigned short),
+                     &_triangles[0], GL_STATIC_DRAW);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    // and so are the edges. 32 bit indices need GL_OES_element_index_uint
+    // on GLES 2.0.
+    std::vector<int> const & points = _edges.GetEdgePoints();
+    if (not _hullIndexBuffer and not points.empty()) {
+        std::vector<char> indices;
+        if (GetHullIndexSize() == 2) {
+            indices.resize(points.size() * sizeof(unsigned short));
+            unsigned short *dst = (unsigned short *)&indices[0];
+            for (int i=0; i<(int)points.size(); ++i) {
+                dst[i] = (unsigned short)points[i];
+            }
+        } else {
+            const char *extensions = (const char *)glGetString(GL_EXTENSIONS);
+            if (not extensions or
+                not strstr(extensions, "GL_OES_element_index_uint")) {
+                LOGE("no 32 bit indices for the hull of %d points",
+                     _numPoints);
+                return;
+            }
+            indices.resize(points.size() * sizeof(unsigned int));
+            memcpy(&indices[0], &points[0], indices.size());
+        }
+        glGenBuffers(1, &_hullIndexBuffer);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, _hullIndexBuffer);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices.size(), &indices[0],
+                     GL_STATIC_DRAW);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+#endif
+}
+
+bool
+OsdMeshTopology::Matches(OsdMeshScheme scheme, int level, int tessLevel,
+                         int numPoints, int numFloatsPerPoint,
+                         int nvertsSize, const jint *nverts,
+                         int vertsSize, const jint *verts,
+                         OsdMeshTags const & tags) const
+{
+    return _scheme == scheme and _level == level and
+           _tessLevel == tessLevel and
+           _numPoints == numPoints and
+           _numFloatsPerPoint == numFloatsPerPoint and
+           (int)_nverts.size() == nvertsSize and
+           (int)_verts.size() == vertsSize and
+           std::equal(_nverts.begin(), _nverts.end(), nverts) and
+           std::equal(_verts.begin(), _verts.end(), verts) and
+           _tags == tags;
+}
+
+// Topology cache, keyed by a hash of the cage topology, level and scheme.
+// The cache only holds weak references : a topology is released along with
+// its last mesh instance.
+
+typedef std::multimap<unsigned int,
+                      std::tr1::weak_ptr<OsdMeshTopology> > OsdMeshTopologyCache;
+
+static pthread_mutex_t topologyCacheMutex = PTHREAD_MUTEX_INITIALIZER;
+static OsdMeshTopologyCache topologyCache;
+
+// guarded by topologyCacheMutex
+static std::string topologyCacheDirectory;
+
+void
+OsdMeshTopology::SetCacheDirectory(std::string const & dir)
+{
+    ScopedLock lock(&topologyCacheMutex);
+    topologyCacheDirectory = dir;
+}
+
+static unsigned int
+_HashTopology(OsdMeshScheme scheme, int level, int tessLevel,
+              int numPoints, int numFloatsPerPoint,
+              int nvertsSize, const jint *nverts,
+              int vertsSize, const jint *verts,
+              OsdMeshTags const & tags)
+{
+    // FNV-1a
+    unsigned int hash = 2166136261u;
+#define HASH_INT(x) { unsigned int u = (unsigned int)(x); \
+                      for (int b=0; b<4; ++b, u>>=8) { \
+                          hash = (hash ^ (u & 0xff)) * 16777619u; } }
+    HASH_INT(scheme);
+    HASH_INT(level);
+    HASH_INT(tessLevel);
+    HASH_INT(numPoints);
+    HASH_INT(numFloatsPerPoint);
+    for (int i=0; i<nvertsSize; ++i) HASH_INT(nverts[i]);
+    for (int i=0; i<vertsSize; ++i) HASH_INT(verts[i]);
+    for (int i=0; i<(int)tags.creases.size(); ++i) HASH_INT(tags.creases[i]);
+    for (int i=0; i<(int)tags.corners.size(); ++i) HASH_INT(tags.corners[i]);
+    for (int i=0; i<(int)tags.creaseSharpness.size(); ++i) {
+        unsigned int bits;
+        memcpy(&bits, &tags.creaseSharpness[i], sizeof(bits));
+        HASH_INT(bits);
+    }
+    for (int i=0; i<(int)tags.cornerSharpness.size(); ++i) {
+        unsigned int bits;
+        memcpy(&bits, &tags.cornerSharpness[i], sizeof(bits));
+        HASH_INT(bits);
+    }
+    HASH_INT(tags.interpolateBoundary);
+#undef HASH_INT
+    return hash;
+}
+
+// Returns the live cached topology matching the arguments, pruning expired
+// entries on the way. The cache mutex must be held.
+static OsdMeshTopologySharedPtr
+_FindCachedTopology(unsigned int hash,
+                    OsdMeshScheme scheme, int level, int tessLevel,
+                    int numPoints, int numFloatsPerPoint,
+                    int nvertsSize, const jint *nverts,
+                    int vertsSize, const jint *verts,
+                    OsdMeshTags const & tags)
+{
+    std::pair<OsdMeshTopologyCache::iterator,
+              OsdMeshTopologyCache::iterator> range =
+        topologyCache.equal_range(hash);
+
+    for (OsdMeshTopologyCache::iterator it = range.first; it != range.second; ) {
+        OsdMeshTopologySharedPtr topology = it->second.lock();
+        if (not topology) {
+            topologyCache.erase(it++);
+            continue;
+        }
+        if (topology->Matches(scheme, level, tessLevel,
+                              numPoints, numFloatsPerPoint,
+                              nvertsSize, nverts, vertsSize, verts, tags)) {
+            return topology;
+        }
+        ++it;
+    }
+    return OsdMeshTopologySharedPtr();
+}
+
+OsdMeshTopologySharedPtr
+OsdMeshTopology::FindOrCreate(
+    OsdMeshScheme scheme, int level, int tessLevel,
+    int numPoints, int numFloatsPerPoint,
+    int nvertsSize, const jint *nverts,
+    int vertsSize, const jint *verts,
+    OsdMeshTags const & tags)
+{
+    unsigned int hash = _HashTopology(scheme, level, tessLevel,
+                                      numPoints, numFloatsPerPoint,
+                                      nvertsSize, nverts, vertsSize, verts,
+                                      tags);
+    std::string cacheDirectory;
+    {
+        ScopedLock lock(&topologyCacheMutex);
+
+        OsdMeshTopologySharedPtr topology = _FindCachedTopology(
+            hash, scheme, level, tessLevel, numPoints, numFloatsPerPoint,
+            nvertsSize, nverts, vertsSize, verts, tags);
+        if (topology) {
+            return topology;
+        }
+        cacheDirectory = topologyCacheDirectory;
+    }
+
+    // load or build outside of the lock so that worker threads refine
+    // different topologies concurrently. This only touches cpu memory.
+    // Files are named after the hash, and hold the whole cage topology and
+    // tags to tell collisions apart.
+    std::string cachePath;
+    if (not cacheDirectory.empty()) {
+        char name[64];
+        snprintf(name, sizeof(name), "/topology-%08x-%d-%d-%d.bin",
+                 hash, (int)scheme, level, tessLevel);
+        cachePath = cacheDirectory + name;
+    }
+
+    jlong start = _GetTimeNanos();
+
+    OsdMeshTopologySharedPtr topology(
+        new OsdMeshTopology(scheme, level, tessLevel,
+                            numPoints, numFloatsPerPoint, tags));
+    if (not cachePath.empty() and
+        topology->loadCache(cachePath, nvertsSize, nverts, vertsSize, verts)) {
+        LOGI("loaded level %d topology from %s in %lld us", level,
+             cachePath.c_str(), (long long)((_GetTimeNanos() - start)/1000));
+    } else {
+        topology.reset(new OsdMeshTopology(scheme, level, tessLevel,
+                                           numPoints, numFloatsPerPoint, tags));
+        if (not topology->createCatmark(nvertsSize, nverts, vertsSize, verts)) {
+            return OsdMeshTopologySharedPtr();
+        }
+        LOGI("built level %d topology in %lld us", level,
+             (long long)((_GetTimeNanos() - start)/1000));
+
+        if (not cachePath.empty() and not topology->saveCache(cachePath)) {
+            LOGE("failed to write topology cache %s", cachePath.c_str());
+        }
+    }
+
+    ScopedLock lock(&topologyCacheMutex);
+
+    // another thread may have built the same topology in the meantime,
+    // in which case ours (which has no GL objects yet) is dropped.
+    OsdMeshTopologySharedPtr cached = _FindCachedTopology(
+        hash, scheme, level, tessLevel, numPoints, numFloatsPerPoint,
+        nvertsSize, nverts, vertsSize, verts, tags);
+    if (cached) {
+        return cached;
+    }
+
+    topologyCache.insert(std::make_pair(hash,
+        std::tr1::weak_ptr<OsdMeshTopology>(topology)));
+
+    return topology;
+}
+
+////////
+// Mesh Refiners
+////////
+
+// Refines a vertex buffer with one of the cpu compute backends, or with
+// the stencil tables of its topology. The backend values are shared with
+// OpenSubdiv.java.
+
+enum OsdRefineBackend {
+    kBackendCpu = 0,
+    kBackendOpenMP = 1,
+    kBackendPthreads = 2,
+    kBackendStencil = 3,
+    kNumBackends
+};
+
+// Refiners are owned by one mesh instance. context is the instance's own,
+// see OsdMeshWrapper::CreateInstance.
+class OsdMeshRefiner {
+public:
+    virtual ~OsdMeshRefiner() {}
+
+    virtual void Refine(OsdMeshTopology & topology,
+                        OpenSubdiv::OsdCpuComputeContext *context,
+                        OsdMeshVertexBuffer *vertexBuffer) = 0;
+
+    // Returns a refiner for the given backend, or NULL if the backend was
+    // not compiled in. numThreads=-1 uses every available processor.
+    static OsdMeshRefiner * Create(OsdRefineBackend backend, int numThreads);
+};
+
+template <class CONTROLLER>
+class OsdMeshRefinerImpl : public OsdMeshRefiner {
+public:
+    explicit OsdMeshRefinerImpl(CONTROLLER const & controller) :
+        _controller(controller) {}
+
+    virtual void Refine(OsdMeshTopology &,
+                        OpenSubdiv::OsdCpuComputeContext *context,
+                        OsdMeshVertexBuffer *vertexBuffer) {
+        _controller.Refine(context, vertexBuffer);
+    }
+
+private:
+    CONTROLLER _controller;
+};
+
+// Computes every refined vertex straight from the coarse vertices, with one
+// sparse matrix-vector product instead of a pass per subdivision level.
+// The stencils don't depend on each other, so with OpenMP the product is
+// split evenly between the threads, without a barrier per table batch.
+class OsdMeshStencilRefiner : public OsdMeshRefiner {
+public:
+    explicit OsdMeshStencilRefiner(int numThreads) :
+        _numThreads(numThreads) {}
+
+    virtual void Refine(OsdMeshTopology & topology,
+                        OpenSubdiv::OsdCpuComputeContext *,
+                        OsdMeshVertexBuffer *vertexBuffer) {
+        OpenSubdiv::OsdCpuStencilTables const *stencils =
+            topology.GetStencilTables();
+        if (not stencils) {
+            return;
+        }
+
+        float *vertices = vertexBuffer->BindCpuBuffer();
+        int numElements = vertexBuffer->GetNumElements();
+
+#ifdef OPENSUBDIV_HAS_OPENMP
+        if (_numThreads != 1) {
+            int numThreads = _numThreads > 0 ? _numThreads : omp_get_max_threads();
+            int numStencils = stencils->GetNumStencils();
+#pragma omp parallel for num_threads(numThreads)
+            for (int i=0; i<numThreads; ++i) {
+                stencils->Apply(vertices, numElements,
+                                int(jlong(numStencils) * i / numThreads),
+                                int(jlong(numStencils) * (i+1) / numThreads));
+            }
+            return;
+        }
+#endif
+        stencils->Apply(vertices, numElements);
+    }
+
+private:
+    int _numThreads;
+};
+
+OsdMeshRefiner *
+OsdMeshRefiner::Create(OsdRefineBackend backend, int numThreads)
+{
+    switch (backend) {
+    case kBackendCpu:
+        return new OsdMeshRefinerImpl<OpenSubdiv::OsdCpuComputeController>(
+                       OpenSubdiv::OsdCpuComputeController());
+#ifdef OPENSUBDIV_HAS_OPENMP
+    case kBackendOpenMP:
+        return new OsdMeshRefinerImpl<OpenSubdiv::OsdOmpComputeController>(
+                       OpenSubdiv::OsdOmpComputeController(numThreads));
+#endif
+#ifdef OPENSUBDIV_HAS_PTHREADS
+    case kBackendPthreads:
+        return new OsdMeshRefinerImpl<OpenSubdiv::OsdPthreadComputeController>(
+                       OpenSubdiv::OsdPthreadComputeController(numThreads));
+#endif
+    case kBackendStencil:
+        return new OsdMeshStencilRefiner(numThreads);
+    default:
+        return NULL;
+    }
+}
+
+// Refine() timings of one backend, in nanoseconds.
+struct OsdRefineTiming {
+    OsdRefineTiming() : count(0), totalNanos(0), lastNanos(0) {}
+
+    jlong count;
+    jlong totalNanos;
+    jlong lastNanos;
+};
+
+// Durations of the stages of the last UpdatePoints, in nanoseconds.
+struct OsdUpdateTiming {
+    OsdUpdateTiming() :
+        normalsNanos(0), writeNanos(0), refineNanos(0), tessellateNanos(0),
+        packNanos(0), skinNanos(0), morphNanos(0) {}
+
+    jlong normalsNanos;         // smooth cage normals
+    jlong writeNanos;           // coarse points and normals to the buffers
+    jlong refineNanos;          // Refine() of every vertex buffer
+    jlong tessellateNanos;      // patch tessellation, adaptive meshes only
+    jlong packNanos;            // draw vertices and chunk bounds
+    jlong skinNanos;            // skinning of the cage, skinned updates only
+    jlong morphNanos;           // morph targets, morphed updates only
+};
+
+////////
+// Frame Statistics
+////////
+
+// Fields of a frame record, one per UpdatePoints of a mesh. The values are
+// shared with OpenSubdiv.java (FRAME_STAT_*).
+
+enum OsdFrameStat {
+    kStatSequence = 0,          // 1 for the first update of the mesh
+    kStatTimestamp,             // CLOCK_MONOTONIC nanoseconds, as System.nanoTime
+    kStatCopyNanos,             // JNI copy of the points
+    kStatNormalsNanos,
+    kStatWriteNanos,            // coarse points and normals to the buffers
+    kStatRefineNanos,
+    kStatTessellateNanos,
+    kStatUploadTimestamp,       // 0 until the vertex buffers are uploaded
+    kStatUploadNanos,
+    kStatUploadBytes,
+    kStatRefinedVertices,
+    kStatTriangles,
+    kStatPackNanos,             // gather or quantization of the draw
+                                // vertices, and chunk bounds
+
+    kNumFrameStats
+};
+
+// Ring of the last frame records of one mesh, without locks : records are
+// written by the thread updating the mesh, and copied by Snapshot from any
+// thread. Each slot is a sequence lock, its sequence is cleared while the
+// slot is written and Snapshot skips the slots which changed during the
+// copy.
+class OsdFrameStatsRing {
+public:
+    enum { kCapacity = 128 };
+
+    OsdFrameStatsRing() : _count(0), _openSequence(0) {
+        for (int i=0; i<kCapacity; ++i) {
+            for (int j=0; j<kNumFrameStats; ++j) {
+                _records[i][j] = 0;
+            }
+        }
+    }
+
+    // Returns the cleared record of a new frame, to be published by Commit.
+    volatile jlong * Begin() {
+        _openSequence = _count + 1;
+        volatile jlong *record = open(_openSequence);
+        for (int j=1; j<kNumFrameStats; ++j) {
+            record[j] = 0;
+        }
+        return record;
+    }
+
+    // Returns the record of the last frame to amend it, to be published
+    // again by Commit, or NULL before the first frame.
+    volatile jlong * ReopenLast() {
+        if (_count == 0) {
+            return NULL;
+        }
+        _openSequence = _count;
+        return open(_openSequence);
+    }
+
+    void Commit(volatile jlong *record) {
+        __sync_synchronize();
+        record[kStatSequence] = _openSequence;
+        _count = _openSequence;
+    }
+
+    // Copies up to maxRecords of the last records, oldest first, and
+    // returns the number copied.
+    int Snapshot(jlong *dst, int maxRecords) const;
+
+private:
+    volatile jlong * open(jlong sequence) {
+        volatile jlong *record = _records[(sequence - 1) % kCapacity];
+        record[kStatSequence] = 0;
+        __sync_synchronize();
+        return record;
+    }
+
+    volatile jlong _records[kCapacity][kNumFrameStats];
+    volatile jlong _count;
+    jlong _openSequence;
+};
+
+int
+OsdFrameStatsRing::Snapshot(jlong *dst, int maxRecords) const
+{
+    jlong count = _count;
+    __sync_synchronize();
+
+    jlong first = std::max(count - std::min(maxRecords, int(kCapacity)), jlong(0)) + 1;
+    int numCopied = 0;
+    for (jlong sequence=first; sequence<=count; ++sequence) {
+        volatile const jlong *record = _records[(sequence - 1) % kCapacity];
+        if (record[kStatSequence] != sequence) {
+            continue;
+        }
+        __sync_synchronize();
+        for (int j=0; j<kNumFrameStats; ++j) {
+            dst[j] = record[j];
+        }
+        __sync_synchronize();
+        if (record[kStatSequence] == sequence) {
+            dst += kNumFrameStats;
+            ++numCopied;
+        }
+    }
+    return numCopied;
+}
+
+////////
+// Smooth Normals
+////////
+
+static void
+_Cross(float *r, const float *a, const float *b, const float *c)
+{
+    float p[3] = { b[0]-a[0], b[1]-a[1], b[2]-a[2] };
+    float q[3] = { c[0]-a[0], c[1]-a[1], c[2]-a[2] };
+    r[0] = p[1]*q[2] - p[2]*q[1];
+    r[1] = p[2]*q[0] - p[0]*q[2];
+    r[2] = p[0]*q[1] - p[1]*q[0];
+}
+
+static void
+_Normalize(float *r)
+{
+    float d = 1.0 / sqrt( r[0]*r[0] + r[1]*r[1] + r[2]*r[2] );
+    r[0] *= d;
+    r[1] *= d;
+    r[2] *= d;
+}
+
+// Smooth cage normals of one mesh instance : each face-vertex contributes
+// the normal of the triangle it forms with its two neighbors, and point
+// normals are the normalized sum of their face-vertex contributions. The
+// contributions are kept so that moving a few points only recomputes the
+// faces around them and the normals of those faces' points.
+class OsdSmoothNormals {
+public:
+    OsdSmoothNormals() : _stamp(0) {}
+
+    // Recomputes every normal.
+    void ComputeAll(OsdMeshTopology const & topology, const jfloat *points);
+
+    // Recomputes the normals affected by the given moved points. Falls
+    // back to ComputeAll before the first full computation.
+    void ComputeMoved(OsdMeshTopology const & topology, const jfloat *points,
+                      const jint *movedPoints, int numMovedPoints);
+
+    // 3 floats per point
+    const float * GetNormals() const {
+        return _normals.empty() ? NULL : &_normals[0];
+    }
+
+    // Points whose normal was recomputed by the last ComputeMoved.
+    std::vector<int> const & GetDirtyPoints() const {
+        return _dirtyPoints;
+    }
+
+private:
+    void computeFace(OsdMeshTopology const & topology, const jfloat *points,
+                     int face);
+
+    void computePoint(OsdMeshTopology const & topology, int point);
+
+    unsigned int nextStamp();
+
+    std::vector<float> _cornerNormals;
+    std::vector<float> _normals;
+
+    // scratch state of ComputeMoved, kept to avoid per update allocations
+    unsigned int _stamp;
+    std::vector<unsigned int> _faceStamps;
+    std::vector<unsigned int> _pointStamps;
+    std::vector<int> _dirtyFaces;
+    std::vector<int> _dirtyPoints;
+};
+
+void
+OsdSmoothNormals::computeFace(OsdMeshTopology const & topology,
+                              const jfloat *points, int face)
+{
+    const std::vector<int> & verts = topology.GetVerts();
+    const std::vector<int> & faceOffsets = topology.GetFaceOffsets();
+    int numFloatsPerPoint = topology.GetNumFloatsPerPoint();
+
+    int first = faceOffsets[face];
+    int numVertsInFace = faceOffsets[face+1] - first;
+    const int *v = &verts[first];
+
+    for (int j=0; j<numVertsInFace; ++j) {
+        int a = v[ j ];
+        int b = v[ ((j+1) < numVertsInFace ? j+1 : j+1 - numVertsInFace) ];
+        int c = v[ ((j+2) < numVertsInFace ? j+2 : j+2 - numVertsInFace) ];
+
+        int corner = first + ((j+1) < numVertsInFace ? j+1 : j+1 - numVertsInFace);
+        _Cross(&_cornerNormals[corner*3],
+               &points[ a*numFloatsPerPoint ],
+               &points[ b*numFloatsPerPoint ],
+               &points[ c*numFloatsPerPoint ]);
+    }
+}
+
+void
+OsdSmoothNormals::computePoint(OsdMeshTopology const & topology, int point)
+{
+    const std::vector<int> & offsets = topology.GetPointCornerOffsets();
+    const std::vector<int> & corners = topology.GetPointCorners();
+
+    float *n = &_normals[point*3];
+    n[0] = n[1] = n[2] = 0.0f;
+    for (int i=offsets[point]; i<offsets[point+1]; ++i) {
+        const float *c = &_cornerNormals[corners[i]*3];
+        n[0] -= c[0];
+        n[1] -= c[1];
+        n[2] -= c[2];
+    }
+    _Normalize(n);
+}
+
+void
+OsdSmoothNormals::ComputeAll(OsdMeshTopology const & topology,
+                             const jfloat *points)
+{
+    int numFaces = (int)topology.GetNVerts().size();
+    int numPoints = topology.GetNumPoints();
+
+    _cornerNormals.resize(3 * topology.GetVerts().size());
+    _normals.resize(3 * numPoints);
+
+    // the scratch state of ComputeMoved, sized for the worst case so that
+    // partial updates don't allocate
+    _faceStamps.resize(numFaces, 0);
+    _pointStamps.resize(numPoints, 0);
+    _dirtyFaces.reserve(numFaces);
+    _dirtyPoints.reserve(numPoints);
+
+    for (int i=0; i<numFaces; ++i) {
+        computeFace(topology, points, i);
+    }
+    for (int i=0; i<numPoints; ++i) {
+        computePoint(topology, i);
+    }
+}
+
+unsigned int
+OsdSmoothNormals::nextStamp()
+{
+    if (++_stamp == 0) {
+        std::fill(_faceStamps.begin(), _faceStamps.end(), 0);
+        std::fill(_pointStamps.begin(), _pointStamps.end(), 0);
+        _stamp = 1;
+    }
+    return _stamp;
+}
+
+void
+OsdSmoothNormals::ComputeMoved(OsdMeshTopology const & topology,
+                               const jfloat *points,
+                               const jint *movedPoints, int numMovedPoints)
+{
+    if (_normals.empty()) {
+        ComputeAll(topology, points);
+        return;
+    }
+
+    const std::vector<int> & verts = topology.GetVerts();
+    const std::vector<int> & faceOffsets = topology.GetFaceOffsets();
+    const std::vector<int> & cornerFaces = topology.GetCornerFaces();
+    const std::vector<int> & pointCornerOffsets = topology.GetPointCornerOffsets();
+    const std::vector<int> & pointCorners = topology.GetPointCorners();
+
+    unsigned int stamp = nextStamp();
+
+    // faces around the moved points
+    _dirtyFaces.clear();
+    for (int i=0; i<numMovedPoints; ++i) {
+        int point = movedPoints[i];
+        for (int j=pointCornerOffsets[point]; j<pointCornerOffsets[point+1]; ++j) {
+            int face = cornerFaces[pointCorners[j]];
+            if (_faceStamps[face] != stamp) {
+                _faceStamps[face] = stamp;
+                _dirtyFaces.push_back(face);
+            }
+        }
+    }
+
+    // points of those faces
+    _dirtyPoints.clear();
+    for (int i=0; i<(int)_dirtyFaces.size(); ++i) {
+        int face = _dirtyFaces[i];
+        computeFace(topology, points, face);
+        for (int j=faceOffsets[face]; j<faceOffsets[face+1]; ++j) {
+            int point = verts[j];
+            if (_pointStamps[point] != stamp) {
+                _pointStamps[point] = stamp;
+                _dirtyPoints.push_back(point);
+            }
+        }
+    }
+
+    for (int i=0; i<(int)_dirtyPoints.size(); ++i) {
+        computePoint(topology, _dirtyPoints[i]);
+    }
+}
+
+////////
+// Skinning
+////////
+
+// Linear blend skinning of the cage points : each point is transformed by
+// the weighted sum of the matrices of its bones. Every point has the same
+// number of influences, unused ones having a weight of 0, so that the loop
+// over the points has no branches and a fixed inner trip count, which the
+// compiler can unroll and vectorize.
+class OsdSkin {
+public:
+    static const int kMaxInfluences = 8;
+
+    OsdSkin() : _numPoints(0), _numInfluences(0), _numBones(0) {}
+
+    // restPoints holds numFloatsPerPoint floats per point, of which the
+    // first 3 are skinned. boneIndices and weights hold numInfluences
+    // values per point, the indices must be less than numBones.
+    void Set(int numPoints, int numFloatsPerPoint, const jfloat *restPoints,
+             int numInfluences, const jint *boneIndices,
+             const jfloat *weights, int numBones);
+
+    bool IsEmpty() const {
+        return _numPoints == 0;
+    }
+
+    int GetNumBones() const {
+        return _numBones;
+    }
+
+    // boneMatrices holds a column-major 4x4 matrix per bone, as built by
+    // android.opengl.Matrix, whose last rows are ignored. Writes the first
+    // 3 floats of each point of points, stride floats apart.
+    void Apply(const jfloat *boneMatrices, jfloat *points, int stride);
+
+private:
+    int _numPoints;
+    int _numInfluences;
+    int _numBones;
+
+    std::vector<float> _restPositions;  // 3 floats per point
+    std::vector<int> _boneOffsets;      // bone index times 12
+    std::vector<float> _weights;
+
+    // the bones of the last Apply, as 3x4 row-major matrices
+    std::vector<float> _bones;
+};
+
+void
+OsdSkin::Set(int numPoints, int numFloatsPerPoint, const jfloat *restPoints,
+             int numInfluences, const jint *boneIndices,
+             const jfloat *weights, int numBones)
+{
+    _numPoints = numPoints;
+    _numInfluences = numInfluences;
+    _numBones = numBones;
+
+    _restPositions.resize(numPoints*3);
+    for (int i=0; i<numPoints; ++i) {
+        for (int k=0; k<3; ++k) {
+            _restPositions[i*3+k] = restPoints[i*numFloatsPerPoint+k];
+        }
+    }
+
+    _boneOffsets.resize(numPoints*numInfluences);
+    for (int i=0; i<numPoints*numInfluences; ++i) {
+        _boneOffsets[i] = boneIndices[i]*12;
+    }
+    _weights.assign(weights, weights + numPoints*numInfluences);
+
+    _bones.resize(numBones*12);
+}
+
+void
+OsdSkin::Apply(const jfloat *boneMatrices, jfloat *points, int stride)
+{
+    for (int b=0; b<_numBones; ++b) {
+        const jfloat *src = boneMatrices + b*16;
+        float *dst = &_bones[b*12];
+        for (int row=0; row<3; ++row) {
+            for (int column=0; column<4; ++column) {
+                dst[row*4+column] = src[column*4+row];
+            }
+        }
+    }
+
+    const float *bones = &_bones[0];
+    const float *rest = &_restPositions[0];
+    const int *boneOffsets = &_boneOffsets[0];
+    const float *weights = &_weights[0];
+    int numInfluences = _numInfluences;
+
+    for (int i=0; i<_numPoints; ++i) {
+        // blend the matrices, then transform the point once
+        float m[12];
+        const float *bone = bones + boneOffsets[0];
+        for (int k=0; k<12; ++k) {
+            m[k] = bone[k] * weights[0];
+        }
+        for (int j=1; j<numInfluences; ++j) {
+            bone = bones + boneOffsets[j];
+            for (int k=0; k<12; ++k) {
+                m[k] += bone[k] * weights[j];
+            }
+        }
+
+        float x = rest[0], y = rest[1], z = rest[2];
+        points[0] = m[0]*x + m[1]*y + m[2]*z + m[3];
+        points[1] = m[4]*x + m[5]*y + m[6]*z + m[7];
+        points[2] = m[8]*x + m[9]*y + m[10]*z + m[11];
+
+        rest += 3;
+        boneOffsets += numInfluences;
+        weights += numInfluences;
+        points += stride;
+    }
+}
+
+////////
+// Morph Targets
+////////
+
+// Sparse morph targets (blendshapes) of the cage : each target is a list
+// of point indices and the deltas of their positions. The morphed points
+// are the base points plus the weighted deltas of every target whose
+// weight is at least kMinWeight in magnitude. Apply only touches the
+// points moved by the last and current active targets, so its cost
+// follows the number of active deltas rather than the size of the cage.
+class OsdMorphTargets {
+public:
+    static const float kMinWeight;     // OpenSubdiv.MIN_MORPH_WEIGHT
+
+    OsdMorphTargets() : _numFloatsPerPoint(0), _stamp(0) {}
+
+    // Sets the base points, numFloatsPerPoint floats per point of which
+    // the first 3 are morphed, and removes every target.
+    void SetBase(int numPoints, int numFloatsPerPoint, const jfloat *points);
+
+    bool IsEmpty() const {
+        return _base.empty();
+    }
+
+    // Adds a target moving indices[i] by the 3 floats at deltas + 3*i, and
+    // returns its index. The indices must be less than the number of base
+    // points.
+    int AddTarget(int numDeltas, const jint *indices, const jfloat *deltas);
+
+    int GetNumTargets() const {
+        return (int)_targetOffsets.size() - 1;
+    }
+
+    // Morphs the points with the weights of the first numWeights targets,
+    // the others weighing 0.
+    void Apply(const jfloat *weights, int numWeights);
+
+    const jfloat * GetPoints() const {
+        return &_points[0];
+    }
+
+    // Points the last Apply moved, away from or back to their base.
+    std::vector<int> const & GetMovedPoints() const {
+        return _movedPoints;
+    }
+
+private:
+    unsigned int nextStamp();
+
+    int _numFloatsPerPoint;
+    std::vector<float> _base;
+    std::vector<float> _points;
+
+    // first delta of each target, and one past the last one
+    std::vector<int> _targetOffsets;
+    std::vector<int> _indices;
+    std::vector<float> _deltas;         // 3 floats per index
+
+    // points away from their base since the last Apply
+    std::vector<int> _morphedPoints;
+
+    // scratch state of Apply, kept to avoid per update allocations
+    unsigned int _stamp;
+    std::vector<unsigned int> _movedStamps;
+    std::vector<unsigned int> _morphedStamps;
+    std::vector<int> _movedPoints;
+};
+
+const float OsdMorphTargets::kMinWeight = 1e-4f;
+
+void
+OsdMorphTargets::SetBase(int numPoints, int numFloatsPerPoint,
+                         const jfloat *points)
+{
+    _numFloatsPerPoint = numFloatsPerPoint;
+    _base.assign(points, points + numPoints*numFloatsPerPoint);
+    _points = _base;
+
+    _targetOffsets.assign(1, 0);
+    _indices.clear();
+    _deltas.clear();
+
+    // each point is listed at most once, so Apply never grows these
+    _morphedPoints.clear();
+    _morphedPoints.reserve(numPoints);
+    _movedPoints.clear();
+    _movedPoints.reserve(numPoints);
+    _movedStamps.assign(numPoints, 0);
+    _morphedStamps.assign(numPoints, 0);
+    _stamp = 0;
+}
+
+int
+OsdMorphTargets::AddTarget(int numDeltas, const jint *indices,
+                           const jfloat *deltas)
+{
+    _indices.insert(_indices.end(), indices, indices + numDeltas);
+    _deltas.insert(_deltas.end(), deltas, deltas + numDeltas*3);
+    _targetOffsets.push_back((int)_indices.size());
+    return GetNumTargets() - 1;
+}
+
+unsigned int
+OsdMorphTargets::nextStamp()
+{
+    if (++_stamp == 0) {
+        std::fill(_movedStamps.begin(), _movedStamps.end(), 0);
+        std::fill(_morphedStamps.begin(), _morphedStamps.end(), 0);
+        _stamp = 1;
+    }
+    return _stamp;
+}
+
+void
+OsdMorphTargets::Apply(const jfloat *weights, int numWeights)
+{
+    unsigned int stamp = nextStamp();
+    int stride = _numFloatsPerPoint;
+
+    // back to the base, the points morphed by the last Apply
+    _movedPoints.clear();
+    for (int i=0; i<(int)_morphedPoints.size(); ++i) {
+        int point = _morphedPoints[i];
+        for (int k=0; k<3; ++k) {
+            _points[point*stride+k] = _base[point*stride+k];
+        }
+        _movedStamps[point] = stamp;
+        _movedPoints.push_back(point);
+    }
+    _morphedPoints.clear();
+
+    numWeights = std::min(numWeights, GetNumTargets());
+    for (int t=0; t<numWeights; ++t) {
+        float weight = weights[t];
+        if (fabsf(weight) < kMinWeight) {
+            continue;
+        }
+        for (int i=_targetOffsets[t]; i<_targetOffsets[t+1]; ++i) {
+            int point = _indices[i];
+            float *p = &_points[point*stride];
+            const float *delta = &_deltas[i*3];
+            p[0] += weight * delta[0];
+            p[1] += weight * delta[1];
+            p[2] += weight * delta[2];
+
+            if (_morphedStamps[point] != stamp) {
+                _morphedStamps[point] = stamp;
+                _morphedPoints.push_back(point);
+                if (_movedStamps[point] != stamp) {
+                    _movedStamps[point] = stamp;
+                    _movedPoints.push_back(point);
+                }
+            }
+        }
+    }
+}
+
+////////
+// Mesh Wrapper
+////////
+
+
+// Layout of the refined vertex data. The values are shared with
+// OpenSubdiv.java.
+
+enum OsdVertexLayout {
+    kLayoutInterleaved = 0,     // one buffer, position then normal
+    kLayoutSeparate = 1,        // position and normal buffers
+    kLayoutPacked = 2,          // one buffer of OsdPackedVertex
+};
+
+// A refined vertex of the packed layout, 12 bytes instead of 24. The
+// position is quantized within the bounding box of the refined vertices,
+// see OsdMeshWrapper::GetVertexDecodeMatrix. The normal is octahedral
+// encoded. Both are drawn as unnormalized GL_SHORT attributes.
+struct OsdPackedVertex {
+    short position[4];          // x, y, z, unused
+    short normal[2];
+};
+
+static const float kPackedScale = 32767.0f;
+
+static inline short
+_QuantizeUnit(float x)
+{
+    x = std::max(-1.0f, std::min(1.0f, x)) * kPackedScale;
+    return short(x < 0.0f ? x - 0.5f : x + 0.5f);
+}
+
+static inline float
+_SignNotZero(float x)
+{
+    return x < 0.0f ? -1.0f : 1.0f;
+}
+
+// Octahedral encoding : n is projected on the octahedron |x|+|y|+|z| = 1,
+// whose lower half is folded over the upper one, and (x, y) is stored.
+static void
+_EncodeOctahedral(const float *n, short *encoded)
+{
+    float l1 = fabsf(n[0]) + fabsf(n[1]) + fabsf(n[2]);
+    if (l1 == 0.0f) {
+        encoded[0] = encoded[1] = 0;
+        return;
+    }
+    float x = n[0] / l1, y = n[1] / l1;
+    if (n[2] < 0.0f) {
+        float fx = (1.0f - fabsf(y)) * _SignNotZero(x);
+        float fy = (1.0f - fabsf(x)) * _SignNotZero(y);
+        x = fx;
+        y = fy;
+    }
+    encoded[0] = _QuantizeUnit(x);
+    encoded[1] = _QuantizeUnit(y);
+}
+
+// The inverse of _EncodeOctahedral, as done by the viewer's vertex shader.
+static void
+_DecodeOctahedral(const short *encoded, float *n)
+{
+    float x = encoded[0] / kPackedScale, y = encoded[1] / kPackedScale;
+    float z = 1.0f - fabsf(x) - fabsf(y);
+    if (z < 0.0f) {
+        float fx = (1.0f - fabsf(y)) * _SignNotZero(x);
+        float fy = (1.0f - fabsf(x)) * _SignNotZero(y);
+        x = fx;
+        y = fy;
+    }
+    float length = sqrtf(x*x + y*y + z*z);
+    n[0] = x / length;
+    n[1] = y / length;
+    n[2] = z / length;
+}
+
+// Bounds of the triangles of a chunk in model space, recomputed by every
+// update : a sphere holding them, and a cone holding their normals, see
+// OsdMeshWrapper::CullChunks.
+struct OsdChunkBounds {
+    float center[3];
+    float radius;
+    float axis[3];              // unit, towards the front faces
+    float coneCutoff;           // sine of the cone half angle, 1 if it
+                                // spans a half space or more
+};
+
+static inline const float *
+_DrawVertex(const float *vertices, int stride, const int *drawVertices,
+            int vertex)
+{
+    return vertices + (drawVertices ? drawVertices[vertex] : vertex) * stride;
+}
+
+typedef std::tr1::shared_ptr<class OsdMeshWrapper> OsdMeshWrapperSharedPtr;
+
+class OsdMeshWrapper {
+public:
+    OsdMeshWrapper() :
+        _level(0),
+        _numPoints(0), _numFloatsPerPoint(0),
+        _layout(kLayoutInterleaved),
+        _vertexBuffer(0), _normalBuffer(0), _tessBuffer(0),
+        _computeContext(0),
+        _coarseValid(false),
+        _morphed(false),
+        _backend(kBackendCpu),
+        _refiner(OsdMeshRefiner::Create(kBackendCpu, 1)),
+        _uploadPending(false),
+        _bufferRingDepth(1) {
+        for (int k=0; k<3; ++k) {
+            _decodeScale[k] = 1.0f;
+            _decodeOffset[k] = 0.0f;
+        }
+    }
+    ~OsdMeshWrapper();
+
+    // Adaptive meshes draw their tessellated vertices, interleaved, uniform
+    // meshes their draw vertices, gathered from the refined ones in the
+    // order of their chunks. Uploads the vertex buffers after an update,
+    // which is recorded in the frame record of the update. With a buffer
+    // ring, returns the buffer of the last update and the next update is
+    // uploaded to another one.
+    GLuint GetVertexBufferId();
+
+    // Returns 0 with the interleaved and packed layouts and for adaptive
+    // meshes.
+    GLuint GetNormalBufferId();
+
+    // Uploads the vertex buffers of a pending update now rather than in
+    // GetVertexBufferId. Must be called on the GL thread.
+    void UploadVertexBuffers();
+
+    // Column-major matrix taking the positions of the packed layout to
+    // model space, to be appended to the model-view matrix. Identity with
+    // the other layouts.
+    void GetVertexDecodeMatrix(float *matrix) const;
+
+    // Copies the positions and normals of the draw vertices, decoded with
+    // the packed layout, 3 floats each. For tests, uniform meshes only.
+    void ReadDrawVertices(float *positions, float *normals);
+
+    // Culls the chunks of the last update whose bounding sphere is out of
+    // the frustum of the column-major mvp matrix and, on closed surfaces,
+    // those facing away from eye, in model space. eye may be NULL to keep
+    // back faces. Returns the number of index ranges left to draw, see
+    // GetVisibleRanges.
+    int CullChunks(const float *mvp, const float *eye);
+
+    // The visible ranges of the last CullChunks, 3 ints each : baseVertex,
+    // firstIndex and numIndices. Adjacent chunks sharing their baseVertex
+    // are merged.
+    std::vector<int> const & GetVisibleRanges() const {
+        return _visibleRanges;
+    }
+
+    // Number of GL buffers the refined vertices are uploaded to in turn,
+    // 1 to kMaxBufferRingDepth. With 1 every update is uploaded to the
+    // buffer drawn by the previous frame. Must be called on the GL thread.
+    bool SetBufferRingDepth(int depth);
+
+    int GetBufferRingDepth() const {
+        return _bufferRingDepth;
+    }
+
+    static const int kMaxBufferRingDepth = 3;
+
+    GLuint GetTrianglesIndexBufferId() const {
+        return _topology->GetTrianglesIndexBufferId();
+    }
+
+    GLuint GetTrianglesIndexCount() const {
+        return _topology->GetTrianglesIndexCount();
+    }
+
+    GLuint GetHullIndexBufferId() const {
+        return _topology->GetHullIndexBufferId();
+    }
+
+    int GetHullIndexCount() const {
+        return _topology->GetHullIndexCount();
+    }
+
+    int GetHullIndexType() const {
+        return _topology->GetHullIndexSize() == 4 ? GL_UNSIGNED_INT
+                                                  : GL_UNSIGNED_SHORT;
+    }
+
+    int GetNumChunks() const {
+        return (int)_topology->GetChunks().size();
+    }
+
+    // scheme is kSchemeCatmark or kSchemeCatmarkAdaptive, see
+    // OsdMeshTopology::FindOrCreate. Returns false if the topology can't
+    // be built.
+    bool CreateCatmarkMesh(
+        OsdMeshScheme scheme, int level, int tessLevel,
+        int numPoints, int numFloatsPerPoint,
+        int nvertsSize, const jint *nverts,
+        int vertsSize, const jint *verts);
+
+    // Creates a new instance of an existing topology. Only the vertex
+    // buffer is allocated, the subdivision tables and triangles index
+    // buffer are shared.
+    void CreateInstance(OsdMeshTopologySharedPtr const & topology);
+
+    OsdMeshTopologySharedPtr const & GetTopology() const {
+        return _topology;
+    }
+
+    int GetNumPoints() const {
+        return _numPoints;
+    }
+
+    int GetNumFloatsPerPoint() const {
+        return _numFloatsPerPoint;
+    }
+
+    // Updates the cage points and refines. If movedPoints is not NULL, only
+    // the normals affected by those numMovedPoints points are recomputed.
+    // copyNanos is the time taken to get the points from Java, for the
+    // frame record of the update.
+    void UpdatePoints(int level, const jfloat *points,
+                      const jint *movedPoints = NULL, int numMovedPoints = 0,
+                      jlong copyNanos = 0);
+
+    // Registers the rest points, with _numFloatsPerPoint floats per point,
+    // and the bone influences that UpdateSkinnedPoints skins the cage
+    // with, see OsdSkin::Set. The floats after the position of each point
+    // are passed on as they are.
+    void SetSkin(const jfloat *restPoints, int numInfluences,
+                 const jint *boneIndices, const jfloat *weights, int numBones);
+
+    bool HasSkin() const {
+        return not _skin.IsEmpty();
+    }
+
+    int GetNumBones() const {
+        return _skin.GetNumBones();
+    }
+
+    // Skins the rest points with the given bone matrices, see
+    // OsdSkin::Apply, and updates the mesh with them. The skinning is
+    // recorded as part of the copy stage of the frame record.
+    void UpdateSkinnedPoints(int level, const jfloat *boneMatrices,
+                             jlong copyNanos = 0);
+
+    // The points of the last UpdateSkinnedPoints.
+    const jfloat * GetSkinnedPoints() const {
+        return _skinnedPoints.empty() ? NULL : &_skinnedPoints[0];
+    }
+
+    // Sets the base points, with _numFloatsPerPoint floats per point, that
+    // UpdateMorphWeights adds the morph targets to, and removes every
+    // target, see OsdMorphTargets.
+    void SetMorphBase(const jfloat *points);
+
+    bool HasMorphBase() const {
+        return not _morphs.IsEmpty();
+    }
+
+    // Returns the index of the new target, see OsdMorphTargets::AddTarget.
+    int AddMorphTarget(int numDeltas, const jint *indices,
+                       const jfloat *deltas);
+
+    int GetNumMorphTargets() const {
+        return _morphs.GetNumTargets();
+    }
+
+    // Morphs the base points with the weights of the first numWeights
+    // targets and updates the mesh with them. After a morphed update, only
+    // the points the targets moved are written and have their normals
+    // recomputed, unless they are too many. The morphing is recorded as
+    // part of the copy stage of the frame record.
+    void UpdateMorphWeights(int level, const jfloat *weights, int numWeights,
+                            jlong copyNanos = 0);
+
+    // Reallocates the vertex buffers for the given layout, the points must
+    // be updated again before drawing. Must be called on the GL thread.
+    // Adaptive meshes only support the interleaved layout. The packed
+    // layout is refined interleaved, then the draw vertices are quantized
+    // into the buffer which is drawn.
+    bool SetVertexLayout(OsdVertexLayout layout);
+
+    OsdVertexLayout GetVertexLayout() const {
+        return _layout;
+    }
+
+    // Returns the limit evaluator of this instance, creating it if needed.
+    // Its refined positions are updated along with the vertex buffers.
+    // Returns an empty pointer for adaptive meshes, which have no limit
+    // tables.
+    OsdLimitEvaluatorSharedPtr GetLimitEvaluator();
+
+    // Switches the backend used by UpdatePoints. Returns false, keeping the
+    // current backend, if the requested one is not available.
+    bool SetComputeBackend(OsdRefineBackend backend, int numThreads);
+
+    OsdRefineBackend GetComputeBackend() const {
+        return _backend;
+    }
+
+    OsdRefineTiming const & GetRefineTiming(OsdRefineBackend backend) const {
+        return _timings[backend];
+    }
+
+    OsdUpdateTiming const & GetUpdateTiming() const {
+        return _updateTiming;
+    }
+
+    // Number of refined vertices, tessellated ones for adaptive meshes.
+    int GetNumRefinedVertices() const {
+        return _tessBuffer ? _tessBuffer->GetNumVertices()
+                           : _vertexBuffer->GetNumVertices();
+    }
+
+    int GetNumDrawVertices() const {
+        return _topology->GetNumDrawVertices();
+    }
+
+    // Records of the last updates, may be called from any thread.
+    OsdFrameStatsRing const & GetFrameStats() const {
+        return _frameStats;
+    }
+
+private:
+    bool allocateVertexBuffers();
+
+    // copies the draw vertices out of the refined vertex buffers, or of
+    // adaptive meshes out of the tessellated ones, into _gathered and
+    // _gatheredNormals
+    void gatherVertices();
+
+    // quantizes the draw vertices into _packed, within their bounding box.
+    // The cage points don't bound them on non-manifold cages.
+    void packVertices();
+
+    // bounds the chunks of the draw vertices of the last update
+    void computeChunkBounds();
+
+#ifndef OSD_HEADLESS
+    // uploads the vertex buffers after an update
+    void uploadVertexBuffers();
+
+    // meshes drawing gathered vertices only draw from the ring, their
+    // vertex buffers hold every refined vertex in refinement order
+    bool usesBufferRing() const {
+        return _bufferRingDepth > 1 or not _topology->IsTessellationDrawn();
+    }
+#endif
+
+    void writeInterleaved(const jfloat *points,
+                          const jint *movedPoints, int numMovedPoints);
+
+    void writeSeparate(const jfloat *points,
+                       const jint *movedPoints, int numMovedPoints);
+
+    int _level;
+    int _numPoints;
+    int _numFloatsPerPoint;
+
+    OsdMeshTopologySharedPtr _topology;
+
+    OsdVertexLayout _layout;
+    OsdMeshVertexBuffer *_vertexBuffer;
+    OsdMeshVertexBuffer *_normalBuffer;
+    OsdSmoothNormals _normals;
+
+    OsdSkin _skin;
+    std::vector<float> _skinnedPoints;
+
+    OsdMorphTargets _morphs;
+
+    // adaptive meshes only : the tessellated patches, position and normal
+    OsdMeshVertexBuffer *_tessBuffer;
+
+    // binds the vertex buffers of this instance to the subdivision tables
+    // of the topology, which it only points to. Instances of a topology
+    // each have theirs so that they refine concurrently, see
+    // _UpdatePointsBatch.
+    OpenSubdiv::OsdCpuComputeContext *_computeContext;
+
+    // the draw vertices of uniform meshes, interleaved or, with the
+    // separate layout, positions and normals, and of adaptive meshes past
+    // 16 bit indices, as in _tessBuffer
+    std::vector<float> _gathered;
+    std::vector<float> _gatheredNormals;
+
+    // packed layout only : the draw vertices, and the transform of their
+    // quantized positions
+    std::vector<OsdPackedVertex> _packed;
+    float _decodeScale[3];
+    float _decodeOffset[3];
+
+    // one per chunk of the topology
+    std::vector<OsdChunkBounds> _chunkBounds;
+
+    // reserved for every chunk, so that culling doesn't allocate
+    std::vector<int> _visibleRanges;
+
+    // true once the vertex buffers hold a full set of coarse points, so
+    // that partial updates only have to write what moved
+    bool _coarseValid;
+
+    // true while the coarse points are those of the last morphed update,
+    // so that the next one only has to write what the targets moved
+    bool _morphed;
+
+    std::tr1::weak_ptr<OsdLimitEvaluator> _limitEvaluator;
+
+    OsdRefineBackend _backend;
+    OsdMeshRefiner *_refiner;
+    OsdRefineTiming _timings[kNumBackends];
+    OsdUpdateTiming _updateTiming;
+
+    OsdFrameStatsRing _frameStats;
+
+    // true from an update until the vertex buffers are uploaded
+    bool _uploadPending;
+
+    int _bufferRingDepth;
+#ifndef OSD_HEADLESS
+    // uniform meshes, and adaptive ones with a depth above 1, upload the
+    // drawn vertex buffer and the normal buffer to these instead of their
+    // own GL buffers
+    OsdGLBufferRing _vertexRing;
+    OsdGLBufferRing _normalRing;
+#endif
+};
+
+OsdMeshWrapper::~OsdMeshWrapper()
+{
+    delete _computeContext;
+    delete _refiner;
+    delete _tessBuffer;
+    delete _normalBuffer;
+    delete _vertexBuffer;
+}
+
+// The refined vertices are gathered and uploaded from the cpu copy of the
+// vertex buffers, and partial updates only rewrite part of it, so it must
+// outlive each upload. GLES can't read a buffer back.
+static OsdMeshVertexBuffer *
+_CreateVertexBuffer(int numElements, int numVertices)
+{
+#ifdef OSD_HEADLESS
+    return OsdMeshVertexBuffer::Create(numElements, numVertices);
+#else
+    return OsdMeshVertexBuffer::Create(numElements, numVertices, true);
+#endif
+}
+
+bool
+OsdMeshWrapper::allocateVertexBuffers()
+{
+    int numVertices = _topology->GetFarMesh()->GetNumVertices(); //XXXdyu
+
+    delete _tessBuffer;
+    delete _normalBuffer;
+    delete _vertexBuffer;
+    _normalBuffer = 0;
+    _tessBuffer = 0;
+
+#ifndef OSD_HEADLESS
+    // reallocated for the new buffers by the next upload
+    _vertexRing.Resize(0, 0);
+    _normalRing.Resize(0, 0);
+#endif
+
+    int numChunks = (int)_topology->GetChunks().size();
+    _chunkBounds.resize(numChunks);
+    _visibleRanges.clear();
+    _visibleRanges.reserve(numChunks*3);
+
+    if (OsdPatchTessellator const *tessellator = _topology->GetTessellator()) {
+        // positions only, the normals come from the patches
+        _vertexBuffer = _CreateVertexBuffer(_numFloatsPerPoint, numVertices);
+        _tessBuffer = _CreateVertexBuffer(6, tessellator->GetNumVertices());
+        _coarseValid = false;
+        if (_topology->IsTessellationDrawn()) {
+            std::vector<float>().swap(_gathered);
+        } else {
+            _gathered.assign(_topology->GetNumDrawVertices()*6, 0.0f);
+        }
+        return _vertexBuffer and _tessBuffer;
+    }
+
+    if (_layout == kLayoutSeparate) {
+        _vertexBuffer = _CreateVertexBuffer(_numFloatsPerPoint, numVertices);
+        _normalBuffer = _CreateVertexBuffer(3, numVertices);
+    } else {
+        _vertexBuffer = _CreateVertexBuffer(_numFloatsPerPoint+3, numVertices);
+    }
+    _coarseValid = false;
+
+    // the tables don't compute every vertex of some non-manifold cages,
+    // leave those at the origin rather than in an unbounded state which
+    // would spoil the quantization of the packed layout
+    if (_vertexBuffer) {
+        memset(_vertexBuffer->BindCpuBuffer(), 0,
+               numVertices*_vertexBuffer->GetNumElements()*sizeof(float));
+    }
+    if (_normalBuffer) {
+        memset(_normalBuffer->BindCpuBuffer(), 0,
+               numVertices*3*sizeof(float));
+    }
+
+    int numDrawVertices = _topology->GetNumDrawVertices();
+    if (_layout == kLayoutPacked) {
+        _packed.resize(numDrawVertices);
+        std::vector<float>().swap(_gathered);
+        std::vector<float>().swap(_gatheredNormals);
+    } else {
+        std::vector<OsdPackedVertex>().swap(_packed);
+        _gathered.assign(numDrawVertices * (_vertexBuffer ?
+                         _vertexBuffer->GetNumElements() : 0), 0.0f);
+        if (_normalBuffer) {
+            _gatheredNormals.assign(numDrawVertices*3, 0.0f);
+        } else {
+            std::vector<float>().swap(_gatheredNormals);
+        }
+    }
+
+#ifndef OSD_HEADLESS
+    // only the cpu copies of the float buffers are used, drop the storage
+    // of their GL buffers
+    OsdMeshVertexBuffer *buffers[2] = { _vertexBuffer, _normalBuffer };
+    GLint prev = 0;
+    glGetIntegerv(GL_ARRAY_BUFFER_BINDING, &prev);
+    for (int i=0; i<2; ++i) {
+        if (buffers[i]) {
+            glBindBuffer(GL_ARRAY_BUFFER, buffers[i]->BindVBO());
+            glBufferData(GL_ARRAY_BUFFER, 0, 0, GL_STATIC_DRAW);
+        }
+    }
+    glBindBuffer(GL_ARRAY_BUFFER, prev);
+#endif
+
+    return _vertexBuffer and (_layout != kLayoutSeparate or _normalBuffer);
+}
+
+OsdLimitEvaluatorSharedPtr
+OsdMeshWrapper::GetLimitEvaluator()
+{
+    if (not _topology->GetLimitTables()) {
+        return OsdLimitEvaluatorSharedPtr();
+    }
+
+    OsdLimitEvaluatorSharedPtr evaluator = _limitEvaluator.lock();
+    if (not evaluator) {
+        evaluator.reset(new OsdLimitEvaluator(
+            _topology->GetLimitTables(), _vertexBuffer->GetNumVertices()));
+        if (_coarseValid) {
+            evaluator->UpdateVertices(_vertexBuffer->BindCpuBuffer(),
+                                      _vertexBuffer->GetNumElements());
+        }
+        _limitEvaluator = evaluator;
+    }
+    return evaluator;
+}
+
+bool
+OsdMeshWrapper::SetVertexLayout(OsdVertexLayout layout)
+{
+    if (layout == _layout) {
+        return true;
+    }
+    if (_topology->GetTessellator()) {
+        return false;
+    }
+
+    _layout = layout;
+    if (not allocateVertexBuffers()) {
+        _layout = kLayoutInterleaved;
+        allocateVertexBuffers();
+        return false;
+    }
+    return true;
+}
+
+bool
+OsdMeshWrapper::SetComputeBackend(OsdRefineBackend backend, int numThreads)
+{
+    // build the stencils now rather than within the first UpdatePoints
+    if (backend == kBackendStencil and not _topology->GetStencilTables()) {
+        return false;
+    }
+
+    OsdMeshRefiner *refiner = OsdMeshRefiner::Create(backend, numThreads);
+    if (not refiner) {
+        return false;
+    }
+
+    delete _refiner;
+    _refiner = refiner;
+    _backend = backend;
+    return true;
+}
+
+bool
+OsdMeshWrapper::CreateCatmarkMesh(
+    OsdMeshScheme scheme, int level, int tessLevel,
+    int numPoints, int numFloatsPerPoint,
+    int nvertsSize, const jint *nverts,
+    int vertsSize, const jint *verts)
+{
+    OsdMeshTopologySharedPtr topology = OsdMeshTopology::FindOrCreate(
+        scheme, level, tessLevel, numPoints, numFloatsPerPoint,
+        nvertsSize, nverts, vertsSize, verts, OsdMeshTags());
+    if (not topology) {
+        return false;
+    }
+
+    CreateInstance(topology);
+    return true;
+}
+
+void
+OsdMeshWrapper::CreateInstance(OsdMeshTopologySharedPtr const & topology)
+{
+    _topology = topology;
+
+    _level = topology->GetLevel();
+    _numPoints = topology->GetNumPoints();
+    _numFloatsPerPoint = topology->GetNumFloatsPerPoint();
+
+    delete _computeContext;
+    _computeContext =
+        OpenSubdiv::OsdCpuComputeContext::Create(topology->GetFarMesh());
+
+    allocateVertexBuffers();
+
+    _topology->BindIndexBuffer();
+}
+
+bool
+OsdMeshWrapper::SetBufferRingDepth(int depth)
+{
+    if (depth < 1 or depth > kMaxBufferRingDepth) {
+        return false;
+    }
+    if (depth != _bufferRingDepth) {
+        _bufferRingDepth = depth;
+#ifndef OSD_HEADLESS
+        _vertexRing.Resize(0, 0);
+        _normalRing.Resize(0, 0);
+#endif
+        // the new buffers hold nothing until uploaded
+        _uploadPending = _coarseValid;
+    }
+    return true;
+}
+
+#ifdef OSD_HEADLESS
+GLuint
+OsdMeshWrapper::GetVertexBufferId()
+{
+    return 0;
+}
+
+GLuint
+OsdMeshWrapper::GetNormalBufferId()
+{
+    return 0;
+}
+
+void
+OsdMeshWrapper::UploadVertexBuffers()
+{
+}
+#else
+void
+OsdMeshWrapper::uploadVertexBuffers()
+{
+    GLsizeiptr size = 0, normalSize = 0;
+    const void *data = 0, *normalData = 0;
+    if (_topology->IsTessellationDrawn()) {
+        size = GLsizeiptr(_tessBuffer->GetNumElements()) *
+               _tessBuffer->GetNumVertices() * sizeof(float);
+        data = _tessBuffer->BindCpuBuffer();
+    } else if (_layout == kLayoutPacked) {
+        size = GLsizeiptr(_packed.size() * sizeof(OsdPackedVertex));
+        data = _packed.empty() ? 0 : &_packed[0];
+    } else {
+        size = GLsizeiptr(_gathered.size() * sizeof(float));
+        data = _gathered.empty() ? 0 : &_gathered[0];
+        normalSize = GLsizeiptr(_gatheredNormals.size() * sizeof(float));
+        normalData = _gatheredNormals.empty() ? 0 : &_gatheredNormals[0];
+    }
+
+    if (usesBufferRing() and _vertexRing.GetDepth() != _bufferRingDepth) {
+        if (not _vertexRing.Resize(_bufferRingDepth, size) or
+            (_normalBuffer and
+             not _normalRing.Resize(_bufferRingDepth, normalSize))) {
+            LOGE("can't allocate %d vertex buffers", _bufferRingDepth);
+            _vertexRing.Resize(0, 0);
+            if (not _topology->IsTessellationDrawn()) {
+                // nothing else to draw
+                _uploadPending = false;
+                return;
+            }
+            // keep uploading to the tessellated buffer's own GL buffer
+            _bufferRingDepth = 1;
+        }
+    }
+
+    // the normal buffer is uploaded along, so that the whole upload is
+    // timed here.
+    jlong start = _GetTimeNanos();
+    if (usesBufferRing()) {
+        _vertexRing.Upload(data);
+        if (_normalBuffer) {
+            _normalRing.Upload(normalData);
+        }
+    } else {
+        _tessBuffer->BindVBO();
+    }
+    jlong end = _GetTimeNanos();
+    _uploadPending = false;
+
+    if (volatile jlong *record = _frameStats.ReopenLast()) {
+        record[kStatUploadTimestamp] = start;
+        record[kStatUploadNanos] = end - start;
+        record[kStatUploadBytes] = size + normalSize;
+        _frameStats.Commit(record);
+    }
+}
+
+void
+OsdMeshWrapper::UploadVertexBuffers()
+{
+    if (_uploadPending) {
+        uploadVertexBuffers();
+    }
+}
+
+GLuint
+OsdMeshWrapper::GetVertexBufferId()
+{
+    if (_uploadPending) {
+        uploadVertexBuffers();
+    }
+    if (usesBufferRing()) {
+        return _vertexRing.GetCurrent();
+    }
+    return _tessBuffer->BindVBO();
+}
+
+GLuint
+OsdMeshWrapper::GetNormalBufferId()
+{
+    if (not _normalBuffer) {
+        return 0;
+    }
+    // uploaded along with the vertex buffer, so that both come from the
+    // same update whichever is asked for first
+    if (_uploadPending) {
+        uploadVertexBuffers();
+    }
+    return _normalRing.GetCurrent();
+}
+#endif
+
+// Writes the coarse points and normals straight into the cpu memory of the
+// vertex buffers. That memory persists between updates, so a partial update
+// only writes the moved points and the normals around them.
+void
+OsdMeshWrapper::writeInterleaved(const jfloat *points,
+                                 const jint *movedPoints, int numMovedPoints)
+{
+    const float *normals = _normals.GetNormals();
+    int stride = _numFloatsPerPoint + 3;
+    float *dst = _vertexBuffer->BindCpuBuffer();
+
+    if (movedPoints) {
+        for (int i=0; i<numMovedPoints; ++i) {
+            int point = movedPoints[i];
+            memcpy(dst + point*stride, points + point*_numFloatsPerPoint,
+                   _numFloatsPerPoint*sizeof(float));
+        }
+        std::vector<int> const & dirtyPoints = _normals.GetDirtyPoints();
+        for (int i=0; i<(int)dirtyPoints.size(); ++i) {
+            int point = dirtyPoints[i];
+            memcpy(dst + point*stride + _numFloatsPerPoint, normals + point*3,
+                   3*sizeof(float));
+        }
+        return;
+    }
+
+    for (int i=0; i<_numPoints; ++i) {
+        for (int j=0; j<_numFloatsPerPoint; ++j) {
+            *dst++ = *points++;
+        }
+        *dst++ = *normals++;
+        *dst++ = *normals++;
+        *dst++ = *normals++;
+    }
+}
+
+void
+OsdMeshWrapper::writeSeparate(const jfloat *points,
+                              const jint *movedPoints, int numMovedPoints)
+{
+    const float *normals = _normals.GetNormals();
+
+    if (not movedPoints) {
+        _vertexBuffer->UpdateData(points, _numPoints);
+        if (_normalBuffer) {
+            _normalBuffer->UpdateData(normals, _numPoints);
+        }
+        return;
+    }
+
+    float *dst = _vertexBuffer->BindCpuBuffer();
+    for (int i=0; i<numMovedPoints; ++i) {
+        int point = movedPoints[i];
+        memcpy(dst + point*_numFloatsPerPoint, points + point*_numFloatsPerPoint,
+               _numFloatsPerPoint*sizeof(float));
+    }
+
+    if (not _normalBuffer) {
+        return;
+    }
+
+    float *dstNormals = _normalBuffer->BindCpuBuffer();
+    std::vector<int> const & dirtyPoints = _normals.GetDirtyPoints();
+    for (int i=0; i<(int)dirtyPoints.size(); ++i) {
+        int point = dirtyPoints[i];
+        memcpy(dstNormals + point*3, normals + point*3, 3*sizeof(float));
+    }
+}
+
+void
+OsdMeshWrapper::gatherVertices()
+{
+    std::vector<int> const & drawVertices = _topology->GetDrawVertices();
+    int numDrawVertices = (int)drawVertices.size();
+
+    OsdMeshVertexBuffer *source = _tessBuffer ? _tessBuffer : _vertexBuffer;
+    int stride = source->GetNumElements();
+    const float *src = source->BindCpuBuffer();
+    for (int i=0; i<numDrawVertices; ++i) {
+        memcpy(&_gathered[i*stride], src + drawVertices[i]*stride,
+               stride*sizeof(float));
+    }
+
+    if (_normalBuffer) {
+        const float *srcNormals = _normalBuffer->BindCpuBuffer();
+        for (int i=0; i<numDrawVertices; ++i) {
+            memcpy(&_gatheredNormals[i*3], srcNormals + drawVertices[i]*3,
+                   3*sizeof(float));
+        }
+    }
+}
+
+void
+OsdMeshWrapper::packVertices()
+{
+    std::vector<int> const & drawVertices = _topology->GetDrawVertices();
+    if (drawVertices.empty()) {
+        return;
+    }
+
+    int stride = _numFloatsPerPoint + 3;
+    const float *vertices = _vertexBuffer->BindCpuBuffer();
+
+    float bmin[3], bmax[3];
+    for (int k=0; k<3; ++k) {
+        bmin[k] = vertices[drawVertices[0]*stride + k];
+        bmax[k] = bmin[k];
+    }
+    for (int i=1; i<(int)_packed.size(); ++i) {
+        const float *p = vertices + drawVertices[i]*stride;
+        for (int k=0; k<3; ++k) {
+            bmin[k] = std::min(bmin[k], p[k]);
+            bmax[k] = std::max(bmax[k], p[k]);
+        }
+    }
+
+    float scale[3];
+    for (int k=0; k<3; ++k) {
+        float halfExtent = 0.5f * (bmax[k] - bmin[k]);
+        if (halfExtent <= 0.0f) {
+            halfExtent = 1.0f;
+        }
+        _decodeOffset[k] = 0.5f * (bmin[k] + bmax[k]);
+        _decodeScale[k] = halfExtent / kPackedScale;
+        scale[k] = 1.0f / halfExtent;
+    }
+
+    OsdPackedVertex *dst = &_packed[0];
+    for (int i=0; i<(int)_packed.size(); ++i, ++dst) {
+        const float *src = vertices + drawVertices[i]*stride;
+        for (int k=0; k<3; ++k) {
+            dst->position[k] = _QuantizeUnit((src[k] - _decodeOffset[k]) *
+                                             scale[k]);
+        }
+        dst->position[3] = 0;
+        _EncodeOctahedral(src + _numFloatsPerPoint, dst->normal);
+    }
+}
+
+// The cone axis is the sum of the vertex normals of the chunk, its half
+// angle the widest angle of a face normal to the axis, degenerate faces
+// aside. The chunk faces away from the eye when
+//
+//     dot(center - eye, axis) >= coneCutoff * |center - eye| + radius
+//
+// which holds for every point of the sphere, see CullChunks.
+void
+OsdMeshWrapper::computeChunkBounds()
+{
+    std::vector<OsdMeshChunk> const & chunks = _topology->GetChunks();
+    std::vector<unsigned short> const & triangles = _topology->GetTriangles();
+
+    const float *positions, *normals;
+    int stride, normalStride;
+    const int *drawVertices = NULL;
+    if (_tessBuffer) {
+        if (not _topology->IsTessellationDrawn()) {
+            drawVertices = &_topology->GetDrawVertices()[0];
+        }
+        positions = _tessBuffer->BindCpuBuffer();
+        stride = normalStride = _tessBuffer->GetNumElements();
+        normals = positions + 3;
+    } else {
+        if (chunks.empty()) {
+            return;
+        }
+        drawVertices = &_topology->GetDrawVertices()[0];
+        positions = _vertexBuffer->BindCpuBuffer();
+        stride = normalStride = _vertexBuffer->GetNumElements();
+        normals = positions + _numFloatsPerPoint;
+        if (_normalBuffer) {
+            normals = _normalBuffer->BindCpuBuffer();
+            normalStride = 3;
+        }
+    }
+
+    // CullChunks only looks at the cones of closed surfaces
+    bool cones = _topology->IsClosed();
+
+    std::vector<int> const & chunkVertices = _topology->GetChunkVertices();
+    for (int c=0; c<(int)chunks.size(); ++c) {
+        OsdMeshChunk const & chunk = chunks[c];
+        OsdChunkBounds & bounds = _chunkBounds[c];
+        const unsigned short *indices = &triangles[chunk.firstIndex];
+
+        // the bounding box and the sum of the vertex normals
+        const int *vertices = &chunkVertices[chunk.firstVertex];
+        float bmin[3], bmax[3];
+        const float *p0 = _DrawVertex(positions, stride, drawVertices,
+                                      vertices[0]);
+        for (int k=0; k<3; ++k) {
+            bmin[k] = bmax[k] = p0[k];
+        }
+        float orientation[3] = { 0.0f, 0.0f, 0.0f };
+        for (int i=0; i<chunk.numVertices; ++i) {
+            const float *p = _DrawVertex(positions, stride, drawVertices,
+                                         vertices[i]);
+            const float *vn = _DrawVertex(normals, normalStride,
+                                          drawVertices, vertices[i]);
+            for (int k=0; k<3; ++k) {
+                bmin[k] = std::min(bmin[k], p[k]);
+                bmax[k] = std::max(bmax[k], p[k]);
+                orientation[k] += vn[k];
+            }
+        }
+
+        float radius2 = 0.0f;
+        for (int k=0; k<3; ++k) {
+            bounds.center[k] = 0.5f * (bmin[k] + bmax[k]);
+            radius2 += 0.25f * (bmax[k] - bmin[k]) * (bmax[k] - bmin[k]);
+        }
+        bounds.radius = sqrtf(radius2);
+
+        float length = sqrtf(orientation[0]*orientation[0] +
+                             orientation[1]*orientation[1] +
+                             orientation[2]*orientation[2]);
+        bounds.coneCutoff = 1.0f;
+        if (length == 0.0f or not cones) {
+            bounds.axis[0] = bounds.axis[1] = 0.0f;
+            bounds.axis[2] = 1.0f;
+            continue;
+        }
+        for (int k=0; k<3; ++k) {
+            bounds.axis[k] = orientation[k] / length;
+        }
+
+        // cos of the widest angle, compared as dot >= minDot * |n| to
+        // leave the square root out of the loop until a face is wider.
+        // The first face tells which way the winding turns : were it the
+        // wrong way, every face would be wider than 90 degrees and the
+        // chunk never culled.
+        float minDot = 1.0f;
+        float sign = 0.0f;
+        for (int i=0; i<chunk.numIndices and minDot > 0.0f; i+=3) {
+            float n[3];
+            _Cross(n, _DrawVertex(positions, stride, drawVertices,
+                                  chunk.baseVertex + indices[i]),
+                   _DrawVertex(positions, stride, drawVertices,
+                               chunk.baseVertex + indices[i+1]),
+                   _DrawVertex(positions, stride, drawVertices,
+                               chunk.baseVertex + indices[i+2]));
+            float l2 = n[0]*n[0] + n[1]*n[1] + n[2]*n[2];
+            if (l2 == 0.0f) {
+                continue;
+            }
+            float dot = n[0]*bounds.axis[0] + n[1]*bounds.axis[1] +
+                        n[2]*bounds.axis[2];
+            if (sign == 0.0f) {
+                sign = dot < 0.0f ? -1.0f : 1.0f;
+            }
+            dot *= sign;
+            if (dot < 0.0f or dot*dot < minDot*minDot*l2) {
+                minDot = dot / sqrtf(l2);
+            }
+        }
+        if (minDot > 0.0f) {
+            bounds.coneCutoff = sqrtf(std::max(0.0f, 1.0f - minDot*minDot));
+        }
+    }
+}
+
+int
+OsdMeshWrapper::CullChunks(const float *mvp, const float *eye)
+{
+    // the clip planes w+x, w-x, w+y, w-y, w+z and w-z, from the rows of
+    // the column-major matrix, and the lengths of their normals
+    float planes[6][4], lengths[6];
+    for (int i=0; i<3; ++i) {
+        for (int k=0; k<4; ++k) {
+            planes[i*2  ][k] = mvp[k*4+3] + mvp[k*4+i];
+            planes[i*2+1][k] = mvp[k*4+3] - mvp[k*4+i];
+        }
+    }
+    for (int i=0; i<6; ++i) {
+        lengths[i] = sqrtf(planes[i][0]*planes[i][0] +
+                           planes[i][1]*planes[i][1] +
+                           planes[i][2]*planes[i][2]);
+    }
+
+    // back faces of open surfaces may be seen
+    if (not _topology->IsClosed()) {
+        eye = NULL;
+    }
+
+    std::vector<OsdMeshChunk> const & chunks = _topology->GetChunks();
+    _visibleRanges.clear();
+    for (int c=0; c<(int)chunks.size(); ++c) {
+        OsdChunkBounds const & bounds = _chunkBounds[c];
+        const float *center = bounds.center;
+
+        bool visible = true;
+        for (int i=0; visible and i<6; ++i) {
+            visible = planes[i][0]*center[0] + planes[i][1]*center[1] +
+                      planes[i][2]*center[2] + planes[i][3] >=
+                      -bounds.radius * lengths[i];
+        }
+        if (visible and eye and bounds.coneCutoff < 1.0f) {
+            float d[3] = { center[0] - eye[0], center[1] - eye[1],
+                           center[2] - eye[2] };
+            float distance = sqrtf(d[0]*d[0] + d[1]*d[1] + d[2]*d[2]);
+            visible = d[0]*bounds.axis[0] + d[1]*bounds.axis[1] +
+                      d[2]*bounds.axis[2] <
+                      bounds.coneCutoff * distance + bounds.radius;
+        }
+        if (not visible) {
+            continue;
+        }
+
+        OsdMeshChunk const & chunk = chunks[c];
+        int numRanges = (int)_visibleRanges.size() / 3;
+        if (numRanges > 0) {
+            int *last = &_visibleRanges[(numRanges-1)*3];
+            if (last[0] == chunk.baseVertex and
+                last[1] + last[2] == chunk.firstIndex) {
+                last[2] += chunk.numIndices;
+                continue;
+            }
+        }
+        _visibleRanges.push_back(chunk.baseVertex);
+        _visibleRanges.push_back(chunk.firstIndex);
+        _visibleRanges.push_back(chunk.numIndices);
+    }
+    return (int)_visibleRanges.size() / 3;
+}
+
+void
+OsdMeshWrapper::GetVertexDecodeMatrix(float *matrix) const
+{
+    for (int i=0; i<16; ++i) {
+        matrix[i] = (i % 5 == 0) ? 1.0f : 0.0f;
+    }
+    if (_layout != kLayoutPacked) {
+        return;
+    }
+    for (int k=0; k<3; ++k) {
+        matrix[k*5] = _decodeScale[k];
+        matrix[12+k] = _decodeOffset[k];
+    }
+}
+
+void
+OsdMeshWrapper::ReadDrawVertices(float *positions, float *normals)
+{
+    int numVertices = _topology->GetNumDrawVertices();
+
+    if (_layout == kLayoutPacked) {
+        for (int i=0; i<numVertices; ++i) {
+            OsdPackedVertex const & v = _packed[i];
+            for (int k=0; k<3; ++k) {
+                positions[i*3+k] = _decodeOffset[k] +
+                                   _decodeScale[k] * v.position[k];
+            }
+            _DecodeOctahedral(v.normal, normals + i*3);
+        }
+        return;
+    }
+
+    int stride = _vertexBuffer->GetNumElements();
+    const float *srcNormals = numVertices ? &_gathered[_numFloatsPerPoint] : 0;
+    int normalStride = stride;
+    if (_normalBuffer) {
+        srcNormals = numVertices ? &_gatheredNormals[0] : 0;
+        normalStride = 3;
+    }
+    for (int i=0; i<numVertices; ++i) {
+        const float *n = srcNormals + i*normalStride;
+        float length = sqrtf(n[0]*n[0] + n[1]*n[1] + n[2]*n[2]);
+        if (length == 0.0f) {
+            length = 1.0f;
+        }
+        for (int k=0; k<3; ++k) {
+            positions[i*3+k] = _gathered[i*stride+k];
+            normals[i*3+k] = n[k] / length;
+        }
+    }
+}
+
+void
+OsdMeshWrapper::UpdatePoints(int level, const jfloat *points,
+                             const jint *movedPoints, int numMovedPoints,
+                             jlong copyNanos)
+{
+    if (not _coarseValid) {
+        movedPoints = NULL;
+    }
+    _morphed = false;
+
+    OsdPatchTessellator const *tessellator = _topology->GetTessellator();
+
+    jlong start = _GetTimeNanos();
+
+    // adaptive meshes take their normals from the patches instead
+    if (not tessellator) {
+        if (movedPoints) {
+            _normals.ComputeMoved(*_topology, points, movedPoints, numMovedPoints);
+        } else {
+            _normals.ComputeAll(*_topology, points);
+        }
+    }
+    jlong normalsEnd = _GetTimeNanos();
+
+    if (_layout == kLayoutSeparate or tessellator) {
+        writeSeparate(points, movedPoints, numMovedPoints);
+    } else {
+        writeInterleaved(points, movedPoints, numMovedPoints);
+    }
+    _coarseValid = true;
+    jlong writeEnd = _GetTimeNanos();
+
+    _refiner->Refine(*_topology, _computeContext, _vertexBuffer);
+    if (_normalBuffer) {
+        _refiner->Refine(*_topology, _computeContext, _normalBuffer);
+    }
+    jlong refineEnd = _GetTimeNanos();
+
+    if (tessellator) {
+        tessellator->Tessellate(_vertexBuffer->BindCpuBuffer(),
+                                _numFloatsPerPoint,
+                                _tessBuffer->BindCpuBuffer());
+    }
+    jlong tessellateEnd = _GetTimeNanos();
+    jlong elapsed = tessellateEnd - writeEnd;
+
+    // small tessellations are drawn as they are, they have no draw
+    // vertices to gather
+    if (_layout == kLayoutPacked) {
+        packVertices();
+    } else {
+        gatherVertices();
+    }
+    computeChunkBounds();
+    jlong end = _GetTimeNanos();
+
+    _updateTiming.normalsNanos = normalsEnd - start;
+    _updateTiming.writeNanos = writeEnd - normalsEnd;
+    _updateTiming.refineNanos = refineEnd - writeEnd;
+    _updateTiming.tessellateNanos = tessellateEnd - refineEnd;
+    _updateTiming.packNanos = end - tessellateEnd;
+    _updateTiming.skinNanos = 0;
+    _updateTiming.morphNanos = 0;
+
+    volatile jlong *record = _frameStats.Begin();
+    record[kStatTimestamp] = start - copyNanos;
+    record[kStatCopyNanos] = copyNanos;
+    record[kStatNormalsNanos] = _updateTiming.normalsNanos;
+    record[kStatWriteNanos] = _updateTiming.writeNanos;
+    record[kStatRefineNanos] = _updateTiming.refineNanos;
+    record[kStatTessellateNanos] = _updateTiming.tessellateNanos;
+    record[kStatRefinedVertices] = GetNumRefinedVertices();
+    record[kStatTriangles] = _topology->GetNumTriangles();
+    record[kStatPackNanos] = _updateTiming.packNanos;
+    _frameStats.Commit(record);
+    _uploadPending = true;
+
+    if (OsdLimitEvaluatorSharedPtr evaluator = _limitEvaluator.lock()) {
+        evaluator->UpdateVertices(_vertexBuffer->BindCpuBuffer(),
+                                  _vertexBuffer->GetNumElements());
+    }
+
+    OsdRefineTiming & timing = _timings[_backend];
+    ++timing.count;
+    timing.totalNanos += elapsed;
+    timing.lastNanos = elapsed;
+}
+
+void
+OsdMeshWrapper::SetSkin(const jfloat *restPoints, int numInfluences,
+                        const jint *boneIndices, const jfloat *weights,
+                        int numBones)
+{
+    _skin.Set(_numPoints, _numFloatsPerPoint, restPoints,
+              numInfluences, boneIndices, weights, numBones);
+    _skinnedPoints.assign(restPoints,
+                          restPoints + _numPoints*_numFloatsPerPoint);
+}
+
+void
+OsdMeshWrapper::UpdateSkinnedPoints(int level, const jfloat *boneMatrices,
+                                    jlong copyNanos)
+{
+    jlong start = _GetTimeNanos();
+    _skin.Apply(boneMatrices, &_skinnedPoints[0], _numFloatsPerPoint);
+    jlong skinNanos = _GetTimeNanos() - start;
+
+    UpdatePoints(level, &_skinnedPoints[0], NULL, 0, copyNanos + skinNanos);
+    _updateTiming.skinNanos = skinNanos;
+}
+
+void
+OsdMeshWrapper::SetMorphBase(const jfloat *points)
+{
+    _morphs.SetBase(_numPoints, _numFloatsPerPoint, points);
+    _morphed = false;
+}
+
+int
+OsdMeshWrapper::AddMorphTarget(int numDeltas, const jint *indices,
+                               const jfloat *deltas)
+{
+    return _morphs.AddTarget(numDeltas, indices, deltas);
+}
+
+void
+OsdMeshWrapper::UpdateMorphWeights(int level, const jfloat *weights,
+                                   int numWeights, jlong copyNanos)
+{
+    jlong start = _GetTimeNanos();
+    _morphs.Apply(weights, numWeights);
+    jlong morphNanos = _GetTimeNanos() - start;
+
+    // the first morphed update writes every point, and so do those moving
+    // more than a quarter of them : the faces around the moved points
+    // then cover most of the cage, and recomputing every normal is faster
+    std::vector<int> const & moved = _morphs.GetMovedPoints();
+    if (_morphed and (int)moved.size() * 4 <= _numPoints) {
+        static const jint kNoPoints[1] = { 0 };
+        UpdatePoints(level, _morphs.GetPoints(),
+                     moved.empty() ? kNoPoints : &moved[0], (int)moved.size(),
+                     copyNanos + morphNanos);
+    } else {
+        UpdatePoints(level, _morphs.GetPoints(), NULL, 0,
+                     copyNanos + morphNanos);
+    }
+    _updateTiming.morphNanos = morphNanos;
+    _morphed = true;
+}
+
+////////
+// Batched Updates
+////////
+
+// Worker threads, one per processor besides the caller's, which run the
+// tasks of one batch at a time along with the caller. Tasks are handed out
+// one at a time, so that large meshes don't hold up a thread's share of
+// small ones. The threads are started on first use and live as long as
+// the process.
+class OsdWorkerPool {
+public:
+    typedef void (*Task)(void *data, int index);
+
+    static OsdWorkerPool & GetInstance();
+
+    // Including the caller's.
+    int GetNumThreads() const {
+        return (int)_threads.size() + 1;
+    }
+
+    // Runs task(data, i) for every i in [0, numTasks) and returns once they
+    // are all done. Batches from several threads run one after the other.
+    void Run(Task task, void *data, int numTasks);
+
+private:
+    explicit OsdWorkerPool(int numWorkers);
+
+    static void * workerMain(void *pool);
+
+    static void create();
+
+    // runs tasks until there are none left
+    void drain();
+
+    pthread_mutex_t _runMutex;
+
+    pthread_mutex_t _mutex;
+    pthread_cond_t _started;
+    pthread_cond_t _finished;
+    int _batch;             // incremented by every Run
+    int _numRunning;        // workers still in the current batch
+
+    Task _task;
+    void *_data;
+    int _numTasks;
+    volatile int _nextTask;
+
+    std::vector<pthread_t> _threads;
+
+    static pthread_once_t _once;
+    static OsdWorkerPool *_instance;
+};
+
+pthread_once_t OsdWorkerPool::_once = PTHREAD_ONCE_INIT;
+OsdWorkerPool *OsdWorkerPool::_instance = NULL;
+
+OsdWorkerPool &
+OsdWorkerPool::GetInstance()
+{
+    pthread_once(&_once, create);
+    return *_instance;
+}
+
+void
+OsdWorkerPool::create()
+{
+    long numProcessors = sysconf(_SC_NPROCESSORS_ONLN);
+    _instance = new OsdWorkerPool(int(std::max(1L, numProcessors)) - 1);
+}
+
+OsdWorkerPool::OsdWorkerPool(int numWorkers) :
+    _batch(0), _numRunning(0),
+    _task(NULL), _data(NULL), _numTasks(0), _nextTask(0)
+{
+    pthread_mutex_init(&_runMutex, NULL);
+    pthread_mutex_init(&_mutex, NULL);
+    pthread_cond_init(&_started, NULL);
+    pthread_cond_init(&_finished, NULL);
+
+    for (int i=0; i<numWorkers; ++i) {
+        pthread_t thread;
+        if (pthread_create(&thread, NULL, workerMain, this) != 0) {
+            LOGE("started %d of %d update threads", i, numWorkers);
+            break;
+        }
+        pthread_detach(thread);
+        _threads.push_back(thread);
+    }
+}
+
+void *
+OsdWorkerPool::workerMain(void *data)
+{
+    OsdWorkerPool *pool = static_cast<OsdWorkerPool *>(data);
+
+    int batch = 0;
+    for (;;) {
+        {
+            ScopedLock lock(&pool->_mutex);
+            while (pool->_batch == batch) {
+                pthread_cond_wait(&pool->_started, &pool->_mutex);
+            }
+            batch = pool->_batch;
+        }
+
+        pool->drain();
+
+        ScopedLock lock(&pool->_mutex);
+        if (--pool->_numRunning == 0) {
+            pthread_cond_signal(&pool->_finished);
+        }
+    }
+    return NULL;
+}
+
+void
+OsdWorkerPool::drain()
+{
+    for (;;) {
+        int index = __sync_fetch_and_add(&_nextTask, 1);
+        if (index >= _numTasks) {
+            return;
+        }
+        _task(_data, index);
+    }
+}
+
+void
+OsdWorkerPool::Run(Task task, void *data, int numTasks)
+{
+    ScopedLock run(&_runMutex);
+
+    // a single task isn't worth waking the workers
+    if (_threads.empty() or numTasks <= 1) {
+        for (int i=0; i<numTasks; ++i) {
+            task(data, i);
+        }
+        return;
+    }
+
+    {
+        ScopedLock lock(&_mutex);
+        _task = task;
+        _data = data;
+        _numTasks = numTasks;
+        _nextTask = 0;
+        _numRunning = (int)_threads.size();
+        ++_batch;
+        pthread_cond_broadcast(&_started);
+    }
+
+    drain();
+
+    ScopedLock lock(&_mutex);
+    while (_numRunning > 0) {
+        pthread_cond_wait(&_finished, &_mutex);
+    }
+}
+
+struct OsdBatchUpdate {
+    OsdMeshWrapper * const *wrappers;
+    const jfloat * const *points;
+};
+
+static void
+_UpdateBatchedMesh(void *data, int index)
+{
+    OsdBatchUpdate const *batch = static_cast<OsdBatchUpdate const *>(data);
+    OsdMeshWrapper *wrapper = batch->wrappers[index];
+    wrapper->UpdatePoints(wrapper->GetTopology()->GetLevel(),
+                          batch->points[index]);
+}
+
+// Updates the points of every wrapper, each on the first free thread of the
+// worker pool, then uploads their vertex buffers in one pass on the calling
+// thread, which must be the GL thread if upload is true. The wrappers must
+// be distinct; instances of a topology only share what is read only once
+// the topology is built.
+static void
+_UpdatePointsBatch(OsdMeshWrapper * const *wrappers,
+                   const jfloat * const *points, int numMeshes, bool upload)
+{
+    OsdBatchUpdate batch = { wrappers, points };
+    OsdWorkerPool::GetInstance().Run(_UpdateBatchedMesh, &batch, numMeshes);
+
+    if (upload) {
+        for (int i=0; i<numMeshes; ++i) {
+            wrappers[i]->UploadVertexBuffers();
+        }
+    }
+}
+
+////////
+// Handle Registries
+////////
+
+// Handle ids index directly into the table slots (id = slot + 1, 0 is never
+// a valid handle). Erased slots are pushed on a free list and their ids are
+// recycled by the next Insert.
+
+template <class T>
+class OsdHandleTable {
+public:
+    typedef std::tr1::shared_ptr<T> SharedPtr;
+
+    OsdHandleTable() {
+        pthread_mutex_init(&_mutex, 0);
+    }
+
+    ~OsdHandleTable() {
+        pthread_mutex_destroy(&_mutex);
+    }
+
+    int Insert(SharedPtr const & item) {
+        ScopedLock lock(&_mutex);
+
+        int slot;
+        if (_freeSlots.empty()) {
+            slot = (int)_slots.size();
+            _slots.push_back(item);
+        } else {
+            slot = _freeSlots.back();
+            _freeSlots.pop_back();
+            _slots[slot] = item;
+        }
+        return slot+1;
+    }
+
+    SharedPtr Get(int handleId) {
+        ScopedLock lock(&_mutex);
+
+        int slot = handleId-1;
+        if (slot < 0 or slot >= (int)_slots.size()) {
+            return SharedPtr();
+        }
+        return _slots[slot];
+    }
+
+    void Erase(int handleId) {
+        SharedPtr item;
+        {
+            ScopedLock lock(&_mutex);
+
+            int slot = handleId-1;
+            if (slot < 0 or slot >= (int)_slots.size() or not _slots[slot]) {
+                return;
+            }
+            item.swap(_slots[slot]);
+            _freeSlots.push_back(slot);
+        }
+        // the item (and its GL objects) is released here, outside of the
+        // lock, unless another thread still holds a reference to it.
+    }
+
+private:
+    pthread_mutex_t _mutex;
+    std::vector<SharedPtr> _slots;
+    std::vector<int> _freeSlots;
+};
+
+static OsdHandleTable<OsdMeshWrapper> meshRegistry;
+
+// Topologies built ahead of their meshes by CreateCatmarkTopology, waiting
+// for the GL thread to instantiate them.
+static OsdHandleTable<OsdMeshTopology> topologyRegistry;
+static OsdHandleTable<OsdLimitEvaluator> limitEvaluatorRegistry;
+
+static
+OsdMeshWrapperSharedPtr
+GetWrapper(int meshHandleId)
+{
+    return meshRegistry.Get(meshHandleId);
+}
+
+// Throws an IllegalArgumentException to the java caller, and returns false,
+// unless numFloats holds every control point of wrapper. The caller must
+// return without calling back into java.
+static bool
+_CheckPointsLength(JNIEnv * env, const char *method,
+                   OsdMeshWrapper *wrapper, jlong numFloats)
+{
+    jlong expected =
+        jlong(wrapper->GetNumPoints()) * wrapper->GetNumFloatsPerPoint();
+    if (numFloats >= expected) {
+        return true;
+    }
+
+    char message[128];
+    snprintf(message, sizeof(message),
+             "%s: %d floats of points for %d expected",
+             method, int(numFloats), int(expected));
+    jclass exceptionClass =
+        env->FindClass("java/lang/IllegalArgumentException");
+    if (exceptionClass) {
+        env->ThrowNew(exceptionClass, message);
+    }
+    return false;
+}
+
+////////
+// JNI Wrapper methods
+////////
+
+extern "C" {
+    JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_SetTopologyCacheDir(
+        JNIEnv * env, jclass, jstring dir);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateCatmarkMesh(
+        JNIEnv * env, jclass,
+        jint level, jintArray nvertsArray, jintArray vertsArray,
+        jint numFloatsPerPoint, jfloatArray pointsArray);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateCatmarkAdaptiveMesh(
+        JNIEnv * env, jclass,
+        jint level, jint tessLevel, jintArray nvertsArray, jintArray vertsArray,
+        jint numFloatsPerPoint, jfloatArray pointsArray);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateMeshInstance(
+        JNIEnv * env, jclass, jint meshHandleId);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateCatmarkTopology(
+        JNIEnv * env, jclass,
+        jint level, jintArray nvertsArray, jintArray vertsArray,
+        jint numFloatsPerPoint, jint numPoints);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateCatmarkAdaptiveTopology(
+        JNIEnv * env, jclass,
+        jint level, jint tessLevel, jintArray nvertsArray, jintArray vertsArray,
+        jint numFloatsPerPoint, jint numPoints);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateCatmarkTaggedTopology(
+        JNIEnv * env, jclass,
+        jint level, jint tessLevel, jintArray nvertsArray, jintArray vertsArray,
+        jint numFloatsPerPoint, jint numPoints,
+        jintArray creasesArray, jfloatArray creaseSharpnessArray,
+        jintArray cornersArray, jfloatArray cornerSharpnessArray,
+        jint interpolateBoundary);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateMeshFromTopology(
+        JNIEnv * env, jclass, jint topologyHandleId);
+
+    JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_DeleteTopology(
+        JNIEnv * env, jclass, jint topologyHandleId);
+
+    JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_DeleteMesh(
+        JNIEnv * env, jclass, jint meshHandleId);
+
+    JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdatePoints(
+        JNIEnv * env, jclass, jint meshHandleId,
+        jint level, jfloatArray pointsArray);
+
+    JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdatePointsPartial(
+        JNIEnv * env, jclass, jint meshHandleId,
+        jint level, jfloatArray pointsArray,
+        jintArray movedPointsArray, jint numMovedPoints);
+
+    JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdatePointsBuffer(
+        JNIEnv * env, jclass, jint meshHandleId,
+        jint level, jobject pointsBuffer, jint position,
+        jintArray movedPointsArray, jint numMovedPoints);
+
+    JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdatePointsBatchBuffer(
+        JNIEnv * env, jclass, jintArray meshHandleIdsArray, jint numMeshes,
+        jobject pointsBuffer, jint position, jintArray offsetsArray);
+
+    JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_SetSkin(
+        JNIEnv * env, jclass, jint meshHandleId, jfloatArray restPointsArray,
+        jint numInfluences, jintArray boneIndicesArray, jfloatArray weightsArray,
+        jint numBones);
+
+    JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdateSkinnedPoints(
+        JNIEnv * env, jclass, jint meshHandleId,
+        jint level, jfloatArray boneMatricesArray);
+
+    JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetSkinnedPoints(
+        JNIEnv * env, jclass, jint meshHandleId, jfloatArray pointsArray);
+
+    JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_SetMorphBase(
+        JNIEnv * env, jclass, jint meshHandleId, jfloatArray pointsArray);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_AddMorphTarget(
+        JNIEnv * env, jclass, jint meshHandleId,
+        jintArray indicesArray, jfloatArray deltasArray, jint numDeltas);
+
+    JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdateMorphWeights(
+        JNIEnv * env, jclass, jint meshHandleId,
+        jint level, jfloatArray weightsArray, jint numWeights);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateLimitEvaluator(
+        JNIEnv * env, jclass, jint meshHandleId);
+
+    JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_DeleteLimitEvaluator(
+        JNIEnv * env, jclass, jint evaluatorHandleId);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetLimitFaceCount(
+        JNIEnv * env, jclass, jint evaluatorHandleId);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_EvaluateLimitBuffer(
+        JNIEnv * env, jclass, jint evaluatorHandleId, jint numQueries,
+        jintArray facesArray, jfloatArray uvsArray, jobject resultsBuffer,
+        jint position);
+
+    JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_SetVertexLayout(
+        JNIEnv * env, jclass cls, jint meshHandleId, jint layout);
+
+    JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_SetVertexBufferRingDepth(
+        JNIEnv * env, jclass cls, jint meshHandleId, jint depth);
+
+    JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetVertexDecodeMatrix(
+        JNIEnv * env, jclass cls, jint meshHandleId, jfloatArray matrix);
+
+    JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_SetComputeBackend(
+        JNIEnv * env, jclass cls, jint meshHandleId, jint backend, jint numThreads);
+
+    JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetRefineTiming(
+        JNIEnv * env, jclass cls, jint meshHandleId, jint backend, jlongArray timing);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetFrameStatsBuffer(
+        JNIEnv * env, jclass, jint meshHandleId, jobject statsBuffer,
+        jint position);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetVertexBufferId(
+        JNIEnv * env, jclass, jint meshHandleId);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetNormalBufferId(
+        JNIEnv * env, jclass, jint meshHandleId);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetTrianglesIndexBufferId(
+        JNIEnv * env, jclass, jint meshHandleId);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetTrianglesIndexCount(
+        JNIEnv * env, jclass, jint meshHandleId);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetHullIndexBufferId(
+        JNIEnv * env, jclass, jint meshHandleId, jintArray countAndTypeArray);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetNumChunks(
+        JNIEnv * env, jclass, jint meshHandleId);
+
+    JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetVisibleChunks(
+        JNIEnv * env, jclass, jint meshHandleId,
+        jfloatArray mvpArray, jfloatArray eyeArray, jintArray rangesArray);
+};
+
+JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_SetTopologyCacheDir(
+    JNIEnv * env, jclass, jstring dir)
+{
+    if (not dir) {
+        OsdMeshTopology::SetCacheDirectory(std::string());
+        return;
+    }
+
+    const char *path = env->GetStringUTFChars(dir, 0);
+    OsdMeshTopology::SetCacheDirectory(path);
+    env->ReleaseStringUTFChars(dir, path);
+}
+
+// Shared by the uniform and adaptive mesh creation entry points. Returns 0
+// if the topology can't be built.
+static jint
+_CreateCatmarkMesh(JNIEnv * env, OsdMeshScheme scheme,
+                   jint level, jint tessLevel,
+                   jintArray nvertsArray, jintArray vertsArray,
+                   jint numFloatsPerPoint, jfloatArray pointsArray)
+{
+    int nvertsSize = env->GetArrayLength(nvertsArray);
+    jint *nverts = env->GetIntArrayElements(nvertsArray, 0);
+
+    int vertsSize = env->GetArrayLength(vertsArray);
+    jint *verts = env->GetIntArrayElements(vertsArray, 0);
+
+    int pointsSize = env->GetArrayLength(pointsArray);
+    int numPoints = pointsSize / numFloatsPerPoint;
+
+    OsdMeshWrapperSharedPtr wrapper(new OsdMeshWrapper());
+    bool created = wrapper->CreateCatmarkMesh(scheme, level, tessLevel,
+                      numPoints, numFloatsPerPoint,
+                      nvertsSize, nverts, vertsSize, verts);
+
+    // topology is only read, don't copy it back to the java arrays
+    env->ReleaseIntArrayElements(nvertsArray, nverts, JNI_ABORT);
+    env->ReleaseIntArrayElements(vertsArray, verts, JNI_ABORT);
+
+    if (not created) {
+        LOGE("CreateCatmarkMesh: failed to create level %d mesh", level);
+        return 0;
+    }
+
+    return jint(meshRegistry.Insert(wrapper));
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateCatmarkMesh(
+    JNIEnv * env, jclass,
+    jint level, jintArray nvertsArray, jintArray vertsArray,
+    jint numFloatsPerPoint, jfloatArray pointsArray)
+{
+    return _CreateCatmarkMesh(env, kSchemeCatmark, level, 0,
+                              nvertsArray, vertsArray,
+                              numFloatsPerPoint, pointsArray);
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateCatmarkAdaptiveMesh(
+    JNIEnv * env, jclass,
+    jint level, jint tessLevel, jintArray nvertsArray, jintArray vertsArray,
+    jint numFloatsPerPoint, jfloatArray pointsArray)
+{
+    return _CreateCatmarkMesh(env, kSchemeCatmarkAdaptive, level, tessLevel,
+                              nvertsArray, vertsArray,
+                              numFloatsPerPoint, pointsArray);
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateMeshInstance(
+    JNIEnv * env, jclass, jint meshHandleId)
+{
+    OsdMeshWrapperSharedPtr source = GetWrapper(meshHandleId);
+    if (not source) {
+        LOGE("CreateMeshInstance: invalid mesh handle %d", meshHandleId);
+        return 0;
+    }
+
+    OsdMeshWrapperSharedPtr wrapper(new OsdMeshWrapper());
+    wrapper->CreateInstance(source->GetTopology());
+
+    return jint(meshRegistry.Insert(wrapper));
+}
+
+static jint
+_CreateCatmarkTopology(JNIEnv * env, OsdMeshScheme scheme,
+                       jint level, jint tessLevel,
+                       jintArray nvertsArray, jintArray vertsArray,
+                       jint numFloatsPerPoint, jint numPoints,
+                       OsdMeshTags const & tags)
+{
+    int nvertsSize = env->GetArrayLength(nvertsArray);
+    jint *nverts = env->GetIntArrayElements(nvertsArray, 0);
+
+    int vertsSize = env->GetArrayLength(vertsArray);
+    jint *verts = env->GetIntArrayElements(vertsArray, 0);
+
+    OsdMeshTopologySharedPtr topology = OsdMeshTopology::FindOrCreate(
+        scheme, level, tessLevel, numPoints, numFloatsPerPoint,
+        nvertsSize, nverts, vertsSize, verts, tags);
+
+    env->ReleaseIntArrayElements(nvertsArray, nverts, JNI_ABORT);
+    env->ReleaseIntArrayElements(vertsArray, verts, JNI_ABORT);
+
+    if (not topology) {
+        LOGE("CreateCatmarkTopology: failed to create level %d topology", level);
+        return 0;
+    }
+
+    return jint(topologyRegistry.Insert(topology));
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateCatmarkTopology(
+    JNIEnv * env, jclass,
+    jint level, jintArray nvertsArray, jintArray vertsArray,
+    jint numFloatsPerPoint, jint numPoints)
+{
+    return _CreateCatmarkTopology(env, kSchemeCatmark, level, 0,
+                                  nvertsArray, vertsArray,
+                                  numFloatsPerPoint, numPoints,
+                                  OsdMeshTags());
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateCatmarkAdaptiveTopology(
+    JNIEnv * env, jclass,
+    jint level, jint tessLevel, jintArray nvertsArray, jintArray vertsArray,
+    jint numFloatsPerPoint, jint numPoints)
+{
+    return _CreateCatmarkTopology(env, kSchemeCatmarkAdaptive, level, tessLevel,
+                                  nvertsArray, vertsArray,
+                                  numFloatsPerPoint, numPoints,
+                                  OsdMeshTags());
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateCatmarkTaggedTopology(
+    JNIEnv * env, jclass,
+    jint level, jint tessLevel, jintArray nvertsArray, jintArray vertsArray,
+    jint numFloatsPerPoint, jint numPoints,
+    jintArray creasesArray, jfloatArray creaseSharpnessArray,
+    jintArray cornersArray, jfloatArray cornerSharpnessArray,
+    jint interpolateBoundary)
+{
+    OsdMeshTags tags;
+    tags.creases.resize(env->GetArrayLength(creasesArray));
+    tags.creaseSharpness.resize(env->GetArrayLength(creaseSharpnessArray));
+    tags.corners.resize(env->GetArrayLength(cornersArray));
+    tags.cornerSharpness.resize(env->GetArrayLength(cornerSharpnessArray));
+    tags.interpolateBoundary = interpolateBoundary;
+
+    if (tags.creases.size() != tags.creaseSharpness.size()*2 or
+        tags.corners.size() != tags.cornerSharpness.size()) {
+        LOGE("CreateCatmarkTaggedTopology: mismatched tag arrays");
+        return 0;
+    }
+
+    if (not tags.creases.empty()) {
+        env->GetIntArrayRegion(creasesArray, 0, (jsize)tags.creases.size(),
+                               &tags.creases[0]);
+        env->GetFloatArrayRegion(creaseSharpnessArray, 0,
+                                 (jsize)tags.creaseSharpness.size(),
+                                 &tags.creaseSharpness[0]);
+    }
+    if (not tags.corners.empty()) {
+        env->GetIntArrayRegion(cornersArray, 0, (jsize)tags.corners.size(),
+                               &tags.corners[0]);
+        env->GetFloatArrayRegion(cornerSharpnessArray, 0,
+                                 (jsize)tags.cornerSharpness.size(),
+                                 &tags.cornerSharpness[0]);
+    }
+
+    return _CreateCatmarkTopology(env, tessLevel > 0 ?
+                                      kSchemeCatmarkAdaptive : kSchemeCatmark,
+                                  level, tessLevel, nvertsArray, vertsArray,
+                                  numFloatsPerPoint, numPoints, tags);
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateMeshFromTopology(
+    JNIEnv * env, jclass, jint topologyHandleId)
+{
+    OsdMeshTopologySharedPtr topology = topologyRegistry.Get(topologyHandleId);
+    if (not topology) {
+        LOGE("CreateMeshFromTopology: invalid topology handle %d", topologyHandleId);
+        return 0;
+    }
+
+    OsdMeshWrapperSharedPtr wrapper(new OsdMeshWrapper());
+    wrapper->CreateInstance(topology);
+
+    return jint(meshRegistry.Insert(wrapper));
+}
+
+JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_DeleteTopology(
+    JNIEnv * env, jclass, jint topologyHandleId)
+{
+    topologyRegistry.Erase(topologyHandleId);
+}
+
+JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdatePoints(
+    JNIEnv * env, jclass, jint meshHandleId,
+    jint level, jfloatArray pointsArray)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper) {
+        LOGE("UpdatePoints: invalid mesh handle %d", meshHandleId);
+        return;
+    }
+    if (not _CheckPointsLength(env, "UpdatePoints", wrapper.get(),
+                               env->GetArrayLength(pointsArray))) {
+        return;
+    }
+
+    jlong start = _GetTimeNanos();
+    jfloat *points = env->GetFloatArrayElements(pointsArray, 0);
+    jlong copyNanos = _GetTimeNanos() - start;
+
+    wrapper->UpdatePoints(level, points, NULL, 0, copyNanos);
+
+    // points are only read, don't copy them back to the java array
+    env->ReleaseFloatArrayElements(pointsArray, points, JNI_ABORT);
+}
+
+// Updates wrapper with either all points (movedPointsArray is null) or the
+// first numMovedPoints indices of movedPointsArray.
+static void
+_UpdatePoints(JNIEnv * env, OsdMeshWrapper *wrapper, jint level,
+              const jfloat *points,
+              jintArray movedPointsArray, jint numMovedPoints,
+              jlong copyNanos)
+{
+    if (not movedPointsArray) {
+        wrapper->UpdatePoints(level, points, NULL, 0, copyNanos);
+        return;
+    }
+
+    if (numMovedPoints < 0 or
+        numMovedPoints > env->GetArrayLength(movedPointsArray)) {
+        LOGE("UpdatePoints: invalid number of moved points %d", numMovedPoints);
+        return;
+    }
+
+    jint *movedPoints = env->GetIntArrayElements(movedPointsArray, 0);
+
+    bool valid = true;
+    for (int i=0; i<numMovedPoints; ++i) {
+        if (movedPoints[i] < 0 or movedPoints[i] >= wrapper->GetNumPoints()) {
+            LOGE("UpdatePoints: invalid moved point %d", movedPoints[i]);
+            valid = false;
+            break;
+        }
+    }
+    if (valid) {
+        wrapper->UpdatePoints(level, points, movedPoints, numMovedPoints,
+                              copyNanos);
+    }
+
+    env->ReleaseIntArrayElements(movedPointsArray, movedPoints, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdatePointsPartial(
+    JNIEnv * env, jclass, jint meshHandleId,
+    jint level, jfloatArray pointsArray,
+    jintArray movedPointsArray, jint numMovedPoints)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper) {
+        LOGE("UpdatePoints: invalid mesh handle %d", meshHandleId);
+        return;
+    }
+    if (not _CheckPointsLength(env, "UpdatePointsPartial", wrapper.get(),
+                               env->GetArrayLength(pointsArray))) {
+        return;
+    }
+
+    jlong start = _GetTimeNanos();
+    jfloat *points = env->GetFloatArrayElements(pointsArray, 0);
+    jlong copyNanos = _GetTimeNanos() - start;
+
+    _UpdatePoints(env, wrapper.get(), level, points,
+                  movedPointsArray, numMovedPoints, copyNanos);
+
+    env->ReleaseFloatArrayElements(pointsArray, points, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdatePointsBuffer(
+    JNIEnv * env, jclass, jint meshHandleId,
+    jint level, jobject pointsBuffer, jint position,
+    jintArray movedPointsArray, jint numMovedPoints)
+{
+    // direct buffers are read in place, no copy in either direction
+    const jfloat *points =
+        static_cast<const jfloat *>(env->GetDirectBufferAddress(pointsBuffer));
+    if (not points) {
+        LOGE("UpdatePoints: points buffer is not a direct buffer");
+        return;
+    }
+
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper) {
+        LOGE("UpdatePoints: invalid mesh handle %d", meshHandleId);
+        return;
+    }
+
+    jlong remaining = env->GetDirectBufferCapacity(pointsBuffer) - position;
+    if (not _CheckPointsLength(env, movedPointsArray ? "UpdatePointsPartial"
+                                                     : "UpdatePoints",
+                               wrapper.get(), position < 0 ? 0 : remaining)) {
+        return;
+    }
+
+    _UpdatePoints(env, wrapper.get(), level, points + position,
+                  movedPointsArray, numMovedPoints, 0);
+}
+
+// Must be called on the GL thread, the vertex buffers are uploaded before
+// returning.
+JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdatePointsBatchBuffer(
+    JNIEnv * env, jclass, jintArray meshHandleIdsArray, jint numMeshes,
+    jobject pointsBuffer, jint position, jintArray offsetsArray)
+{
+    const jfloat *points =
+        static_cast<const jfloat *>(env->GetDirectBufferAddress(pointsBuffer));
+    if (not points) {
+        LOGE("UpdatePointsBatch: points buffer is not a direct buffer");
+        return;
+    }
+
+    jlong capacity = env->GetDirectBufferCapacity(pointsBuffer) - position;
+    if (position < 0 or capacity < 0) {
+        LOGE("UpdatePointsBatch: invalid buffer position %d", position);
+        return;
+    }
+    points += position;
+
+    if (numMeshes < 0 or
+        numMeshes > env->GetArrayLength(meshHandleIdsArray) or
+        numMeshes > env->GetArrayLength(offsetsArray)) {
+        LOGE("UpdatePointsBatch: invalid number of meshes %d", numMeshes);
+        return;
+    }
+
+    // the shared pointers keep the meshes alive while they are updated,
+    // even if they are deleted from another thread meanwhile
+    std::vector<OsdMeshWrapperSharedPtr> meshes(numMeshes);
+    std::vector<OsdMeshWrapper *> wrappers(numMeshes);
+    std::vector<const jfloat *> meshPoints(numMeshes);
+
+    jint *meshHandleIds = env->GetIntArrayElements(meshHandleIdsArray, 0);
+    jint *offsets = env->GetIntArrayElements(offsetsArray, 0);
+
+    bool valid = true;
+    for (int i=0; i<numMeshes and valid; ++i) {
+        meshes[i] = GetWrapper(meshHandleIds[i]);
+        if (not meshes[i]) {
+            LOGE("UpdatePointsBatch: invalid mesh handle %d", meshHandleIds[i]);
+            valid = false;
+            break;
+        }
+        wrappers[i] = meshes[i].get();
+
+        jlong numFloats =
+            jlong(wrappers[i]->GetNumPoints()) * wrappers[i]->GetNumFloatsPerPoint();
+        if (offsets[i] < 0 or offsets[i] + numFloats > capacity) {
+            LOGE("UpdatePointsBatch: invalid offset %d of mesh %d "
+                 "(%d floats)", offsets[i], meshHandleIds[i], int(capacity));
+            valid = false;
+            break;
+        }
+        meshPoints[i] = points + offsets[i];
+
+        // a mesh updated by two threads at once would be corrupted
+        for (int j=0; j<i; ++j) {
+            if (wrappers[j] == wrappers[i]) {
+                LOGE("UpdatePointsBatch: mesh %d updated twice",
+                     meshHandleIds[i]);
+                valid = false;
+                break;
+            }
+        }
+    }
+
+    env->ReleaseIntArrayElements(offsetsArray, offsets, JNI_ABORT);
+    env->ReleaseIntArrayElements(meshHandleIdsArray, meshHandleIds, JNI_ABORT);
+
+    if (valid and numMeshes > 0) {
+        _UpdatePointsBatch(&wrappers[0], &meshPoints[0], numMeshes, true);
+    }
+}
+
+JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_SetSkin(
+    JNIEnv * env, jclass, jint meshHandleId, jfloatArray restPointsArray,
+    jint numInfluences, jintArray boneIndicesArray, jfloatArray weightsArray,
+    jint numBones)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper) {
+        LOGE("SetSkin: invalid mesh handle %d", meshHandleId);
+        return false;
+    }
+
+    int numPoints = wrapper->GetNumPoints();
+    if (numInfluences < 1 or numInfluences > OsdSkin::kMaxInfluences or
+        numBones < 1) {
+        LOGE("SetSkin: invalid number of influences %d or bones %d",
+             numInfluences, numBones);
+        return false;
+    }
+    if (env->GetArrayLength(restPointsArray) <
+            numPoints * wrapper->GetNumFloatsPerPoint() or
+        env->GetArrayLength(boneIndicesArray) < numPoints * numInfluences or
+        env->GetArrayLength(weightsArray) < numPoints * numInfluences) {
+        LOGE("SetSkin: arrays too small for %d points", numPoints);
+        return false;
+    }
+
+    jint *boneIndices = env->GetIntArrayElements(boneIndicesArray, 0);
+
+    bool valid = true;
+    for (int i=0; i<numPoints * numInfluences; ++i) {
+        if (boneIndices[i] < 0 or boneIndices[i] >= numBones) {
+            LOGE("SetSkin: invalid bone index %d", boneIndices[i]);
+            valid = false;
+            break;
+        }
+    }
+    if (valid) {
+        jfloat *restPoints = env->GetFloatArrayElements(restPointsArray, 0);
+        jfloat *weights = env->GetFloatArrayElements(weightsArray, 0);
+
+        wrapper->SetSkin(restPoints, numInfluences, boneIndices, weights,
+                         numBones);
+
+        env->ReleaseFloatArrayElements(weightsArray, weights, JNI_ABORT);
+        env->ReleaseFloatArrayElements(restPointsArray, restPoints, JNI_ABORT);
+    }
+
+    env->ReleaseIntArrayElements(boneIndicesArray, boneIndices, JNI_ABORT);
+    return valid;
+}
+
+JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdateSkinnedPoints(
+    JNIEnv * env, jclass, jint meshHandleId,
+    jint level, jfloatArray boneMatricesArray)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper) {
+        LOGE("UpdateSkinnedPoints: invalid mesh handle %d", meshHandleId);
+        return;
+    }
+    if (not wrapper->HasSkin()) {
+        LOGE("UpdateSkinnedPoints: mesh %d has no skin", meshHandleId);
+        return;
+    }
+    if (env->GetArrayLength(boneMatricesArray) < wrapper->GetNumBones() * 16) {
+        LOGE("UpdateSkinnedPoints: %d bone matrices expected",
+             wrapper->GetNumBones());
+        return;
+    }
+
+    // only the bone matrices cross JNI, a few KB
+    jlong start = _GetTimeNanos();
+    jfloat *boneMatrices = env->GetFloatArrayElements(boneMatricesArray, 0);
+    jlong copyNanos = _GetTimeNanos() - start;
+
+    wrapper->UpdateSkinnedPoints(level, boneMatrices, copyNanos);
+
+    env->ReleaseFloatArrayElements(boneMatricesArray, boneMatrices, JNI_ABORT);
+}
+
+JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetSkinnedPoints(
+    JNIEnv * env, jclass, jint meshHandleId, jfloatArray pointsArray)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper or not wrapper->HasSkin()) {
+        return false;
+    }
+
+    int numFloats = wrapper->GetNumPoints() * wrapper->GetNumFloatsPerPoint();
+    if (env->GetArrayLength(pointsArray) < numFloats) {
+        return false;
+    }
+    env->SetFloatArrayRegion(pointsArray, 0, numFloats,
+                             wrapper->GetSkinnedPoints());
+    return true;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_SetMorphBase(
+    JNIEnv * env, jclass, jint meshHandleId, jfloatArray pointsArray)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper) {
+        LOGE("SetMorphBase: invalid mesh handle %d", meshHandleId);
+        return false;
+    }
+    if (env->GetArrayLength(pointsArray) <
+            wrapper->GetNumPoints() * wrapper->GetNumFloatsPerPoint()) {
+        LOGE("SetMorphBase: points array too small for %d points",
+             wrapper->GetNumPoints());
+        return false;
+    }
+
+    jfloat *points = env->GetFloatArrayElements(pointsArray, 0);
+    wrapper->SetMorphBase(points);
+    env->ReleaseFloatArrayElements(pointsArray, points, JNI_ABORT);
+    return true;
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_AddMorphTarget(
+    JNIEnv * env, jclass, jint meshHandleId,
+    jintArray indicesArray, jfloatArray deltasArray, jint numDeltas)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper) {
+        LOGE("AddMorphTarget: invalid mesh handle %d", meshHandleId);
+        return -1;
+    }
+    if (not wrapper->HasMorphBase()) {
+        LOGE("AddMorphTarget: mesh %d has no morph base", meshHandleId);
+        return -1;
+    }
+    if (numDeltas < 0 or
+        numDeltas > env->GetArrayLength(indicesArray) or
+        numDeltas * 3 > env->GetArrayLength(deltasArray)) {
+        LOGE("AddMorphTarget: invalid number of deltas %d", numDeltas);
+        return -1;
+    }
+
+    jint *indices = env->GetIntArrayElements(indicesArray, 0);
+
+    int target = -1;
+    bool valid = true;
+    for (int i=0; i<numDeltas; ++i) {
+        if (indices[i] < 0 or indices[i] >= wrapper->GetNumPoints()) {
+            LOGE("AddMorphTarget: invalid point %d", indices[i]);
+            valid = false;
+            break;
+        }
+    }
+    if (valid) {
+        jfloat *deltas = env->GetFloatArrayElements(deltasArray, 0);
+        target = wrapper->AddMorphTarget(numDeltas, indices, deltas);
+        env->ReleaseFloatArrayElements(deltasArray, deltas, JNI_ABORT);
+    }
+
+    env->ReleaseIntArrayElements(indicesArray, indices, JNI_ABORT);
+    return target;
+}
+
+JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_UpdateMorphWeights(
+    JNIEnv * env, jclass, jint meshHandleId,
+    jint level, jfloatArray weightsArray, jint numWeights)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper) {
+        LOGE("UpdateMorphWeights: invalid mesh handle %d", meshHandleId);
+        return;
+    }
+    if (not wrapper->HasMorphBase()) {
+        LOGE("UpdateMorphWeights: mesh %d has no morph base", meshHandleId);
+        return;
+    }
+    if (numWeights < 0 or numWeights > env->GetArrayLength(weightsArray)) {
+        LOGE("UpdateMorphWeights: invalid number of weights %d", numWeights);
+        return;
+    }
+
+    // only the weights cross JNI
+    jlong start = _GetTimeNanos();
+    jfloat *weights = env->GetFloatArrayElements(weightsArray, 0);
+    jlong copyNanos = _GetTimeNanos() - start;
+
+    wrapper->UpdateMorphWeights(level, weights, numWeights, copyNanos);
+
+    env->ReleaseFloatArrayElements(weightsArray, weights, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_DeleteMesh(
+    JNIEnv * env, jclass, jint meshHandleId)
+{
+    meshRegistry.Erase(meshHandleId);
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_CreateLimitEvaluator(
+    JNIEnv * env, jclass, jint meshHandleId)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper) {
+        LOGE("CreateLimitEvaluator: invalid mesh handle %d", meshHandleId);
+        return 0;
+    }
+    OsdLimitEvaluatorSharedPtr evaluator = wrapper->GetLimitEvaluator();
+    if (not evaluator) {
+        LOGE("CreateLimitEvaluator: mesh %d has no limit tables", meshHandleId);
+        return 0;
+    }
+    return limitEvaluatorRegistry.Insert(evaluator);
+}
+
+JNIEXPORT void JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_DeleteLimitEvaluator(
+    JNIEnv * env, jclass, jint evaluatorHandleId)
+{
+    limitEvaluatorRegistry.Erase(evaluatorHandleId);
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetLimitFaceCount(
+    JNIEnv * env, jclass, jint evaluatorHandleId)
+{
+    OsdLimitEvaluatorSharedPtr evaluator = limitEvaluatorRegistry.Get(evaluatorHandleId);
+    return evaluator ? evaluator->GetNumFaces() : 0;
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_EvaluateLimitBuffer(
+    JNIEnv * env, jclass, jint evaluatorHandleId, jint numQueries,
+    jintArray facesArray, jfloatArray uvsArray, jobject resultsBuffer,
+    jint position)
+{
+    OsdLimitEvaluatorSharedPtr evaluator = limitEvaluatorRegistry.Get(evaluatorHandleId);
+    if (not evaluator) {
+        LOGE("EvaluateLimit: invalid evaluator handle %d", evaluatorHandleId);
+        return 0;
+    }
+
+    jfloat *results =
+        static_cast<jfloat *>(env->GetDirectBufferAddress(resultsBuffer));
+    if (not results) {
+        LOGE("EvaluateLimit: results buffer is not a direct buffer");
+        return 0;
+    }
+    if (numQueries < 0 or position < 0 or
+        env->GetArrayLength(facesArray) < numQueries or
+        env->GetArrayLength(uvsArray) < numQueries*2 or
+        env->GetDirectBufferCapacity(resultsBuffer) - position < jlong(numQueries)*9) {
+        LOGE("EvaluateLimit: arrays too small for %d queries", numQueries);
+        return 0;
+    }
+
+    jint *faces = env->GetIntArrayElements(facesArray, 0);
+    jfloat *uvs = env->GetFloatArrayElements(uvsArray, 0);
+
+    int numEvaluated = evaluator->Evaluate(numQueries, faces, uvs, results + position);
+
+    env->ReleaseFloatArrayElements(uvsArray, uvs, JNI_ABORT);
+    env->ReleaseIntArrayElements(facesArray, faces, JNI_ABORT);
+
+    return numEvaluated;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_SetVertexLayout(
+    JNIEnv * env, jclass, jint meshHandleId, jint layout)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper or
+        (layout != kLayoutInterleaved and layout != kLayoutSeparate and
+         layout != kLayoutPacked)) {
+        return JNI_FALSE;
+    }
+    return wrapper->SetVertexLayout(OsdVertexLayout(layout)) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_SetVertexBufferRingDepth(
+    JNIEnv * env, jclass, jint meshHandleId, jint depth)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper) {
+        return JNI_FALSE;
+    }
+    return wrapper->SetBufferRingDepth(depth) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetVertexDecodeMatrix(
+    JNIEnv * env, jclass, jint meshHandleId, jfloatArray matrixArray)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper or env->GetArrayLength(matrixArray) < 16) {
+        return JNI_FALSE;
+    }
+    float matrix[16];
+    wrapper->GetVertexDecodeMatrix(matrix);
+    env->SetFloatArrayRegion(matrixArray, 0, 16, matrix);
+    return JNI_TRUE;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_SetComputeBackend(
+    JNIEnv * env, jclass, jint meshHandleId, jint backend, jint numThreads)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper or backend < 0 or backend >= kNumBackends) {
+        return JNI_FALSE;
+    }
+    if (not wrapper->SetComputeBackend(OsdRefineBackend(backend), numThreads)) {
+        LOGI("SetComputeBackend: backend %d is not available", backend);
+        return JNI_FALSE;
+    }
+    return JNI_TRUE;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetRefineTiming(
+    JNIEnv * env, jclass, jint meshHandleId, jint backend, jlongArray timing)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper or backend < 0 or backend >= kNumBackends or
+        env->GetArrayLength(timing) < 3) {
+        return JNI_FALSE;
+    }
+
+    OsdRefineTiming const & t = wrapper->GetRefineTiming(OsdRefineBackend(backend));
+    jlong values[3] = { t.count, t.totalNanos, t.lastNanos };
+    env->SetLongArrayRegion(timing, 0, 3, values);
+    return JNI_TRUE;
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetFrameStatsBuffer(
+    JNIEnv * env, jclass, jint meshHandleId, jobject statsBuffer,
+    jint position)
+{
+    jlong *stats = static_cast<jlong *>(env->GetDirectBufferAddress(statsBuffer));
+    if (not stats) {
+        LOGE("GetFrameStats: stats buffer is not a direct buffer");
+        return 0;
+    }
+
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper) {
+        return 0;
+    }
+
+    jlong remaining = env->GetDirectBufferCapacity(statsBuffer) - position;
+    if (position < 0 or remaining < 0) {
+        return 0;
+    }
+    int maxRecords = int(remaining / kNumFrameStats);
+    return wrapper->GetFrameStats().Snapshot(stats + position, maxRecords);
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetVertexBufferId(
+    JNIEnv * env, jclass, jint meshHandleId)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    return wrapper ? jint(wrapper->GetVertexBufferId()) : 0;
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetNormalBufferId(
+    JNIEnv * env, jclass, jint meshHandleId)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    return wrapper ? jint(wrapper->GetNormalBufferId()) : 0;
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetTrianglesIndexBufferId(
     JNIEnv * env, jclass, jint meshHandleId)
 {
     OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
-    return jint(wrapper->GetTrianglesIndexBufferId());
+    return wrapper ? jint(wrapper->GetTrianglesIndexBufferId()) : 0;
 }
 
 JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetTrianglesIndexCount(
     JNIEnv * env, jclass, jint meshHandleId)
 {
     OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
-    return jint(wrapper->GetTrianglesIndexCount());
+    return wrapper ? jint(wrapper->GetTrianglesIndexCount()) : 0;
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetHullIndexBufferId(
+    JNIEnv * env, jclass, jint meshHandleId, jintArray countAndTypeArray)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper or env->GetArrayLength(countAndTypeArray) < 2) {
+        return 0;
+    }
+    jint countAndType[2] = { wrapper->GetHullIndexCount(),
+                             wrapper->GetHullIndexType() };
+    env->SetIntArrayRegion(countAndTypeArray, 0, 2, countAndType);
+    return jint(wrapper->GetHullIndexBufferId());
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetNumChunks(
+    JNIEnv * env, jclass, jint meshHandleId)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    return wrapper ? jint(wrapper->GetNumChunks()) : 0;
+}
+
+JNIEXPORT jint JNICALL Java_com_opensubdiv_OpenSubdivViewer_OpenSubdiv_GetVisibleChunks(
+    JNIEnv * env, jclass, jint meshHandleId,
+    jfloatArray mvpArray, jfloatArray eyeArray, jintArray rangesArray)
+{
+    OsdMeshWrapperSharedPtr wrapper = GetWrapper(meshHandleId);
+    if (not wrapper) {
+        return 0;
+    }
+    if (env->GetArrayLength(mvpArray) < 16 or
+        (eyeArray and env->GetArrayLength(eyeArray) < 3) or
+        env->GetArrayLength(rangesArray) < wrapper->GetNumChunks()*3) {
+        LOGE("GetVisibleChunks: arrays too small for %d chunks",
+             wrapper->GetNumChunks());
+        return 0;
+    }
+
+    float mvp[16], eye[3];
+    env->GetFloatArrayRegion(mvpArray, 0, 16, mvp);
+    if (eyeArray) {
+        env->GetFloatArrayRegion(eyeArray, 0, 3, eye);
+    }
+
+    int numRanges = wrapper->CullChunks(mvp, eyeArray ? eye : NULL);
+    if (numRanges > 0) {
+        env->SetIntArrayRegion(rangesArray, 0, numRanges*3,
+                               &wrapper->GetVisibleRanges()[0]);
+    }
+    return numRanges;
+}
+
+////////
+// Headless Benchmark
+////////
+
+#ifdef OSD_HEADLESS
+
+OsdBenchmarkMesh *
+OsdBenchmarkMesh::Create(OsdBenchmarkCage const & cage,
+                         int level, int tessLevel)
+{
+    OsdMeshTags tags;
+    tags.creases = cage.creases;
+    tags.creaseSharpness = cage.creaseSharpness;
+    tags.corners = cage.corners;
+    tags.cornerSharpness = cage.cornerSharpness;
+    tags.interpolateBoundary = cage.interpolateBoundary;
+
+    OsdMeshTopologySharedPtr topology = OsdMeshTopology::FindOrCreate(
+        tessLevel > 0 ? kSchemeCatmarkAdaptive : kSchemeCatmark,
+        level, tessLevel, (int)cage.points.size() / 3, 3,
+        (int)cage.nverts.size(), &cage.nverts[0],
+        (int)cage.verts.size(), &cage.verts[0], tags);
+    if (not topology) {
+        return NULL;
+    }
+
+    OsdMeshWrapper *wrapper = new OsdMeshWrapper();
+    wrapper->CreateInstance(topology);
+    return new OsdBenchmarkMesh(wrapper);
+}
+
+OsdBenchmarkMesh::~OsdBenchmarkMesh()
+{
+    delete _wrapper;
+}
+
+bool
+OsdBenchmarkMesh::SetComputeBackend(int backend, int numThreads)
+{
+    if (backend < 0 or backend >= kNumBackends) {
+        return false;
+    }
+    return _wrapper->SetComputeBackend(OsdRefineBackend(backend), numThreads);
+}
+
+static void
+_GetStages(OsdUpdateTiming const & timing, OsdBenchmarkStages *stages)
+{
+    stages->normals = timing.normalsNanos;
+    stages->write = timing.writeNanos;
+    stages->refine = timing.refineNanos;
+    stages->tessellate = timing.tessellateNanos;
+    stages->pack = timing.packNanos;
+    stages->skin = timing.skinNanos;
+    stages->morph = timing.morphNanos;
+}
+
+void
+OsdBenchmarkMesh::UpdatePoints(const float *points, OsdBenchmarkStages *stages)
+{
+    _wrapper->UpdatePoints(_wrapper->GetTopology()->GetLevel(), points);
+
+    _GetStages(_wrapper->GetUpdateTiming(), stages);
 }
+
+void
+OsdBenchmarkMesh::SetMorphBase(const float *points)
+{
+    _wrapper->SetMorphBase(points);
+}
+
+int
+OsdBenchmarkMesh::AddMorphTarget(int numDeltas, const int *indices,
+                                 const float *deltas)
+{
+    for (int i=0; i<numDeltas; ++i) {
+        if (indices[i] < 0 or indices[i] >= _wrapper->GetNumPoints()) {
+            return -1;
+        }
+    }
+    return _wrapper->AddMorphTarget(numDeltas, indices, deltas);
+}
+
+void
+OsdBenchmarkMesh::UpdateMorphWeights(const float *weights, int numWeights,
+                                     OsdBenchmarkStages *stages)
+{
+    _wrapper->UpdateMorphWeights(_wrapper->GetTopology()->GetLevel(),
+                                 weights, numWeights);
+    _GetStages(_wrapper->GetUpdateTiming(), stages);
+}
+
+bool
+OsdBenchmarkMesh::SetSkin(const float *restPoints, int numInfluences,
+                          const int *boneIndices, const float *weights,
+                          int numBones)
+{
+    if (numInfluences < 1 or numInfluences > OsdSkin::kMaxInfluences or
+        numBones < 1) {
+        return false;
+    }
+    int numPoints = _wrapper->GetNumPoints();
+    for (int i=0; i<numPoints*numInfluences; ++i) {
+        if (boneIndices[i] < 0 or boneIndices[i] >= numBones) {
+            return false;
+        }
+    }
+    _wrapper->SetSkin(restPoints, numInfluences, boneIndices, weights,
+                      numBones);
+    return true;
+}
+
+void
+OsdBenchmarkMesh::UpdateSkinnedPoints(const float *boneMatrices,
+                                      OsdBenchmarkStages *stages)
+{
+    _wrapper->UpdateSkinnedPoints(_wrapper->GetTopology()->GetLevel(),
+                                  boneMatrices);
+
+    _GetStages(_wrapper->GetUpdateTiming(), stages);
+}
+
+void
+OsdBenchmarkMesh::UpdatePointsBatch(OsdBenchmarkMesh * const *meshes,
+                                    const float * const *points, int numMeshes)
+{
+    std::vector<OsdMeshWrapper *> wrappers(numMeshes);
+    for (int i=0; i<numMeshes; ++i) {
+        wrappers[i] = meshes[i]->_wrapper;
+    }
+    if (numMeshes > 0) {
+        _UpdatePointsBatch(&wrappers[0], points, numMeshes, false);
+    }
+}
+
+int
+OsdBenchmarkMesh::GetNumBatchThreads()
+{
+    return OsdWorkerPool::GetInstance().GetNumThreads();
+}
+
+bool
+OsdBenchmarkMesh::SetVertexLayout(int layout)
+{
+    if (layout != kLayoutInterleaved and layout != kLayoutSeparate and
+        layout != kLayoutPacked) {
+        return false;
+    }
+    return _wrapper->SetVertexLayout(OsdVertexLayout(layout));
+}
+
+void
+OsdBenchmarkMesh::ReadDrawVertices(float *positions, float *normals)
+{
+    _wrapper->ReadDrawVertices(positions, normals);
+}
+
+int
+OsdBenchmarkMesh::GetNumDrawVertices() const
+{
+    return _wrapper->GetNumDrawVertices();
+}
+
+int
+OsdBenchmarkMesh::GetNumChunks() const
+{
+    return _wrapper->GetNumChunks();
+}
+
+int
+OsdBenchmarkMesh::CullChunks(const float *mvp, const float *eye)
+{
+    int numRanges = _wrapper->CullChunks(mvp, eye);
+    std::vector<int> const & ranges = _wrapper->GetVisibleRanges();
+    int numIndices = 0;
+    for (int i=0; i<numRanges; ++i) {
+        numIndices += ranges[i*3+2];
+    }
+    return numIndices / 3;
+}
+
+int
+OsdBenchmarkMesh::GetNumRefinedVertices() const
+{
+    return _wrapper->GetNumRefinedVertices();
+}
+
+int
+OsdBenchmarkMesh::GetNumTriangles() const
+{
+    return _wrapper->GetTopology()->GetNumTriangles();
+}
+
+float
+OsdBenchmarkMesh::GetInputACMR() const
+{
+    return _wrapper->GetTopology()->GetInputACMR();
+}
+
+float
+OsdBenchmarkMesh::GetACMR() const
+{
+    return _wrapper->GetTopology()->GetACMR();
+}
+
+#endif  // OSD_HEADLESS
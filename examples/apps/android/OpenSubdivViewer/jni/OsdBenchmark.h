@@ -0,0 +1,123 @@
+#ifndef OSD_BENCHMARK_H
+#define OSD_BENCHMARK_H
+
+#include <vector>
+
+// Headless entry points into the mesh wrapper of OpenSubdiv.cpp, for the
+// host benchmark in ../benchmark. Only built with OSD_HEADLESS.
+
+class OsdMeshWrapper;
+
+// A control cage and its sharpness tags, see Shape.java.
+struct OsdBenchmarkCage {
+    OsdBenchmarkCage() : interpolateBoundary(0) {}
+
+    std::vector<int> nverts;
+    std::vector<int> verts;
+    std::vector<float> points;          // 3 floats per point
+
+    std::vector<int> creases;           // pairs of point indices
+    std::vector<float> creaseSharpness;
+    std::vector<int> corners;
+    std::vector<float> cornerSharpness;
+    int interpolateBoundary;            // Shape.INTERPOLATE_BOUNDARY_*
+};
+
+// Durations of the stages of one update, in nanoseconds.
+struct OsdBenchmarkStages {
+    long long normals;          // smooth cage normals
+    long long write;            // coarse points and normals to the buffers
+    long long refine;           // Refine() of every vertex buffer
+    long long tessellate;       // patch tessellation, adaptive meshes only
+    long long pack;             // draw vertices and chunk bounds
+    long long skin;             // skinning of the cage, skinned updates only
+    long long morph;            // morph targets, morphed updates only
+};
+
+// A mesh built and updated by the same code as the meshes of
+// OpenSubdiv.java, refining into cpu vertex buffers.
+class OsdBenchmarkMesh {
+public:
+    // Builds the level topology of the cage, adaptive if tessLevel is
+    // greater than 0, and one instance of it. The topology is only shared
+    // with live meshes of the same cage, the disk cache isn't used.
+    // Returns NULL if the topology can't be built.
+    static OsdBenchmarkMesh * Create(OsdBenchmarkCage const & cage,
+                                     int level, int tessLevel);
+
+    ~OsdBenchmarkMesh();
+
+    // backend is one of the OpenSubdiv.COMPUTE_BACKEND_* values. Returns false if
+    // it isn't available.
+    bool SetComputeBackend(int backend, int numThreads);
+
+    // layout is one of the OpenSubdiv.VERTEX_LAYOUT_* values. Returns false
+    // if the mesh doesn't support it.
+    bool SetVertexLayout(int layout);
+
+    // Updates every cage point and refines, see UpdatePoints in
+    // OpenSubdiv.java.
+    void UpdatePoints(const float *points, OsdBenchmarkStages *stages);
+
+    // Registers the skin of UpdateSkinnedPoints, see SetSkin in
+    // OpenSubdiv.java. restPoints has 3 floats per point.
+    bool SetSkin(const float *restPoints, int numInfluences,
+                 const int *boneIndices, const float *weights, int numBones);
+
+    // Skins the cage with a column-major 4x4 matrix per bone and refines,
+    // see UpdateSkinnedPoints in OpenSubdiv.java.
+    void UpdateSkinnedPoints(const float *boneMatrices,
+                             OsdBenchmarkStages *stages);
+
+    // See SetMorphBase, AddMorphTarget and UpdateMorphWeights in
+    // OpenSubdiv.java. points has 3 floats per point. AddMorphTarget
+    // returns -1 if an index is not a cage point.
+    void SetMorphBase(const float *points);
+
+    int AddMorphTarget(int numDeltas, const int *indices, const float *deltas);
+
+    void UpdateMorphWeights(const float *weights, int numWeights,
+                            OsdBenchmarkStages *stages);
+
+    // Updates meshes[i] with points[i] for the first numMeshes meshes, in
+    // parallel on the worker threads of UpdatePointsBatch in
+    // OpenSubdiv.java. The meshes must be distinct.
+    static void UpdatePointsBatch(OsdBenchmarkMesh * const *meshes,
+                                  const float * const *points, int numMeshes);
+
+    // Number of threads updating a batch, the caller's included.
+    static int GetNumBatchThreads();
+
+    int GetNumRefinedVertices() const;
+
+    // Number of vertices drawn, refined vertices gathered per chunk for
+    // uniform meshes.
+    int GetNumDrawVertices() const;
+
+    // Copies the positions and unit normals of the draw vertices of the
+    // last update, 3 floats each, decoded as drawn, for every vertex of
+    // GetNumDrawVertices. Uniform meshes only.
+    void ReadDrawVertices(float *positions, float *normals);
+
+    int GetNumTriangles() const;
+
+    int GetNumChunks() const;
+
+    // Culls the chunks of the last update against the column-major mvp
+    // matrix and, on closed surfaces, the model space eye, see
+    // GetVisibleChunks in OpenSubdiv.java. Returns the number of triangles
+    // left to draw.
+    int CullChunks(const float *mvp, const float *eye);
+
+    // Average vertex cache misses per triangle before and after the
+    // triangles are reordered.
+    float GetInputACMR() const;
+    float GetACMR() const;
+
+private:
+    explicit OsdBenchmarkMesh(OsdMeshWrapper *wrapper) : _wrapper(wrapper) {}
+
+    OsdMeshWrapper *_wrapper;
+};
+
+#endif  // OSD_BENCHMARK_H
@@ -0,0 +1,97 @@
+#ifndef OSD_GL_BUFFER_RING_H
+#define OSD_GL_BUFFER_RING_H
+
+#include <vector>
+
+// Ring of GL buffers the refined vertices of the mesh wrapper in
+// OpenSubdiv.cpp are uploaded to, shared with the host check in
+// regression/osd_regression. The GL header of the platform must be
+// included first.
+//
+// Each upload writes the buffer after the current one, which was drawn
+// depth-1 frames ago, instead of the buffer the GPU may still be reading
+// for the previous frame, which would stall the driver or make it copy the
+// buffer.
+class OsdGLBufferRing {
+public:
+    OsdGLBufferRing() : _size(0), _current(-1) {}
+    ~OsdGLBufferRing() { Resize(0, 0); }
+
+    // Reallocates depth buffers of size bytes, 0 releases them. Must be
+    // called on the GL thread.
+    bool Resize(int depth, GLsizeiptr size);
+
+    int GetDepth() const {
+        return (int)_buffers.size();
+    }
+
+    // Uploads size bytes of data to the next buffer, which becomes the
+    // current one, and returns it.
+    GLuint Upload(const void *data);
+
+    // The buffer written by the last upload, 0 before the first one.
+    GLuint GetCurrent() const {
+        return _current < 0 ? 0 : _buffers[_current];
+    }
+
+    // Index of the current buffer in the ring, -1 before the first upload.
+    int GetCurrentIndex() const {
+        return _current;
+    }
+
+private:
+    std::vector<GLuint> _buffers;
+    GLsizeiptr _size;
+    int _current;
+};
+
+inline bool
+OsdGLBufferRing::Resize(int depth, GLsizeiptr size)
+{
+    if (!_buffers.empty()) {
+        glDeleteBuffers((GLsizei)_buffers.size(), &_buffers[0]);
+        _buffers.clear();
+    }
+    _size = size;
+    _current = -1;
+    if (depth <= 0) {
+        return true;
+    }
+
+    _buffers.resize(depth);
+    glGenBuffers(depth, &_buffers[0]);
+
+    GLint prev = 0;
+    glGetIntegerv(GL_ARRAY_BUFFER_BINDING, &prev);
+    for (int i=0; i<depth; ++i) {
+        glBindBuffer(GL_ARRAY_BUFFER, _buffers[i]);
+        glBufferData(GL_ARRAY_BUFFER, size, 0, GL_DYNAMIC_DRAW);
+    }
+    glBindBuffer(GL_ARRAY_BUFFER, prev);
+
+    if (glGetError() != GL_NO_ERROR) {
+        Resize(0, 0);
+        return false;
+    }
+    return true;
+}
+
+inline GLuint
+OsdGLBufferRing::Upload(const void *data)
+{
+    if (_buffers.empty()) {
+        return 0;
+    }
+    // the first upload goes to buffer 0
+    _current = (_current + 1) % (int)_buffers.size();
+
+    GLint prev = 0;
+    glGetIntegerv(GL_ARRAY_BUFFER_BINDING, &prev);
+    glBindBuffer(GL_ARRAY_BUFFER, _buffers[_current]);
+    glBufferSubData(GL_ARRAY_BUFFER, 0, _size, data);
+    glBindBuffer(GL_ARRAY_BUFFER, prev);
+
+    return _buffers[_current];
+}
+
+#endif  // OSD_GL_BUFFER_RING_H
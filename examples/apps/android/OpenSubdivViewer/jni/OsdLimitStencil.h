@@ -0,0 +1,73 @@
+#ifndef OSD_LIMIT_STENCIL_H
+#define OSD_LIMIT_STENCIL_H
+
+#include <vector>
+
+// Limit position mask of a catmark vertex, used by the limit tables of the
+// viewer's OpenSubdiv.cpp and checked by regression/osd_regression. The hbr
+// headers must be included first.
+//
+// Smooth vertices use (n^2 v + 4 sum(e) + sum(f)) / n(n+5) over their
+// quads, and crease vertices (4 v + e0 + e1) / 6 over their two sharp
+// edges. Boundary vertices which are not corners use the same mask over
+// their two boundary edges, whether or not boundaries are interpolated
+// (they are then tagged as sharp); corners, including the valence 2
+// boundary vertices of k_InterpolateBoundaryEdgeAndCorner, stay in place.
+//
+// Fills vertices and weights with the mask, vertex first.
+template <class T>
+void
+OsdGetLimitStencil(OpenSubdiv::HbrVertex<T> *vertex,
+                   std::vector<OpenSubdiv::HbrVertex<T> *> *vertices,
+                   std::vector<float> *weights)
+{
+    typedef OpenSubdiv::HbrVertex<T> Vertex;
+    typedef OpenSubdiv::HbrHalfedge<T> Halfedge;
+
+    vertices->clear();
+    weights->clear();
+    vertices->push_back(vertex);
+
+    unsigned char mask = vertex->GetMask(false);
+    if (mask >= Vertex::k_Corner) {
+        weights->push_back(1.0f);
+    } else if (mask == Vertex::k_Crease || vertex->OnBoundary()) {
+        weights->push_back(4.0f/6.0f);
+
+        // on a boundary, the incident edge is the first one and the last
+        // boundary edge is the previous edge of the last face
+        bool boundary = vertex->OnBoundary();
+        Halfedge *start = vertex->GetIncidentEdge(), *edge = start;
+        do {
+            if (boundary ? edge->IsBoundary() : edge->IsSharp(false)) {
+                vertices->push_back(edge->GetDestVertex());
+                weights->push_back(1.0f/6.0f);
+            }
+            Halfedge *next = vertex->GetNextEdge(edge);
+            if (!next) {
+                Halfedge *last = edge->GetPrev();
+                if (last->IsBoundary()) {
+                    vertices->push_back(last->GetOrgVertex());
+                    weights->push_back(1.0f/6.0f);
+                }
+            }
+            edge = next;
+        } while (edge && edge != start);
+    } else {
+        float n = (float)vertex->GetValence();
+        float scale = 1.0f / (n*(n+5.0f));
+
+        weights->push_back(n*n*scale);
+
+        Halfedge *start = vertex->GetIncidentEdge(), *edge = start;
+        do {
+            vertices->push_back(edge->GetDestVertex());
+            weights->push_back(4.0f*scale);
+            vertices->push_back(edge->GetNext()->GetDestVertex());
+            weights->push_back(scale);
+            edge = vertex->GetNextEdge(edge);
+        } while (edge && edge != start);
+    }
+}
+
+#endif  // OSD_LIMIT_STENCIL_H
@@ -0,0 +1,235 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+
+/**
+ * Creates OpenSubdiv meshes without blocking the GL thread.
+ *
+ * The Hbr mesh and far subdivision tables are built on a pool of worker
+ * threads. Only the final step, which allocates the vertex buffer and
+ * triangles index buffer and runs the first refinement, is posted to the
+ * GL thread with GLSurfaceView.queueEvent. The returned future completes
+ * once that step has run, and the view is asked to render again.
+ *
+ * Shape files are read on the same worker threads with importShape().
+ */
+public class AsyncMeshFactory {
+
+    private static final String TAG = "AsyncMeshFactory";
+
+    private final GLSurfaceView mView;
+    private final ExecutorService mExecutor;
+
+    public AsyncMeshFactory(GLSurfaceView view) {
+        this(view, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    public AsyncMeshFactory(GLSurfaceView view, int numThreads) {
+        mView = view;
+        mExecutor = Executors.newFixedThreadPool(numThreads);
+    }
+
+    /**
+     * Asynchronous version of MeshHandle.createCatmark, followed by a
+     * first UpdatePoints with the given points. The arrays must not be
+     * modified until the returned future is done.
+     *
+     * Cancelling the future before the mesh is uploaded releases the
+     * refined topology; once done, the caller owns the MeshHandle.
+     */
+    public Future<MeshHandle> createCatmarkMesh(
+            int level, int[] nverts, int[] verts,
+            int numFloatsPerPoint, float[] points) {
+        return createMesh(level, 0,
+                          new Shape(nverts, verts, numFloatsPerPoint, points));
+    }
+
+    /**
+     * Version of createCatmarkMesh for a shape, whose tags are part of the
+     * refined topology.
+     */
+    public Future<MeshHandle> createCatmarkMesh(int level, Shape shape) {
+        return createMesh(level, 0, shape);
+    }
+
+    /**
+     * Asynchronous version of MeshHandle.createCatmarkAdaptive, see
+     * createCatmarkMesh. The patches are tessellated on the worker thread
+     * along with the refined topology.
+     */
+    public Future<MeshHandle> createCatmarkAdaptiveMesh(
+            int level, int tessLevel, int[] nverts, int[] verts,
+            int numFloatsPerPoint, float[] points) {
+        return createMesh(level, tessLevel,
+                          new Shape(nverts, verts, numFloatsPerPoint, points));
+    }
+
+    /**
+     * Version of createCatmarkAdaptiveMesh for a shape, see
+     * createCatmarkMesh.
+     */
+    public Future<MeshHandle> createCatmarkAdaptiveMesh(int level,
+                                                        int tessLevel,
+                                                        Shape shape) {
+        return createMesh(level, tessLevel, shape);
+    }
+
+    /**
+     * Reads a shape file with ShapeImporter on the worker threads. The view
+     * is asked to render again once the shape is read.
+     */
+    public Future<Shape> importShape(final File file) {
+        return mExecutor.submit(new Callable<Shape>() {
+            public Shape call() throws IOException {
+                try {
+                    long start = System.nanoTime();
+                    Shape shape = ShapeImporter.read(file);
+                    Log.d(TAG, "read " + shape.getNumFaces() + " faces from " +
+                               file + " in " +
+                               (System.nanoTime() - start) / 1000000 + " ms");
+                    return shape;
+                } finally {
+                    mView.requestRender();
+                }
+            }
+        });
+    }
+
+    // tessLevel is 0 for uniform meshes
+    private Future<MeshHandle> createMesh(final int level, final int tessLevel,
+                                          final Shape shape) {
+
+        final PendingMesh pending = new PendingMesh(level, shape.points);
+
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                if (pending.isCancelled()) {
+                    return;
+                }
+                try {
+                    pending.setTopology(createTopology(level, tessLevel, shape));
+                } catch (RuntimeException e) {
+                    pending.setError(e);
+                }
+                mView.queueEvent(new Runnable() {
+                    public void run() {
+                        if (pending.isCancelled()) {
+                            pending.releaseTopology();
+                        } else {
+                            pending.run();
+                        }
+                    }
+                });
+            }
+        });
+        return pending;
+    }
+
+    private static int createTopology(int level, int tessLevel, Shape shape) {
+        int numPoints = shape.getNumPoints();
+        if (shape.hasTags()) {
+            return OpenSubdiv.CreateCatmarkTaggedTopology(
+                    level, tessLevel, shape.nverts, shape.verts,
+                    shape.numFloatsPerPoint, numPoints,
+                    shape.creases, shape.creaseSharpness,
+                    shape.corners, shape.cornerSharpness,
+                    shape.interpolateBoundary);
+        }
+        if (tessLevel == 0) {
+            return OpenSubdiv.CreateCatmarkTopology(
+                    level, shape.nverts, shape.verts,
+                    shape.numFloatsPerPoint, numPoints);
+        }
+        return OpenSubdiv.CreateCatmarkAdaptiveTopology(
+                level, tessLevel, shape.nverts, shape.verts,
+                shape.numFloatsPerPoint, numPoints);
+    }
+
+    /**
+     * Stops the worker threads. Pending meshes already being refined
+     * are still delivered.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private class PendingMesh extends FutureTask<MeshHandle> {
+
+        private final MeshCallable mCallable;
+
+        PendingMesh(int level, float[] points) {
+            this(new MeshCallable(level, points));
+        }
+
+        private PendingMesh(MeshCallable callable) {
+            super(callable);
+            mCallable = callable;
+        }
+
+        void setTopology(int topologyHandleId) {
+            mCallable.mTopologyHandleId = topologyHandleId;
+        }
+
+        void setError(RuntimeException error) {
+            mCallable.mError = error;
+        }
+
+        void releaseTopology() {
+            mCallable.releaseTopology();
+        }
+
+        @Override
+        protected void done() {
+            if (!isCancelled()) {
+                mView.requestRender();
+            }
+        }
+    }
+
+    private static class MeshCallable implements Callable<MeshHandle> {
+
+        private final int mLevel;
+        private final float[] mPoints;
+
+        volatile int mTopologyHandleId;
+        volatile RuntimeException mError;
+
+        MeshCallable(int level, float[] points) {
+            mLevel = level;
+            mPoints = points;
+        }
+
+        public MeshHandle call() {
+            try {
+                if (mError != null) {
+                    Log.e(TAG, "mesh refinement failed", mError);
+                    throw mError;
+                }
+                if (mTopologyHandleId == 0) {
+                    throw new IllegalStateException("mesh refinement failed");
+                }
+                MeshHandle mesh = MeshHandle.createFromTopology(mTopologyHandleId);
+                mesh.updatePoints(mLevel, mPoints);
+                return mesh;
+            } finally {
+                releaseTopology();
+            }
+        }
+
+        void releaseTopology() {
+            if (mTopologyHandleId != 0) {
+                OpenSubdiv.DeleteTopology(mTopologyHandleId);
+                mTopologyHandleId = 0;
+            }
+        }
+    }
+}
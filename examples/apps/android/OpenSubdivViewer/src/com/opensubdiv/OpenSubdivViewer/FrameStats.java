@@ -0,0 +1,195 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Locale;
+
+/**
+ * Timings of the last frames : the native frame records of the drawn mesh,
+ * one per UpdatePoints (see OpenSubdiv.GetFrameStats), and the draw times
+ * of the renderer.
+ *
+ * summary() averages them for the statistics overlay, and writeTrace()
+ * exports them in the Chrome trace event format, which chrome://tracing
+ * and Perfetto open. Must be used on one thread; copy() hands the
+ * statistics to another.
+ */
+public class FrameStats {
+
+    private static final int CAPACITY = OpenSubdiv.FRAME_STATS_CAPACITY;
+    private static final int NUM_STATS = OpenSubdiv.NUM_FRAME_STATS;
+
+    // stages of a frame record, in the order they run
+    private static final int[] STAGES = {
+        OpenSubdiv.FRAME_STAT_COPY_NANOS,
+        OpenSubdiv.FRAME_STAT_NORMALS_NANOS,
+        OpenSubdiv.FRAME_STAT_WRITE_NANOS,
+        OpenSubdiv.FRAME_STAT_REFINE_NANOS,
+        OpenSubdiv.FRAME_STAT_TESSELLATE_NANOS,
+        OpenSubdiv.FRAME_STAT_PACK_NANOS,
+    };
+    private static final String[] STAGE_NAMES = {
+        "copy", "normals", "write", "refine", "tessellate", "pack",
+    };
+
+    private final LongBuffer mRecords;
+    private int mNumRecords;
+
+    // ring of the last draws
+    private final long[] mDrawTimestamps = new long[CAPACITY];
+    private final long[] mDrawNanos = new long[CAPACITY];
+    private final int[] mDrawTriangles = new int[CAPACITY];
+    private int mNumDraws;
+
+    public FrameStats() {
+        mRecords = ByteBuffer.allocateDirect(CAPACITY * NUM_STATS * 8)
+                             .order(ByteOrder.nativeOrder())
+                             .asLongBuffer();
+    }
+
+    /**
+     * Records a draw which started at the given System.nanoTime(), and
+     * the number of triangles left to draw after culling.
+     */
+    public void recordDraw(long timestamp, long nanos, int triangles) {
+        int i = mNumDraws % CAPACITY;
+        mDrawTimestamps[i] = timestamp;
+        mDrawNanos[i] = nanos;
+        mDrawTriangles[i] = triangles;
+        ++mNumDraws;
+    }
+
+    /**
+     * Copies the frame records of mesh, replacing the previous ones.
+     */
+    public void update(MeshHandle mesh) {
+        mNumRecords = mesh != null ? mesh.getFrameStats(mRecords) : 0;
+    }
+
+    /**
+     * Returns a copy of these statistics.
+     */
+    public FrameStats copy() {
+        FrameStats copy = new FrameStats();
+        for (int i = 0; i < mNumRecords * NUM_STATS; ++i) {
+            copy.mRecords.put(i, mRecords.get(i));
+        }
+        copy.mNumRecords = mNumRecords;
+        System.arraycopy(mDrawTimestamps, 0, copy.mDrawTimestamps, 0, CAPACITY);
+        System.arraycopy(mDrawNanos, 0, copy.mDrawNanos, 0, CAPACITY);
+        System.arraycopy(mDrawTriangles, 0, copy.mDrawTriangles, 0, CAPACITY);
+        copy.mNumDraws = mNumDraws;
+        return copy;
+    }
+
+    private long get(int record, int stat) {
+        return mRecords.get(record * NUM_STATS + stat);
+    }
+
+    private double average(int stat) {
+        if (mNumRecords == 0) {
+            return 0.0;
+        }
+        long sum = 0;
+        for (int i = 0; i < mNumRecords; ++i) {
+            sum += get(i, stat);
+        }
+        return (double) sum / mNumRecords;
+    }
+
+    /**
+     * Returns the average stage times of the last updates and draws, and
+     * the size of the last update, as a few lines of text.
+     */
+    public String summary() {
+        StringBuilder text = new StringBuilder();
+
+        double update = 0.0;
+        for (int stage : STAGES) {
+            update += average(stage);
+        }
+        text.append(String.format(Locale.US, "update  %6.2f ms (%d)\n",
+                                  update * 1e-6, mNumRecords));
+        for (int s = 0; s < STAGES.length; ++s) {
+            text.append(String.format(Locale.US, "  %-10s %6.2f ms\n",
+                                      STAGE_NAMES[s],
+                                      average(STAGES[s]) * 1e-6));
+        }
+        text.append(String.format(Locale.US, "upload  %6.2f ms %8.1f KB\n",
+                average(OpenSubdiv.FRAME_STAT_UPLOAD_NANOS) * 1e-6,
+                average(OpenSubdiv.FRAME_STAT_UPLOAD_BYTES) / 1024.0));
+
+        int numDraws = Math.min(mNumDraws, CAPACITY);
+        long drawNanos = 0;
+        for (int i = 0; i < numDraws; ++i) {
+            drawNanos += mDrawNanos[i];
+        }
+        text.append(String.format(Locale.US, "draw    %6.2f ms (%d)\n",
+                numDraws > 0 ? drawNanos * 1e-6 / numDraws : 0.0, numDraws));
+
+        if (mNumRecords > 0) {
+            int last = mNumRecords - 1;
+            int drawn = mNumDraws > 0
+                    ? mDrawTriangles[(mNumDraws - 1) % CAPACITY] : 0;
+            text.append(String.format(Locale.US,
+                    "%d vertices, %d/%d triangles drawn",
+                    get(last, OpenSubdiv.FRAME_STAT_REFINED_VERTICES),
+                    drawn, get(last, OpenSubdiv.FRAME_STAT_TRIANGLES)));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes the frame records and draws as Chrome trace events : one
+     * track for the update stages, one for the uploads and one for the
+     * draws.
+     */
+    public void writeTrace(Writer out) throws IOException {
+        out.write("{\"traceEvents\":[\n");
+        writeThreadName(out, 1, "update");
+        writeThreadName(out, 2, "upload");
+        writeThreadName(out, 3, "draw");
+
+        for (int i = 0; i < mNumRecords; ++i) {
+            long timestamp = get(i, OpenSubdiv.FRAME_STAT_TIMESTAMP);
+            for (int s = 0; s < STAGES.length; ++s) {
+                long nanos = get(i, STAGES[s]);
+                writeEvent(out, 1, STAGE_NAMES[s], timestamp, nanos);
+                timestamp += nanos;
+            }
+            long uploadTimestamp =
+                get(i, OpenSubdiv.FRAME_STAT_UPLOAD_TIMESTAMP);
+            if (uploadTimestamp != 0) {
+                writeEvent(out, 2, "upload", uploadTimestamp,
+                           get(i, OpenSubdiv.FRAME_STAT_UPLOAD_NANOS));
+            }
+        }
+
+        int numDraws = Math.min(mNumDraws, CAPACITY);
+        for (int d = mNumDraws - numDraws; d < mNumDraws; ++d) {
+            int i = d % CAPACITY;
+            writeEvent(out, 3, "draw", mDrawTimestamps[i], mDrawNanos[i]);
+        }
+
+        out.write("{}]}\n");
+    }
+
+    private static void writeThreadName(Writer out, int tid, String name)
+            throws IOException {
+        out.write("{\"ph\":\"M\",\"pid\":1,\"tid\":" + tid +
+                  ",\"name\":\"thread_name\",\"args\":{\"name\":\"" + name +
+                  "\"}},\n");
+    }
+
+    private static void writeEvent(Writer out, int tid, String name,
+                                   long timestamp, long nanos)
+            throws IOException {
+        out.write(String.format(Locale.US,
+                "{\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"name\":\"%s\"," +
+                "\"ts\":%.3f,\"dur\":%.3f},\n",
+                tid, name, timestamp * 1e-3, nanos * 1e-3));
+    }
+}
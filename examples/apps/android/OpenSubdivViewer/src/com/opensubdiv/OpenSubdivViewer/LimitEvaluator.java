@@ -0,0 +1,134 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Owns a native limit surface evaluator, created by
+ * MeshHandle.createLimitEvaluator().
+ *
+ * Queries are batched in a Queries object, which crosses JNI once per
+ * batch however many points it holds, and may be evaluated on any thread,
+ * typically with evaluateAsync() on a worker. Results reflect the last
+ * UpdatePoints call on the mesh. close() must not be called while an
+ * evaluation is in flight, since handle ids are recycled.
+ */
+public class LimitEvaluator implements Closeable {
+
+    /** Floats per result : position, d/du and d/dv. */
+    public static final int FLOATS_PER_RESULT = 9;
+
+    /**
+     * A reusable batch of (face, u, v) queries and their results.
+     */
+    public static class Queries {
+
+        private int[] mFaceIds;
+        private float[] mUVs;
+        private FloatBuffer mResults;
+        private int mCount;
+
+        public Queries(int capacity) {
+            mFaceIds = new int[capacity];
+            mUVs = new float[capacity * 2];
+            mResults = ByteBuffer.allocateDirect(capacity * FLOATS_PER_RESULT * 4)
+                                 .order(ByteOrder.nativeOrder())
+                                 .asFloatBuffer();
+        }
+
+        public int getCapacity() {
+            return mFaceIds.length;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public void clear() {
+            mCount = 0;
+        }
+
+        /**
+         * Adds a query and returns its index, or -1 if the batch is full.
+         */
+        public int add(int faceId, float u, float v) {
+            if (mCount == mFaceIds.length) {
+                return -1;
+            }
+            mFaceIds[mCount] = faceId;
+            mUVs[mCount * 2] = u;
+            mUVs[mCount * 2 + 1] = v;
+            return mCount++;
+        }
+
+        /**
+         * Returns the results, FLOATS_PER_RESULT floats per query.
+         */
+        public FloatBuffer getResults() {
+            return mResults;
+        }
+
+        public void getPosition(int query, float[] position) {
+            mResults.position(query * FLOATS_PER_RESULT);
+            mResults.get(position, 0, 3);
+        }
+    }
+
+    private int mId;
+
+    LimitEvaluator(int id) {
+        mId = id;
+    }
+
+    /**
+     * Returns the number of ptex faces which can be queried.
+     */
+    public int getFaceCount() {
+        return OpenSubdiv.GetLimitFaceCount(getId());
+    }
+
+    /**
+     * Evaluates the queries on the calling thread and returns the number
+     * of queries which could be evaluated.
+     */
+    public int evaluate(Queries queries) {
+        queries.mResults.clear();
+        return OpenSubdiv.EvaluateLimit(getId(), queries.mCount,
+                                        queries.mFaceIds, queries.mUVs,
+                                        queries.mResults);
+    }
+
+    /**
+     * Evaluates the queries on the given executor. The batch must not be
+     * modified until the returned future completes.
+     */
+    public Future<Integer> evaluateAsync(ExecutorService executor,
+                                         final Queries queries) {
+        return executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return evaluate(queries);
+            }
+        });
+    }
+
+    public int getId() {
+        if (mId == 0) {
+            throw new IllegalStateException("limit evaluator is closed");
+        }
+        return mId;
+    }
+
+    @Override
+    public void close() {
+        if (mId != 0) {
+            OpenSubdiv.DeleteLimitEvaluator(mId);
+            mId = 0;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import android.opengl.Matrix;
+import android.util.Log;
+
+/**
+ * A mesh refined to a range of levels, one of which is drawn each frame
+ * depending on how large the mesh appears on screen.
+ *
+ * Each level is its own MeshHandle, created with an AsyncMeshFactory the
+ * first time it is selected; until it is ready the closest level already
+ * built is drawn. Levels which haven't been drawn for a while are closed,
+ * and trimMemory() closes everything but the drawn level. Like MeshHandle,
+ * it must only be used on the GL thread.
+ */
+public class LodMeshHandle implements Closeable {
+
+    private static final String TAG = "LodMeshHandle";
+
+    /** Default target length of a refined edge on screen, in pixels. */
+    public static final float DEFAULT_EDGE_PIXELS = 12.0f;
+
+    // how far (in levels) the ideal level must drop below the selected
+    // one before refining less, so that meshes hovering around a
+    // threshold don't switch levels every frame
+    private static final float HYSTERESIS = 0.3f;
+
+    // levels not drawn for this many frames are closed
+    private static final int EVICT_FRAMES = 300;
+
+    private final AsyncMeshFactory mFactory;
+    private final boolean mAdaptive;
+    private final int mMinLevel;
+    private int mMaxLevel;
+
+    private final Shape mShape;
+    private final int[] mNVerts;
+    private final int[] mVerts;
+    private final int mNumFloatsPerPoint;
+    private float[] mPoints;
+    private int mPointsVersion;
+
+    // bounding sphere of the cage points, which also bounds the limit
+    // surface, and average length of the cage edges
+    private final float[] mCenter = { 0.0f, 0.0f, 0.0f, 1.0f };
+    private float mRadius;
+    private float mEdgeLength;
+
+    // scratch of computeBounds(), which runs on every updatePoints()
+    private final float[] mMin = new float[3];
+    private final float[] mMax = new float[3];
+
+    private float mEdgePixels = DEFAULT_EDGE_PIXELS;
+
+    private int mVertexLayout = OpenSubdiv.VERTEX_LAYOUT_INTERLEAVED;
+
+    // indexed by level - mMinLevel
+    private final Future<MeshHandle>[] mPending;
+    private final int[] mPendingVersions;
+    private final MeshHandle[] mMeshes;
+    private final int[] mVersions;
+    private final long[] mLastDrawn;
+    private final boolean[] mFailed;
+
+    private int mSelectedLevel = -1;
+    private int mDrawnLevel = -1;
+    private long mFrame;
+
+    // whether the last select() requested, received, switched or evicted
+    // a level
+    private boolean mLevelsChanged;
+
+    private final float[] mClip = new float[4];
+
+    /**
+     * The arrays are kept and must not be modified, see updatePoints().
+     * Adaptive levels are tessellated to the density of the matching
+     * uniform level.
+     */
+    public LodMeshHandle(AsyncMeshFactory factory, boolean adaptive,
+                         int minLevel, int maxLevel,
+                         int[] nverts, int[] verts,
+                         int numFloatsPerPoint, float[] points) {
+        this(factory, adaptive, minLevel, maxLevel,
+             new Shape(nverts, verts, numFloatsPerPoint, points));
+    }
+
+    /**
+     * Version for a shape, whose tags are kept by every level.
+     */
+    @SuppressWarnings("unchecked")
+    public LodMeshHandle(AsyncMeshFactory factory, boolean adaptive,
+                         int minLevel, int maxLevel, Shape shape) {
+        mFactory = factory;
+        mAdaptive = adaptive;
+        mMinLevel = minLevel;
+        mMaxLevel = maxLevel;
+        mShape = shape;
+        mNVerts = shape.nverts;
+        mVerts = shape.verts;
+        mNumFloatsPerPoint = shape.numFloatsPerPoint;
+        mPoints = shape.points;
+
+        int numLevels = maxLevel - minLevel + 1;
+        mPending = new Future[numLevels];
+        mPendingVersions = new int[numLevels];
+        mMeshes = new MeshHandle[numLevels];
+        mVersions = new int[numLevels];
+        mLastDrawn = new long[numLevels];
+        mFailed = new boolean[numLevels];
+
+        computeBounds();
+    }
+
+    /**
+     * Sets the target length of refined edges on screen.
+     */
+    public void setEdgePixels(float edgePixels) {
+        mEdgePixels = edgePixels;
+    }
+
+    /**
+     * Sets the layout of the refined vertices of every level, see
+     * OpenSubdiv.SetVertexLayout. Levels which don't support it, like
+     * adaptive ones, are left interleaved; MeshHandle.getVertexLayout()
+     * tells which layout a level has.
+     */
+    public void setVertexLayout(int layout) {
+        mVertexLayout = layout;
+        for (int i = 0; i < mMeshes.length; ++i) {
+            applyVertexLayout(i);
+        }
+    }
+
+    /**
+     * Replaces the control points. The drawn level is updated by the
+     * next select(), the other levels when they are drawn again.
+     */
+    public void updatePoints(float[] points) {
+        mPoints = points;
+        ++mPointsVersion;
+        computeBounds();
+    }
+
+    /** Returns the level selected by the last select(), or -1. */
+    public int getSelectedLevel() {
+        return mSelectedLevel;
+    }
+
+    /** Returns the level returned by the last select(), or -1. */
+    public int getDrawnLevel() {
+        return mDrawnLevel;
+    }
+
+    /**
+     * Returns whether the last select() requested, received, switched or
+     * evicted a level. Only those frames allocate Java objects.
+     */
+    public boolean levelsChanged() {
+        return mLevelsChanged;
+    }
+
+    /**
+     * Selects the level to draw for the given model-view-projection
+     * matrix and returns its mesh, up to date with the control points,
+     * or null if no level is ready yet.
+     */
+    public MeshHandle select(float[] mvpMatrix, int viewportHeight) {
+        ++mFrame;
+        mLevelsChanged = false;
+        pollPending();
+
+        mSelectedLevel = selectLevel(mvpMatrix, viewportHeight);
+        request(mSelectedLevel);
+
+        int level = closestBuiltLevel(mSelectedLevel);
+        if (level != mDrawnLevel) {
+            Log.d(TAG, "drawing level " + level +
+                       " (selected " + mSelectedLevel + ")");
+            mLevelsChanged = true;
+        }
+        mDrawnLevel = level;
+
+        evictIdle();
+
+        if (level < 0) {
+            return null;
+        }
+
+        int i = level - mMinLevel;
+        MeshHandle mesh = mMeshes[i];
+        if (mVersions[i] != mPointsVersion) {
+            mesh.updatePoints(level, mPoints);
+            mVersions[i] = mPointsVersion;
+        }
+        mLastDrawn[i] = mFrame;
+        return mesh;
+    }
+
+    /**
+     * Closes every level but the drawn one, and cancels pending levels
+     * other than the selected one. Called under memory pressure.
+     */
+    public void trimMemory() {
+        for (int i = 0; i < mMeshes.length; ++i) {
+            int level = mMinLevel + i;
+            if (level != mSelectedLevel && mPending[i] != null) {
+                mPending[i].cancel(false);
+                mPending[i] = null;
+            }
+            if (level != mDrawnLevel) {
+                closeLevel(i);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < mMeshes.length; ++i) {
+            if (mPending[i] != null) {
+                mPending[i].cancel(false);
+                mPending[i] = null;
+            }
+            closeLevel(i);
+        }
+        mSelectedLevel = -1;
+        mDrawnLevel = -1;
+    }
+
+    private void computeBounds() {
+        int numPoints = mPoints.length / mNumFloatsPerPoint;
+        float[] min = mMin;
+        float[] max = mMax;
+        Arrays.fill(min, Float.MAX_VALUE);
+        Arrays.fill(max, -Float.MAX_VALUE);
+        for (int i = 0; i < numPoints; ++i) {
+            for (int k = 0; k < 3; ++k) {
+                float p = mPoints[i * mNumFloatsPerPoint + k];
+                min[k] = Math.min(min[k], p);
+                max[k] = Math.max(max[k], p);
+            }
+        }
+
+        float radius2 = 0.0f;
+        for (int k = 0; k < 3; ++k) {
+            mCenter[k] = 0.5f * (min[k] + max[k]);
+        }
+        for (int i = 0; i < numPoints; ++i) {
+            radius2 = Math.max(radius2, distance2(i * mNumFloatsPerPoint,
+                                                  mCenter, 0));
+        }
+        mRadius = (float) Math.sqrt(radius2);
+
+        double edgeLength = 0.0;
+        int offset = 0;
+        for (int f = 0; f < mNVerts.length; ++f) {
+            int nv = mNVerts[f];
+            for (int j = 0; j < nv; ++j) {
+                int p0 = mVerts[offset + j] * mNumFloatsPerPoint;
+                int p1 = mVerts[offset + (j + 1) % nv] * mNumFloatsPerPoint;
+                edgeLength += Math.sqrt(distance2(p0, mPoints, p1));
+            }
+            offset += nv;
+        }
+        mEdgeLength = offset > 0 ? (float) (edgeLength / offset) : mRadius;
+    }
+
+    private float distance2(int pointOffset, float[] other, int otherOffset) {
+        float d2 = 0.0f;
+        for (int k = 0; k < 3; ++k) {
+            float d = mPoints[pointOffset + k] - other[otherOffset + k];
+            d2 += d * d;
+        }
+        return d2;
+    }
+
+    // The projected radius of the bounding sphere gives the number of
+    // pixels per cage unit; level l divides the cage edges in 2^l.
+    private int selectLevel(float[] mvpMatrix, int viewportHeight) {
+        Matrix.multiplyMV(mClip, 0, mvpMatrix, 0, mCenter, 0);
+        float w = mClip[3];
+
+        // length of a unit vector along the clip space y axis
+        float scale = (float) Math.sqrt(mvpMatrix[1] * mvpMatrix[1] +
+                                        mvpMatrix[5] * mvpMatrix[5] +
+                                        mvpMatrix[9] * mvpMatrix[9]);
+
+        float ideal;
+        if (w <= mRadius) {
+            // the camera is within the sphere, or about to be
+            ideal = mMaxLevel;
+        } else {
+            float radiusPixels = 0.5f * viewportHeight * mRadius * scale / w;
+            float edgePixels = radiusPixels * (mEdgeLength / mRadius);
+            ideal = (float) (Math.log(edgePixels / mEdgePixels) / Math.log(2.0));
+        }
+
+        int level = mSelectedLevel;
+        if (level < 0 || ideal > level) {
+            level = (int) Math.ceil(ideal);
+        } else if (ideal < level - 1 - HYSTERESIS) {
+            level = (int) Math.ceil(ideal + HYSTERESIS);
+        }
+        return Math.max(mMinLevel, Math.min(mMaxLevel, level));
+    }
+
+    private void request(int level) {
+        int i = level - mMinLevel;
+        if (mMeshes[i] != null || mPending[i] != null || mFailed[i]) {
+            return;
+        }
+        Shape shape = mShape.withPoints(mPoints);
+        if (mAdaptive) {
+            mPending[i] = mFactory.createCatmarkAdaptiveMesh(level, level,
+                                                             shape);
+        } else {
+            mPending[i] = mFactory.createCatmarkMesh(level, shape);
+        }
+        mPendingVersions[i] = mPointsVersion;
+        mLevelsChanged = true;
+    }
+
+    private void pollPending() {
+        for (int i = 0; i < mPending.length; ++i) {
+            Future<MeshHandle> pending = mPending[i];
+            if (pending == null || !pending.isDone()) {
+                continue;
+            }
+            mPending[i] = null;
+            mLevelsChanged = true;
+            if (pending.isCancelled()) {
+                continue;
+            }
+            try {
+                mMeshes[i] = pending.get();
+                mVersions[i] = mPendingVersions[i];
+                mLastDrawn[i] = mFrame;
+                applyVertexLayout(i);
+            } catch (ExecutionException e) {
+                // deeper levels would fail as well, typically out of
+                // memory
+                int level = mMinLevel + i;
+                Log.e(TAG, "level " + level + " failed", e.getCause());
+                mFailed[i] = true;
+                mMaxLevel = Math.max(mMinLevel, Math.min(mMaxLevel, level - 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Returns the built level closest to level, the finer one on ties,
+    // or -1 if none is built.
+    private int closestBuiltLevel(int level) {
+        for (int d = 0; d < mMeshes.length; ++d) {
+            int finer = level + d - mMinLevel;
+            if (finer < mMeshes.length && mMeshes[finer] != null) {
+                return level + d;
+            }
+            int coarser = level - d - mMinLevel;
+            if (coarser >= 0 && mMeshes[coarser] != null) {
+                return level - d;
+            }
+        }
+        return -1;
+    }
+
+    private void evictIdle() {
+        for (int i = 0; i < mMeshes.length; ++i) {
+            int level = mMinLevel + i;
+            if (mMeshes[i] != null && level != mDrawnLevel &&
+                    level != mSelectedLevel &&
+                    mFrame - mLastDrawn[i] > EVICT_FRAMES) {
+                Log.d(TAG, "evicting idle level " + level);
+                closeLevel(i);
+                mLevelsChanged = true;
+            }
+        }
+    }
+
+    // The vertex buffers are reallocated, so the level is updated again by
+    // the next select().
+    private void applyVertexLayout(int i) {
+        MeshHandle mesh = mMeshes[i];
+        if (mesh == null || mesh.getVertexLayout() == mVertexLayout) {
+            return;
+        }
+        mesh.setVertexLayout(mVertexLayout);
+        mVersions[i] = mPointsVersion - 1;
+    }
+
+    private void closeLevel(int i) {
+        if (mMeshes[i] != null) {
+            mMeshes[i].close();
+            mMeshes[i] = null;
+        }
+    }
+}
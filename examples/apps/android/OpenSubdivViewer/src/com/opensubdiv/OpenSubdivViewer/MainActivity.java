@@ -1,5 +1,7 @@
 package com.opensubdiv.OpenSubdivViewer;
 
+import java.io.File;
+
 import android.os.Bundle;
 import android.app.Activity;
 import android.view.Menu;
@@ -10,6 +12,12 @@ public class MainActivity extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+
+        File topologyCacheDir = new File(getCacheDir(), "topology");
+        if (topologyCacheDir.isDirectory() || topologyCacheDir.mkdirs()) {
+            OpenSubdiv.SetTopologyCacheDir(topologyCacheDir.getPath());
+        }
+
         setContentView(R.layout.activity_main);
     }
 
@@ -18,5 +26,29 @@ public class MainActivity extends Activity {
         getMenuInflater().inflate(R.menu.activity_main, menu);
         return true;
     }
-    
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        ViewportFragment viewport = (ViewportFragment)
+            getFragmentManager().findFragmentById(R.id.ViewportFragment);
+
+        switch (item.getItemId()) {
+            case R.id.menu_frame_stats:
+                item.setChecked(!item.isChecked());
+                viewport.setStatsVisible(item.isChecked());
+                return true;
+
+            case R.id.menu_export_trace:
+                // getExternalFilesDir needs no permission from API 19
+                File dir = getExternalFilesDir(null);
+                if (dir == null) {
+                    dir = getFilesDir();
+                }
+                viewport.exportTrace(new File(dir,
+                    "trace-" + System.currentTimeMillis() + ".json"));
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
 }
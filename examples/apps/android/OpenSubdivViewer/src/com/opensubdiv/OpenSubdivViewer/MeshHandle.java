@@ -0,0 +1,270 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+import java.io.Closeable;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Owns a native OpenSubdiv mesh handle.
+ *
+ * close() deletes the native mesh (refinement tables and GL buffers)
+ * right away instead of leaving it to the next CreateCatmarkMesh. It
+ * must be called on the GL thread that created the mesh. Handle ids
+ * are recycled by the native registry, so a closed handle must not
+ * be used again.
+ */
+public class MeshHandle implements Closeable {
+
+    private int mId;
+    private int mVertexLayout = OpenSubdiv.VERTEX_LAYOUT_INTERLEAVED;
+
+    private MeshHandle(int id) {
+        mId = id;
+    }
+
+    public static MeshHandle createCatmark(
+            int level, int[] nverts, int[] verts,
+            int numFloatsPerPoint, float[] points) {
+        return new MeshHandle(OpenSubdiv.CreateCatmarkMesh(
+                level, nverts, verts, numFloatsPerPoint, points));
+    }
+
+    /**
+     * Creates a feature adaptive mesh, see
+     * OpenSubdiv.CreateCatmarkAdaptiveMesh.
+     */
+    public static MeshHandle createCatmarkAdaptive(
+            int level, int tessLevel, int[] nverts, int[] verts,
+            int numFloatsPerPoint, float[] points) {
+        return new MeshHandle(OpenSubdiv.CreateCatmarkAdaptiveMesh(
+                level, tessLevel, nverts, verts, numFloatsPerPoint, points));
+    }
+
+    /**
+     * Creates a mesh from a topology handle built by
+     * OpenSubdiv.CreateCatmarkTopology. Must be called on the GL thread.
+     */
+    public static MeshHandle createFromTopology(int topologyHandleId) {
+        return new MeshHandle(
+                OpenSubdiv.CreateMeshFromTopology(topologyHandleId));
+    }
+
+    /**
+     * Returns a new mesh instance sharing this mesh's refined topology.
+     */
+    public MeshHandle createInstance() {
+        return new MeshHandle(OpenSubdiv.CreateMeshInstance(getId()));
+    }
+
+    public int getId() {
+        checkOpen();
+        return mId;
+    }
+
+    public boolean isClosed() {
+        return mId == 0;
+    }
+
+    public void updatePoints(int level, float[] points) {
+        OpenSubdiv.UpdatePoints(getId(), level, points);
+    }
+
+    public void updatePoints(int level, FloatBuffer points) {
+        OpenSubdiv.UpdatePoints(getId(), level, points);
+    }
+
+    public void updatePoints(int level, float[] points,
+                             int[] movedPoints, int numMovedPoints) {
+        OpenSubdiv.UpdatePointsPartial(getId(), level, points,
+                                       movedPoints, numMovedPoints);
+    }
+
+    public void updatePoints(int level, FloatBuffer points,
+                             int[] movedPoints, int numMovedPoints) {
+        OpenSubdiv.UpdatePointsPartial(getId(), level, points,
+                                       movedPoints, numMovedPoints);
+    }
+
+    /**
+     * Registers the skin updateSkinnedPoints deforms the cage with, see
+     * OpenSubdiv.SetSkin.
+     */
+    public boolean setSkin(Skin skin) {
+        return OpenSubdiv.SetSkin(getId(), skin.restPoints,
+                                  skin.numInfluences, skin.boneIndices,
+                                  skin.weights, skin.numBones);
+    }
+
+    public void updateSkinnedPoints(int level, float[] boneMatrices) {
+        OpenSubdiv.UpdateSkinnedPoints(getId(), level, boneMatrices);
+    }
+
+    public boolean getSkinnedPoints(float[] points) {
+        return OpenSubdiv.GetSkinnedPoints(getId(), points);
+    }
+
+    /**
+     * See OpenSubdiv.SetMorphBase.
+     */
+    public boolean setMorphBase(float[] points) {
+        return OpenSubdiv.SetMorphBase(getId(), points);
+    }
+
+    /**
+     * Adds a target moving each of indices by 3 floats of deltas, see
+     * OpenSubdiv.AddMorphTarget.
+     */
+    public int addMorphTarget(int[] indices, float[] deltas) {
+        return OpenSubdiv.AddMorphTarget(getId(), indices, deltas,
+                                         indices.length);
+    }
+
+    public void updateMorphWeights(int level, float[] weights) {
+        OpenSubdiv.UpdateMorphWeights(getId(), level, weights,
+                                      weights.length);
+    }
+
+    /**
+     * Returns a new limit surface evaluator for this mesh. Must be called
+     * on the GL thread.
+     */
+    public LimitEvaluator createLimitEvaluator() {
+        return new LimitEvaluator(OpenSubdiv.CreateLimitEvaluator(getId()));
+    }
+
+    /**
+     * See OpenSubdiv.SetVertexLayout. On failure the mesh is left
+     * interleaved.
+     */
+    public boolean setVertexLayout(int layout) {
+        boolean set = OpenSubdiv.SetVertexLayout(getId(), layout);
+        mVertexLayout = set ? layout : OpenSubdiv.VERTEX_LAYOUT_INTERLEAVED;
+        return set;
+    }
+
+    public int getVertexLayout() {
+        return mVertexLayout;
+    }
+
+    public boolean setVertexBufferRingDepth(int depth) {
+        return OpenSubdiv.SetVertexBufferRingDepth(getId(), depth);
+    }
+
+    /**
+     * See OpenSubdiv.GetVertexDecodeMatrix.
+     */
+    public boolean getVertexDecodeMatrix(float[] matrix) {
+        return OpenSubdiv.GetVertexDecodeMatrix(getId(), matrix);
+    }
+
+    public boolean setComputeBackend(int backend, int numThreads) {
+        return OpenSubdiv.SetComputeBackend(getId(), backend, numThreads);
+    }
+
+    /**
+     * Returns the average Refine() time with the given backend in
+     * nanoseconds, or -1 if it has not been used yet.
+     */
+    public long getAverageRefineNanos(int backend) {
+        long[] timing = new long[3];
+        if (!OpenSubdiv.GetRefineTiming(getId(), backend, timing)
+                || timing[0] == 0) {
+            return -1;
+        }
+        return timing[1] / timing[0];
+    }
+
+    /**
+     * Refines the given points numTrials times with every available
+     * backend and keeps the fastest one. Must be called on the GL thread.
+     * Returns the selected backend.
+     */
+    public int selectFastestBackend(int level, float[] points,
+                                    int numTrials) {
+        int fastest = OpenSubdiv.COMPUTE_BACKEND_CPU;
+        long fastestNanos = Long.MAX_VALUE;
+
+        for (int backend = 0; backend < OpenSubdiv.NUM_COMPUTE_BACKENDS;
+                ++backend) {
+            if (!setComputeBackend(backend, -1)) {
+                continue;
+            }
+            // warm up caches and worker threads before timing
+            updatePoints(level, points);
+            long[] before = new long[3];
+            OpenSubdiv.GetRefineTiming(getId(), backend, before);
+            for (int i = 0; i < numTrials; ++i) {
+                updatePoints(level, points);
+            }
+            long[] after = new long[3];
+            OpenSubdiv.GetRefineTiming(getId(), backend, after);
+
+            long nanos = (after[1] - before[1]) / Math.max(1, numTrials);
+            if (nanos < fastestNanos) {
+                fastestNanos = nanos;
+                fastest = backend;
+            }
+        }
+
+        setComputeBackend(fastest, -1);
+        return fastest;
+    }
+
+    /**
+     * Copies the last frame records of this mesh, see
+     * OpenSubdiv.GetFrameStats.
+     */
+    public int getFrameStats(LongBuffer stats) {
+        return OpenSubdiv.GetFrameStats(getId(), stats);
+    }
+
+    public int getVertexBufferId() {
+        return OpenSubdiv.GetVertexBufferId(getId());
+    }
+
+    public int getNormalBufferId() {
+        return OpenSubdiv.GetNormalBufferId(getId());
+    }
+
+    public int getTrianglesIndexBufferId() {
+        return OpenSubdiv.GetTrianglesIndexBufferId(getId());
+    }
+
+    public int getTrianglesIndexCount() {
+        return OpenSubdiv.GetTrianglesIndexCount(getId());
+    }
+
+    /**
+     * See OpenSubdiv.GetHullIndexBufferId.
+     */
+    public int getHullIndexBufferId(int[] countAndType) {
+        return OpenSubdiv.GetHullIndexBufferId(getId(), countAndType);
+    }
+
+    public int getNumChunks() {
+        return OpenSubdiv.GetNumChunks(getId());
+    }
+
+    /**
+     * See OpenSubdiv.GetVisibleChunks.
+     */
+    public int getVisibleChunks(float[] mvpMatrix, float[] eye,
+                                int[] ranges) {
+        return OpenSubdiv.GetVisibleChunks(getId(), mvpMatrix, eye, ranges);
+    }
+
+    @Override
+    public void close() {
+        if (mId != 0) {
+            PointsBufferPool.release(mId);
+            OpenSubdiv.DeleteMesh(mId);
+            mId = 0;
+        }
+    }
+
+    private void checkOpen() {
+        if (mId == 0) {
+            throw new IllegalStateException("mesh handle is closed");
+        }
+    }
+}
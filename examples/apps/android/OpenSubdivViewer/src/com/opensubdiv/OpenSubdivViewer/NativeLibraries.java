@@ -0,0 +1,19 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+/**
+ * Loads the native libraries behind OpenSubdiv. The Java drivers of
+ * benchmark/ replace this class with their own, which loads the host build
+ * of the library instead.
+ */
+final class NativeLibraries {
+
+    private NativeLibraries() {
+    }
+
+    static void load() {
+        System.loadLibrary("gnustl_shared");
+        System.loadLibrary("osdCPU");
+        System.loadLibrary("osdGPU");
+        System.loadLibrary("OpenSubdivjni");
+    }
+}
@@ -1,24 +1,462 @@
 package com.opensubdiv.OpenSubdivViewer;
 
+import java.nio.Buffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+
 public class OpenSubdiv {
 
      static {
-         System.loadLibrary("gnustl_shared");
-         System.loadLibrary("osdCPU");
-         System.loadLibrary("osdGPU");
-         System.loadLibrary("OpenSubdivjni");
+         NativeLibraries.load();
      }
 
+     /** Single threaded cpu refinement (the default). */
+     public static final int COMPUTE_BACKEND_CPU = 0;
+
+     /** OpenMP refinement, when the native libraries were built with it. */
+     public static final int COMPUTE_BACKEND_OPENMP = 1;
+
+     /** Fork-join pthread refinement of each subdivision table batch. */
+     public static final int COMPUTE_BACKEND_PTHREADS = 2;
+
+     /**
+      * Precomputed stencils taking every refined vertex straight from the
+      * coarse points in one pass, split between numThreads with OpenMP.
+      * Uses more memory than the subdivision tables; the stencils are
+      * built when the backend is first selected for a topology.
+      */
+     public static final int COMPUTE_BACKEND_STENCIL = 3;
+
+     public static final int NUM_COMPUTE_BACKENDS = 4;
+
+     /** Position and normal interleaved in one vertex buffer (the default). */
+     public static final int VERTEX_LAYOUT_INTERLEAVED = 0;
+
+     /** Positions in the vertex buffer, normals in a separate buffer. */
+     public static final int VERTEX_LAYOUT_SEPARATE = 1;
+
+     /**
+      * 12 byte vertices in the vertex buffer: the position as 3 GL_SHORTs
+      * and a pad at offset 0, quantized within the bounding box of the
+      * drawn vertices, then the octahedral encoded normal as 2 GL_SHORTs
+      * at offset 8. Both are unnormalized; GetVertexDecodeMatrix returns
+      * the transform of the positions, and normals decode from
+      * [-32767, 32767]. Uniform meshes only.
+      */
+     public static final int VERTEX_LAYOUT_PACKED = 2;
+
+     /** Largest depth accepted by SetVertexBufferRingDepth. */
+     public static final int MAX_VERTEX_BUFFER_RING_DEPTH = 3;
+
+     /**
+      * Fields of the frame records copied by GetFrameStats, one record per
+      * UpdatePoints call. Durations are in nanoseconds and timestamps are
+      * System.nanoTime() values.
+      */
+     public static final int FRAME_STAT_SEQUENCE = 0;
+     public static final int FRAME_STAT_TIMESTAMP = 1;
+     /**
+      * Copy of the points array from Java, 0 for direct buffers. With
+      * UpdateSkinnedPoints, copy of the bone matrices and skinning, and
+      * with UpdateMorphWeights, copy of the weights and morphing.
+      */
+     public static final int FRAME_STAT_COPY_NANOS = 2;
+     public static final int FRAME_STAT_NORMALS_NANOS = 3;
+     /** Write of the coarse points and normals to the vertex buffers. */
+     public static final int FRAME_STAT_WRITE_NANOS = 4;
+     public static final int FRAME_STAT_REFINE_NANOS = 5;
+     /** Patch tessellation of adaptive meshes. */
+     public static final int FRAME_STAT_TESSELLATE_NANOS = 6;
+     /**
+      * Upload of the refined vertex buffers, by the first GetVertexBufferId
+      * or GetNormalBufferId after the update. The upload fields are 0 until
+      * then.
+      */
+     public static final int FRAME_STAT_UPLOAD_TIMESTAMP = 7;
+     public static final int FRAME_STAT_UPLOAD_NANOS = 8;
+     public static final int FRAME_STAT_UPLOAD_BYTES = 9;
+     public static final int FRAME_STAT_REFINED_VERTICES = 10;
+     public static final int FRAME_STAT_TRIANGLES = 11;
+     /**
+      * Gather of the drawn vertices out of the refined ones, or their
+      * quantization with VERTEX_LAYOUT_PACKED, and the bounds of the
+      * chunks, see GetVisibleChunks.
+      */
+     public static final int FRAME_STAT_PACK_NANOS = 12;
+     public static final int NUM_FRAME_STATS = 13;
+
+     /** Number of frame records kept per mesh. */
+     public static final int FRAME_STATS_CAPACITY = 128;
+
+     /**
+      * Sets the directory where refined topologies are cached between
+      * runs, or disables the cache if dir is null. Topologies found there
+      * are loaded instead of being built from an Hbr mesh; the others are
+      * written there once built. Files written by another version of the
+      * native library are ignored and replaced.
+      */
+     public static native void SetTopologyCacheDir(String dir);
+
      public static native int CreateCatmarkMesh(
         int level, int[] nverts, int[] verts,
         int numFloatsPerPoint, float[] points);
 
+     /**
+      * Creates a feature adaptive catmark mesh : only the faces around
+      * extraordinary vertices and creases are refined, up to level, and
+      * the resulting patches are tessellated on the cpu to the density of
+      * a uniform refinement to tessLevel. Drawing is the same as for
+      * uniform meshes with the interleaved layout, but there is no limit
+      * evaluator and no separate layout. Returns 0 if a vertex of a Gregory
+      * patch has a valence beyond 29.
+      */
+     public static native int CreateCatmarkAdaptiveMesh(
+        int level, int tessLevel, int[] nverts, int[] verts,
+        int numFloatsPerPoint, float[] points);
+
+     /**
+      * Creates a new mesh sharing the refined topology (subdivision tables
+      * and triangles index buffer) of meshHandleId, with its own vertex
+      * buffer. Meshes created by CreateCatmarkMesh from identical topology
+      * already share it; this skips the topology lookup altogether.
+      */
+     public static native int CreateMeshInstance(int meshHandleId);
+
+     /**
+      * Builds the refined topology (Hbr mesh, far subdivision tables) for
+      * a catmark cage and returns a topology handle. This is cpu only and
+      * may be called from any thread; the mesh itself is then created on
+      * the GL thread with CreateMeshFromTopology.
+      */
+     public static native int CreateCatmarkTopology(
+        int level, int[] nverts, int[] verts,
+        int numFloatsPerPoint, int numPoints);
+
+     /**
+      * Adaptive version of CreateCatmarkTopology, see
+      * CreateCatmarkAdaptiveMesh. Returns 0 on failure.
+      */
+     public static native int CreateCatmarkAdaptiveTopology(
+        int level, int tessLevel, int[] nverts, int[] verts,
+        int numFloatsPerPoint, int numPoints);
+
+     /**
+      * Version of CreateCatmarkTopology, or of CreateCatmarkAdaptiveTopology
+      * if tessLevel is greater than 0, for cages with sharpness tags, see
+      * Shape. Returns 0 on failure.
+      */
+     public static native int CreateCatmarkTaggedTopology(
+        int level, int tessLevel, int[] nverts, int[] verts,
+        int numFloatsPerPoint, int numPoints,
+        int[] creases, float[] creaseSharpness,
+        int[] corners, float[] cornerSharpness, int interpolateBoundary);
+
+     /**
+      * Creates a mesh (vertex buffer and GL draw context) from a topology
+      * handle. Must be called on the GL thread.
+      */
+     public static native int CreateMeshFromTopology(int topologyHandleId);
+
+     /**
+      * Releases a topology handle. Meshes created from it keep the
+      * topology alive.
+      */
+     public static native void DeleteTopology(int topologyHandleId);
+
+     /**
+      * Releases the mesh and its GL objects, and makes meshHandleId
+      * available for reuse. Must be called on the GL thread.
+      */
+     public static native void DeleteMesh(int meshHandleId);
+
+     /**
+      * Updates the control points of the mesh, numFloatsPerPoint floats
+      * per point. Throws IllegalArgumentException if points holds fewer
+      * than every control point.
+      */
      public static native void UpdatePoints(
         int meshHandleId, int level, float[] points);
 
+     /**
+      * Updates the control points from a direct buffer in native byte
+      * order (see {@link PointsBufferPool}), starting at its position.
+      * The buffer is read in place by the native side, without copying in
+      * or writing back, and its position is left unchanged. Throws
+      * IllegalArgumentException if fewer than every control point remain
+      * after the position.
+      */
+     public static void UpdatePoints(
+        int meshHandleId, int level, FloatBuffer points) {
+         checkDirectBuffer("UpdatePoints", points, points.order());
+         UpdatePointsBuffer(meshHandleId, level, points, points.position(),
+                            null, 0);
+     }
+
+     /**
+      * Updates the control points after only some of them moved: the
+      * smooth normals are only recomputed around the first numMovedPoints
+      * indices of movedPoints. points still holds every control point;
+      * IllegalArgumentException is thrown if it is shorter.
+      */
+     public static native void UpdatePointsPartial(
+        int meshHandleId, int level, float[] points,
+        int[] movedPoints, int numMovedPoints);
+
+     /**
+      * Direct buffer version of UpdatePointsPartial.
+      */
+     public static void UpdatePointsPartial(
+        int meshHandleId, int level, FloatBuffer points,
+        int[] movedPoints, int numMovedPoints) {
+         checkDirectBuffer("UpdatePointsPartial", points, points.order());
+         UpdatePointsBuffer(meshHandleId, level, points, points.position(),
+                            movedPoints, numMovedPoints);
+     }
+
+     private static native void UpdatePointsBuffer(
+        int meshHandleId, int level, FloatBuffer points, int position,
+        int[] movedPoints, int numMovedPoints);
+
+     /**
+      * Updates the first numMeshes meshes of meshHandleIds at once, each
+      * at the level of its topology. The control points of mesh i start
+      * at float offsets[i] after the position of points, a direct buffer
+      * in native byte order. The meshes are refined in parallel, one per
+      * processor, then their vertex buffers are uploaded, so this must be
+      * called on the GL thread. A mesh must not appear twice; nothing is
+      * updated if one does or if a handle or offset is invalid.
+      */
+     public static void UpdatePointsBatch(
+        int[] meshHandleIds, int numMeshes, FloatBuffer points,
+        int[] offsets) {
+         checkDirectBuffer("UpdatePointsBatch", points, points.order());
+         UpdatePointsBatchBuffer(meshHandleIds, numMeshes, points,
+                                 points.position(), offsets);
+     }
+
+     private static native void UpdatePointsBatchBuffer(
+        int[] meshHandleIds, int numMeshes, FloatBuffer points, int position,
+        int[] offsets);
+
+     /** Most bone influences per point of a skin. */
+     public static final int MAX_SKIN_INFLUENCES = 8;
+
+     /**
+      * Registers the linear blend skinning of meshHandleId, see
+      * {@link Skin}: restPoints holds every control point, boneIndices and
+      * weights numInfluences values per point. Returns false, leaving the
+      * previous skin, if an array is too small or a bone index is not
+      * less than numBones.
+      */
+     public static native boolean SetSkin(
+        int meshHandleId, float[] restPoints, int numInfluences,
+        int[] boneIndices, float[] weights, int numBones);
+
+     /**
+      * Skins the rest points of SetSkin with boneMatrices, a column-major
+      * 4x4 matrix per bone as built by android.opengl.Matrix, and updates
+      * the mesh with them. Only the matrices cross JNI; the skinning is
+      * recorded in FRAME_STAT_COPY_NANOS.
+      */
+     public static native void UpdateSkinnedPoints(
+        int meshHandleId, int level, float[] boneMatrices);
+
+     /**
+      * Copies the control points of the last UpdateSkinnedPoints, for
+      * drawing the hull or checking them against {@link Skin#skin}.
+      * Returns false if the mesh has no skin or points is too small.
+      */
+     public static native boolean GetSkinnedPoints(
+        int meshHandleId, float[] points);
+
+     /**
+      * Morph target weights of a smaller magnitude are skipped by
+      * UpdateMorphWeights.
+      */
+     public static final float MIN_MORPH_WEIGHT = 1e-4f;
+
+     /**
+      * Sets the points UpdateMorphWeights adds the morph targets of
+      * meshHandleId to, every control point, and removes its targets.
+      * Returns false if points is too small.
+      */
+     public static native boolean SetMorphBase(
+        int meshHandleId, float[] points);
+
+     /**
+      * Adds a sparse morph target to meshHandleId, after SetMorphBase: the
+      * first numDeltas indices of indices are moved by the 3 floats at
+      * deltas[3 * i]. Returns the index of the target, its weight in
+      * UpdateMorphWeights, or -1 if an index is not a control point.
+      */
+     public static native int AddMorphTarget(
+        int meshHandleId, int[] indices, float[] deltas, int numDeltas);
+
+     /**
+      * Updates the mesh with its morph base plus the deltas of its first
+      * numWeights targets times weights, the other targets weighing 0.
+      * Only the weights cross JNI. Targets whose weight is below
+      * MIN_MORPH_WEIGHT are skipped, and after the first morphed update
+      * only the control points moved by the last and current targets are
+      * written and have their normals recomputed, so the cost of the
+      * morphing follows the number of active deltas. The morphing is
+      * recorded in FRAME_STAT_COPY_NANOS.
+      */
+     public static native void UpdateMorphWeights(
+        int meshHandleId, int level, float[] weights, int numWeights);
+
+     /**
+      * Creates a limit surface evaluator for meshHandleId and returns its
+      * handle. The evaluator keeps a copy of the refined positions, updated
+      * by every UpdatePoints call on the mesh, and may then be used from
+      * any thread. Must be called on the GL thread. Returns 0 for
+      * adaptive meshes.
+      */
+     public static native int CreateLimitEvaluator(int meshHandleId);
+
+     public static native void DeleteLimitEvaluator(int evaluatorHandleId);
+
+     /**
+      * Returns the number of ptex faces which can be evaluated : one per
+      * quad, and one per vertex of other faces, in face order.
+      */
+     public static native int GetLimitFaceCount(int evaluatorHandleId);
+
+     /**
+      * Evaluates numQueries limit surface points, given by faceIds[i] and
+      * (uvs[2*i], uvs[2*i+1]), into a direct buffer in native byte order,
+      * starting at its position : 9 floats per query, the position
+      * followed by its u and v derivatives. Queries on invalid faces yield
+      * zeros. Returns the number of evaluated queries.
+      */
+     public static int EvaluateLimit(
+        int evaluatorHandleId, int numQueries,
+        int[] faceIds, float[] uvs, FloatBuffer results) {
+         checkDirectBuffer("EvaluateLimit", results, results.order());
+         return EvaluateLimitBuffer(evaluatorHandleId, numQueries,
+                                    faceIds, uvs, results, results.position());
+     }
+
+     private static native int EvaluateLimitBuffer(
+        int evaluatorHandleId, int numQueries,
+        int[] faceIds, float[] uvs, FloatBuffer results, int position);
+
+     /**
+      * Reallocates the refined vertex buffers of meshHandleId with the
+      * given layout. The points must be updated again before drawing.
+      * Must be called on the GL thread.
+      */
+     public static native boolean SetVertexLayout(
+        int meshHandleId, int layout);
+
+     /**
+      * Uploads the refined vertices of meshHandleId to depth GL buffers in
+      * turn, so that an update doesn't overwrite the buffer the GPU may
+      * still be drawing. GetVertexBufferId and GetNormalBufferId then
+      * return the buffers of the last update. 1, the default, uploads every
+      * update to the same buffers. Returns false for a depth outside 1 to
+      * MAX_VERTEX_BUFFER_RING_DEPTH. Must be called on the GL thread.
+      */
+     public static native boolean SetVertexBufferRingDepth(
+        int meshHandleId, int depth);
+
+     /**
+      * Copies the column-major matrix which transforms the positions of
+      * the vertex buffer of meshHandleId to model space into matrix, 16
+      * floats. It changes with every update of VERTEX_LAYOUT_PACKED and is
+      * the identity with the other layouts.
+      */
+     public static native boolean GetVertexDecodeMatrix(
+        int meshHandleId, float[] matrix);
+
+     /**
+      * Selects the backend refining meshHandleId on later UpdatePoints
+      * calls. numThreads is ignored by COMPUTE_BACKEND_CPU, -1 uses every
+      * available core. Returns false if the backend is not available on
+      * this build, in which case the current backend is kept.
+      */
+     public static native boolean SetComputeBackend(
+        int meshHandleId, int backend, int numThreads);
+
+     /**
+      * Copies the Refine() timings of meshHandleId with the given backend
+      * into timing: { count, total nanoseconds, last nanoseconds }.
+      * Returns false for an invalid handle or backend.
+      */
+     public static native boolean GetRefineTiming(
+        int meshHandleId, int backend, long[] timing);
+
+     /**
+      * Copies the last frame records of meshHandleId, oldest first, into a
+      * direct buffer in native byte order, starting at its position,
+      * NUM_FRAME_STATS longs per record. Returns the number of records
+      * copied, at most stats.remaining() / NUM_FRAME_STATS. Records are
+      * written without locks; one being written during the copy is left
+      * out. May be called from any thread.
+      */
+     public static int GetFrameStats(int meshHandleId, LongBuffer stats) {
+         checkDirectBuffer("GetFrameStats", stats, stats.order());
+         return GetFrameStatsBuffer(meshHandleId, stats, stats.position());
+     }
+
+     private static native int GetFrameStatsBuffer(
+        int meshHandleId, LongBuffer stats, int position);
+
+     // the native side addresses buffers as arrays of its own byte order
+     private static void checkDirectBuffer(
+        String method, Buffer buffer, ByteOrder order) {
+         if (!buffer.isDirect()) {
+             throw new IllegalArgumentException(
+                method + " requires a direct buffer");
+         }
+         if (order != ByteOrder.nativeOrder()) {
+             throw new IllegalArgumentException(
+                method + " requires a buffer in native byte order");
+         }
+     }
+
      public static native int GetVertexBufferId(int meshHandleId);
 
+     /**
+      * Returns the normal buffer with VERTEX_LAYOUT_SEPARATE, 0 otherwise.
+      */
+     public static native int GetNormalBufferId(int meshHandleId);
+
      public static native int GetTrianglesIndexBufferId(int meshHandleId);
 
      public static native int GetTrianglesIndexCount(int meshHandleId);
+
+     /**
+      * Returns the index buffer of the edges of the cage of meshHandleId,
+      * to draw as GL_LINES over the cage points, or 0. Each edge is listed
+      * once, however many faces share it. Writes into countAndType the
+      * number of indices and their type: GL_UNSIGNED_SHORT, or
+      * GL_UNSIGNED_INT past 65536 points, which needs
+      * GL_OES_element_index_uint (0 is returned without it).
+      */
+     public static native int GetHullIndexBufferId(int meshHandleId,
+                                                   int[] countAndType);
+
+     /**
+      * Returns the number of chunks the triangles of meshHandleId are
+      * split in: groups of coarse faces, or runs of tessellated patches
+      * for adaptive meshes. See GetVisibleChunks.
+      */
+     public static native int GetNumChunks(int meshHandleId);
+
+     /**
+      * Culls the chunks of the last update of meshHandleId whose bounding
+      * sphere is outside the frustum of the column-major mvpMatrix and,
+      * if the cage is closed, those facing away from eye, the camera
+      * position in model space. eye may be null to keep back faces.
+      *
+      * Writes the index ranges left to draw into ranges, 3 ints each:
+      * the vertex their GL_UNSIGNED_SHORT indices are relative to, which
+      * the attribute pointers must be offset by, the first index and the
+      * number of indices. ranges must hold 3 ints per chunk. Returns the
+      * number of ranges.
+      */
+     public static native int GetVisibleChunks(
+        int meshHandleId, float[] mvpMatrix, float[] eye, int[] ranges);
 }
@@ -0,0 +1,45 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import android.util.SparseArray;
+
+/**
+ * Pool of reusable direct point buffers, one per mesh handle.
+ *
+ * Animated meshes fill the buffer returned by acquire() every frame
+ * and pass it to OpenSubdiv.UpdatePoints(int, int, FloatBuffer), so
+ * the control cage crosses JNI without a copy and without allocating.
+ */
+public class PointsBufferPool {
+
+    private static final SparseArray<FloatBuffer> sBuffers =
+        new SparseArray<FloatBuffer>();
+
+    /**
+     * Returns the direct buffer registered for meshHandleId, allocating
+     * it the first time or when it is smaller than numFloats. The
+     * returned buffer is rewound, with its limit set to numFloats.
+     */
+    public static synchronized FloatBuffer acquire(int meshHandleId, int numFloats) {
+        FloatBuffer buffer = sBuffers.get(meshHandleId);
+        if (buffer == null || buffer.capacity() < numFloats) {
+            buffer = ByteBuffer.allocateDirect(numFloats * 4)
+                               .order(ByteOrder.nativeOrder())
+                               .asFloatBuffer();
+            sBuffers.put(meshHandleId, buffer);
+        }
+        buffer.clear();
+        buffer.limit(numFloats);
+        return buffer;
+    }
+
+    /**
+     * Drops the buffer registered for meshHandleId.
+     */
+    public static synchronized void release(int meshHandleId) {
+        sBuffers.remove(meshHandleId);
+    }
+}
@@ -0,0 +1,95 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+import java.util.Arrays;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * A linked GL program. Look up the uniform and attribute locations once
+ * after creating it, rather than every frame. Must be used on the GL
+ * thread.
+ */
+class ShaderProgram {
+
+    private static final String TAG = "ShaderProgram";
+
+    private final int mProgram;
+
+    /**
+     * A mat4 uniform, only set again when its value changes.
+     */
+    public static class MatrixUniform {
+        private final int mLocation;
+        private final float[] mValue = new float[16];
+        private boolean mIsSet;
+
+        MatrixUniform(int location) {
+            mLocation = location;
+        }
+
+        /**
+         * Sets the uniform, its program must be in use. Ignored if the
+         * program has no such uniform.
+         */
+        public void set(float[] matrix) {
+            if (mLocation < 0 || (mIsSet && Arrays.equals(mValue, matrix))) {
+                return;
+            }
+            System.arraycopy(matrix, 0, mValue, 0, 16);
+            mIsSet = true;
+            GLES20.glUniformMatrix4fv(mLocation, 1, false, matrix, 0);
+        }
+    }
+
+    public ShaderProgram(String vertexShaderCode, String fragmentShaderCode) {
+        int vertexShader = ViewportRenderer.loadShader(
+                GLES20.GL_VERTEX_SHADER, vertexShaderCode);
+        int fragmentShader = ViewportRenderer.loadShader(
+                GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+
+        mProgram = GLES20.glCreateProgram();
+        GLES20.glAttachShader(mProgram, vertexShader);
+        GLES20.glAttachShader(mProgram, fragmentShader);
+        GLES20.glLinkProgram(mProgram);
+
+        // the program keeps the shaders until it is deleted
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+
+        String infoLog = GLES20.glGetProgramInfoLog(mProgram);
+        if (!infoLog.isEmpty()) {
+            Log.d(TAG, infoLog);
+        }
+    }
+
+    public int getId() {
+        return mProgram;
+    }
+
+    /**
+     * Returns the location of a uniform, -1 if the program has none.
+     */
+    public int getUniformLocation(String name) {
+        return GLES20.glGetUniformLocation(mProgram, name);
+    }
+
+    public MatrixUniform getMatrixUniform(String name) {
+        return new MatrixUniform(getUniformLocation(name));
+    }
+
+    /**
+     * Returns the location of an attribute, -1 if the program has none.
+     */
+    public int getAttribLocation(String name) {
+        return GLES20.glGetAttribLocation(mProgram, name);
+    }
+
+    public void use() {
+        GLES20.glUseProgram(mProgram);
+    }
+
+    public void release() {
+        GLES20.glDeleteProgram(mProgram);
+    }
+}
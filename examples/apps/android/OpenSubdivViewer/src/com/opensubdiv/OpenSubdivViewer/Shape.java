@@ -0,0 +1,86 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+/**
+ * A subdivision cage : its faces and control points, along with the
+ * sharpness tags which are part of its refined topology.
+ *
+ * Creases are pairs of point indices, each edge with its own sharpness,
+ * and corners are point indices with their sharpness, as in the "crease"
+ * and "corner" tags of the regression shapes. The arrays are shared, not
+ * copied, and must not be modified once the shape is handed to a mesh.
+ */
+public class Shape {
+
+    /** Boundary interpolation, the "interpolateboundary" tag values. */
+    public static final int INTERPOLATE_BOUNDARY_NONE = 0;
+    public static final int INTERPOLATE_BOUNDARY_EDGE_AND_CORNER = 1;
+    public static final int INTERPOLATE_BOUNDARY_EDGE_ONLY = 2;
+
+    private static final int[] NO_INTS = new int[0];
+    private static final float[] NO_FLOATS = new float[0];
+
+    public final int[] nverts;
+    public final int[] verts;
+    public final int numFloatsPerPoint;
+    public final float[] points;
+
+    public final int[] creases;
+    public final float[] creaseSharpness;
+    public final int[] corners;
+    public final float[] cornerSharpness;
+    public final int interpolateBoundary;
+
+    /**
+     * A shape without tags, whose boundaries aren't interpolated.
+     */
+    public Shape(int[] nverts, int[] verts,
+                 int numFloatsPerPoint, float[] points) {
+        this(nverts, verts, numFloatsPerPoint, points,
+             NO_INTS, NO_FLOATS, NO_INTS, NO_FLOATS,
+             INTERPOLATE_BOUNDARY_NONE);
+    }
+
+    public Shape(int[] nverts, int[] verts,
+                 int numFloatsPerPoint, float[] points,
+                 int[] creases, float[] creaseSharpness,
+                 int[] corners, float[] cornerSharpness,
+                 int interpolateBoundary) {
+        if (creases.length != creaseSharpness.length * 2 ||
+                corners.length != cornerSharpness.length) {
+            throw new IllegalArgumentException("one sharpness per crease " +
+                                               "edge and per corner");
+        }
+        this.nverts = nverts;
+        this.verts = verts;
+        this.numFloatsPerPoint = numFloatsPerPoint;
+        this.points = points;
+        this.creases = creases;
+        this.creaseSharpness = creaseSharpness;
+        this.corners = corners;
+        this.cornerSharpness = cornerSharpness;
+        this.interpolateBoundary = interpolateBoundary;
+    }
+
+    /**
+     * Returns a shape with the same topology and tags and other points.
+     */
+    public Shape withPoints(float[] points) {
+        return new Shape(nverts, verts, numFloatsPerPoint, points,
+                         creases, creaseSharpness, corners, cornerSharpness,
+                         interpolateBoundary);
+    }
+
+    public int getNumPoints() {
+        return points.length / numFloatsPerPoint;
+    }
+
+    public int getNumFaces() {
+        return nverts.length;
+    }
+
+    /** Returns true if the refined topology depends on tags. */
+    public boolean hasTags() {
+        return creases.length > 0 || corners.length > 0 ||
+               interpolateBoundary != INTERPOLATE_BOUNDARY_NONE;
+    }
+}
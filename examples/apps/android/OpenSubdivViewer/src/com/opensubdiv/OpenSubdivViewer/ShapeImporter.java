@@ -0,0 +1,425 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Reads shapes in the OBJ dialect of regression/shapes : "v" points, "f"
+ * faces, of which only the vertex indices are kept, and the "crease",
+ * "corner" and "interpolateboundary" tags of "t" lines. Other records and
+ * tags are ignored.
+ *
+ * Parsing is incremental over a fixed size read buffer, straight into
+ * growable primitive arrays : nothing is allocated per line, but for the
+ * rare numbers too long to convert exactly in place, and the peak heap is
+ * the final arrays plus their growth slack. read() may be called on any
+ * thread; AsyncMeshFactory.importShape() calls it on its workers so that
+ * large cages never block the GL thread.
+ */
+public class ShapeImporter {
+
+    private static final String TAG = "ShapeImporter";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] CREASE = { 'c', 'r', 'e', 'a', 's', 'e' };
+    private static final byte[] CORNER = { 'c', 'o', 'r', 'n', 'e', 'r' };
+    private static final byte[] INTERPOLATE_BOUNDARY = {
+        'i', 'n', 't', 'e', 'r', 'p', 'o', 'l', 'a', 't', 'e',
+        'b', 'o', 'u', 'n', 'd', 'a', 'r', 'y' };
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // powers of ten, and mantissas up to MAX_EXACT_MANTISSA, which are
+    // exact floats
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10 };
+    private static final long MAX_EXACT_MANTISSA = 1L << 24;
+
+    /**
+     * Reads a shape from a stream, which is not closed.
+     */
+    public static Shape read(InputStream in) throws IOException {
+        return read(Channels.newChannel(in));
+    }
+
+    /**
+     * Reads a shape from a channel, typically a FileChannel, which is not
+     * closed.
+     */
+    public static Shape read(ReadableByteChannel channel) throws IOException {
+        return new ShapeImporter().parse(channel);
+    }
+
+    public static Shape read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return read(in.getChannel());
+        } finally {
+            in.close();
+        }
+    }
+
+    // A growable int array. Capacity grows by half so that the slack over
+    // the final size stays bounded.
+    private static final class IntArray {
+        int[] data = new int[64];
+        int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size + (size >> 1));
+            }
+            data[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    private static final class FloatArray {
+        float[] data = new float[64];
+        int size;
+
+        void add(float value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size + (size >> 1));
+            }
+            data[size++] = value;
+        }
+
+        float[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    private byte[] mBytes = new byte[BUFFER_SIZE];
+    private int mPos;
+    private int mEnd;
+    private int mLine;
+
+    private final FloatArray mPoints = new FloatArray();
+    private final IntArray mNVerts = new IntArray();
+    private final IntArray mVerts = new IntArray();
+    private final IntArray mCreases = new IntArray();
+    private final FloatArray mCreaseSharpness = new FloatArray();
+    private final IntArray mCorners = new IntArray();
+    private final FloatArray mCornerSharpness = new FloatArray();
+    private int mInterpolateBoundary = Shape.INTERPOLATE_BOUNDARY_NONE;
+    private int mNumIgnoredTags;
+
+    // arguments of the current tag
+    private final IntArray mTagInts = new IntArray();
+    private final FloatArray mTagFloats = new FloatArray();
+
+    private ShapeImporter() {
+    }
+
+    private Shape parse(ReadableByteChannel channel) throws IOException {
+        int fill = 0;
+        int lineStart = 0;
+        int scanned = 0;
+        boolean eof = false;
+        while (true) {
+            int lineEnd = scanned;
+            while (lineEnd < fill && mBytes[lineEnd] != '\n') {
+                ++lineEnd;
+            }
+            if (lineEnd < fill) {
+                parseLine(lineStart, lineEnd);
+                lineStart = scanned = lineEnd + 1;
+                continue;
+            }
+            if (eof) {
+                if (lineStart < fill) {
+                    parseLine(lineStart, fill);
+                }
+                break;
+            }
+
+            // keep the partial line, growing the buffer only for lines
+            // longer than it
+            int partial = fill - lineStart;
+            System.arraycopy(mBytes, lineStart, mBytes, 0, partial);
+            fill = scanned = partial;
+            lineStart = 0;
+            if (fill == mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, mBytes.length * 2);
+            }
+            int read = channel.read(ByteBuffer.wrap(mBytes, fill,
+                                                    mBytes.length - fill));
+            if (read < 0) {
+                eof = true;
+            } else {
+                fill += read;
+            }
+        }
+
+        int numPoints = mPoints.size / 3;
+        checkIndices(mVerts, numPoints, "face");
+        checkIndices(mCreases, numPoints, "crease");
+        checkIndices(mCorners, numPoints, "corner");
+        if (mNumIgnoredTags > 0) {
+            Log.w(TAG, "ignored " + mNumIgnoredTags + " unsupported tags");
+        }
+
+        return new Shape(mNVerts.toArray(), mVerts.toArray(),
+                         3, mPoints.toArray(),
+                         mCreases.toArray(), mCreaseSharpness.toArray(),
+                         mCorners.toArray(), mCornerSharpness.toArray(),
+                         mInterpolateBoundary);
+    }
+
+    private void parseLine(int start, int end) throws IOException {
+        ++mLine;
+        mPos = start;
+        mEnd = end;
+        skipSpaces();
+        if (mPos + 1 >= mEnd || !isSpace(mBytes[mPos + 1])) {
+            return;
+        }
+        byte record = mBytes[mPos];
+        mPos += 2;
+        switch (record) {
+            case 'v':
+                parsePoint();
+                break;
+            case 'f':
+                parseFace();
+                break;
+            case 't':
+                parseTag();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void parsePoint() throws IOException {
+        for (int k = 0; k < 3; ++k) {
+            mPoints.add(parseFloat());
+        }
+    }
+
+    // vertex/uv/normal triplets, of which uv and normal are optional
+    private void parseFace() throws IOException {
+        int numPoints = mPoints.size / 3;
+        int numVertsInFace = 0;
+        skipSpaces();
+        while (mPos < mEnd) {
+            int index = parseInt();
+            if (index == 0) {
+                throw error("invalid vertex index 0");
+            }
+            // negative indices are relative to the last point
+            mVerts.add(index > 0 ? index - 1 : numPoints + index);
+            ++numVertsInFace;
+            skipToken();
+            skipSpaces();
+        }
+        if (numVertsInFace < 3) {
+            throw error("face with " + numVertsInFace + " vertices");
+        }
+        mNVerts.add(numVertsInFace);
+    }
+
+    // t name nints/nfloats/nstrings ints... floats... strings...
+    private void parseTag() throws IOException {
+        skipSpaces();
+        int nameStart = mPos;
+        skipToken();
+        int nameEnd = mPos;
+
+        skipSpaces();
+        int numInts = parseInt();
+        expect('/');
+        int numFloats = parseInt();
+        expect('/');
+        parseInt();
+
+        mTagInts.size = 0;
+        for (int i = 0; i < numInts; ++i) {
+            mTagInts.add(parseInt());
+        }
+        mTagFloats.size = 0;
+        for (int i = 0; i < numFloats; ++i) {
+            mTagFloats.add(parseFloat());
+        }
+
+        if (nameEquals(nameStart, nameEnd, CREASE)) {
+            // edges are pairs of points, with one sharpness each or one
+            // for all of them
+            if (numFloats == 0) {
+                throw error("crease without sharpness");
+            }
+            for (int i = 0; i + 1 < numInts; i += 2) {
+                mCreases.add(mTagInts.data[i]);
+                mCreases.add(mTagInts.data[i + 1]);
+                mCreaseSharpness.add(sharpness(i / 2));
+            }
+        } else if (nameEquals(nameStart, nameEnd, CORNER)) {
+            if (numFloats == 0) {
+                throw error("corner without sharpness");
+            }
+            for (int i = 0; i < numInts; ++i) {
+                mCorners.add(mTagInts.data[i]);
+                mCornerSharpness.add(sharpness(i));
+            }
+        } else if (nameEquals(nameStart, nameEnd, INTERPOLATE_BOUNDARY)) {
+            if (numInts != 1 || mTagInts.data[0] < 0 || mTagInts.data[0] > 2) {
+                throw error("invalid interpolateboundary tag");
+            }
+            mInterpolateBoundary = mTagInts.data[0];
+        } else {
+            ++mNumIgnoredTags;
+        }
+    }
+
+    private float sharpness(int i) {
+        float sharpness = mTagFloats.data[mTagFloats.size > 1 ?
+                                          Math.min(i, mTagFloats.size - 1) : 0];
+        return Math.max(0.0f, sharpness);
+    }
+
+    private boolean nameEquals(int start, int end, byte[] name) {
+        if (end - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; ++i) {
+            if (mBytes[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private void skipSpaces() {
+        while (mPos < mEnd && isSpace(mBytes[mPos])) {
+            ++mPos;
+        }
+    }
+
+    private void skipToken() {
+        while (mPos < mEnd && !isSpace(mBytes[mPos])) {
+            ++mPos;
+        }
+    }
+
+    private void expect(char c) throws IOException {
+        if (mPos >= mEnd || mBytes[mPos] != c) {
+            throw error("expected '" + c + "'");
+        }
+        ++mPos;
+    }
+
+    private int parseInt() throws IOException {
+        skipSpaces();
+        boolean negative = false;
+        if (mPos < mEnd && (mBytes[mPos] == '-' || mBytes[mPos] == '+')) {
+            negative = mBytes[mPos++] == '-';
+        }
+        int start = mPos;
+        long value = 0;
+        while (mPos < mEnd && mBytes[mPos] >= '0' && mBytes[mPos] <= '9') {
+            value = value * 10 + (mBytes[mPos++] - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw error("integer overflow");
+            }
+        }
+        if (mPos == start) {
+            throw error("expected an integer");
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    // Decimal mantissa and exponent scaled by an exact power of ten, for
+    // the short decimals of OBJ files. Both are exact floats, so the double
+    // product or quotient rounds to the correct float. Longer mantissas and
+    // larger exponents would round twice, they go through Float.parseFloat.
+    private float parseFloat() throws IOException {
+        skipSpaces();
+        int start = mPos;
+        boolean negative = false;
+        if (mPos < mEnd && (mBytes[mPos] == '-' || mBytes[mPos] == '+')) {
+            negative = mBytes[mPos++] == '-';
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int numDigits = 0;
+        boolean fraction = false;
+        for (; mPos < mEnd; ++mPos) {
+            byte b = mBytes[mPos];
+            if (b >= '0' && b <= '9') {
+                ++numDigits;
+                if (mantissa < 100000000000000000L) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (fraction) {
+                        --exponent;
+                    }
+                } else if (!fraction) {
+                    ++exponent;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (numDigits == 0) {
+            throw error("expected a number");
+        }
+        if (mPos < mEnd && (mBytes[mPos] == 'e' || mBytes[mPos] == 'E')) {
+            ++mPos;
+            exponent += parseInt();
+        }
+
+        if (mantissa > MAX_EXACT_MANTISSA ||
+            exponent <= -POWERS_OF_TEN.length ||
+            exponent >= POWERS_OF_TEN.length) {
+            String token = new String(mBytes, start, mPos - start, ASCII);
+            try {
+                return Float.parseFloat(token);
+            } catch (NumberFormatException e) {
+                throw error("invalid number " + token);
+            }
+        }
+        double value = mantissa;
+        if (exponent >= 0) {
+            value *= POWERS_OF_TEN[exponent];
+        } else {
+            value /= POWERS_OF_TEN[-exponent];
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    private void checkIndices(IntArray indices, int numPoints, String what)
+            throws IOException {
+        for (int i = 0; i < indices.size; ++i) {
+            int index = indices.data[i];
+            if (index < 0 || index >= numPoints) {
+                throw new IOException(what + " index " + index +
+                                      " out of range, " + numPoints +
+                                      " points");
+            }
+        }
+    }
+
+    private IOException error(String message) {
+        return new IOException("line " + mLine + ": " + message);
+    }
+}
@@ -0,0 +1,101 @@
+package com.opensubdiv.OpenSubdivViewer;
+
+/**
+ * Linear blend skinning of a cage : its rest points and, for every point,
+ * numInfluences bone indices and weights. Points with fewer bones pad
+ * theirs with a weight of 0. The weights of a point normally sum to 1.
+ *
+ * A skin is registered once with MeshHandle.setSkin, after which
+ * MeshHandle.updateSkinnedPoints only sends the bone matrices and the
+ * cage is skinned natively. skin() is the Java reference of the native
+ * skinning, and getMaxError() compares the two on a mesh. The arrays are
+ * shared, not copied.
+ */
+public class Skin {
+
+    public final int numFloatsPerPoint;
+    public final float[] restPoints;
+    public final int numInfluences;
+    public final int[] boneIndices;
+    public final float[] weights;
+    public final int numBones;
+
+    public Skin(int numFloatsPerPoint, float[] restPoints,
+                int numInfluences, int[] boneIndices, float[] weights,
+                int numBones) {
+        int numPoints = restPoints.length / numFloatsPerPoint;
+        if (numInfluences < 1 ||
+                numInfluences > OpenSubdiv.MAX_SKIN_INFLUENCES ||
+                boneIndices.length != numPoints * numInfluences ||
+                weights.length != numPoints * numInfluences) {
+            throw new IllegalArgumentException(
+                "one to " + OpenSubdiv.MAX_SKIN_INFLUENCES +
+                " bone indices and weights per point");
+        }
+        this.numFloatsPerPoint = numFloatsPerPoint;
+        this.restPoints = restPoints;
+        this.numInfluences = numInfluences;
+        this.boneIndices = boneIndices;
+        this.weights = weights;
+        this.numBones = numBones;
+    }
+
+    public int getNumPoints() {
+        return restPoints.length / numFloatsPerPoint;
+    }
+
+    /**
+     * Skins the rest points into points, as the sum of the rest point
+     * transformed by each of its bones times the bone's weight.
+     * boneMatrices holds a column-major 4x4 matrix per bone, as built by
+     * android.opengl.Matrix. The floats after the position of each point
+     * are copied from the rest points.
+     */
+    public void skin(float[] boneMatrices, float[] points) {
+        System.arraycopy(restPoints, 0, points, 0, restPoints.length);
+
+        for (int i = 0; i < getNumPoints(); ++i) {
+            int p = i * numFloatsPerPoint;
+            float x = restPoints[p];
+            float y = restPoints[p + 1];
+            float z = restPoints[p + 2];
+
+            float sx = 0.0f, sy = 0.0f, sz = 0.0f;
+            for (int j = 0; j < numInfluences; ++j) {
+                int m = boneIndices[i * numInfluences + j] * 16;
+                float w = weights[i * numInfluences + j];
+                sx += w * (boneMatrices[m] * x + boneMatrices[m + 4] * y +
+                           boneMatrices[m + 8] * z + boneMatrices[m + 12]);
+                sy += w * (boneMatrices[m + 1] * x + boneMatrices[m + 5] * y +
+                           boneMatrices[m + 9] * z + boneMatrices[m + 13]);
+                sz += w * (boneMatrices[m + 2] * x + boneMatrices[m + 6] * y +
+                           boneMatrices[m + 10] * z + boneMatrices[m + 14]);
+            }
+            points[p] = sx;
+            points[p + 1] = sy;
+            points[p + 2] = sz;
+        }
+    }
+
+    /**
+     * Returns the largest coordinate difference between the points of the
+     * last updateSkinnedPoints of mesh, which must have been given
+     * boneMatrices, and skin(boneMatrices). Returns -1 if mesh has no
+     * skin.
+     */
+    public float getMaxError(MeshHandle mesh, float[] boneMatrices) {
+        float[] reference = new float[restPoints.length];
+        float[] skinned = new float[restPoints.length];
+        if (!mesh.getSkinnedPoints(skinned)) {
+            return -1.0f;
+        }
+        skin(boneMatrices, reference);
+
+        float maxError = 0.0f;
+        for (int i = 0; i < reference.length; ++i) {
+            maxError = Math.max(maxError,
+                                Math.abs(reference[i] - skinned[i]));
+        }
+        return maxError;
+    }
+}
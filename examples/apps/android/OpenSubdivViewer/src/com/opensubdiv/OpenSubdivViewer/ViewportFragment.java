@@ -1,26 +1,98 @@
 package com.opensubdiv.OpenSubdivViewer;
 
 import android.app.Fragment;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.net.Uri;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.TextView;
 
+import java.io.File;
 
 public class ViewportFragment extends Fragment {
 	
-    private GLSurfaceView mGLView;
+    private ViewportSurfaceView mGLView;
+    private TextView mStatsView;
 
     @Override
     public View onCreateView(LayoutInflater inflater,
                              ViewGroup container,
                              Bundle savedInstanceState) {
     mGLView = new ViewportSurfaceView(getActivity());
-        return mGLView;
+
+        // shape files opened with the viewer
+        Uri data = getActivity().getIntent().getData();
+        if (data != null && "file".equals(data.getScheme())) {
+            mGLView.loadShape(new File(data.getPath()));
+        }
+
+        // frame statistics, drawn over the viewport when shown
+        mStatsView = new TextView(getActivity());
+        mStatsView.setTypeface(Typeface.MONOSPACE);
+        mStatsView.setTextColor(Color.WHITE);
+        mStatsView.setVisibility(View.GONE);
+
+        FrameLayout layout = new FrameLayout(getActivity());
+        layout.addView(mGLView);
+        layout.addView(mStatsView,
+                       new FrameLayout.LayoutParams(
+                           ViewGroup.LayoutParams.WRAP_CONTENT,
+                           ViewGroup.LayoutParams.WRAP_CONTENT));
+        return layout;
+    }
+
+    /**
+     * Shows or hides the frame statistics over the viewport.
+     */
+    public void setStatsVisible(boolean visible) {
+        mStatsView.setText("");
+        mStatsView.setVisibility(visible ? View.VISIBLE : View.GONE);
+        mGLView.setStatsView(visible ? mStatsView : null);
+    }
+
+    /**
+     * Writes the statistics of the last frames to file as a Chrome trace.
+     */
+    public void exportTrace(File file) {
+        mGLView.exportTrace(file);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        // the meshes are released while the GL context still exists
+        mGLView.release();
+        mGLView.onPause();
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        mGLView.onResume();
+    }
+
+    @Override
+    public void onDestroyView() {
+        // each view has its own mesh factory and worker threads
+        mGLView.shutdown();
+        super.onDestroyView();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (mGLView != null &&
+                level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mGLView.trimMemory();
+        }
     }
 }
 
@@ -35,13 +107,77 @@ class ViewportSurfaceView extends GLSurfaceView {
         setEGLContextClientVersion(2);
 
         // Set the Renderer for drawing on the GLSurfaceView
-        mRenderer = new ViewportRenderer();
+        mRenderer = new ViewportRenderer(this);
         setRenderer(mRenderer);
 
         // Render the view only when there is a change in the drawing data
         setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
     }
 
+    /**
+     * Releases the mesh levels which aren't drawn, on the GL thread.
+     */
+    public void trimMemory() {
+        queueEvent(new Runnable() {
+            public void run() {
+                mRenderer.trimMemory();
+            }
+        });
+    }
+
+    /**
+     * Releases the meshes on the GL thread. Events queued before onPause
+     * run before the surface and context are released.
+     */
+    public void release() {
+        queueEvent(new Runnable() {
+            public void run() {
+                mRenderer.release();
+            }
+        });
+    }
+
+    /**
+     * Stops the worker threads building the meshes of this view.
+     */
+    public void shutdown() {
+        mRenderer.shutdown();
+    }
+
+    /**
+     * Imports a shape file off the GL thread and draws it once read.
+     */
+    public void loadShape(final File file) {
+        queueEvent(new Runnable() {
+            public void run() {
+                mRenderer.loadShape(file);
+            }
+        });
+    }
+
+    /**
+     * Shows the frame statistics in view, or stops if view is null.
+     */
+    public void setStatsView(final TextView view) {
+        queueEvent(new Runnable() {
+            public void run() {
+                mRenderer.setStatsView(view);
+            }
+        });
+        requestRender();
+    }
+
+    /**
+     * Writes the statistics of the last frames to file as a Chrome trace.
+     */
+    public void exportTrace(final File file) {
+        queueEvent(new Runnable() {
+            public void run() {
+                mRenderer.exportTrace(file);
+            }
+        });
+    }
+
     private final float TOUCH_SCALE_FACTOR = 180.0f / 320;
     private boolean mIsFlipped;
     private float mPreviousX;
@@ -59,7 +195,6 @@ class ViewportSurfaceView extends GLSurfaceView {
         switch (e.getAction()) {
             case MotionEvent.ACTION_DOWN:
                 mIsFlipped = mRenderer.isFlipped();
-                Log.d("isFlipped", "" + mIsFlipped);
                 break;
                 
             case MotionEvent.ACTION_MOVE:
@@ -1,12 +1,17 @@
 package com.opensubdiv.OpenSubdivViewer;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.Math;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -14,45 +19,89 @@ import javax.microedition.khronos.opengles.GL10;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.os.Debug;
 import android.util.Log;
+import android.widget.TextView;
 
 public class ViewportRenderer implements GLSurfaceView.Renderer {
 
     private static final String TAG = "ViewportRenderer";
+
+    // Fails debug builds on frames which allocate Java objects. Only the
+    // frames which build, switch or evict a mesh level may allocate; the
+    // statistics overlay allocates its text after the count.
+    private static final boolean CHECK_ALLOCATIONS = BuildConfig.DEBUG;
+
     private Mesh mMesh;
 
+    private final AsyncMeshFactory mMeshFactory;
+
+    // imported shape, null for the default torus
+    private Shape mShape;
+    private Future<Shape> mPendingShape;
+
     private final float[] mMVMatrix = new float[16];
     private final float[] mProjMatrix = new float[16];
+    private int mViewportHeight;
+
+    // frame statistics, shown in mStatsView at most every
+    // STATS_INTERVAL_NANOS
+    private static final long STATS_INTERVAL_NANOS = 500000000L;
+    private final FrameStats mFrameStats = new FrameStats();
+    private volatile TextView mStatsView;
+    private volatile String mStatsText = "";
+    private long mStatsTimestamp;
+    private final Runnable mShowStats = new Runnable() {
+        public void run() {
+            TextView view = mStatsView;
+            if (view != null) {
+                view.setText(mStatsText);
+            }
+        }
+    };
 
     // Declare as volatile because we are updating it from another thread
     public volatile float mAngleX;
     public volatile float mAngleY;
     public volatile float mAngleZ;
 
+    public ViewportRenderer(GLSurfaceView view) {
+        mMeshFactory = new AsyncMeshFactory(view);
+    }
+
+    // result of GetInteger and GetBufferParameter, on the GL thread
+    private static final int[] sParams = new int[1];
+
     public static int GetInteger(int value) {
-        IntBuffer paramsBuffer =
-            ByteBuffer.allocateDirect(4)
-                      .order(ByteOrder.nativeOrder())
-                      .asIntBuffer();
-        paramsBuffer.position(0);
-        GLES20.glGetIntegerv(value, paramsBuffer);
-        return paramsBuffer.get(0);
+        GLES20.glGetIntegerv(value, sParams, 0);
+        return sParams[0];
     }
 
     public static int GetBufferParameter(int target, int pname) {
-        IntBuffer paramsBuffer =
-            ByteBuffer.allocateDirect(4)
-                      .order(ByteOrder.nativeOrder())
-                      .asIntBuffer();
-        paramsBuffer.position(0);
-        GLES20.glGetBufferParameteriv(target, pname, paramsBuffer);
-        return paramsBuffer.get(0);
+        GLES20.glGetBufferParameteriv(target, pname, sParams, 0);
+        return sParams[0];
+    }
+
+    // Matrix.rotateM allocates a temporary matrix on older releases, this
+    // uses the 32 floats of scratch instead.
+    static void rotateM(float[] m, float[] scratch,
+                        float a, float x, float y, float z) {
+        Matrix.setRotateM(scratch, 0, a, x, y, z);
+        Matrix.multiplyMM(scratch, 16, m, 0, scratch, 0);
+        System.arraycopy(scratch, 16, m, 0, 16);
     }
 
+    // used by isFlipped, on the UI thread
+    private final float[] mFlipMatrix = new float[16];
+    private final float[] mFlipScratch = new float[32];
+
+    // used by onDrawFrame
+    private final float[] mRotateScratch = new float[32];
+
     public boolean isFlipped() {
-        float[] m = new float[16];
+        float[] m = mFlipMatrix;
         Matrix.setRotateM(m, 0, mAngleY, 1.0f, 0.0f, 0.0f);
-        Matrix.rotateM(m, 0, mAngleX, 0.0f, 1.0f, 0.0f);
+        rotateM(m, mFlipScratch, mAngleX, 0.0f, 1.0f, 0.0f);
         return (m[2]+m[6]+m[10] < 0.0);
         //return (m[8]+m[9]+m[10] < 0.0);
     }
@@ -64,25 +113,163 @@ public class ViewportRenderer implements GLSurfaceView.Renderer {
         GLES20.glClearColor(0.2f, 0.2f, 0.3f, 1.0f);
         GLES20.glLineWidth(2.0f);
 
-        mMesh = new Mesh();
+        // Release the mesh built for a previous (lost) context before
+        // creating any GL object in this one, so that stale names can't
+        // alias the new objects.
+        if (mMesh != null) {
+            mMesh.release();
+        }
+        mMesh = new Mesh(mMeshFactory, mShape);
+    }
+
+    /**
+     * Imports a shape file off the GL thread and draws it instead of the
+     * current mesh once it is read. Must be called on the GL thread.
+     */
+    public void loadShape(File file) {
+        if (mPendingShape != null) {
+            mPendingShape.cancel(false);
+        }
+        mPendingShape = mMeshFactory.importShape(file);
+    }
+
+    // Returns true if the pending shape was read this frame.
+    private boolean pollPendingShape() {
+        if (mPendingShape == null || !mPendingShape.isDone()) {
+            return false;
+        }
+        Future<Shape> pending = mPendingShape;
+        mPendingShape = null;
+        if (pending.isCancelled()) {
+            return false;
+        }
+        try {
+            mShape = pending.get();
+            mMesh.release();
+            mMesh = new Mesh(mMeshFactory, mShape);
+        } catch (ExecutionException e) {
+            Log.e(TAG, "import failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
     }
 
     public void onDrawFrame(GL10 unused) {
 
+        // released with the previous surface, see release()
+        if (mMesh == null) {
+            mMesh = new Mesh(mMeshFactory, mShape);
+        }
+
+        if (CHECK_ALLOCATIONS) {
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+        }
+
+        boolean newShape = pollPendingShape();
+
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
         GLES20.glEnable(GLES20.GL_DEPTH_TEST);
 
         Matrix.setLookAtM(mMVMatrix, 0, 0, 0, -4, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
 
-        Matrix.rotateM(mMVMatrix, 0, mAngleY, 1.0f, 0.0f, 0.0f);
-        Matrix.rotateM(mMVMatrix, 0, mAngleX, 0.0f, 1.0f, 0.0f);
+        rotateM(mMVMatrix, mRotateScratch, mAngleY, 1.0f, 0.0f, 0.0f);
+        rotateM(mMVMatrix, mRotateScratch, mAngleX, 0.0f, 1.0f, 0.0f);
+
+        long drawTimestamp = System.nanoTime();
+        mMesh.draw(mMVMatrix, mProjMatrix, mViewportHeight);
+        mFrameStats.recordDraw(drawTimestamp,
+                               System.nanoTime() - drawTimestamp,
+                               mMesh.getDrawnTriangles());
+
+        if (CHECK_ALLOCATIONS) {
+            Debug.stopAllocCounting();
+            int count = Debug.getThreadAllocCount();
+            if (count > 0 && !newShape && !mMesh.levelsChanged()) {
+                throw new IllegalStateException(
+                    "frame allocated " + count + " objects");
+            }
+        }
 
-        mMesh.draw(mMVMatrix, mProjMatrix);
+        TextView statsView = mStatsView;
+        if (statsView != null &&
+                drawTimestamp - mStatsTimestamp >= STATS_INTERVAL_NANOS) {
+            mStatsTimestamp = drawTimestamp;
+            mFrameStats.update(mMesh.getMeshHandle());
+            mStatsText = mFrameStats.summary();
+            statsView.post(mShowStats);
+        }
+    }
+
+    /**
+     * Shows the frame statistics in view, or stops showing them if view
+     * is null. Must be called on the GL thread.
+     */
+    public void setStatsView(TextView view) {
+        mStatsView = view;
+        mStatsTimestamp = 0;
+    }
+
+    /**
+     * Writes the statistics of the last frames to file as a Chrome trace,
+     * off the GL thread. Must be called on the GL thread.
+     */
+    public void exportTrace(final File file) {
+        if (mMesh != null) {
+            mFrameStats.update(mMesh.getMeshHandle());
+        }
+        final FrameStats stats = mFrameStats.copy();
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Writer out = new BufferedWriter(new FileWriter(file));
+                    try {
+                        stats.writeTrace(out);
+                    } finally {
+                        out.close();
+                    }
+                    Log.i(TAG, "wrote trace " + file.getPath());
+                } catch (IOException e) {
+                    Log.e(TAG, "can't write trace " + file.getPath(), e);
+                }
+            }
+        }, "TraceExport").start();
+    }
+
+    /**
+     * Releases the mesh levels which aren't drawn. Must be called on the
+     * GL thread.
+     */
+    public void trimMemory() {
+        if (mMesh != null) {
+            mMesh.trimMemory();
+        }
+    }
+
+    /**
+     * Releases the mesh and its GL objects before the surface goes away;
+     * it is built again for the next frame. Must be called on the GL
+     * thread, while the context is still current.
+     */
+    public void release() {
+        if (mMesh != null) {
+            mMesh.release();
+            mMesh = null;
+        }
+    }
+
+    /**
+     * Stops the mesh factory's worker threads once the view is destroyed.
+     */
+    public void shutdown() {
+        mMeshFactory.shutdown();
     }
 
     public void onSurfaceChanged(GL10 unused, int width, int height) {
         GLES20.glViewport(0, 0, width, height);
+        mViewportHeight = height;
 
         float ratio = (float) width / height;
         float dx = 0.5f * ratio;
@@ -187,23 +374,43 @@ class Mesh {
 "    return color;                                                         \n" +
 "}";
 
+    // With PACKED_NORMALS, the normals are octahedral encoded shorts, see
+    // OpenSubdiv.VERTEX_LAYOUT_PACKED, and the matrices include the decode
+    // of the positions.
     private final String vertexShaderCode =
         "uniform mat4 uMVPMatrix;" +
         "uniform mat4 uMVMatrix;" +
         "uniform mat4 uMVNormalMatrix;" +
 
         "attribute vec4 vertex;" +
-        "attribute vec3 normal;" +
         "attribute vec4 color;" +
 
         "varying vec3 Peye;" +
         "varying vec3 Neye;" +
-        "varying vec4 C;" +
+        "varying vec4 C;\n" +
+
+        "#ifdef PACKED_NORMALS\n" +
+        "attribute vec2 normal;" +
+        "vec3 decodeNormal() {" +
+        "  vec2 e = normal / 32767.0;" +
+        "  vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));" +
+        "  if (n.z < 0.0) {" +
+        "    n.x = (1.0 - abs(e.y)) * (e.x < 0.0 ? -1.0 : 1.0);" +
+        "    n.y = (1.0 - abs(e.x)) * (e.y < 0.0 ? -1.0 : 1.0);" +
+        "  }" +
+        "  return n;" +
+        "}\n" +
+        "#else\n" +
+        "attribute vec3 normal;" +
+        "vec3 decodeNormal() {" +
+        "  return normal;" +
+        "}\n" +
+        "#endif\n" +
 
         "void main() {" +
         "  gl_Position = uMVPMatrix * vertex;" +
         "  Peye = (uMVMatrix * vertex).xyz;" +
-        "  Neye = (uMVNormalMatrix * vec4(normal,1.0)).xyz;" +
+        "  Neye = (uMVNormalMatrix * vec4(decodeNormal(),1.0)).xyz;" +
         "  C = color;" +
         "}";
 
@@ -240,11 +447,74 @@ class Mesh {
         "  gl_FragColor = C;" +
         "}";
 
-    private final int mSurfaceProgram;
-    private final int mHullProgram;
-    private final int meshHandle;
+    // The surface program and its locations, looked up once it is linked.
+    private static class SurfaceProgram {
+        final ShaderProgram program;
+        final ShaderProgram.MatrixUniform mvp;
+        final ShaderProgram.MatrixUniform mv;
+        final ShaderProgram.MatrixUniform mvNormal;
+        final int vertex;
+        final int normal;
+        final int color;
+
+        SurfaceProgram(String vertexShaderCode, String fragmentShaderCode) {
+            program = new ShaderProgram(vertexShaderCode, fragmentShaderCode);
+            mvp = program.getMatrixUniform("uMVPMatrix");
+            mv = program.getMatrixUniform("uMVMatrix");
+            mvNormal = program.getMatrixUniform("uMVNormalMatrix");
+            vertex = program.getAttribLocation("vertex");
+            normal = program.getAttribLocation("normal");
+            color = program.getAttribLocation("color");
+            bindLighting(program);
+        }
+    }
 
-    private final int level = 3;
+    private final SurfaceProgram mSurfaceProgram;
+    // null unless vertexLayout is VERTEX_LAYOUT_PACKED
+    private final SurfaceProgram mPackedSurfaceProgram;
+    private final ShaderProgram mHullProgram;
+
+    // locations looked up once the program is linked
+    private final ShaderProgram.MatrixUniform mHullMVP;
+    private final int mHullVertex;
+    private final int mHullColor;
+    private final LodMeshHandle mLodMesh;
+    private MeshHandle meshHandle;
+    private int mDrawnLevel = -1;
+
+    // range of refinement levels, selected from the size of the mesh on
+    // screen
+    private final int minLevel = 1;
+    private final int maxLevel = 4;
+
+    // feature adaptive refinement, each level tessellated to the density
+    // of the matching uniform level
+    private final boolean adaptive = false;
+
+    // number of GL buffers each level's refined vertices are uploaded to
+    // in turn, 2 or 3 for meshes updated every frame so that an update
+    // doesn't wait for the GPU to finish drawing the previous one
+    private final int vertexBufferRingDepth = 1;
+
+    // layout of the refined vertices of uniform levels, see the
+    // OpenSubdiv.VERTEX_LAYOUT_* values. Adaptive levels are interleaved.
+    private final int vertexLayout = OpenSubdiv.VERTEX_LAYOUT_INTERLEAVED;
+
+    private final float[] mMVPMatrix = new float[16];
+    private final float[] mInvMatrix = new float[16];
+    private final float[] mMVNormalMatrix = new float[16];
+
+    // the chunks of the drawn level left after culling, 3 ints per chunk,
+    // see OpenSubdiv.GetVisibleChunks, and the camera in model space
+    private int[] mVisibleRanges = new int[0];
+    private final float[] mEye = new float[3];
+    private int mDrawnTriangles;
+
+    // packed layout only : the decode of the positions, and the matrices
+    // including it
+    private final float[] mDecodeMatrix = new float[16];
+    private final float[] mDecodedMVPMatrix = new float[16];
+    private final float[] mDecodedMVMatrix = new float[16];
 
     static final int COORDS_PER_VERTEX = 3;
     static final int COORDS_PER_NORMAL = 3;
@@ -255,14 +525,15 @@ class Mesh {
     private final float meshColor[] = { 0.2f, 0.2f, 0.8f, 1.0f };
     private final float hullColor[] = { 1.0f, 1.0f, 0.0f, 1.0f };
 
+    // the hull indices are the edges of the cage, see
+    // OpenSubdiv.GetHullIndexBufferId
     private int hullVertexBuffer = 0;
-    private int hullIndexBuffer = 0;
+    private final int[] mHullCountAndType = new int[2];
 
     void buildHull() {
-        int buf[] = { 0, 0 };
-        GLES20.glGenBuffers(2, buf, 0);
+        int buf[] = { 0 };
+        GLES20.glGenBuffers(1, buf, 0);
         hullVertexBuffer = buf[0];
-        hullIndexBuffer = buf[1];
 
         FloatBuffer vertexBuffer =
             ByteBuffer.allocateDirect(points.length * 4)
@@ -276,109 +547,90 @@ class Mesh {
                             points.length * 4, vertexBuffer,
                             GLES20.GL_STATIC_DRAW);
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
 
-        short hullVerts[] = new short[verts.length * 2];
-        int voffset = 0;
-        for (int i=0; i<nverts.length; ++i) {
-            int nv = nverts[i];
-            for (int j=0; j<nv; ++j) {
-               hullVerts[2*(voffset+j)] = (short) verts[voffset+j];
-               hullVerts[2*(voffset+j)+1] = (short) verts[voffset+((j+1) % nv)];
-            }
-            voffset += nv;
+    // The hull is drawn with the edges of the last selected level, all
+    // levels sharing the cage.
+    public void drawHull() {
+        if (hullVertexBuffer == 0 || meshHandle == null) {
+            return;
+        }
+        int hullIndexBuffer = meshHandle.getHullIndexBufferId(
+            mHullCountAndType);
+        if (hullIndexBuffer == 0) {
+            return;
         }
-        ShortBuffer indexBuffer =
-            ByteBuffer.allocateDirect(hullVerts.length * 2)
-                      .order(ByteOrder.nativeOrder())
-                      .asShortBuffer();
-        indexBuffer.put(hullVerts);
-        indexBuffer.position(0);
-
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, hullIndexBuffer);
-        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER,
-                            hullVerts.length * 2, indexBuffer,
-                            GLES20.GL_STATIC_DRAW);
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
-    }
 
-    public void drawHull(float[] mvMatrix, float[] pMatrix) {
-        GLES20.glUseProgram(mHullProgram);
-        bindTransform(mHullProgram, mvMatrix, pMatrix);
+        mHullProgram.use();
+        mHullMVP.set(mMVPMatrix);
 
-        int mColorHandle = GLES20.glGetAttribLocation(mHullProgram, "color");
-        GLES20.glVertexAttrib4f(mColorHandle,
-            hullColor[0], hullColor[1], hullColor[2], hullColor[3]);
+        if (mHullColor >= 0) {
+            GLES20.glVertexAttrib4f(mHullColor,
+                hullColor[0], hullColor[1], hullColor[2], hullColor[3]);
+        }
 
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, hullVertexBuffer);
         GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, hullIndexBuffer);
 
-        int mPositionHandle = GLES20.glGetAttribLocation(mHullProgram, "vertex");
+        int mPositionHandle = mHullVertex;
         GLES20.glEnableVertexAttribArray(mPositionHandle);
         GLES20.glVertexAttribPointer(mPositionHandle, COORDS_PER_VERTEX,
                                      GLES20.GL_FLOAT, false,
                                      3*4, 0);
 
-        GLES20.glDrawElements(GLES20.GL_LINES,
-                              verts.length * 2,
-                              GLES20.GL_UNSIGNED_SHORT, 0);
+        GLES20.glDrawElements(GLES20.GL_LINES, mHullCountAndType[0],
+                              mHullCountAndType[1], 0);
 
         GLES20.glDisableVertexAttribArray(mPositionHandle);
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
         GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
     }
 
-    public void bindTransform(int program, float[] mvMatrix, float[] pMatrix) {
-        float[] mvpMatrix = new float[16];
-        Matrix.multiplyMM(mvpMatrix, 0, pMatrix, 0, mvMatrix, 0);
-        float[] mInvMatrix = new float[16];
-        float[] mvpNormalMatrix = new float[16];
+    // The model-view-projection matrix is computed by draw, once per frame.
+    // Packed positions are decoded by the position matrices, the normals
+    // aren't affected.
+    private void bindTransform(SurfaceProgram surface, float[] mvMatrix,
+                               boolean packed) {
         Matrix.invertM(mInvMatrix, 0, mvMatrix, 0);
-        Matrix.transposeM(mvpNormalMatrix, 0, mInvMatrix, 0);
-
-        int mvp = GLES20.glGetUniformLocation(program, "uMVPMatrix");
-        if (mvp >= 0)
-            GLES20.glUniformMatrix4fv(
-                    mvp, 1, false, mvpMatrix, 0);
-        int mv = GLES20.glGetUniformLocation(program, "uMVMatrix");
-        if (mv >= 0)
-            GLES20.glUniformMatrix4fv(
-                    mv, 1, false, mvMatrix, 0);
-        int mvn = GLES20.glGetUniformLocation(program, "uMVNormalMatrix");
-        if (mvn >= 0)
-            GLES20.glUniformMatrix4fv(
-                    mvn, 1, false, mvpNormalMatrix, 0);
-    }
-
-    public void bindLighting(int program) {
-        float pos[] = { 0.0f, 0.0f, -1.0f, 0.0f };
-        GLES20.glUniform4fv(GLES20.glGetUniformLocation(program,
-                "lightSource[0].position"), 1, pos, 0);
-
-        float amb[] = { 0.2f, 0.2f, 0.2f, 0.0f };
-        GLES20.glUniform4fv(GLES20.glGetUniformLocation(program,
-                "lightSource[0].ambient"), 1, amb, 0);
-
-        float diff[] = { 0.8f, 0.8f, 0.8f, 0.0f };
-        GLES20.glUniform4fv(GLES20.glGetUniformLocation(program,
-                "lightSource[0].diffuse"), 1, diff, 0);
-
-        float spec[] = { 0.8f, 0.8f, 0.8f, 0.0f };
-        GLES20.glUniform4fv(GLES20.glGetUniformLocation(program,
-                "lightSource[0].specular"), 1, spec, 0);
-
-        float att[] = { 1.0f, 0.0f, 0.0f };
-        GLES20.glUniform3fv(GLES20.glGetUniformLocation(program,
-                "lightSource[0].attenuation"), 1, att, 0);
-
-        float spotDir[] = { 0.0f, 0.0f, 1.0f };
-        GLES20.glUniform3fv(GLES20.glGetUniformLocation(program,
-                "lightSource[0].spotDirection"), 1, spotDir, 0);
-
-        GLES20.glUniform1f(GLES20.glGetUniformLocation(program,
-                "lightSource[0].spotExponent"), 0.0f);
+        Matrix.transposeM(mMVNormalMatrix, 0, mInvMatrix, 0);
+
+        if (packed) {
+            meshHandle.getVertexDecodeMatrix(mDecodeMatrix);
+            Matrix.multiplyMM(mDecodedMVPMatrix, 0, mMVPMatrix, 0,
+                              mDecodeMatrix, 0);
+            Matrix.multiplyMM(mDecodedMVMatrix, 0, mvMatrix, 0,
+                              mDecodeMatrix, 0);
+            surface.mvp.set(mDecodedMVPMatrix);
+            surface.mv.set(mDecodedMVMatrix);
+        } else {
+            surface.mvp.set(mMVPMatrix);
+            surface.mv.set(mvMatrix);
+        }
+        surface.mvNormal.set(mMVNormalMatrix);
+    }
 
-        GLES20.glUniform1f(GLES20.glGetUniformLocation(program,
+    // The lights don't change, they are set once after linking.
+    private static void bindLighting(ShaderProgram program) {
+        program.use();
+
+        GLES20.glUniform4f(program.getUniformLocation(
+                "lightSource[0].position"), 0.0f, 0.0f, -1.0f, 0.0f);
+        GLES20.glUniform4f(program.getUniformLocation(
+                "lightSource[0].ambient"), 0.2f, 0.2f, 0.2f, 0.0f);
+        GLES20.glUniform4f(program.getUniformLocation(
+                "lightSource[0].diffuse"), 0.8f, 0.8f, 0.8f, 0.0f);
+        GLES20.glUniform4f(program.getUniformLocation(
+                "lightSource[0].specular"), 0.8f, 0.8f, 0.8f, 0.0f);
+        GLES20.glUniform3f(program.getUniformLocation(
+                "lightSource[0].attenuation"), 1.0f, 0.0f, 0.0f);
+        GLES20.glUniform3f(program.getUniformLocation(
+                "lightSource[0].spotDirection"), 0.0f, 0.0f, 1.0f);
+        GLES20.glUniform1f(program.getUniformLocation(
+                "lightSource[0].spotExponent"), 0.0f);
+        GLES20.glUniform1f(program.getUniformLocation(
                 "lightSource[0].spotCosCutoff"), -1.0f);
+
+        GLES20.glUseProgram(0);
     }
 
     void buildCube() {
@@ -463,97 +715,210 @@ class Mesh {
         }
     }
 
-    public Mesh() {
-        int vertexShader = ViewportRenderer.loadShader(
-                GLES20.GL_VERTEX_SHADER, vertexShaderCode);
-        int fragmentShader = ViewportRenderer.loadShader(
-                GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
-
-        mSurfaceProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mSurfaceProgram, vertexShader);
-        GLES20.glAttachShader(mSurfaceProgram, fragmentShader);
-        GLES20.glLinkProgram(mSurfaceProgram);
-
-        vertexShader = ViewportRenderer.loadShader(
-                GLES20.GL_VERTEX_SHADER, hullVertexShaderCode);
-        fragmentShader = ViewportRenderer.loadShader(
-                GLES20.GL_FRAGMENT_SHADER, hullFragmentShaderCode);
-
-        mHullProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mHullProgram, vertexShader);
-        GLES20.glAttachShader(mHullProgram, fragmentShader);
-        GLES20.glLinkProgram(mHullProgram);
+    /**
+     * Draws the given shape, or the default torus if shape is null.
+     */
+    public Mesh(AsyncMeshFactory meshFactory, Shape shape) {
+        mSurfaceProgram = new SurfaceProgram(vertexShaderCode,
+                                             fragmentShaderCode);
+        if (vertexLayout == OpenSubdiv.VERTEX_LAYOUT_PACKED) {
+            mPackedSurfaceProgram = new SurfaceProgram(
+                "#define PACKED_NORMALS\n" + vertexShaderCode,
+                fragmentShaderCode);
+        } else {
+            mPackedSurfaceProgram = null;
+        }
 
-        //buildCube();
-        buildTorus();
+        mHullProgram = new ShaderProgram(hullVertexShaderCode,
+                                         hullFragmentShaderCode);
+        mHullMVP = mHullProgram.getMatrixUniform("uMVPMatrix");
+        mHullVertex = mHullProgram.getAttribLocation("vertex");
+        mHullColor = mHullProgram.getAttribLocation("color");
+
+        if (shape != null) {
+            points = shape.points;
+            nverts = shape.nverts;
+            verts = shape.verts;
+        } else {
+            //buildCube();
+            buildTorus();
+            shape = new Shape(nverts, verts, COORDS_PER_VERTEX, points);
+        }
 
         buildHull();
 
-        meshHandle = OpenSubdiv.CreateCatmarkMesh(
-                level, nverts, verts, COORDS_PER_VERTEX, points);
-        OpenSubdiv.UpdatePoints(meshHandle, level, points);
-
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER,
-                            OpenSubdiv.GetVertexBufferId(meshHandle));
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 
-                            OpenSubdiv.GetTrianglesIndexBufferId(meshHandle));
+        // levels are refined off the GL thread when first selected, the
+        // hull is drawn once one is ready.
+        mLodMesh = new LodMeshHandle(meshFactory, adaptive,
+                                     minLevel, maxLevel, shape);
+        mLodMesh.setVertexLayout(vertexLayout);
 
     	Log.d("max texture size:", "" +
             ViewportRenderer.GetInteger(GLES20.GL_MAX_TEXTURE_SIZE));
     	Log.d("max vertex texture image units:", "" +
             ViewportRenderer.GetInteger(GLES20.GL_MAX_VERTEX_TEXTURE_IMAGE_UNITS));
+    }
+
+    private boolean isMeshReady(int viewportHeight) {
+        meshHandle = mLodMesh.select(mMVPMatrix, viewportHeight);
+        if (meshHandle != null && mLodMesh.getDrawnLevel() != mDrawnLevel) {
+            mDrawnLevel = mLodMesh.getDrawnLevel();
+            meshHandle.setVertexBufferRingDepth(vertexBufferRingDepth);
+            mVisibleRanges = new int[3 * meshHandle.getNumChunks()];
+            logMeshBuffers();
+        }
+        return meshHandle != null;
+    }
+
+    private void logMeshBuffers() {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER,
+                            meshHandle.getVertexBufferId());
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 
+                            meshHandle.getTrianglesIndexBufferId());
 
         Log.d("mesh triangles points", "" +
             ViewportRenderer.GetBufferParameter(GLES20.GL_ARRAY_BUFFER, GLES20.GL_BUFFER_SIZE));
         Log.d("mesh triangles indices", "" +
             ViewportRenderer.GetBufferParameter(GLES20.GL_ELEMENT_ARRAY_BUFFER, GLES20.GL_BUFFER_SIZE));
         Log.d("mesh triangles vertices", "" +
-            OpenSubdiv.GetTrianglesIndexCount(meshHandle));
+            meshHandle.getTrianglesIndexCount());
 
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
         GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
     }
 
-    public void drawSurface(float[] mvMatrix, float[] pMatrix) {
-        GLES20.glUseProgram(mSurfaceProgram);
-        bindTransform(mSurfaceProgram, mvMatrix, pMatrix);
+    // Points the attributes at the vertices from baseVertex on, which
+    // the indices of a chunk are relative to.
+    private void bindVertexAttributes(SurfaceProgram surface, boolean packed,
+                                      int vertexBuffer, int normalBuffer,
+                                      int baseVertex) {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer);
+        if (packed) {
+            // 4 shorts of position, 2 of normal
+            GLES20.glVertexAttribPointer(surface.vertex, COORDS_PER_VERTEX,
+                                         GLES20.GL_SHORT, false,
+                                         6*2, baseVertex*6*2);
+            GLES20.glVertexAttribPointer(surface.normal, 2,
+                                         GLES20.GL_SHORT, false,
+                                         6*2, baseVertex*6*2 + 4*2);
+            return;
+        }
 
-        bindLighting(mSurfaceProgram);
+        int vertexStride = (normalBuffer != 0) ? 3*4 : 6*4;
+        GLES20.glVertexAttribPointer(surface.vertex, COORDS_PER_VERTEX,
+                                     GLES20.GL_FLOAT, false,
+                                     vertexStride, baseVertex*vertexStride);
+        if (normalBuffer != 0) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, normalBuffer);
+            GLES20.glVertexAttribPointer(surface.normal, COORDS_PER_NORMAL,
+                                         GLES20.GL_FLOAT, false,
+                                         3*4, baseVertex*3*4);
+        } else {
+            GLES20.glVertexAttribPointer(surface.normal, COORDS_PER_NORMAL,
+                                         GLES20.GL_FLOAT, false,
+                                         vertexStride,
+                                         baseVertex*vertexStride + 3*4);
+        }
+    }
 
-        int mColorHandle = GLES20.glGetAttribLocation(mSurfaceProgram, "color");
-        GLES20.glVertexAttrib4f(mColorHandle,
+    // Draws the chunks left by culling, see OpenSubdiv.GetVisibleChunks.
+    public void drawSurface(float[] mvMatrix) {
+        boolean packed = meshHandle.getVertexLayout() ==
+                         OpenSubdiv.VERTEX_LAYOUT_PACKED;
+        SurfaceProgram surface = packed ? mPackedSurfaceProgram
+                                        : mSurfaceProgram;
+        surface.program.use();
+        bindTransform(surface, mvMatrix, packed);
+
+        // culled in model space, before the decode of packed positions
+        mEye[0] = mInvMatrix[12];
+        mEye[1] = mInvMatrix[13];
+        mEye[2] = mInvMatrix[14];
+        int numRanges = meshHandle.getVisibleChunks(mMVPMatrix, mEye,
+                                                    mVisibleRanges);
+
+        GLES20.glVertexAttrib4f(surface.color,
             meshColor[0], meshColor[1], meshColor[2], meshColor[3]);
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER,
-                            OpenSubdiv.GetVertexBufferId(meshHandle));
+        int vertexBuffer = meshHandle.getVertexBufferId();
+        int normalBuffer = meshHandle.getNormalBufferId();
         GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 
-                            OpenSubdiv.GetTrianglesIndexBufferId(meshHandle));
+                            meshHandle.getTrianglesIndexBufferId());
+
+        GLES20.glEnableVertexAttribArray(surface.vertex);
+        GLES20.glEnableVertexAttribArray(surface.normal);
+
+        mDrawnTriangles = 0;
+        int boundBaseVertex = -1;
+        for (int r = 0; r < numRanges; ++r) {
+            int baseVertex = mVisibleRanges[r*3];
+            int firstIndex = mVisibleRanges[r*3 + 1];
+            int numIndices = mVisibleRanges[r*3 + 2];
+            if (baseVertex != boundBaseVertex) {
+                bindVertexAttributes(surface, packed, vertexBuffer,
+                                     normalBuffer, baseVertex);
+                boundBaseVertex = baseVertex;
+            }
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, numIndices,
+                                  GLES20.GL_UNSIGNED_SHORT, firstIndex*2);
+            mDrawnTriangles += numIndices / 3;
+        }
 
-        int mPositionHandle = GLES20.glGetAttribLocation(mSurfaceProgram, "vertex");
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
-        GLES20.glVertexAttribPointer(mPositionHandle, COORDS_PER_VERTEX,
-                                     GLES20.GL_FLOAT, false,
-                                     6*4, 0);
+        GLES20.glDisableVertexAttribArray(surface.vertex);
+        GLES20.glDisableVertexAttribArray(surface.normal);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
 
-        int mNormalHandle = GLES20.glGetAttribLocation(mSurfaceProgram, "normal");
-        GLES20.glEnableVertexAttribArray(mNormalHandle);
-        GLES20.glVertexAttribPointer(mNormalHandle, COORDS_PER_NORMAL,
-                                     GLES20.GL_FLOAT, false,
-                                     6*4, 3*4);
+    public void draw(float[] mvMatrix, float[] pMatrix, int viewportHeight) {
+        Matrix.multiplyMM(mMVPMatrix, 0, pMatrix, 0, mvMatrix, 0);
 
-        GLES20.glDrawElements(GLES20.GL_TRIANGLES,
-                              OpenSubdiv.GetTrianglesIndexCount(meshHandle),
-                              GLES20.GL_UNSIGNED_SHORT, 0);
+        boolean ready = isMeshReady(viewportHeight);
+        drawHull();
+        if (ready) {
+            drawSurface(mvMatrix);
+        }
+    }
 
-        GLES20.glDisableVertexAttribArray(mPositionHandle);
-        GLES20.glDisableVertexAttribArray(mNormalHandle);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    /**
+     * Returns the mesh level drawn by the last draw, or null if none was.
+     */
+    public MeshHandle getMeshHandle() {
+        return meshHandle;
+    }
+
+    /**
+     * Returns the number of triangles left after culling by the last draw.
+     */
+    public int getDrawnTriangles() {
+        return meshHandle != null ? mDrawnTriangles : 0;
+    }
+
+    /**
+     * Returns whether the last draw requested, received, switched or
+     * evicted a mesh level, see LodMeshHandle.levelsChanged().
+     */
+    public boolean levelsChanged() {
+        return mLodMesh.levelsChanged();
+    }
+
+    public void trimMemory() {
+        mLodMesh.trimMemory();
     }
 
-    public void draw(float[] mvMatrix, float[] pMatrix) {
-        drawHull(mvMatrix, pMatrix);
-        drawSurface(mvMatrix, pMatrix);
+    public void release() {
+        mLodMesh.close();
+        meshHandle = null;
+
+        int buf[] = { hullVertexBuffer };
+        GLES20.glDeleteBuffers(1, buf, 0);
+        hullVertexBuffer = 0;
+
+        mSurfaceProgram.program.release();
+        if (mPackedSurfaceProgram != null) {
+            mPackedSurfaceProgram.program.release();
+        }
+        mHullProgram.release();
     }
 }
 
@@ -97,6 +97,7 @@ public:
 
 private:
     template <class X, class Y> friend class FarBilinearSubdivisionTablesFactory;
+    template <class X> friend class FarMeshSerializer;
     friend class FarDispatcher<U>;
 
     FarBilinearSubdivisionTables( FarMesh<U> * mesh, int maxlevel );
@@ -97,6 +97,7 @@ public:
 
 private:
     template <class X, class Y> friend class FarCatmarkSubdivisionTablesFactory;
+    template <class X> friend class FarMeshSerializer;
     friend class FarDispatcher<U>;
 
     // Private constructor called by factory
@@ -87,6 +87,7 @@ public:
 
 private:
     template <class X, class Y> friend class FarLoopSubdivisionTablesFactory;
+    template <class X> friend class FarMeshSerializer;
     friend class FarDispatcher<U>;
 
     FarLoopSubdivisionTables( FarMesh<U> * mesh, int maxlevel );
@@ -71,6 +71,7 @@ namespace OpenSubdiv {
 namespace OPENSUBDIV_VERSION {
 
 template <class U> class FarDispatcher;
+template <class U> class FarMeshSerializer;
 
 /// \brief Feature Adaptive Mesh class.
 ///
@@ -126,8 +127,9 @@ private:
     // Note : the vertex classes are renamed <X,Y> so as not to shadow the 
     // declaration of the templated vertex class U.
     template <class X, class Y> friend class FarMeshFactory;
+    template <class X> friend class FarMeshSerializer;
 
-    FarMesh() : _subdivisionTables(0), _patchTables(0), _vertexEditTables(0) { }
+    FarMesh() : _subdivisionTables(0), _patchTables(0), _vertexEditTables(0), _totalFVarWidth(0) { }
 
     // non-copyable, so these are not implemented:
     FarMesh(FarMesh<U> const &);
@@ -0,0 +1,524 @@
+//
+//     Copyright (C) Pixar. All rights reserved.
+//
+//     This license governs use of the accompanying software. If you
+//     use the software, you accept this license. If you do not accept
+//     the license, do not use the software.
+//
+//     1. Definitions
+//     The terms "reproduce," "reproduction," "derivative works," and
+//     "distribution" have the same meaning here as under U.S.
+//     copyright law.  A "contribution" is the original software, or
+//     any additions or changes to the software.
+//     A "contributor" is any person or entity that distributes its
+//     contribution under this license.
+//     "Licensed patents" are a contributor's patent claims that read
+//     directly on its contribution.
+//
+//     2. Grant of Rights
+//     (A) Copyright Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free copyright license to reproduce its contribution,
+//     prepare derivative works of its contribution, and distribute
+//     its contribution or any derivative works that you create.
+//     (B) Patent Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free license under its licensed patents to make, have
+//     made, use, sell, offer for sale, import, and/or otherwise
+//     dispose of its contribution in the software or derivative works
+//     of the contribution in the software.
+//
+//     3. Conditions and Limitations
+//     (A) No Trademark License- This license does not grant you
+//     rights to use any contributor's name, logo, or trademarks.
+//     (B) If you bring a patent claim against any contributor over
+//     patents that you claim are infringed by the software, your
+//     patent license from such contributor to the software ends
+//     automatically.
+//     (C) If you distribute any portion of the software, you must
+//     retain all copyright, patent, trademark, and attribution
+//     notices that are present in the software.
+//     (D) If you distribute any portion of the software in source
+//     code form, you may do so only under this license by including a
+//     complete copy of this license with your distribution. If you
+//     distribute any portion of the software in compiled or object
+//     code form, you may only do so under a license that complies
+//     with this license.
+//     (E) The software is licensed "as-is." You bear the risk of
+//     using it. The contributors give no express warranties,
+//     guarantees or conditions. You may have additional consumer
+//     rights under your local laws which this license cannot change.
+//     To the extent permitted under your local laws, the contributors
+//     exclude the implied warranties of merchantability, fitness for
+//     a particular purpose and non-infringement.
+//
+
+#ifndef FAR_MESH_SERIALIZER_H
+#define FAR_MESH_SERIALIZER_H
+
+#include "../version.h"
+
+#include "../far/mesh.h"
+#include "../far/dispatcher.h"
+#include "../far/bilinearSubdivisionTables.h"
+#include "../far/catmarkSubdivisionTables.h"
+#include "../far/loopSubdivisionTables.h"
+
+#include <cassert>
+#include <cstring>
+#include <vector>
+
+namespace OpenSubdiv {
+namespace OPENSUBDIV_VERSION {
+
+/// \brief Serializes a FarMesh to a flat binary buffer.
+///
+/// FarMeshSerializer writes the subdivision tables, patch tables and face
+/// topology of a FarMesh into a buffer, and creates an identical FarMesh
+/// from that buffer without an HbrMesh : meshes read back skip the Hbr
+/// topology analysis of FarMeshFactory entirely, which makes this suitable
+/// for caching refined topologies on disk.
+///
+/// The buffer uses the native byte order and type sizes and is tagged with
+/// OPENSUBDIV_VERSION : buffers written by another version of the library,
+/// or on a platform with a different byte order, are rejected by Read()
+/// rather than converted.
+///
+/// Hierarchical vertex edits and the vertices themselves (U) are not
+/// serialized : meshes read back have default constructed vertices.
+///
+template <class U> class FarMeshSerializer {
+
+public:
+    /// Appends the serialized mesh to buffer. Returns false, leaving buffer
+    /// untouched, if the mesh has vertex edits.
+    static bool Write( FarMesh<U> const * mesh, std::vector<char> & buffer );
+
+    /// Creates a mesh from size bytes of data written by Write. Returns NULL
+    /// if the data was written by another version of the library or is
+    /// truncated. If consumed is not NULL, it is set to the number of bytes
+    /// read.
+    static FarMesh<U> * Read( const char * data, size_t size, size_t * consumed=0 );
+
+private:
+    enum Scheme {
+        kBilinear = 0,
+        kCatmark,
+        kLoop
+    };
+
+    class Writer {
+    public:
+        Writer( std::vector<char> & buffer ) : _buffer(buffer) { }
+
+        void Write( const void * data, size_t size ) {
+            const char * bytes = static_cast<const char *>(data);
+            _buffer.insert(_buffer.end(), bytes, bytes+size);
+        }
+
+        void WriteInt( int value ) {
+            Write(&value, sizeof(int));
+        }
+
+        template <class T> void WriteVector( std::vector<T> const & v ) {
+            WriteInt((int)v.size());
+            if (!v.empty())
+                Write(&v[0], v.size()*sizeof(T));
+        }
+
+        template <class T> void WriteTable( FarTable<T> const & table ) {
+            WriteVector(table._markers);
+            WriteVector(table._data);
+        }
+
+    private:
+        std::vector<char> & _buffer;
+    };
+
+    class Reader {
+    public:
+        Reader( const char * data, size_t size ) :
+            _data(data), _end(data+size), _valid(true) { }
+
+        bool IsValid() const { return _valid; }
+
+        const char * GetPosition() const { return _data; }
+
+        bool Read( void * data, size_t size ) {
+            if (!_valid || size > (size_t)(_end-_data)) {
+                _valid = false;
+                return false;
+            }
+            memcpy(data, _data, size);
+            _data += size;
+            return true;
+        }
+
+        int ReadInt() {
+            int value = 0;
+            Read(&value, sizeof(int));
+            return value;
+        }
+
+        template <class T> bool ReadVector( std::vector<T> & v ) {
+            int size = ReadInt();
+            if (size < 0 || (size_t)size > (size_t)(_end-_data)/sizeof(T)) {
+                _valid = false;
+                return false;
+            }
+            v.resize(size);
+            return size==0 || Read(&v[0], size*sizeof(T));
+        }
+
+        template <class T> bool ReadTable( FarTable<T> & table ) {
+            return ReadVector(table._markers) && ReadVector(table._data);
+        }
+
+    private:
+        const char * _data,
+                   * _end;
+        bool _valid;
+    };
+
+    static const char * getVersionTag();
+
+    static void writePatches( Writer & writer, FarPatchTables::Patches const & patches );
+
+    static void readPatches( Reader & reader, FarPatchTables::Patches & patches );
+
+    static void writeTransitionPatches( Writer & writer, FarPatchTables::TPatches const & patches );
+
+    static void readTransitionPatches( Reader & reader, FarPatchTables::TPatches & patches );
+};
+
+#define FAR_MESH_SERIALIZER_STRINGIZE(x) FAR_MESH_SERIALIZER_STRINGIZE2(x)
+#define FAR_MESH_SERIALIZER_STRINGIZE2(x) #x
+
+// Identifies the library version, the byte order and the layout of the
+// serialized data
+template <class U> const char *
+FarMeshSerializer<U>::getVersionTag() {
+    return "FarMesh " FAR_MESH_SERIALIZER_STRINGIZE(OPENSUBDIV_VERSION) " 1";
+}
+
+#undef FAR_MESH_SERIALIZER_STRINGIZE2
+#undef FAR_MESH_SERIALIZER_STRINGIZE
+
+template <class U> void
+FarMeshSerializer<U>::writePatches( Writer & writer, FarPatchTables::Patches const & patches ) {
+
+    writer.WriteTable(patches._R_IT);
+    writer.WriteTable(patches._B_IT);
+    writer.WriteTable(patches._C_IT);
+    writer.WriteTable(patches._G_IT);
+    writer.WriteTable(patches._G_B_IT);
+
+    writer.WriteVector(patches._R_PTX);
+    writer.WriteVector(patches._B_PTX);
+    writer.WriteVector(patches._C_PTX);
+    writer.WriteVector(patches._G_PTX);
+    writer.WriteVector(patches._G_B_PTX);
+
+    writer.WriteVector(patches._R_FVD);
+    writer.WriteVector(patches._B_FVD);
+    writer.WriteVector(patches._C_FVD);
+    writer.WriteVector(patches._G_FVD);
+    writer.WriteVector(patches._G_B_FVD);
+}
+
+template <class U> void
+FarMeshSerializer<U>::readPatches( Reader & reader, FarPatchTables::Patches & patches ) {
+
+    reader.ReadTable(patches._R_IT);
+    reader.ReadTable(patches._B_IT);
+    reader.ReadTable(patches._C_IT);
+    reader.ReadTable(patches._G_IT);
+    reader.ReadTable(patches._G_B_IT);
+
+    reader.ReadVector(patches._R_PTX);
+    reader.ReadVector(patches._B_PTX);
+    reader.ReadVector(patches._C_PTX);
+    reader.ReadVector(patches._G_PTX);
+    reader.ReadVector(patches._G_B_PTX);
+
+    reader.ReadVector(patches._R_FVD);
+    reader.ReadVector(patches._B_FVD);
+    reader.ReadVector(patches._C_FVD);
+    reader.ReadVector(patches._G_FVD);
+    reader.ReadVector(patches._G_B_FVD);
+}
+
+template <class U> void
+FarMeshSerializer<U>::writeTransitionPatches( Writer & writer, FarPatchTables::TPatches const & patches ) {
+
+    writer.WriteTable(patches._R_IT);
+    writer.WriteVector(patches._R_PTX);
+    writer.WriteVector(patches._R_FVD);
+
+    for (int i=0; i<4; ++i) {
+        writer.WriteTable(patches._B_IT[i]);
+        writer.WriteTable(patches._C_IT[i]);
+        writer.WriteVector(patches._B_PTX[i]);
+        writer.WriteVector(patches._C_PTX[i]);
+        writer.WriteVector(patches._B_FVD[i]);
+        writer.WriteVector(patches._C_FVD[i]);
+    }
+}
+
+template <class U> void
+FarMeshSerializer<U>::readTransitionPatches( Reader & reader, FarPatchTables::TPatches & patches ) {
+
+    reader.ReadTable(patches._R_IT);
+    reader.ReadVector(patches._R_PTX);
+    reader.ReadVector(patches._R_FVD);
+
+    for (int i=0; i<4; ++i) {
+        reader.ReadTable(patches._B_IT[i]);
+        reader.ReadTable(patches._C_IT[i]);
+        reader.ReadVector(patches._B_PTX[i]);
+        reader.ReadVector(patches._C_PTX[i]);
+        reader.ReadVector(patches._B_FVD[i]);
+        reader.ReadVector(patches._C_FVD[i]);
+    }
+}
+
+template <class U> bool
+FarMeshSerializer<U>::Write( FarMesh<U> const * mesh, std::vector<char> & buffer ) {
+
+    assert(mesh && mesh->_subdivisionTables);
+
+    if (mesh->_vertexEditTables)
+        return false;
+
+    FarSubdivisionTables<U> const * tables = mesh->_subdivisionTables;
+
+    Scheme scheme;
+    FarTable<int> const * F_ITa = 0;
+    FarTable<unsigned int> const * F_IT = 0;
+    if (FarCatmarkSubdivisionTables<U> const * catmark =
+            dynamic_cast<FarCatmarkSubdivisionTables<U> const *>(tables)) {
+        scheme = kCatmark;
+        F_ITa = &catmark->_F_ITa;
+        F_IT = &catmark->_F_IT;
+    } else if (FarBilinearSubdivisionTables<U> const * bilinear =
+            dynamic_cast<FarBilinearSubdivisionTables<U> const *>(tables)) {
+        scheme = kBilinear;
+        F_ITa = &bilinear->_F_ITa;
+        F_IT = &bilinear->_F_IT;
+    } else {
+        assert(dynamic_cast<FarLoopSubdivisionTables<U> const *>(tables));
+        scheme = kLoop;
+    }
+
+    Writer writer(buffer);
+
+    const char * tag = getVersionTag();
+    int byteOrder = 0x01020304;
+    writer.WriteInt((int)strlen(tag));
+    writer.Write(tag, strlen(tag));
+    writer.WriteInt(byteOrder);
+
+    // subdivision tables
+    writer.WriteInt(scheme);
+    writer.WriteInt(tables->GetMaxLevel());
+
+    writer.WriteTable(tables->_E_IT);
+    writer.WriteTable(tables->_E_W);
+    writer.WriteTable(tables->_V_ITa);
+    writer.WriteTable(tables->_V_IT);
+    writer.WriteTable(tables->_V_W);
+
+    writer.WriteInt((int)tables->_batches.size());
+    for (int i=0; i<(int)tables->_batches.size(); ++i) {
+        typename FarSubdivisionTables<U>::VertexKernelBatch const & batch = tables->_batches[i];
+        int values[8] = { batch.kernelF, batch.kernelE,
+                          batch.kernelB.first, batch.kernelB.second,
+                          batch.kernelA1.first, batch.kernelA1.second,
+                          batch.kernelA2.first, batch.kernelA2.second };
+        writer.Write(values, sizeof(values));
+    }
+
+    writer.WriteVector(tables->_vertsOffsets);
+    writer.WriteInt((int)tables->_numCoarseVertices);
+
+    if (F_IT) {
+        writer.WriteTable(*F_ITa);
+        writer.WriteTable(*F_IT);
+    }
+
+    // mesh
+    writer.WriteInt(mesh->GetNumVertices());
+
+    writer.WriteInt((int)mesh->_faceverts.size());
+    for (int i=0; i<(int)mesh->_faceverts.size(); ++i)
+        writer.WriteVector(mesh->_faceverts[i]);
+
+    writer.WriteInt((int)mesh->_ptexcoordinates.size());
+    for (int i=0; i<(int)mesh->_ptexcoordinates.size(); ++i)
+        writer.WriteVector(mesh->_ptexcoordinates[i]);
+
+    writer.WriteInt((int)mesh->_fvarData.size());
+    for (int i=0; i<(int)mesh->_fvarData.size(); ++i)
+        writer.WriteVector(mesh->_fvarData[i]);
+
+    writer.WriteInt(mesh->_totalFVarWidth);
+
+    // patch tables
+    FarPatchTables const * patchTables = mesh->_patchTables;
+    writer.WriteInt(patchTables ? 1 : 0);
+    if (patchTables) {
+        writer.WriteInt(patchTables->_maxValence);
+
+        writePatches(writer, patchTables->_full);
+        for (int i=0; i<5; ++i)
+            writeTransitionPatches(writer, patchTables->_transition[i]);
+
+        writer.WriteVector(patchTables->_vertexValenceTable);
+        writer.WriteVector(patchTables->_quadOffsetTable);
+    }
+
+    return true;
+}
+
+template <class U> FarMesh<U> *
+FarMeshSerializer<U>::Read( const char * data, size_t size, size_t * consumed ) {
+
+    Reader reader(data, size);
+
+    const char * tag = getVersionTag();
+    int tagLength = reader.ReadInt();
+    if (tagLength != (int)strlen(tag) || !reader.IsValid())
+        return 0;
+
+    std::vector<char> readTag(tagLength);
+    reader.Read(&readTag[0], tagLength);
+    if (!reader.IsValid() || strncmp(&readTag[0], tag, tagLength) != 0 ||
+        reader.ReadInt() != 0x01020304)
+        return 0;
+
+    // subdivision tables
+    int scheme = reader.ReadInt(),
+        maxlevel = reader.ReadInt();
+    if (!reader.IsValid() || maxlevel < 1)
+        return 0;
+
+    FarMesh<U> * mesh = new FarMesh<U>();
+
+    FarTable<int> * F_ITa = 0;
+    FarTable<unsigned int> * F_IT = 0;
+    switch (scheme) {
+        case kCatmark: {
+            FarCatmarkSubdivisionTables<U> * catmark =
+                new FarCatmarkSubdivisionTables<U>(mesh, maxlevel-1);
+            F_ITa = &catmark->_F_ITa;
+            F_IT = &catmark->_F_IT;
+            mesh->_subdivisionTables = catmark;
+        } break;
+        case kBilinear: {
+            FarBilinearSubdivisionTables<U> * bilinear =
+                new FarBilinearSubdivisionTables<U>(mesh, maxlevel-1);
+            F_ITa = &bilinear->_F_ITa;
+            F_IT = &bilinear->_F_IT;
+            mesh->_subdivisionTables = bilinear;
+        } break;
+        case kLoop:
+            mesh->_subdivisionTables = new FarLoopSubdivisionTables<U>(mesh, maxlevel-1);
+            break;
+        default:
+            delete mesh;
+            return 0;
+    }
+
+    FarSubdivisionTables<U> * tables = mesh->_subdivisionTables;
+
+    reader.ReadTable(tables->_E_IT);
+    reader.ReadTable(tables->_E_W);
+    reader.ReadTable(tables->_V_ITa);
+    reader.ReadTable(tables->_V_IT);
+    reader.ReadTable(tables->_V_W);
+
+    int numBatches = reader.ReadInt();
+    if (numBatches != (int)tables->_batches.size()) {
+        delete mesh;
+        return 0;
+    }
+    for (int i=0; i<numBatches; ++i) {
+        typename FarSubdivisionTables<U>::VertexKernelBatch & batch = tables->_batches[i];
+        int values[8];
+        reader.Read(values, sizeof(values));
+        batch.kernelF = values[0];
+        batch.kernelE = values[1];
+        batch.kernelB = std::make_pair(values[2], values[3]);
+        batch.kernelA1 = std::make_pair(values[4], values[5]);
+        batch.kernelA2 = std::make_pair(values[6], values[7]);
+    }
+
+    reader.ReadVector(tables->_vertsOffsets);
+    tables->_numCoarseVertices = (unsigned int)reader.ReadInt();
+
+    if (F_IT) {
+        reader.ReadTable(*F_ITa);
+        reader.ReadTable(*F_IT);
+    }
+
+    // mesh
+    int numVertices = reader.ReadInt();
+
+    int numLevels = reader.ReadInt();
+    if (reader.IsValid() && numLevels >= 0 && numLevels <= maxlevel) {
+        mesh->_faceverts.resize(numLevels);
+        for (int i=0; i<numLevels; ++i)
+            reader.ReadVector(mesh->_faceverts[i]);
+    }
+
+    numLevels = reader.ReadInt();
+    if (reader.IsValid() && numLevels >= 0 && numLevels <= maxlevel) {
+        mesh->_ptexcoordinates.resize(numLevels);
+        for (int i=0; i<numLevels; ++i)
+            reader.ReadVector(mesh->_ptexcoordinates[i]);
+    }
+
+    numLevels = reader.ReadInt();
+    if (reader.IsValid() && numLevels >= 0 && numLevels <= maxlevel) {
+        mesh->_fvarData.resize(numLevels);
+        for (int i=0; i<numLevels; ++i)
+            reader.ReadVector(mesh->_fvarData[i]);
+    }
+
+    mesh->_totalFVarWidth = reader.ReadInt();
+
+    // patch tables
+    if (reader.ReadInt()) {
+        FarPatchTables * patchTables = new FarPatchTables(0, reader.ReadInt());
+        mesh->_patchTables = patchTables;
+
+        readPatches(reader, patchTables->_full);
+        for (int i=0; i<5; ++i)
+            readTransitionPatches(reader, patchTables->_transition[i]);
+
+        reader.ReadVector(patchTables->_vertexValenceTable);
+        reader.ReadVector(patchTables->_quadOffsetTable);
+    }
+
+    if (!reader.IsValid() || numVertices < 0 ||
+        (int)tables->_vertsOffsets.size() != maxlevel) {
+        delete mesh;
+        return 0;
+    }
+
+    mesh->_vertices.resize(numVertices);
+
+    if (consumed)
+        *consumed = reader.GetPosition() - data;
+
+    return mesh;
+}
+
+} // end namespace OPENSUBDIV_VERSION
+using namespace OPENSUBDIV_VERSION;
+
+} // end namespace OpenSubdiv
+
+#endif /* FAR_MESH_SERIALIZER_H */
@@ -166,6 +166,7 @@ public:
 private:
 
     template <class T> friend class FarPatchTablesFactory;
+    template <class U> friend class FarMeshSerializer;
 
     // Private constructor
     FarPatchTables( int maxlevel, int maxvalence ) : _full(maxlevel+1), _maxValence(maxvalence) {
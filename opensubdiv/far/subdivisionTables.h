@@ -71,6 +71,7 @@ namespace OPENSUBDIV_VERSION {
 
 template <class U> class FarMesh;
 template <class U> class FarDispatcher;
+template <class U> class FarMeshSerializer;
 
 /// \brief FarSubdivisionTables are a serialized topological data representation.
 ///
@@ -155,6 +156,7 @@ public:
 
 protected:
     template <class X, class Y> friend class FarMeshFactory;
+    template <class X> friend class FarMeshSerializer;
 
     FarSubdivisionTables<U>( FarMesh<U> * mesh, int maxlevel );
 
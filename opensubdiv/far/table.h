@@ -73,7 +73,11 @@ namespace OPENSUBDIV_VERSION {
 // of markers pointing to the first index at the beginning of the sequence
 // describing a given level (note that "level 1" vertices are obtained by using
 // the indices starting at "level 0" of the tables)
+template <class U> class FarMeshSerializer;
+
 template <typename Type> class FarTable {
+    template <class U> friend class FarMeshSerializer;
+
     std::vector<Type>   _data;     // table data
     FarTableMarkers     _markers;  // offsets to the first datum at each level
 public:
@@ -84,15 +84,20 @@ public:
 
         int numVertexElements = vertex ? vertex->GetNumElements() : 0;
         int numVaryingElements = varying ? varying->GetNumElements() : 0;
-        _vdesc = new OsdVertexDescriptor(numVertexElements, numVaryingElements);
+
+        // the descriptor is kept between refinements, so that binding
+        // doesn't allocate
+        if (_vdesc) {
+            _vdesc->numVertexElements = numVertexElements;
+            _vdesc->numVaryingElements = numVaryingElements;
+        } else {
+            _vdesc = new OsdVertexDescriptor(numVertexElements, numVaryingElements);
+        }
     }
 
     void Unbind() {
         _currentVertexBuffer = 0;
         _currentVaryingBuffer = 0;
-
-        delete _vdesc;
-        _vdesc = 0;
     }
 
     const void * GetTablePtr(int tableIndex, int level) const;
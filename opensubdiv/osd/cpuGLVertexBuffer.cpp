@@ -78,9 +78,11 @@
 namespace OpenSubdiv {
 namespace OPENSUBDIV_VERSION {
 
-OsdCpuGLVertexBuffer::OsdCpuGLVertexBuffer(int numElements, int numVertices)
+OsdCpuGLVertexBuffer::OsdCpuGLVertexBuffer(int numElements, int numVertices,
+                                           bool keepCpuBuffer)
     : _numElements(numElements), _numVertices(numVertices),
-      _vbo(0), _cpuBuffer(0) {
+      _vbo(0), _cpuBuffer(0), _cpuBufferDirty(false),
+      _keepCpuBuffer(keepCpuBuffer) {
 }
 
 OsdCpuGLVertexBuffer::~OsdCpuGLVertexBuffer() {
@@ -91,9 +93,10 @@ OsdCpuGLVertexBuffer::~OsdCpuGLVertexBuffer() {
 }
 
 OsdCpuGLVertexBuffer *
-OsdCpuGLVertexBuffer::Create(int numElements, int numVertices) {
+OsdCpuGLVertexBuffer::Create(int numElements, int numVertices,
+                             bool keepCpuBuffer) {
     OsdCpuGLVertexBuffer *instance =
-        new OsdCpuGLVertexBuffer(numElements, numVertices);
+        new OsdCpuGLVertexBuffer(numElements, numVertices, keepCpuBuffer);
     if (instance->allocate()) return instance;
     delete instance;
     return NULL;
@@ -150,6 +153,10 @@ OsdCpuGLVertexBuffer::allocate() {
 void
 OsdCpuGLVertexBuffer::map() {
 
+    _cpuBufferDirty = true;
+
+    // kept cpu memory is in sync with the VBO, which is only ever written
+    // from it.
     if (_cpuBuffer) return;
 
     int size = _numElements * _numVertices;
@@ -167,7 +174,7 @@ OsdCpuGLVertexBuffer::map() {
 void
 OsdCpuGLVertexBuffer::unmap() {
 
-    if (_cpuBuffer == NULL) return;
+    if (_cpuBuffer == NULL || !_cpuBufferDirty) return;
     int size = _numElements * _numVertices * sizeof(float);
     GLint prev = 0;
     glGetIntegerv(GL_ARRAY_BUFFER_BINDING, &prev);
@@ -176,8 +183,11 @@ OsdCpuGLVertexBuffer::unmap() {
     glBufferData(GL_ARRAY_BUFFER, size, _cpuBuffer, GL_STATIC_DRAW);
     glBindBuffer(GL_ARRAY_BUFFER, prev);
 
-    delete[] _cpuBuffer;
-    _cpuBuffer = NULL;
+    _cpuBufferDirty = false;
+    if (!_keepCpuBuffer) {
+        delete[] _cpuBuffer;
+        _cpuBuffer = NULL;
+    }
 }
 
 }  // end namespace OPENSUBDIV_VERSION
@@ -86,8 +86,12 @@ namespace OPENSUBDIV_VERSION {
 /// automatically when a client calls BindCpuBuffer and BindVBO methods.
 class OsdCpuGLVertexBuffer {
 public:
-    /// Creator. Returns NULL if error.
-    static OsdCpuGLVertexBuffer * Create(int numElements, int numVertices);
+    /// Creator. Returns NULL if error. With keepCpuBuffer, the cpu memory
+    /// is kept once copied to GL instead of being released, so that it can
+    /// be bound again without reading GL back, at the cost of a second copy
+    /// of the vertices.
+    static OsdCpuGLVertexBuffer * Create(int numElements, int numVertices,
+                                         bool keepCpuBuffer=false);
 
     /// Destructor.
     ~OsdCpuGLVertexBuffer();
@@ -103,7 +107,9 @@ public:
     int GetNumVertices() const;
 
     /// Returns cpu memory. GL buffer will be mapped to cpu address
-    /// if necessary.
+    /// if necessary. If the buffer was created with keepCpuBuffer, the cpu
+    /// memory is kept across BindVBO calls, so it still holds the last
+    /// contents written by the client or kernels.
     float * BindCpuBuffer();
 
     /// Returns the name of GL buffer object. If the buffer is mapped
@@ -112,7 +118,7 @@ public:
 
 protected:
     /// Constructor.
-    OsdCpuGLVertexBuffer(int numElements, int numVertices);
+    OsdCpuGLVertexBuffer(int numElements, int numVertices, bool keepCpuBuffer);
 
     /// Allocates VBO for this buffer. Returns true if success.
     bool allocate();
@@ -120,7 +126,8 @@ protected:
     /// Acquires cpu memory buffer from GL.
     void map();
 
-    /// Releases cpu memory and copy them back to GL.
+    /// Copies cpu memory back to GL if it was bound since the last copy,
+    /// and releases it unless it is kept.
     void unmap();
 
 private:
@@ -128,6 +135,8 @@ private:
     int _numVertices;
     GLuint _vbo;
     float *_cpuBuffer;
+    bool _cpuBufferDirty;
+    bool _keepCpuBuffer;
 };
 
 }  // end namespace OPENSUBDIV_VERSION
@@ -56,17 +56,123 @@
 //
 
 #include "../osd/cpuKernel.h"
+#include "../osd/cpuSimdKernel.h"
 #include "../osd/vertexDescriptor.h"
 
 #include <math.h>
 
+#if defined(__arm__) && !defined(__ARM_NEON__) && defined(__linux__)
+    #include <fcntl.h>
+    #include <unistd.h>
+#endif
+
 namespace OpenSubdiv {
 namespace OPENSUBDIV_VERSION {
 
+// Returns true if the cpu supports NEON. Only 32 bit arm builds need to ask,
+// NEON being part of the baseline of arm64 and of builds targeting it.
+static bool
+_CpuHasNeon() {
+
+#if defined(__ARM_NEON__) || defined(__ARM_NEON) || defined(__aarch64__)
+    return true;
+#elif defined(__arm__) && defined(__linux__)
+    // read AT_HWCAP from the auxiliary vector : getauxval() is missing from
+    // older Android releases, /proc/self/auxv is always there.
+    static const unsigned long AT_HWCAP_TYPE = 16, HWCAP_NEON = 1 << 12;
+
+    int fd = open("/proc/self/auxv", O_RDONLY);
+    if (fd < 0)
+        return false;
+
+    bool hasNeon = false;
+    unsigned long entry[2];
+    while (read(fd, entry, sizeof(entry)) == sizeof(entry) && entry[0] != 0) {
+        if (entry[0] == AT_HWCAP_TYPE) {
+            hasNeon = (entry[1] & HWCAP_NEON) != 0;
+            break;
+        }
+    }
+    close(fd);
+    return hasNeon;
+#else
+    return false;
+#endif
+}
+
+bool
+OsdCpuIsKernelIsaSupported(OsdCpuKernelIsa isa) {
+
+    switch (isa) {
+        case kOsdCpuKernelScalar:
+            return true;
+        case kOsdCpuKernelSSE:
+            // SSE kernels are only compiled in when the whole build targets
+            // SSE, so they are always supported when present.
+            return OsdCpuGetSseKernels(4) != NULL;
+        case kOsdCpuKernelNEON:
+            return OsdCpuGetNeonKernels(4) != NULL && _CpuHasNeon();
+        default:
+            return false;
+    }
+}
+
+static OsdCpuKernelIsa
+_GetBestKernelIsa() {
+
+    if (OsdCpuIsKernelIsaSupported(kOsdCpuKernelNEON))
+        return kOsdCpuKernelNEON;
+    if (OsdCpuIsKernelIsaSupported(kOsdCpuKernelSSE))
+        return kOsdCpuKernelSSE;
+    return kOsdCpuKernelScalar;
+}
+
+// chosen once, when the library is loaded
+static OsdCpuKernelIsa _kernelIsa = _GetBestKernelIsa();
+
+OsdCpuKernelIsa
+OsdCpuGetKernelIsa() {
+
+    return _kernelIsa;
+}
+
+bool
+OsdCpuSetKernelIsa(OsdCpuKernelIsa isa) {
+
+    if (!OsdCpuIsKernelIsaSupported(isa))
+        return false;
+
+    _kernelIsa = isa;
+    return true;
+}
+
+// Returns the specialized kernels for the layout of vdesc, or NULL if the
+// scalar kernels must be used.
+static OsdCpuSimdKernels const *
+_GetSimdKernels(const OsdVertexDescriptor *vdesc, const float *varying) {
+
+    if (varying && vdesc->numVaryingElements > 0)
+        return NULL;
+
+    switch (_kernelIsa) {
+        case kOsdCpuKernelSSE:
+            return OsdCpuGetSseKernels(vdesc->numVertexElements);
+        case kOsdCpuKernelNEON:
+            return OsdCpuGetNeonKernels(vdesc->numVertexElements);
+        default:
+            return NULL;
+    }
+}
+
 void OsdCpuComputeFace(
     const OsdVertexDescriptor *vdesc, float * vertex, float * varying,
     const int *F_IT, const int *F_ITa, int offset, int start, int end) {
 
+    if (OsdCpuSimdKernels const *simd = _GetSimdKernels(vdesc, varying)) {
+        simd->computeFace(vertex, F_IT, F_ITa, offset, start, end);
+        return;
+    }
+
     for (int i = start; i < end; i++) {
         int h = F_ITa[2*i];
         int n = F_ITa[2*i+1];
@@ -90,6 +196,11 @@ void OsdCpuComputeEdge(
     const OsdVertexDescriptor *vdesc, float *vertex, float *varying,
     const int *E_IT, const float *E_W, int offset, int start, int end) {
 
+    if (OsdCpuSimdKernels const *simd = _GetSimdKernels(vdesc, varying)) {
+        simd->computeEdge(vertex, E_IT, E_W, offset, start, end);
+        return;
+    }
+
     for (int i = start; i < end; i++) {
         int eidx0 = E_IT[4*i+0];
         int eidx1 = E_IT[4*i+1];
@@ -121,6 +232,11 @@ void OsdCpuComputeVertexA(
     const int *V_ITa, const float *V_W,
     int offset, int start, int end, int pass) {
 
+    if (OsdCpuSimdKernels const *simd = _GetSimdKernels(vdesc, varying)) {
+        simd->computeVertexA(vertex, V_ITa, V_W, offset, start, end, pass);
+        return;
+    }
+
     for (int i = start; i < end; i++) {
         int n     = V_ITa[5*i+1];
         int p     = V_ITa[5*i+2];
@@ -157,6 +273,11 @@ void OsdCpuComputeVertexB(
     const int *V_ITa, const int *V_IT, const float *V_W,
     int offset, int start, int end) {
 
+    if (OsdCpuSimdKernels const *simd = _GetSimdKernels(vdesc, varying)) {
+        simd->computeVertexB(vertex, V_ITa, V_IT, V_W, offset, start, end);
+        return;
+    }
+
     for (int i = start; i < end; i++) {
         int h = V_ITa[5*i];
         int n = V_ITa[5*i+1];
@@ -184,6 +305,12 @@ void OsdCpuComputeLoopVertexB(
     const int *V_ITa, const int *V_IT, const float *V_W,
     int offset, int start, int end) {
 
+    if (OsdCpuSimdKernels const *simd = _GetSimdKernels(vdesc, varying)) {
+        simd->computeLoopVertexB(vertex, V_ITa, V_IT, V_W,
+                                 offset, start, end);
+        return;
+    }
+
     for (int i = start; i < end; i++) {
         int h = V_ITa[5*i];
         int n = V_ITa[5*i+1];
@@ -211,6 +338,11 @@ void OsdCpuComputeBilinearEdge(
     const OsdVertexDescriptor *vdesc, float *vertex, float *varying,
     const int *E_IT, int offset, int start, int end) {
 
+    if (OsdCpuSimdKernels const *simd = _GetSimdKernels(vdesc, varying)) {
+        simd->computeBilinearEdge(vertex, E_IT, offset, start, end);
+        return;
+    }
+
     for (int i = start; i < end; i++) {
         int eidx0 = E_IT[2*i+0];
         int eidx1 = E_IT[2*i+1];
@@ -230,6 +362,11 @@ void OsdCpuComputeBilinearVertex(
     const OsdVertexDescriptor *vdesc, float *vertex, float *varying,
     const int *V_ITa, int offset, int start, int end) {
 
+    if (OsdCpuSimdKernels const *simd = _GetSimdKernels(vdesc, varying)) {
+        simd->computeBilinearVertex(vertex, V_ITa, offset, start, end);
+        return;
+    }
+
     for (int i = start; i < end; i++) {
         int p = V_ITa[i];
 
@@ -65,6 +65,26 @@ namespace OPENSUBDIV_VERSION {
 
 struct OsdVertexDescriptor;
 
+// Instruction sets of the cpu kernels. Vertex buffers of 3, 4, 6 or 8
+// elements without varying data are refined with SSE or NEON kernels when
+// the cpu supports them, every other layout with the scalar kernels.
+enum OsdCpuKernelIsa {
+    kOsdCpuKernelScalar = 0,
+    kOsdCpuKernelSSE,
+    kOsdCpuKernelNEON,
+};
+
+// Returns the instruction set the kernels currently use.
+OsdCpuKernelIsa OsdCpuGetKernelIsa();
+
+// Returns true if isa is compiled in and supported by this cpu.
+bool OsdCpuIsKernelIsaSupported(OsdCpuKernelIsa isa);
+
+// Switches the kernels to isa, typically to compare its results with the
+// scalar kernels. Returns false if isa is not supported. Must not be called
+// while kernels are running.
+bool OsdCpuSetKernelIsa(OsdCpuKernelIsa isa);
+
 void OsdCpuComputeFace(const OsdVertexDescriptor *vdesc,
                        float * vertex, float * varying,
                        const int *F_IT, const int *F_ITa,
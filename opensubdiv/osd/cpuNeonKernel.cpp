@@ -0,0 +1,121 @@
+//
+//     Copyright (C) Pixar. All rights reserved.
+//
+//     This license governs use of the accompanying software. If you
+//     use the software, you accept this license. If you do not accept
+//     the license, do not use the software.
+//
+//     1. Definitions
+//     The terms "reproduce," "reproduction," "derivative works," and
+//     "distribution" have the same meaning here as under U.S.
+//     copyright law.  A "contribution" is the original software, or
+//     any additions or changes to the software.
+//     A "contributor" is any person or entity that distributes its
+//     contribution under this license.
+//     "Licensed patents" are a contributor's patent claims that read
+//     directly on its contribution.
+//
+//     2. Grant of Rights
+//     (A) Copyright Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free copyright license to reproduce its contribution,
+//     prepare derivative works of its contribution, and distribute
+//     its contribution or any derivative works that you create.
+//     (B) Patent Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free license under its licensed patents to make, have
+//     made, use, sell, offer for sale, import, and/or otherwise
+//     dispose of its contribution in the software or derivative works
+//     of the contribution in the software.
+//
+//     3. Conditions and Limitations
+//     (A) No Trademark License- This license does not grant you
+//     rights to use any contributor's name, logo, or trademarks.
+//     (B) If you bring a patent claim against any contributor over
+//     patents that you claim are infringed by the software, your
+//     patent license from such contributor to the software ends
+//     automatically.
+//     (C) If you distribute any portion of the software, you must
+//     retain all copyright, patent, trademark, and attribution
+//     notices that are present in the software.
+//     (D) If you distribute any portion of the software in source
+//     code form, you may do so only under this license by including a
+//     complete copy of this license with your distribution. If you
+//     distribute any portion of the software in compiled or object
+//     code form, you may only do so under a license that complies
+//     with this license.
+//     (E) The software is licensed "as-is." You bear the risk of
+//     using it. The contributors give no express warranties,
+//     guarantees or conditions. You may have additional consumer
+//     rights under your local laws which this license cannot change.
+//     To the extent permitted under your local laws, the contributors
+//     exclude the implied warranties of merchantability, fitness for
+//     a particular purpose and non-infringement.
+//
+
+#include "../osd/cpuSimdKernel.h"
+
+// On 32 bit arm, this file alone is built with -mfpu=neon, and its kernels
+// are only used when the cpu reports NEON support, see cpuKernel.cpp.
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+    #define OSD_CPU_HAS_NEON
+    #include <arm_neon.h>
+#endif
+
+namespace OpenSubdiv {
+namespace OPENSUBDIV_VERSION {
+
+#ifdef OSD_CPU_HAS_NEON
+
+// vmla is avoided on purpose : it may be fused on some cores and compilers,
+// which would round differently from the scalar kernels.
+struct OsdNeonIsa {
+
+    typedef float32x4_t Float4;
+    typedef float32x2_t Float2;
+
+    static Float4 Zero4() { return vdupq_n_f32(0.0f); }
+
+    static Float4 Splat4(float f) { return vdupq_n_f32(f); }
+
+    static Float4 Load4(const float *p) { return vld1q_f32(p); }
+
+    static void Store4(float *p, Float4 v) { vst1q_f32(p, v); }
+
+    static Float4 MulAdd4(Float4 a, Float4 b, Float4 c) {
+        return vaddq_f32(a, vmulq_f32(b, c));
+    }
+
+    static Float2 Zero2() { return vdup_n_f32(0.0f); }
+
+    static Float2 Splat2(float f) { return vdup_n_f32(f); }
+
+    static Float2 Load2(const float *p) { return vld1_f32(p); }
+
+    static void Store2(float *p, Float2 v) { vst1_f32(p, v); }
+
+    static Float2 MulAdd2(Float2 a, Float2 b, Float2 c) {
+        return vadd_f32(a, vmul_f32(b, c));
+    }
+};
+
+OsdCpuSimdKernels const *
+OsdCpuGetNeonKernels(int numVertexElements) {
+
+    return OsdCpuGetSimdKernels<OsdNeonIsa>(numVertexElements);
+}
+
+#else
+
+OsdCpuSimdKernels const *
+OsdCpuGetNeonKernels(int numVertexElements) {
+
+    return NULL;
+}
+
+#endif
+
+}  // end namespace OPENSUBDIV_VERSION
+}  // end namespace OpenSubdiv
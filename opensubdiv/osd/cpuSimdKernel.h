@@ -0,0 +1,377 @@
+//
+//     Copyright (C) Pixar. All rights reserved.
+//
+//     This license governs use of the accompanying software. If you
+//     use the software, you accept this license. If you do not accept
+//     the license, do not use the software.
+//
+//     1. Definitions
+//     The terms "reproduce," "reproduction," "derivative works," and
+//     "distribution" have the same meaning here as under U.S.
+//     copyright law.  A "contribution" is the original software, or
+//     any additions or changes to the software.
+//     A "contributor" is any person or entity that distributes its
+//     contribution under this license.
+//     "Licensed patents" are a contributor's patent claims that read
+//     directly on its contribution.
+//
+//     2. Grant of Rights
+//     (A) Copyright Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free copyright license to reproduce its contribution,
+//     prepare derivative works of its contribution, and distribute
+//     its contribution or any derivative works that you create.
+//     (B) Patent Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free license under its licensed patents to make, have
+//     made, use, sell, offer for sale, import, and/or otherwise
+//     dispose of its contribution in the software or derivative works
+//     of the contribution in the software.
+//
+//     3. Conditions and Limitations
+//     (A) No Trademark License- This license does not grant you
+//     rights to use any contributor's name, logo, or trademarks.
+//     (B) If you bring a patent claim against any contributor over
+//     patents that you claim are infringed by the software, your
+//     patent license from such contributor to the software ends
+//     automatically.
+//     (C) If you distribute any portion of the software, you must
+//     retain all copyright, patent, trademark, and attribution
+//     notices that are present in the software.
+//     (D) If you distribute any portion of the software in source
+//     code form, you may do so only under this license by including a
+//     complete copy of this license with your distribution. If you
+//     distribute any portion of the software in compiled or object
+//     code form, you may only do so under a license that complies
+//     with this license.
+//     (E) The software is licensed "as-is." You bear the risk of
+//     using it. The contributors give no express warranties,
+//     guarantees or conditions. You may have additional consumer
+//     rights under your local laws which this license cannot change.
+//     To the extent permitted under your local laws, the contributors
+//     exclude the implied warranties of merchantability, fitness for
+//     a particular purpose and non-infringement.
+//
+
+#ifndef OSD_CPU_SIMD_KERNEL_H
+#define OSD_CPU_SIMD_KERNEL_H
+
+#include "../version.h"
+
+#include <math.h>
+#include <stddef.h>
+
+namespace OpenSubdiv {
+namespace OPENSUBDIV_VERSION {
+
+// Cpu kernels specialized for a fixed number of vertex elements and no
+// varying data, see OsdCpuComputeFace and the other cpuKernel.h functions
+// they replace.
+struct OsdCpuSimdKernels {
+
+    void (*computeFace)(float *vertex,
+                        const int *F_IT, const int *F_ITa,
+                        int offset, int start, int end);
+
+    void (*computeEdge)(float *vertex,
+                        const int *E_IT, const float *E_W,
+                        int offset, int start, int end);
+
+    void (*computeVertexA)(float *vertex,
+                           const int *V_ITa, const float *V_W,
+                           int offset, int start, int end, int pass);
+
+    void (*computeVertexB)(float *vertex,
+                           const int *V_ITa, const int *V_IT, const float *V_W,
+                           int offset, int start, int end);
+
+    void (*computeLoopVertexB)(float *vertex,
+                               const int *V_ITa, const int *V_IT,
+                               const float *V_W,
+                               int offset, int start, int end);
+
+    void (*computeBilinearEdge)(float *vertex,
+                                const int *E_IT,
+                                int offset, int start, int end);
+
+    void (*computeBilinearVertex)(float *vertex,
+                                  const int *V_ITa,
+                                  int offset, int start, int end);
+};
+
+// Returns the kernels for numVertexElements (3, 4, 6 or 8), or NULL if the
+// instruction set was not compiled in or the number of elements is not
+// supported. These don't check that the cpu supports the instruction set.
+OsdCpuSimdKernels const * OsdCpuGetSseKernels(int numVertexElements);
+
+OsdCpuSimdKernels const * OsdCpuGetNeonKernels(int numVertexElements);
+
+// A vertex of N floats held in registers : 4 wide vectors, then a 2 wide
+// vector and a scalar for the remaining elements. ISA provides the vector
+// types and operations.
+//
+// Every element goes through the same multiply then add, in the same
+// order, as with OsdVertexDescriptor::AddWithWeight. The kernels below
+// only differ from the scalar ones by keeping the destination vertex in
+// registers, so that their results are bit for bit identical.
+template <class ISA, int N>
+class OsdCpuSimdVertex {
+public:
+    void Clear() {
+        for (int i = 0; i < N4; ++i)
+            _q[i] = ISA::Zero4();
+        if (N2 > 0)
+            _d = ISA::Zero2();
+        if (N1 > 0)
+            _s = 0.0f;
+    }
+
+    void Load(const float *src) {
+        for (int i = 0; i < N4; ++i)
+            _q[i] = ISA::Load4(src + i*4);
+        if (N2 > 0)
+            _d = ISA::Load2(src + N4*4);
+        if (N1 > 0)
+            _s = src[N-1];
+    }
+
+    void AddWithWeight(const float *src, float weight) {
+        if (N4 > 0) {
+            typename ISA::Float4 w = ISA::Splat4(weight);
+            for (int i = 0; i < N4; ++i)
+                _q[i] = ISA::MulAdd4(_q[i], ISA::Load4(src + i*4), w);
+        }
+        if (N2 > 0)
+            _d = ISA::MulAdd2(_d, ISA::Load2(src + N4*4), ISA::Splat2(weight));
+        if (N1 > 0)
+            _s += src[N-1] * weight;
+    }
+
+    void Store(float *dst) const {
+        for (int i = 0; i < N4; ++i)
+            ISA::Store4(dst + i*4, _q[i]);
+        if (N2 > 0)
+            ISA::Store2(dst + N4*4, _d);
+        if (N1 > 0)
+            dst[N-1] = _s;
+    }
+
+private:
+    enum { N4 = N/4, N2 = (N%4)/2, N1 = N%2 };
+
+    typename ISA::Float4 _q[N4 > 0 ? N4 : 1];
+    typename ISA::Float2 _d;
+    float _s;
+};
+
+template <class ISA, int N>
+struct OsdCpuSimdKernel {
+
+    typedef OsdCpuSimdVertex<ISA, N> Vertex;
+
+    static void ComputeFace(
+        float *vertex, const int *F_IT, const int *F_ITa,
+        int offset, int start, int end) {
+
+        for (int i = start; i < end; i++) {
+            int h = F_ITa[2*i];
+            int n = F_ITa[2*i+1];
+
+            float weight = 1.0f/n;
+
+            Vertex dst;
+            dst.Clear();
+
+            for (int j = 0; j < n; ++j)
+                dst.AddWithWeight(vertex + F_IT[h+j]*N, weight);
+
+            dst.Store(vertex + (offset + i)*N);
+        }
+    }
+
+    static void ComputeEdge(
+        float *vertex, const int *E_IT, const float *E_W,
+        int offset, int start, int end) {
+
+        for (int i = start; i < end; i++) {
+            int eidx0 = E_IT[4*i+0];
+            int eidx1 = E_IT[4*i+1];
+            int eidx2 = E_IT[4*i+2];
+            int eidx3 = E_IT[4*i+3];
+
+            float vertWeight = E_W[i*2+0];
+
+            Vertex dst;
+            dst.Clear();
+
+            dst.AddWithWeight(vertex + eidx0*N, vertWeight);
+            dst.AddWithWeight(vertex + eidx1*N, vertWeight);
+
+            if (eidx2 != -1) {
+                float faceWeight = E_W[i*2+1];
+
+                dst.AddWithWeight(vertex + eidx2*N, faceWeight);
+                dst.AddWithWeight(vertex + eidx3*N, faceWeight);
+            }
+
+            dst.Store(vertex + (offset + i)*N);
+        }
+    }
+
+    static void ComputeVertexA(
+        float *vertex, const int *V_ITa, const float *V_W,
+        int offset, int start, int end, int pass) {
+
+        for (int i = start; i < end; i++) {
+            int n     = V_ITa[5*i+1];
+            int p     = V_ITa[5*i+2];
+            int eidx0 = V_ITa[5*i+3];
+            int eidx1 = V_ITa[5*i+4];
+
+            float weight = (pass == 1) ? V_W[i] : 1.0f - V_W[i];
+
+            // see OsdCpuComputeVertexA
+            if (weight > 0.0f && weight < 1.0f && n > 0)
+                weight = 1.0f - weight;
+
+            float *dstVertex = vertex + (offset + i)*N;
+
+            Vertex dst;
+            if (pass)
+                dst.Load(dstVertex);
+            else
+                dst.Clear();
+
+            if (eidx0 == -1 || (pass == 0 && (n == -1))) {
+                dst.AddWithWeight(vertex + p*N, weight);
+            } else {
+                dst.AddWithWeight(vertex + p*N, weight * 0.75f);
+                dst.AddWithWeight(vertex + eidx0*N, weight * 0.125f);
+                dst.AddWithWeight(vertex + eidx1*N, weight * 0.125f);
+            }
+
+            dst.Store(dstVertex);
+        }
+    }
+
+    static void ComputeVertexB(
+        float *vertex, const int *V_ITa, const int *V_IT, const float *V_W,
+        int offset, int start, int end) {
+
+        for (int i = start; i < end; i++) {
+            int h = V_ITa[5*i];
+            int n = V_ITa[5*i+1];
+            int p = V_ITa[5*i+2];
+
+            float weight = V_W[i];
+            float wp = 1.0f/static_cast<float>(n*n);
+            float wv = (n-2.0f) * n * wp;
+
+            Vertex dst;
+            dst.Clear();
+
+            dst.AddWithWeight(vertex + p*N, weight * wv);
+
+            for (int j = 0; j < n; ++j) {
+                dst.AddWithWeight(vertex + V_IT[h+j*2]*N, weight * wp);
+                dst.AddWithWeight(vertex + V_IT[h+j*2+1]*N, weight * wp);
+            }
+
+            dst.Store(vertex + (offset + i)*N);
+        }
+    }
+
+    static void ComputeLoopVertexB(
+        float *vertex, const int *V_ITa, const int *V_IT, const float *V_W,
+        int offset, int start, int end) {
+
+        for (int i = start; i < end; i++) {
+            int h = V_ITa[5*i];
+            int n = V_ITa[5*i+1];
+            int p = V_ITa[5*i+2];
+
+            float weight = V_W[i];
+            float wp = 1.0f/static_cast<float>(n);
+            float beta = 0.25f * cosf(static_cast<float>(M_PI) * 2.0f * wp) + 0.375f;
+            beta = beta * beta;
+            beta = (0.625f - beta) * wp;
+
+            Vertex dst;
+            dst.Clear();
+
+            dst.AddWithWeight(vertex + p*N, weight * (1.0f - (beta * n)));
+
+            for (int j = 0; j < n; ++j)
+                dst.AddWithWeight(vertex + V_IT[h+j]*N, weight * beta);
+
+            dst.Store(vertex + (offset + i)*N);
+        }
+    }
+
+    static void ComputeBilinearEdge(
+        float *vertex, const int *E_IT, int offset, int start, int end) {
+
+        for (int i = start; i < end; i++) {
+            int eidx0 = E_IT[2*i+0];
+            int eidx1 = E_IT[2*i+1];
+
+            Vertex dst;
+            dst.Clear();
+
+            dst.AddWithWeight(vertex + eidx0*N, 0.5f);
+            dst.AddWithWeight(vertex + eidx1*N, 0.5f);
+
+            dst.Store(vertex + (offset + i)*N);
+        }
+    }
+
+    static void ComputeBilinearVertex(
+        float *vertex, const int *V_ITa, int offset, int start, int end) {
+
+        for (int i = start; i < end; i++) {
+            int p = V_ITa[i];
+
+            Vertex dst;
+            dst.Clear();
+
+            dst.AddWithWeight(vertex + p*N, 1.0f);
+
+            dst.Store(vertex + (offset + i)*N);
+        }
+    }
+
+    static OsdCpuSimdKernels const * GetKernels() {
+        static const OsdCpuSimdKernels kernels = {
+            ComputeFace,
+            ComputeEdge,
+            ComputeVertexA,
+            ComputeVertexB,
+            ComputeLoopVertexB,
+            ComputeBilinearEdge,
+            ComputeBilinearVertex,
+        };
+        return &kernels;
+    }
+};
+
+// Returns the kernels of ISA for numVertexElements, see OsdCpuGetSseKernels.
+template <class ISA>
+OsdCpuSimdKernels const * OsdCpuGetSimdKernels(int numVertexElements) {
+
+    switch (numVertexElements) {
+        case 3: return OsdCpuSimdKernel<ISA, 3>::GetKernels();
+        case 4: return OsdCpuSimdKernel<ISA, 4>::GetKernels();
+        case 6: return OsdCpuSimdKernel<ISA, 6>::GetKernels();
+        case 8: return OsdCpuSimdKernel<ISA, 8>::GetKernels();
+        default: return NULL;
+    }
+}
+
+}  // end namespace OPENSUBDIV_VERSION
+using namespace OPENSUBDIV_VERSION;
+
+}  // end namespace OpenSubdiv
+
+#endif  // OSD_CPU_SIMD_KERNEL_H
@@ -0,0 +1,120 @@
+//
+//     Copyright (C) Pixar. All rights reserved.
+//
+//     This license governs use of the accompanying software. If you
+//     use the software, you accept this license. If you do not accept
+//     the license, do not use the software.
+//
+//     1. Definitions
+//     The terms "reproduce," "reproduction," "derivative works," and
+//     "distribution" have the same meaning here as under U.S.
+//     copyright law.  A "contribution" is the original software, or
+//     any additions or changes to the software.
+//     A "contributor" is any person or entity that distributes its
+//     contribution under this license.
+//     "Licensed patents" are a contributor's patent claims that read
+//     directly on its contribution.
+//
+//     2. Grant of Rights
+//     (A) Copyright Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free copyright license to reproduce its contribution,
+//     prepare derivative works of its contribution, and distribute
+//     its contribution or any derivative works that you create.
+//     (B) Patent Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free license under its licensed patents to make, have
+//     made, use, sell, offer for sale, import, and/or otherwise
+//     dispose of its contribution in the software or derivative works
+//     of the contribution in the software.
+//
+//     3. Conditions and Limitations
+//     (A) No Trademark License- This license does not grant you
+//     rights to use any contributor's name, logo, or trademarks.
+//     (B) If you bring a patent claim against any contributor over
+//     patents that you claim are infringed by the software, your
+//     patent license from such contributor to the software ends
+//     automatically.
+//     (C) If you distribute any portion of the software, you must
+//     retain all copyright, patent, trademark, and attribution
+//     notices that are present in the software.
+//     (D) If you distribute any portion of the software in source
+//     code form, you may do so only under this license by including a
+//     complete copy of this license with your distribution. If you
+//     distribute any portion of the software in compiled or object
+//     code form, you may only do so under a license that complies
+//     with this license.
+//     (E) The software is licensed "as-is." You bear the risk of
+//     using it. The contributors give no express warranties,
+//     guarantees or conditions. You may have additional consumer
+//     rights under your local laws which this license cannot change.
+//     To the extent permitted under your local laws, the contributors
+//     exclude the implied warranties of merchantability, fitness for
+//     a particular purpose and non-infringement.
+//
+
+#include "../osd/cpuSimdKernel.h"
+
+#if defined(__SSE__) || defined(_M_X64) || (defined(_M_IX86_FP) && _M_IX86_FP >= 1)
+    #define OSD_CPU_HAS_SSE
+    #include <xmmintrin.h>
+#endif
+
+namespace OpenSubdiv {
+namespace OPENSUBDIV_VERSION {
+
+#ifdef OSD_CPU_HAS_SSE
+
+// 2 wide vectors use the low half of a 4 wide one.
+struct OsdSseIsa {
+
+    typedef __m128 Float4;
+    typedef __m128 Float2;
+
+    static Float4 Zero4() { return _mm_setzero_ps(); }
+
+    static Float4 Splat4(float f) { return _mm_set1_ps(f); }
+
+    static Float4 Load4(const float *p) { return _mm_loadu_ps(p); }
+
+    static void Store4(float *p, Float4 v) { _mm_storeu_ps(p, v); }
+
+    static Float4 MulAdd4(Float4 a, Float4 b, Float4 c) {
+        return _mm_add_ps(a, _mm_mul_ps(b, c));
+    }
+
+    static Float2 Zero2() { return _mm_setzero_ps(); }
+
+    static Float2 Splat2(float f) { return _mm_set1_ps(f); }
+
+    static Float2 Load2(const float *p) {
+        return _mm_loadl_pi(_mm_setzero_ps(), (const __m64 *)p);
+    }
+
+    static void Store2(float *p, Float2 v) { _mm_storel_pi((__m64 *)p, v); }
+
+    static Float2 MulAdd2(Float2 a, Float2 b, Float2 c) {
+        return _mm_add_ps(a, _mm_mul_ps(b, c));
+    }
+};
+
+OsdCpuSimdKernels const *
+OsdCpuGetSseKernels(int numVertexElements) {
+
+    return OsdCpuGetSimdKernels<OsdSseIsa>(numVertexElements);
+}
+
+#else
+
+OsdCpuSimdKernels const *
+OsdCpuGetSseKernels(int numVertexElements) {
+
+    return NULL;
+}
+
+#endif
+
+}  // end namespace OPENSUBDIV_VERSION
+}  // end namespace OpenSubdiv
@@ -0,0 +1,636 @@
+//
+//     Copyright (C) Pixar. All rights reserved.
+//
+//     This license governs use of the accompanying software. If you
+//     use the software, you accept this license. If you do not accept
+//     the license, do not use the software.
+//
+//     1. Definitions
+//     The terms "reproduce," "reproduction," "derivative works," and
+//     "distribution" have the same meaning here as under U.S.
+//     copyright law.  A "contribution" is the original software, or
+//     any additions or changes to the software.
+//     A "contributor" is any person or entity that distributes its
+//     contribution under this license.
+//     "Licensed patents" are a contributor's patent claims that read
+//     directly on its contribution.
+//
+//     2. Grant of Rights
+//     (A) Copyright Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free copyright license to reproduce its contribution,
+//     prepare derivative works of its contribution, and distribute
+//     its contribution or any derivative works that you create.
+//     (B) Patent Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free license under its licensed patents to make, have
+//     made, use, sell, offer for sale, import, and/or otherwise
+//     dispose of its contribution in the software or derivative works
+//     of the contribution in the software.
+//
+//     3. Conditions and Limitations
+//     (A) No Trademark License- This license does not grant you
+//     rights to use any contributor's name, logo, or trademarks.
+//     (B) If you bring a patent claim against any contributor over
+//     patents that you claim are infringed by the software, your
+//     patent license from such contributor to the software ends
+//     automatically.
+//     (C) If you distribute any portion of the software, you must
+//     retain all copyright, patent, trademark, and attribution
+//     notices that are present in the software.
+//     (D) If you distribute any portion of the software in source
+//     code form, you may do so only under this license by including a
+//     complete copy of this license with your distribution. If you
+//     distribute any portion of the software in compiled or object
+//     code form, you may only do so under a license that complies
+//     with this license.
+//     (E) The software is licensed "as-is." You bear the risk of
+//     using it. The contributors give no express warranties,
+//     guarantees or conditions. You may have additional consumer
+//     rights under your local laws which this license cannot change.
+//     To the extent permitted under your local laws, the contributors
+//     exclude the implied warranties of merchantability, fitness for
+//     a particular purpose and non-infringement.
+//
+
+#include "../osd/cpuStencilTables.h"
+#include "../far/dispatcher.h"
+#include "../far/catmarkSubdivisionTables.h"
+#include "../far/bilinearSubdivisionTables.h"
+#include "../far/loopSubdivisionTables.h"
+
+#include <algorithm>
+#include <cassert>
+#include <cmath>
+#include <cstring>
+
+namespace OpenSubdiv {
+namespace OPENSUBDIV_VERSION {
+
+struct OsdCpuStencilEntry {
+    int index;
+    float weight;
+
+    bool operator < (OsdCpuStencilEntry const & other) const {
+        return index < other.index;
+    }
+};
+
+typedef std::vector<OsdCpuStencilEntry> OsdCpuStencil;
+
+// Replays the subdivision kernels of a far mesh on stencils instead of
+// vertex data : every kernel below mirrors its osd/cpuKernel.cpp version
+// operation for operation, with vertices replaced by their stencils over
+// the coarse vertices. Stencils of a level are released once the next
+// level has been computed, unless they are part of the result.
+class OsdCpuStencilBuilder : public FarDispatcher<OsdVertex> {
+public:
+    OsdCpuStencilBuilder(FarMesh<OsdVertex> *mesh, int firstLevel);
+
+    // Returns false if the mesh has vertex edits.
+    bool Build(std::vector<int> & offsets,
+               std::vector<int> & indices,
+               std::vector<float> & weights);
+
+    int GetNumCoarseVertices() const { return _numCoarseVertices; }
+
+    int GetFirstVertexOffset() const {
+        return _tables->GetFirstVertexOffset(_firstLevel);
+    }
+
+protected:
+    virtual void ApplyBilinearFaceVerticesKernel(
+        FarMesh<OsdVertex> * mesh, int offset, int level,
+        int start, int end, void * clientdata) const;
+
+    virtual void ApplyBilinearEdgeVerticesKernel(
+        FarMesh<OsdVertex> * mesh, int offset, int level,
+        int start, int end, void * clientdata) const;
+
+    virtual void ApplyBilinearVertexVerticesKernel(
+        FarMesh<OsdVertex> * mesh, int offset, int level,
+        int start, int end, void * clientdata) const;
+
+
+    virtual void ApplyCatmarkFaceVerticesKernel(
+        FarMesh<OsdVertex> * mesh, int offset, int level,
+        int start, int end, void * clientdata) const;
+
+    virtual void ApplyCatmarkEdgeVerticesKernel(
+        FarMesh<OsdVertex> * mesh, int offset, int level,
+        int start, int end, void * clientdata) const;
+
+    virtual void ApplyCatmarkVertexVerticesKernelB(
+        FarMesh<OsdVertex> * mesh, int offset, int level,
+        int start, int end, void * clientdata) const;
+
+    virtual void ApplyCatmarkVertexVerticesKernelA(
+        FarMesh<OsdVertex> * mesh, int offset, bool pass, int level,
+        int start, int end, void * clientdata) const;
+
+
+    virtual void ApplyLoopEdgeVerticesKernel(
+        FarMesh<OsdVertex> * mesh, int offset, int level,
+        int start, int end, void * clientdata) const;
+
+    virtual void ApplyLoopVertexVerticesKernelB(
+        FarMesh<OsdVertex> * mesh, int offset, int level,
+        int start, int end, void * clientdata) const;
+
+    virtual void ApplyLoopVertexVerticesKernelA(
+        FarMesh<OsdVertex> * mesh, int offset, bool pass, int level,
+        int start, int end, void * clientdata) const;
+
+private:
+    // The kernels are const, like the ones of every dispatcher, but the
+    // builder accumulates into its own state.
+    OsdCpuStencilBuilder * self() const {
+        return const_cast<OsdCpuStencilBuilder *>(this);
+    }
+
+    // Starts accumulating the stencil of vertex dst, from scratch or
+    // (keep) from its current stencil.
+    void begin(int dst, bool keep);
+
+    // Adds weight times the stencil of vertex src.
+    void add(int src, float weight);
+
+    // Stores the accumulated stencil as the stencil of the current vertex.
+    void end();
+
+    void computeEdge(const int *E_IT, const float *E_W,
+                     int offset, int start, int end);
+
+    void computeVertexA(const int *V_ITa, const float *V_W,
+                        int offset, int start, int end, int pass);
+
+    FarMesh<OsdVertex> *_mesh;
+    FarSubdivisionTables<OsdVertex> const *_tables;
+    int _firstLevel;
+    int _numCoarseVertices;
+
+    // stencils of the refined vertices, indexed by vertex; coarse vertices
+    // are their own stencil
+    std::vector<OsdCpuStencil> _stencils;
+
+    // dense accumulator over the coarse vertices
+    int _current;
+    std::vector<float> _accumulator;
+    std::vector<char> _touched;
+    std::vector<int> _touchedIndices;
+};
+
+OsdCpuStencilBuilder::OsdCpuStencilBuilder(FarMesh<OsdVertex> *mesh,
+                                           int firstLevel) :
+    _mesh(mesh), _tables(mesh->GetSubdivisionTables()),
+    _firstLevel(firstLevel), _current(-1) {
+
+    _numCoarseVertices = _tables->GetMaxLevel() > 1 ?
+        _tables->GetFirstVertexOffset(1) : mesh->GetNumVertices();
+
+    _accumulator.assign(_numCoarseVertices, 0.0f);
+    _touched.assign(_numCoarseVertices, 0);
+}
+
+bool
+OsdCpuStencilBuilder::Build(std::vector<int> & offsets,
+                            std::vector<int> & indices,
+                            std::vector<float> & weights) {
+
+    if (_mesh->GetVertexEdit()) {
+        return false;
+    }
+
+    int numVertices = _mesh->GetNumVertices();
+    _stencils.resize(numVertices);
+
+    int maxLevel = _tables->GetMaxLevel();
+    for (int level=1; level<maxLevel; ++level) {
+
+        _tables->Apply(level, this);
+
+        // the next level only reads this one
+        int previous = level-1;
+        if (previous >= 1 && previous < _firstLevel) {
+            int first = _tables->GetFirstVertexOffset(previous),
+                last = _tables->GetFirstVertexOffset(level);
+            for (int i=first; i<last; ++i) {
+                OsdCpuStencil().swap(_stencils[i]);
+            }
+        }
+    }
+
+    int first = GetFirstVertexOffset();
+
+    offsets.resize(numVertices-first+1);
+    offsets[0] = 0;
+    for (int i=first; i<numVertices; ++i) {
+        offsets[i-first+1] = offsets[i-first] + (int)_stencils[i].size();
+    }
+
+    indices.resize(offsets.back());
+    weights.resize(offsets.back());
+    for (int i=first; i<numVertices; ++i) {
+        OsdCpuStencil const & stencil = _stencils[i];
+        int offset = offsets[i-first];
+        for (int j=0; j<(int)stencil.size(); ++j) {
+            indices[offset+j] = stencil[j].index;
+            weights[offset+j] = stencil[j].weight;
+        }
+        OsdCpuStencil().swap(_stencils[i]);
+    }
+    return true;
+}
+
+void
+OsdCpuStencilBuilder::begin(int dst, bool keep) {
+
+    assert(_current == -1);
+    _current = dst;
+    if (keep) {
+        add(dst, 1.0f);
+    }
+}
+
+void
+OsdCpuStencilBuilder::add(int src, float weight) {
+
+    if (src < _numCoarseVertices) {
+        if (!_touched[src]) {
+            _touched[src] = 1;
+            _touchedIndices.push_back(src);
+        }
+        _accumulator[src] += weight;
+        return;
+    }
+
+    OsdCpuStencil const & stencil = _stencils[src];
+    for (int i=0; i<(int)stencil.size(); ++i) {
+        int index = stencil[i].index;
+        if (!_touched[index]) {
+            _touched[index] = 1;
+            _touchedIndices.push_back(index);
+        }
+        _accumulator[index] += weight * stencil[i].weight;
+    }
+}
+
+void
+OsdCpuStencilBuilder::end() {
+
+    // sorted by coarse vertex, so that applying the stencils reads the
+    // coarse vertices in order
+    std::sort(_touchedIndices.begin(), _touchedIndices.end());
+
+    OsdCpuStencil stencil;
+    stencil.reserve(_touchedIndices.size());
+    for (int i=0; i<(int)_touchedIndices.size(); ++i) {
+        int index = _touchedIndices[i];
+        if (_accumulator[index] != 0.0f) {
+            OsdCpuStencilEntry entry = { index, _accumulator[index] };
+            stencil.push_back(entry);
+        }
+        _accumulator[index] = 0.0f;
+        _touched[index] = 0;
+    }
+    _touchedIndices.clear();
+
+    _stencils[_current].swap(stencil);
+    _current = -1;
+}
+
+void
+OsdCpuStencilBuilder::ApplyBilinearFaceVerticesKernel(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    FarBilinearSubdivisionTables<OsdVertex> const * tables =
+        static_cast<FarBilinearSubdivisionTables<OsdVertex> const *>(_tables);
+
+    const int *F_IT = (const int *)tables->Get_F_IT()[level-1];
+    const int *F_ITa = tables->Get_F_ITa()[level-1];
+
+    for (int i = start; i < end; i++) {
+        int h = F_ITa[2*i];
+        int n = F_ITa[2*i+1];
+
+        float weight = 1.0f/n;
+
+        self()->begin(offset + i, false);
+        for (int j = 0; j < n; ++j) {
+            self()->add(F_IT[h+j], weight);
+        }
+        self()->end();
+    }
+}
+
+void
+OsdCpuStencilBuilder::ApplyBilinearEdgeVerticesKernel(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    const int *E_IT = _tables->Get_E_IT()[level-1];
+
+    for (int i = start; i < end; i++) {
+        self()->begin(offset + i, false);
+        self()->add(E_IT[2*i+0], 0.5f);
+        self()->add(E_IT[2*i+1], 0.5f);
+        self()->end();
+    }
+}
+
+void
+OsdCpuStencilBuilder::ApplyBilinearVertexVerticesKernel(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    const int *V_ITa = _tables->Get_V_ITa()[level-1];
+
+    for (int i = start; i < end; i++) {
+        self()->begin(offset + i, false);
+        self()->add(V_ITa[i], 1.0f);
+        self()->end();
+    }
+}
+
+void
+OsdCpuStencilBuilder::ApplyCatmarkFaceVerticesKernel(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    FarCatmarkSubdivisionTables<OsdVertex> const * tables =
+        static_cast<FarCatmarkSubdivisionTables<OsdVertex> const *>(_tables);
+
+    const int *F_IT = (const int *)tables->Get_F_IT()[level-1];
+    const int *F_ITa = tables->Get_F_ITa()[level-1];
+
+    for (int i = start; i < end; i++) {
+        int h = F_ITa[2*i];
+        int n = F_ITa[2*i+1];
+
+        float weight = 1.0f/n;
+
+        self()->begin(offset + i, false);
+        for (int j = 0; j < n; ++j) {
+            self()->add(F_IT[h+j], weight);
+        }
+        self()->end();
+    }
+}
+
+void
+OsdCpuStencilBuilder::computeEdge(const int *E_IT, const float *E_W,
+                                  int offset, int start, int end) {
+
+    for (int i = start; i < end; i++) {
+        int eidx0 = E_IT[4*i+0];
+        int eidx1 = E_IT[4*i+1];
+        int eidx2 = E_IT[4*i+2];
+        int eidx3 = E_IT[4*i+3];
+
+        float vertWeight = E_W[i*2+0];
+
+        begin(offset + i, false);
+
+        add(eidx0, vertWeight);
+        add(eidx1, vertWeight);
+
+        if (eidx2 != -1) {
+            float faceWeight = E_W[i*2+1];
+
+            add(eidx2, faceWeight);
+            add(eidx3, faceWeight);
+        }
+        this->end();
+    }
+}
+
+void
+OsdCpuStencilBuilder::ApplyCatmarkEdgeVerticesKernel(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    self()->computeEdge(_tables->Get_E_IT()[level-1],
+                        _tables->Get_E_W()[level-1], offset, start, end);
+}
+
+void
+OsdCpuStencilBuilder::ApplyCatmarkVertexVerticesKernelB(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    const int *V_ITa = _tables->Get_V_ITa()[level-1];
+    const int *V_IT = (const int *)_tables->Get_V_IT()[level-1];
+    const float *V_W = _tables->Get_V_W()[level-1];
+
+    for (int i = start; i < end; i++) {
+        int h = V_ITa[5*i];
+        int n = V_ITa[5*i+1];
+        int p = V_ITa[5*i+2];
+
+        float weight = V_W[i];
+        float wp = 1.0f/static_cast<float>(n*n);
+        float wv = (n-2.0f) * n * wp;
+
+        self()->begin(offset + i, false);
+
+        self()->add(p, weight * wv);
+
+        for (int j = 0; j < n; ++j) {
+            self()->add(V_IT[h+j*2], weight * wp);
+            self()->add(V_IT[h+j*2+1], weight * wp);
+        }
+        self()->end();
+    }
+}
+
+void
+OsdCpuStencilBuilder::computeVertexA(const int *V_ITa, const float *V_W,
+                                     int offset, int start, int end,
+                                     int pass) {
+
+    for (int i = start; i < end; i++) {
+        int n     = V_ITa[5*i+1];
+        int p     = V_ITa[5*i+2];
+        int eidx0 = V_ITa[5*i+3];
+        int eidx1 = V_ITa[5*i+4];
+
+        float weight = (pass == 1) ? V_W[i] : 1.0f - V_W[i];
+
+        // see OsdCpuComputeVertexA
+        if (weight > 0.0f && weight < 1.0f && n > 0)
+            weight = 1.0f - weight;
+
+        begin(offset + i, pass != 0);
+
+        if (eidx0 == -1 || (pass == 0 && (n == -1))) {
+            add(p, weight);
+        } else {
+            add(p, weight * 0.75f);
+            add(eidx0, weight * 0.125f);
+            add(eidx1, weight * 0.125f);
+        }
+        this->end();
+    }
+}
+
+void
+OsdCpuStencilBuilder::ApplyCatmarkVertexVerticesKernelA(
+    FarMesh<OsdVertex> * mesh, int offset, bool pass, int level,
+    int start, int end, void * clientdata) const {
+
+    self()->computeVertexA(_tables->Get_V_ITa()[level-1],
+                           _tables->Get_V_W()[level-1],
+                           offset, start, end, pass);
+}
+
+void
+OsdCpuStencilBuilder::ApplyLoopEdgeVerticesKernel(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    self()->computeEdge(_tables->Get_E_IT()[level-1],
+                        _tables->Get_E_W()[level-1], offset, start, end);
+}
+
+void
+OsdCpuStencilBuilder::ApplyLoopVertexVerticesKernelB(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    const int *V_ITa = _tables->Get_V_ITa()[level-1];
+    const int *V_IT = (const int *)_tables->Get_V_IT()[level-1];
+    const float *V_W = _tables->Get_V_W()[level-1];
+
+    for (int i = start; i < end; i++) {
+        int h = V_ITa[5*i];
+        int n = V_ITa[5*i+1];
+        int p = V_ITa[5*i+2];
+
+        float weight = V_W[i];
+        float wp = 1.0f/static_cast<float>(n);
+        float beta = 0.25f * cosf(static_cast<float>(M_PI) * 2.0f * wp) + 0.375f;
+        beta = beta * beta;
+        beta = (0.625f - beta) * wp;
+
+        self()->begin(offset + i, false);
+
+        self()->add(p, weight * (1.0f - (beta * n)));
+
+        for (int j = 0; j < n; ++j)
+            self()->add(V_IT[h+j], weight * beta);
+
+        self()->end();
+    }
+}
+
+void
+OsdCpuStencilBuilder::ApplyLoopVertexVerticesKernelA(
+    FarMesh<OsdVertex> * mesh, int offset, bool pass, int level,
+    int start, int end, void * clientdata) const {
+
+    self()->computeVertexA(_tables->Get_V_ITa()[level-1],
+                           _tables->Get_V_W()[level-1],
+                           offset, start, end, pass);
+}
+
+OsdCpuStencilTables *
+OsdCpuStencilTables::Create(FarMesh<OsdVertex> *farMesh, bool allLevels) {
+
+    FarSubdivisionTables<OsdVertex> const *tables =
+        farMesh->GetSubdivisionTables();
+
+    int maxLevel = tables->GetMaxLevel();
+    int firstLevel = allLevels ? 1 : std::max(1, maxLevel-1);
+
+    OsdCpuStencilTables *result = new OsdCpuStencilTables();
+
+    if (maxLevel <= 1) {
+        // nothing to refine
+        result->_numCoarseVertices = farMesh->GetNumVertices();
+        result->_firstVertexOffset = farMesh->GetNumVertices();
+        result->_offsets.assign(1, 0);
+        return result;
+    }
+
+    OsdCpuStencilBuilder builder(farMesh, firstLevel);
+    if (!builder.Build(result->_offsets, result->_indices, result->_weights)) {
+        delete result;
+        return NULL;
+    }
+    result->_numCoarseVertices = builder.GetNumCoarseVertices();
+    result->_firstVertexOffset = builder.GetFirstVertexOffset();
+
+    return result;
+}
+
+int
+OsdCpuStencilTables::GetMemoryUsed() const {
+
+    return (int)(_offsets.size() * sizeof(int) +
+                 _indices.size() * sizeof(int) +
+                 _weights.size() * sizeof(float));
+}
+
+// Stencils of vertices with N floats, accumulated in registers.
+template <int N> static void
+_ApplyStencils(float *vertices, int firstVertexOffset,
+               const int *offsets, const int *indices, const float *weights,
+               int start, int end) {
+
+    for (int i = start; i < end; ++i) {
+        float dst[N];
+        for (int k = 0; k < N; ++k)
+            dst[k] = 0.0f;
+
+        for (int j = offsets[i]; j < offsets[i+1]; ++j) {
+            const float *src = vertices + indices[j]*N;
+            float weight = weights[j];
+            for (int k = 0; k < N; ++k)
+                dst[k] += weight * src[k];
+        }
+
+        memcpy(vertices + (firstVertexOffset+i)*N, dst, N*sizeof(float));
+    }
+}
+
+void
+OsdCpuStencilTables::Apply(float *vertices, int numElements,
+                           int start, int end) const {
+
+    if (start >= end)
+        return;
+
+    const int *offsets = &_offsets[0];
+    const int *indices = _indices.empty() ? 0 : &_indices[0];
+    const float *weights = _weights.empty() ? 0 : &_weights[0];
+
+    // interleaved positions and normals, and positions alone
+    if (numElements == 6) {
+        _ApplyStencils<6>(vertices, _firstVertexOffset,
+                          offsets, indices, weights, start, end);
+        return;
+    }
+    if (numElements == 3) {
+        _ApplyStencils<3>(vertices, _firstVertexOffset,
+                          offsets, indices, weights, start, end);
+        return;
+    }
+
+    for (int i = start; i < end; ++i) {
+        float *dst = vertices + (_firstVertexOffset+i)*numElements;
+        memset(dst, 0, numElements*sizeof(float));
+
+        for (int j = offsets[i]; j < offsets[i+1]; ++j) {
+            const float *src = vertices + indices[j]*numElements;
+            float weight = weights[j];
+            for (int k = 0; k < numElements; ++k)
+                dst[k] += weight * src[k];
+        }
+    }
+}
+
+}  // end namespace OPENSUBDIV_VERSION
+}  // end namespace OpenSubdiv
@@ -0,0 +1,136 @@
+//
+//     Copyright (C) Pixar. All rights reserved.
+//
+//     This license governs use of the accompanying software. If you
+//     use the software, you accept this license. If you do not accept
+//     the license, do not use the software.
+//
+//     1. Definitions
+//     The terms "reproduce," "reproduction," "derivative works," and
+//     "distribution" have the same meaning here as under U.S.
+//     copyright law.  A "contribution" is the original software, or
+//     any additions or changes to the software.
+//     A "contributor" is any person or entity that distributes its
+//     contribution under this license.
+//     "Licensed patents" are a contributor's patent claims that read
+//     directly on its contribution.
+//
+//     2. Grant of Rights
+//     (A) Copyright Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free copyright license to reproduce its contribution,
+//     prepare derivative works of its contribution, and distribute
+//     its contribution or any derivative works that you create.
+//     (B) Patent Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free license under its licensed patents to make, have
+//     made, use, sell, offer for sale, import, and/or otherwise
+//     dispose of its contribution in the software or derivative works
+//     of the contribution in the software.
+//
+//     3. Conditions and Limitations
+//     (A) No Trademark License- This license does not grant you
+//     rights to use any contributor's name, logo, or trademarks.
+//     (B) If you bring a patent claim against any contributor over
+//     patents that you claim are infringed by the software, your
+//     patent license from such contributor to the software ends
+//     automatically.
+//     (C) If you distribute any portion of the software, you must
+//     retain all copyright, patent, trademark, and attribution
+//     notices that are present in the software.
+//     (D) If you distribute any portion of the software in source
+//     code form, you may do so only under this license by including a
+//     complete copy of this license with your distribution. If you
+//     distribute any portion of the software in compiled or object
+//     code form, you may only do so under a license that complies
+//     with this license.
+//     (E) The software is licensed "as-is." You bear the risk of
+//     using it. The contributors give no express warranties,
+//     guarantees or conditions. You may have additional consumer
+//     rights under your local laws which this license cannot change.
+//     To the extent permitted under your local laws, the contributors
+//     exclude the implied warranties of merchantability, fitness for
+//     a particular purpose and non-infringement.
+//
+#ifndef OSD_CPU_STENCIL_TABLES_H
+#define OSD_CPU_STENCIL_TABLES_H
+
+#include "../version.h"
+
+#include "../far/mesh.h"
+#include "../osd/vertex.h"
+
+#include <vector>
+
+namespace OpenSubdiv {
+namespace OPENSUBDIV_VERSION {
+
+/// \brief Subdivision tables flattened into stencils.
+/// OsdCpuStencilTables maps the coarse vertices of a far mesh directly to
+/// its refined vertices : each refined vertex is a weighted sum (a stencil)
+/// of coarse vertices, and the stencils are stored as a sparse matrix in
+/// compressed row form. Refining then takes a single sparse matrix-vector
+/// product instead of the level by level kernels, and every stencil can be
+/// applied independently of the others.
+///
+/// By default only the vertices of the finest level are computed, which is
+/// all that uniform meshes draw; the vertices of the intermediate levels
+/// are left untouched in the vertex buffer. Feature adaptive meshes need
+/// the stencils of every level.
+///
+/// The stencils are built by replaying the subdivision kernels on sparse
+/// weights. Meshes with hierarchical vertex edits are not supported.
+class OsdCpuStencilTables {
+public:
+    /// Returns NULL if the mesh has vertex edits.
+    static OsdCpuStencilTables * Create(FarMesh<OsdVertex> *farMesh,
+                                        bool allLevels=false);
+
+    /// Returns the number of stencils, i.e. of refined vertices computed.
+    int GetNumStencils() const { return (int)_offsets.size()-1; }
+
+    /// Returns the number of coarse vertices the stencils read from.
+    int GetNumCoarseVertices() const { return _numCoarseVertices; }
+
+    /// Returns the index of the vertex computed by the first stencil.
+    int GetFirstVertexOffset() const { return _firstVertexOffset; }
+
+    /// Stencil i has the coarse vertices GetIndices()[GetOffsets()[i] ...
+    /// GetOffsets()[i+1]] with the matching weights.
+    std::vector<int> const & GetOffsets() const { return _offsets; }
+
+    std::vector<int> const & GetIndices() const { return _indices; }
+
+    std::vector<float> const & GetWeights() const { return _weights; }
+
+    /// Returns the memory used by the tables in bytes.
+    int GetMemoryUsed() const;
+
+    /// Applies stencils [start, end) to a vertex buffer of numElements
+    /// floats per vertex, which holds the coarse vertices at its start.
+    void Apply(float *vertices, int numElements, int start, int end) const;
+
+    /// Applies all the stencils.
+    void Apply(float *vertices, int numElements) const {
+        Apply(vertices, numElements, 0, GetNumStencils());
+    }
+
+private:
+    OsdCpuStencilTables() : _numCoarseVertices(0), _firstVertexOffset(0) { }
+
+    int _numCoarseVertices;
+    int _firstVertexOffset;
+
+    std::vector<int> _offsets;
+    std::vector<int> _indices;
+    std::vector<float> _weights;
+};
+
+}  // end namespace OPENSUBDIV_VERSION
+using namespace OPENSUBDIV_VERSION;
+
+}  // end namespace OpenSubdiv
+
+#endif  // OSD_CPU_STENCIL_TABLES_H
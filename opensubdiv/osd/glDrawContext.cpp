@@ -74,7 +74,11 @@ namespace OpenSubdiv {
 namespace OPENSUBDIV_VERSION {
 
 OsdGLDrawContext::OsdGLDrawContext() :
-    patchIndexBuffer(0), ptexCoordinateTextureBuffer(0), fvarDataTextureBuffer(0),
+    patchIndexBuffer(0),
+#if defined(GL_ES_VERSION_2_0)
+    patchTrianglesIndexBuffer(0),
+#endif
+    ptexCoordinateTextureBuffer(0), fvarDataTextureBuffer(0),
     vertexTextureBuffer(0), vertexValenceTextureBuffer(0), quadOffsetTextureBuffer(0),
     patchLevelTextureBuffer(0)
 {
@@ -83,6 +87,9 @@ OsdGLDrawContext::OsdGLDrawContext() :
 OsdGLDrawContext::~OsdGLDrawContext()
 {
     glDeleteBuffers(1, &patchIndexBuffer);
+#if defined(GL_ES_VERSION_2_0)
+    glDeleteBuffers(1, &patchTrianglesIndexBuffer);
+#endif
     glDeleteTextures(1, &vertexTextureBuffer);
     glDeleteTextures(1, &vertexValenceTextureBuffer);
     glDeleteTextures(1, &quadOffsetTextureBuffer);
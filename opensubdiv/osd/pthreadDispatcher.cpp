@@ -0,0 +1,477 @@
+//
+//     Copyright (C) Pixar. All rights reserved.
+//
+//     This license governs use of the accompanying software. If you
+//     use the software, you accept this license. If you do not accept
+//     the license, do not use the software.
+//
+//     1. Definitions
+//     The terms "reproduce," "reproduction," "derivative works," and
+//     "distribution" have the same meaning here as under U.S.
+//     copyright law.  A "contribution" is the original software, or
+//     any additions or changes to the software.
+//     A "contributor" is any person or entity that distributes its
+//     contribution under this license.
+//     "Licensed patents" are a contributor's patent claims that read
+//     directly on its contribution.
+//
+//     2. Grant of Rights
+//     (A) Copyright Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free copyright license to reproduce its contribution,
+//     prepare derivative works of its contribution, and distribute
+//     its contribution or any derivative works that you create.
+//     (B) Patent Grant- Subject to the terms of this license,
+//     including the license conditions and limitations in section 3,
+//     each contributor grants you a non-exclusive, worldwide,
+//     royalty-free license under its licensed patents to make, have
+//     made, use, sell, offer for sale, import, and/or otherwise
+//     dispose of its contribution in the software or derivative works
+//     of the contribution in the software.
+//
+//     3. Conditions and Limitations
+//     (A) No Trademark License- This license does not grant you
+//     rights to use any contributor's name, logo, or trademarks.
+//     (B) If you bring a patent claim against any contributor over
+//     patents that you claim are infringed by the software, your
+//     patent license from such contributor to the software ends
+//     automatically.
+//     (C) If you distribute any portion of the software, you must
+//     retain all copyright, patent, trademark, and attribution
+//     notices that are present in the software.
+//     (D) If you distribute any portion of the software in source
+//     code form, you may do so only under this license by including a
+//     complete copy of this license with your distribution. If you
+//     distribute any portion of the software in compiled or object
+//     code form, you may only do so under a license that complies
+//     with this license.
+//     (E) The software is licensed "as-is." You bear the risk of
+//     using it. The contributors give no express warranties,
+//     guarantees or conditions. You may have additional consumer
+//     rights under your local laws which this license cannot change.
+//     To the extent permitted under your local laws, the contributors
+//     exclude the implied warranties of merchantability, fitness for
+//     a particular purpose and non-infringement.
+//
+
+#include "../osd/pthreadDispatcher.h"
+#include "../osd/cpuKernel.h"
+#include "../osd/cpuComputeContext.h"
+
+#include <pthread.h>
+#include <algorithm>
+#include <cassert>
+#include <vector>
+
+namespace OpenSubdiv {
+namespace OPENSUBDIV_VERSION {
+
+// Batches smaller than this many vertices per thread are not worth the
+// fork-join overhead and are split into fewer ranges.
+static const int kMinVerticesPerThread = 128;
+
+// Arguments of one of the cpu kernels, applied to a range of vertices.
+struct OsdPthreadKernelJob {
+
+    enum Kernel {
+        kFace,
+        kEdge,
+        kBilinearEdge,
+        kBilinearVertex,
+        kVertexA,
+        kVertexB,
+        kLoopVertexB,
+    };
+
+    OsdPthreadKernelJob(Kernel k, OsdCpuComputeContext const *context,
+                        int offset_, int pass_=0) :
+        kernel(k),
+        vdesc(context->GetVertexDescriptor()),
+        vertex(context->GetCurrentVertexBuffer()),
+        varying(context->GetCurrentVaryingBuffer()),
+        table0(0), table1(0), table2(0),
+        offset(offset_), pass(pass_) { }
+
+    void Run(int start, int end) const {
+        switch (kernel) {
+        case kFace:
+            OsdCpuComputeFace(vdesc, vertex, varying,
+                              (const int*)table0, (const int*)table1,
+                              offset, start, end);
+            break;
+        case kEdge:
+            OsdCpuComputeEdge(vdesc, vertex, varying,
+                              (const int*)table0, (const float*)table1,
+                              offset, start, end);
+            break;
+        case kBilinearEdge:
+            OsdCpuComputeBilinearEdge(vdesc, vertex, varying,
+                                      (const int*)table0,
+                                      offset, start, end);
+            break;
+        case kBilinearVertex:
+            OsdCpuComputeBilinearVertex(vdesc, vertex, varying,
+                                        (const int*)table0,
+                                        offset, start, end);
+            break;
+        case kVertexA:
+            OsdCpuComputeVertexA(vdesc, vertex, varying,
+                                 (const int*)table0, (const float*)table1,
+                                 offset, start, end, pass);
+            break;
+        case kVertexB:
+            OsdCpuComputeVertexB(vdesc, vertex, varying,
+                                 (const int*)table0, (const int*)table1,
+                                 (const float*)table2,
+                                 offset, start, end);
+            break;
+        case kLoopVertexB:
+            OsdCpuComputeLoopVertexB(vdesc, vertex, varying,
+                                     (const int*)table0, (const int*)table1,
+                                     (const float*)table2,
+                                     offset, start, end);
+            break;
+        }
+    }
+
+    Kernel kernel;
+    OsdVertexDescriptor const *vdesc;
+    float *vertex, *varying;
+    const void *table0, *table1, *table2;
+    int offset, pass;
+};
+
+// Persistent worker threads running the ranges of one job at a time. The
+// calling thread computes ranges too, so numThreads-1 workers are spawned.
+class OsdPthreadWorkerPool {
+public:
+    OsdPthreadWorkerPool();
+
+    ~OsdPthreadWorkerPool();
+
+    void Lock() { pthread_mutex_lock(&_refineMutex); }
+
+    void Unlock() { pthread_mutex_unlock(&_refineMutex); }
+
+    void SetNumThreads(int numThreads);
+
+    void Run(OsdPthreadKernelJob const &job, int start, int end);
+
+private:
+    static void * workerMain(void *pool);
+
+    void runRanges();
+
+    pthread_mutex_t _refineMutex;   // serializes Refine calls
+
+    pthread_mutex_t _mutex;
+    pthread_cond_t _workCond, _doneCond;
+
+    std::vector<pthread_t> _threads;
+    int _numThreads;
+    bool _quit;
+
+    // current job, guarded by _mutex
+    OsdPthreadKernelJob const *_job;
+    int _start, _rangeSize, _end;
+    int _nextRange, _numRanges, _pendingRanges;
+    unsigned int _generation;
+};
+
+OsdPthreadWorkerPool::OsdPthreadWorkerPool() :
+    _numThreads(1), _quit(false), _job(0),
+    _start(0), _rangeSize(0), _end(0),
+    _nextRange(0), _numRanges(0), _pendingRanges(0), _generation(0) {
+
+    pthread_mutex_init(&_refineMutex, 0);
+    pthread_mutex_init(&_mutex, 0);
+    pthread_cond_init(&_workCond, 0);
+    pthread_cond_init(&_doneCond, 0);
+}
+
+OsdPthreadWorkerPool::~OsdPthreadWorkerPool() {
+
+    pthread_mutex_lock(&_mutex);
+    _quit = true;
+    pthread_cond_broadcast(&_workCond);
+    pthread_mutex_unlock(&_mutex);
+
+    for (int i = 0; i < (int)_threads.size(); ++i)
+        pthread_join(_threads[i], 0);
+
+    pthread_cond_destroy(&_doneCond);
+    pthread_cond_destroy(&_workCond);
+    pthread_mutex_destroy(&_mutex);
+    pthread_mutex_destroy(&_refineMutex);
+}
+
+void
+OsdPthreadWorkerPool::SetNumThreads(int numThreads) {
+
+    _numThreads = numThreads < 1 ? 1 : numThreads;
+
+    // spawn missing workers, extra workers simply stay idle
+    while ((int)_threads.size() < _numThreads-1) {
+        pthread_t thread;
+        if (pthread_create(&thread, 0, workerMain, this) != 0) {
+            _numThreads = (int)_threads.size()+1;
+            break;
+        }
+        _threads.push_back(thread);
+    }
+}
+
+void
+OsdPthreadWorkerPool::Run(OsdPthreadKernelJob const &job, int start, int end) {
+
+    int numVertices = end - start;
+    int numRanges = std::min(_numThreads, numVertices / kMinVerticesPerThread);
+
+    if (numRanges <= 1) {
+        job.Run(start, end);
+        return;
+    }
+
+    pthread_mutex_lock(&_mutex);
+    _job = &job;
+    _start = start;
+    _end = end;
+    _rangeSize = (numVertices + numRanges - 1) / numRanges;
+    _nextRange = 0;
+    _numRanges = numRanges;
+    _pendingRanges = numRanges;
+    ++_generation;
+    pthread_cond_broadcast(&_workCond);
+    pthread_mutex_unlock(&_mutex);
+
+    runRanges();
+
+    pthread_mutex_lock(&_mutex);
+    while (_pendingRanges > 0)
+        pthread_cond_wait(&_doneCond, &_mutex);
+    _job = 0;
+    pthread_mutex_unlock(&_mutex);
+}
+
+void
+OsdPthreadWorkerPool::runRanges() {
+
+    pthread_mutex_lock(&_mutex);
+    while (_job && _nextRange < _numRanges) {
+        int range = _nextRange++;
+        OsdPthreadKernelJob const *job = _job;
+        int start = _start + range * _rangeSize;
+        int end = std::min(start + _rangeSize, _end);
+        pthread_mutex_unlock(&_mutex);
+
+        job->Run(start, end);
+
+        pthread_mutex_lock(&_mutex);
+        if (--_pendingRanges == 0)
+            pthread_cond_signal(&_doneCond);
+    }
+    pthread_mutex_unlock(&_mutex);
+}
+
+void *
+OsdPthreadWorkerPool::workerMain(void *data) {
+
+    OsdPthreadWorkerPool *pool = static_cast<OsdPthreadWorkerPool*>(data);
+
+    unsigned int generation = 0;
+    for (;;) {
+        pthread_mutex_lock(&pool->_mutex);
+        while (!pool->_quit && pool->_generation == generation)
+            pthread_cond_wait(&pool->_workCond, &pool->_mutex);
+        if (pool->_quit) {
+            pthread_mutex_unlock(&pool->_mutex);
+            break;
+        }
+        generation = pool->_generation;
+        pthread_mutex_unlock(&pool->_mutex);
+
+        pool->runRanges();
+    }
+    return 0;
+}
+
+OsdPthreadKernelDispatcher::OsdPthreadKernelDispatcher() :
+    _pool(new OsdPthreadWorkerPool()) {
+}
+
+OsdPthreadKernelDispatcher::~OsdPthreadKernelDispatcher() {
+
+    delete _pool;
+}
+
+void
+OsdPthreadKernelDispatcher::Refine(FarMesh<OsdVertex> * mesh,
+                                   OsdCpuComputeContext *context,
+                                   int numThreads) const {
+
+    _pool->Lock();
+    _pool->SetNumThreads(numThreads);
+    FarDispatcher<OsdVertex>::Refine(mesh, /*maxlevel =*/ -1, context);
+    _pool->Unlock();
+}
+
+OsdPthreadKernelDispatcher *
+OsdPthreadKernelDispatcher::GetInstance() {
+
+    static OsdPthreadKernelDispatcher instance;
+    return &instance;
+}
+
+void
+OsdPthreadKernelDispatcher::ApplyBilinearFaceVerticesKernel(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    OsdCpuComputeContext * context =
+        static_cast<OsdCpuComputeContext*>(clientdata);
+    assert(context);
+
+    OsdPthreadKernelJob job(OsdPthreadKernelJob::kFace, context, offset);
+    job.table0 = context->GetTablePtr(Table::F_IT, level-1);
+    job.table1 = context->GetTablePtr(Table::F_ITa, level-1);
+    _pool->Run(job, start, end);
+}
+
+void
+OsdPthreadKernelDispatcher::ApplyBilinearEdgeVerticesKernel(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    OsdCpuComputeContext * context =
+        static_cast<OsdCpuComputeContext*>(clientdata);
+    assert(context);
+
+    OsdPthreadKernelJob job(OsdPthreadKernelJob::kBilinearEdge, context, offset);
+    job.table0 = context->GetTablePtr(Table::E_IT, level-1);
+    _pool->Run(job, start, end);
+}
+
+void
+OsdPthreadKernelDispatcher::ApplyBilinearVertexVerticesKernel(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    OsdCpuComputeContext * context =
+        static_cast<OsdCpuComputeContext*>(clientdata);
+    assert(context);
+
+    OsdPthreadKernelJob job(OsdPthreadKernelJob::kBilinearVertex, context, offset);
+    job.table0 = context->GetTablePtr(Table::V_ITa, level-1);
+    _pool->Run(job, start, end);
+}
+
+void
+OsdPthreadKernelDispatcher::ApplyCatmarkFaceVerticesKernel(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    OsdCpuComputeContext * context =
+        static_cast<OsdCpuComputeContext*>(clientdata);
+    assert(context);
+
+    OsdPthreadKernelJob job(OsdPthreadKernelJob::kFace, context, offset);
+    job.table0 = context->GetTablePtr(Table::F_IT, level-1);
+    job.table1 = context->GetTablePtr(Table::F_ITa, level-1);
+    _pool->Run(job, start, end);
+}
+
+void
+OsdPthreadKernelDispatcher::ApplyCatmarkEdgeVerticesKernel(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    OsdCpuComputeContext * context =
+        static_cast<OsdCpuComputeContext*>(clientdata);
+    assert(context);
+
+    OsdPthreadKernelJob job(OsdPthreadKernelJob::kEdge, context, offset);
+    job.table0 = context->GetTablePtr(Table::E_IT, level-1);
+    job.table1 = context->GetTablePtr(Table::E_W, level-1);
+    _pool->Run(job, start, end);
+}
+
+void
+OsdPthreadKernelDispatcher::ApplyCatmarkVertexVerticesKernelB(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    OsdCpuComputeContext * context =
+        static_cast<OsdCpuComputeContext*>(clientdata);
+    assert(context);
+
+    OsdPthreadKernelJob job(OsdPthreadKernelJob::kVertexB, context, offset);
+    job.table0 = context->GetTablePtr(Table::V_ITa, level-1);
+    job.table1 = context->GetTablePtr(Table::V_IT, level-1);
+    job.table2 = context->GetTablePtr(Table::V_W, level-1);
+    _pool->Run(job, start, end);
+}
+
+void
+OsdPthreadKernelDispatcher::ApplyCatmarkVertexVerticesKernelA(
+    FarMesh<OsdVertex> * mesh, int offset, bool pass, int level,
+    int start, int end, void * clientdata) const {
+
+    OsdCpuComputeContext * context =
+        static_cast<OsdCpuComputeContext*>(clientdata);
+    assert(context);
+
+    OsdPthreadKernelJob job(OsdPthreadKernelJob::kVertexA, context, offset, pass);
+    job.table0 = context->GetTablePtr(Table::V_ITa, level-1);
+    job.table1 = context->GetTablePtr(Table::V_W, level-1);
+    _pool->Run(job, start, end);
+}
+
+void
+OsdPthreadKernelDispatcher::ApplyLoopEdgeVerticesKernel(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    OsdCpuComputeContext * context =
+        static_cast<OsdCpuComputeContext*>(clientdata);
+    assert(context);
+
+    OsdPthreadKernelJob job(OsdPthreadKernelJob::kEdge, context, offset);
+    job.table0 = context->GetTablePtr(Table::E_IT, level-1);
+    job.table1 = context->GetTablePtr(Table::E_W, level-1);
+    _pool->Run(job, start, end);
+}
+
+void
+OsdPthreadKernelDispatcher::ApplyLoopVertexVerticesKernelB(
+    FarMesh<OsdVertex> * mesh, int offset, int level,
+    int start, int end, void * clientdata) const {
+
+    OsdCpuComputeContext * context =
+        static_cast<OsdCpuComputeContext*>(clientdata);
+    assert(context);
+
+    OsdPthreadKernelJob job(OsdPthreadKernelJob::kLoopVertexB, context, offset);
+    job.table0 = context->GetTablePtr(Table::V_ITa, level-1);
+    job.table1 = context->GetTablePtr(Table::V_IT, level-1);
+    job.table2 = context->GetTablePtr(Table::V_W, level-1);
+    _pool->Run(job, start, end);
+}
+
+void
+OsdPthreadKernelDispatcher::ApplyLoopVertexVerticesKernelA(
+    FarMesh<OsdVertex> * mesh, int offset, bool pass, int level,
+    int start, int end, void * clientdata) const {
+
+    OsdCpuComputeContext * context =
+        static_cast<OsdCpuComputeContext*>(clientdata);
+    assert(context);
+
+    OsdPthreadKernelJob job(OsdPthreadKernelJob::kVertexA, context, offset, pass);
+    job.table0 = context->GetTablePtr(Table::V_ITa, level-1);
+    job.table1 = context->GetTablePtr(Table::V_W, level-1);
+    _pool->Run(job, start, end);
+}
+
+}  // end namespace OPENSUBDIV_VERSION
+}  // end namespace OpenSubdiv
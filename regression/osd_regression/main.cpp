@@ -64,17 +64,21 @@
 #endif
 
 #include <stdio.h>
+#include <string.h>
 #include <cassert>
 
 #include "../common/mutex.h"
 
 #include <far/meshFactory.h>
+#include <far/meshSerializer.h>
 
 #include <osd/vertex.h>
 #include <osd/cpuVertexBuffer.h>
 #include <osd/cpuDispatcher.h>
 #include <osd/cpuComputeController.h>
 #include <osd/cpuComputeContext.h>
+#include <osd/cpuStencilTables.h>
+#include <osd/cpuKernel.h>
 
 #ifdef OPENSUBDIV_HAS_CUDA
     #include <osd/cudaDispatcher.h>
@@ -86,6 +90,9 @@
 
 #include "../common/shape_utils.h"
 
+#include "../../examples/apps/android/OpenSubdivViewer/jni/OsdGLBufferRing.h"
+#include "../../examples/apps/android/OpenSubdivViewer/jni/OsdLimitStencil.h"
+
 //
 // Regression testing matching Osd to Hbr
 //
@@ -287,6 +294,188 @@ int checkVertexBuffer( xyzmesh * hmesh,
     return count;
 }
 
+//------------------------------------------------------------------------------
+// Compares the vertices computed by the stencil tables with the ones computed
+// by the subdivision tables in vb.
+int checkStencils( OpenSubdiv::FarMesh<OpenSubdiv::OsdVertex> * farmesh,
+                   std::vector<float> const & coarseverts,
+                   OpenSubdiv::OsdCpuVertexBuffer * vb ) {
+
+    OpenSubdiv::OsdCpuStencilTables * stencils =
+        OpenSubdiv::OsdCpuStencilTables::Create(farmesh);
+
+    if (not stencils) {
+        printf("    stencils : skipped (vertex edits)\n");
+        return 0;
+    }
+
+    std::vector<float> verts(farmesh->GetNumVertices()*3, 0.0f);
+    std::copy(coarseverts.begin(), coarseverts.end(), verts.begin());
+
+    stencils->Apply( &verts[0], 3 );
+
+    int count=0;
+    float const * ov = vb->BindCpuBuffer();
+    for (int i=stencils->GetFirstVertexOffset(); i<farmesh->GetNumVertices(); ++i) {
+
+        float delta[3] = { verts[i*3+0] - ov[i*3+0],
+                           verts[i*3+1] - ov[i*3+1],
+                           verts[i*3+2] - ov[i*3+2] };
+
+        float dist = sqrtf( delta[0]*delta[0]+delta[1]*delta[1]+delta[2]*delta[2]);
+        if ( dist > PRECISION ) {
+            printf("// stencil %d fails : dist=%.10f\n",
+                   i-stencils->GetFirstVertexOffset(), dist);
+            count++;
+        }
+    }
+
+    printf("    stencils : %d, %d bytes\n", stencils->GetNumStencils(),
+                                             stencils->GetMemoryUsed());
+    delete stencils;
+
+    return count;
+}
+
+//------------------------------------------------------------------------------
+// Checks that the simd kernels supported by this cpu produce exactly the same
+// vertices as the scalar kernels, for every vertex size they specialize.
+int checkKernels( OpenSubdiv::FarMesh<OpenSubdiv::OsdVertex> * farmesh,
+                  std::vector<float> const & coarseverts ) {
+
+    static OpenSubdiv::OsdCpuKernelIsa const simdIsas[] = {
+        OpenSubdiv::kOsdCpuKernelSSE, OpenSubdiv::kOsdCpuKernelNEON };
+    static char const * simdIsaNames[] = { "sse", "neon" };
+    static int const numElements[] = { 3, 4, 6, 8 };
+
+    OpenSubdiv::OsdCpuKernelIsa isa = OpenSubdiv::OsdCpuGetKernelIsa();
+
+    OpenSubdiv::OsdCpuComputeController controller;
+
+    OpenSubdiv::OsdCpuComputeContext *context =
+        OpenSubdiv::OsdCpuComputeContext::Create(farmesh);
+
+    int count=0,
+        nverts = farmesh->GetNumVertices(),
+        ncoarseverts = (int)coarseverts.size()/3;
+
+    for (int i=0; i<2; ++i) {
+        if (not OpenSubdiv::OsdCpuIsKernelIsaSupported(simdIsas[i]))
+            continue;
+
+        int fails=0;
+        for (int j=0; j<4; ++j) {
+            int n = numElements[j];
+
+            // extra elements are scaled copies of the positions
+            std::vector<float> verts(ncoarseverts*n);
+            for (int k=0; k<(int)verts.size(); ++k)
+                verts[k] = coarseverts[(k/n)*3 + (k%n)%3] * (1.0f + (k%n)/3);
+
+            OpenSubdiv::OsdCpuVertexBuffer
+                * scalar = OpenSubdiv::OsdCpuVertexBuffer::Create(n, nverts),
+                * simd = OpenSubdiv::OsdCpuVertexBuffer::Create(n, nverts);
+
+            scalar->UpdateData( &verts[0], ncoarseverts );
+            simd->UpdateData( &verts[0], ncoarseverts );
+
+            OpenSubdiv::OsdCpuSetKernelIsa(OpenSubdiv::kOsdCpuKernelScalar);
+            controller.Refine( context, scalar );
+
+            OpenSubdiv::OsdCpuSetKernelIsa(simdIsas[i]);
+            controller.Refine( context, simd );
+
+            if (memcmp(scalar->BindCpuBuffer(), simd->BindCpuBuffer(),
+                       nverts*n*sizeof(float))!=0) {
+                printf("// %s kernels with %d elements differ from the scalar kernels\n",
+                       simdIsaNames[i], n);
+                fails++;
+            }
+
+            delete scalar;
+            delete simd;
+        }
+
+        if (fails==0)
+            printf("    kernels : %s bit-exact\n", simdIsaNames[i]);
+        count+=fails;
+    }
+
+    OpenSubdiv::OsdCpuSetKernelIsa(isa);
+
+    delete context;
+
+    return count;
+}
+
+//------------------------------------------------------------------------------
+// Serializes farmesh, reads it back and checks that the copy serializes to the
+// same bytes and refines to the same vertices as the subdivision tables in vb.
+int checkSerializer( OpenSubdiv::FarMesh<OpenSubdiv::OsdVertex> * farmesh,
+                     std::vector<float> const & coarseverts,
+                     OpenSubdiv::OsdCpuVertexBuffer * vb ) {
+
+    typedef OpenSubdiv::FarMeshSerializer<OpenSubdiv::OsdVertex> Serializer;
+
+    std::vector<char> buffer;
+    if (not Serializer::Write(farmesh, buffer)) {
+        printf("    serializer : skipped (vertex edits)\n");
+        return 0;
+    }
+
+    size_t consumed=0;
+    OpenSubdiv::FarMesh<OpenSubdiv::OsdVertex> * copy =
+        Serializer::Read(&buffer[0], buffer.size(), &consumed);
+
+    if (not copy or consumed!=buffer.size()) {
+        printf("// serializer fails to read %d bytes\n", (int)buffer.size());
+        delete copy;
+        return 1;
+    }
+
+    int count=0;
+
+    std::vector<char> rewritten;
+    Serializer::Write(copy, rewritten);
+    if (rewritten!=buffer) {
+        printf("// serializer fails : copy serializes differently\n");
+        count++;
+    }
+
+    if (Serializer::Read(&buffer[0], buffer.size()-1)) {
+        printf("// serializer fails : truncated data is accepted\n");
+        count++;
+    }
+
+    OpenSubdiv::OsdCpuComputeController controller;
+
+    OpenSubdiv::OsdCpuComputeContext *context =
+        OpenSubdiv::OsdCpuComputeContext::Create(copy);
+
+    OpenSubdiv::OsdCpuVertexBuffer * copyvb =
+        OpenSubdiv::OsdCpuVertexBuffer::Create(3, copy->GetNumVertices());
+
+    copyvb->UpdateData( &coarseverts[0], (int)coarseverts.size()/3 );
+
+    controller.Refine( context, copyvb );
+
+    if (copy->GetNumVertices()!=farmesh->GetNumVertices() or
+        memcmp(copyvb->BindCpuBuffer(), vb->BindCpuBuffer(),
+               farmesh->GetNumVertices()*3*sizeof(float))!=0) {
+        printf("// serializer fails : copy refines differently\n");
+        count++;
+    }
+
+    if (count==0)
+        printf("    serializer : %d bytes\n", (int)buffer.size());
+
+    delete copyvb;
+    delete context;
+    delete copy;
+
+    return count;
+}
+
 //------------------------------------------------------------------------------
 static void refine( xyzmesh * mesh, int maxlevel ) {
 
@@ -301,6 +490,83 @@ static void refine( xyzmesh * mesh, int maxlevel ) {
 
 }
 
+//------------------------------------------------------------------------------
+// Checks the limit position masks of the android viewer against the vertices
+// of a uniform refinement to LIMIT_LEVEL, which converge to the limit
+// surface. The masks are applied at level 1, where every face is a quad, as
+// the viewer does. Vertices under hierarchical edits or semi-sharp features,
+// which the masks don't model, are left out.
+#define LIMIT_LEVEL 7
+#define LIMIT_PRECISION 1e-3
+
+int checkLimitStencils( char const * shape ) {
+
+    xyzmesh * mesh = simpleHbr<xyzVV>(shape, kCatmark, 0);
+
+    if (mesh->HasVertexEdits()) {
+        printf("    limit stencils : skipped (vertex edits)\n");
+        delete mesh;
+        return 0;
+    }
+
+    int ncoarse = mesh->GetNumVertices();
+
+    refine( mesh, LIMIT_LEVEL );
+
+    std::vector<xyzvertex *> vertices;
+    std::vector<float> weights;
+
+    int count=0, nboundary=0;
+    float maxerror=0.0f;
+    for (int i=0; i<ncoarse; ++i) {
+
+        xyzvertex * v = mesh->GetVertex(i);
+        if (not v or not v->IsConnected())
+            continue;
+
+        v = v->Subdivide();
+        if (v->IsVolatile())
+            continue;
+
+        OsdGetLimitStencil(v, &vertices, &weights);
+
+        float limit[3] = { 0.0f, 0.0f, 0.0f };
+        for (int j=0; j<(int)vertices.size(); ++j) {
+            const float * pos = vertices[j]->GetData().GetPos();
+            for (int k=0; k<3; ++k)
+                limit[k] += weights[j]*pos[k];
+        }
+
+        xyzvertex * child = v;
+        for (int l=1; l<LIMIT_LEVEL; ++l)
+            child = child->Subdivide();
+
+        const float * pos = child->GetData().GetPos();
+        float deltaX = limit[0] - pos[0],
+              deltaY = limit[1] - pos[1],
+              deltaZ = limit[2] - pos[2];
+        float dist = sqrtf( deltaX * deltaX + deltaY * deltaY + deltaZ * deltaZ);
+
+        if (v->OnBoundary())
+            nboundary++;
+
+        if ( dist > LIMIT_PRECISION ) {
+            printf("// limit stencil fails : vertex %d%s (dist=%.10f)\n",
+                   i, v->OnBoundary() ? " on boundary" : "", dist);
+            count++;
+        }
+        maxerror = std::max(maxerror, dist);
+    }
+
+    if (count==0)
+        printf("    limit stencils : %d boundary vertices, max error %g\n",
+               nboundary, maxerror);
+
+    delete mesh;
+
+    return count;
+}
+
 //------------------------------------------------------------------------------
 int checkMesh( char const * msg, char const * shape, int levels, Scheme scheme=kCatmark ) {
 
@@ -336,6 +602,41 @@ int checkMesh( char const * msg, char const * shape, int levels, Scheme scheme=k
         controller->Refine( context, vb );
 
         checkVertexBuffer(refmesh, vb, remap);
+
+        checkStencils(farmesh, coarseverts, vb);
+
+        checkKernels(farmesh, coarseverts);
+
+        checkSerializer(farmesh, coarseverts, vb);
+    }
+
+    if (scheme==kCatmark)
+        result += checkLimitStencils(shape);
+
+    if (scheme==kCatmark) {
+        // round-trip the patch tables as well, from an unrefined hbr mesh
+        std::vector<float> verts;
+        OsdHbrMesh * adaptivehmesh = simpleHbr<OpenSubdiv::OsdVertex>(shape, scheme, verts);
+
+        OpenSubdiv::FarMeshFactory<OpenSubdiv::OsdVertex> adaptiveFactory(adaptivehmesh, levels, true);
+
+        OpenSubdiv::FarMesh<OpenSubdiv::OsdVertex> * adaptive = adaptiveFactory.Create();
+
+        std::vector<char> buffer, rewritten;
+        if (adaptive and OpenSubdiv::FarMeshSerializer<OpenSubdiv::OsdVertex>::Write(adaptive, buffer)) {
+            OpenSubdiv::FarMesh<OpenSubdiv::OsdVertex> * copy =
+                OpenSubdiv::FarMeshSerializer<OpenSubdiv::OsdVertex>::Read(&buffer[0], buffer.size());
+            if (not copy or not copy->GetPatchTables() or
+                not OpenSubdiv::FarMeshSerializer<OpenSubdiv::OsdVertex>::Write(copy, rewritten) or
+                rewritten!=buffer) {
+                printf("// serializer fails : adaptive copy serializes differently\n");
+            } else {
+                printf("    serializer : adaptive %d bytes\n", (int)buffer.size());
+            }
+            delete copy;
+        }
+        delete adaptive;
+        delete adaptivehmesh;
     }
 
     delete hmesh;
@@ -343,6 +644,106 @@ int checkMesh( char const * msg, char const * shape, int levels, Scheme scheme=k
     return result;
 }
 
+//------------------------------------------------------------------------------
+// Checks that the GL buffer ring of the android viewer uploads to its buffers
+// in turn, leaves the contents of the other buffers alone and restarts the
+// rotation when it is resized.
+int checkBufferRing() {
+
+    int count=0;
+
+    OsdGLBufferRing ring;
+
+    float data[3][4];
+    for (int i=0; i<3; ++i)
+        for (int j=0; j<4; ++j)
+            data[i][j] = (float)(i*4+j);
+
+    if (not ring.Resize(3, sizeof(data[0])) or ring.GetDepth()!=3) {
+        printf("// buffer ring fails to allocate 3 buffers\n");
+        return 1;
+    }
+
+    if (ring.GetCurrent()!=0) {
+        printf("// buffer ring fails : current buffer before the first upload\n");
+        count++;
+    }
+
+    GLuint names[4];
+    for (int i=0; i<4; ++i) {
+        names[i] = ring.Upload(data[i%3]);
+        if (names[i]==0 or names[i]!=ring.GetCurrent() or
+            ring.GetCurrentIndex()!=i%3) {
+            printf("// buffer ring fails : upload %d returns buffer %d\n",
+                   i, (int)names[i]);
+            count++;
+        }
+    }
+
+    if (names[0]==names[1] or names[1]==names[2] or names[0]==names[2]) {
+        printf("// buffer ring fails : uploads share a buffer\n");
+        count++;
+    }
+
+    if (names[3]!=names[0]) {
+        printf("// buffer ring fails : upload 3 does not wrap around\n");
+        count++;
+    }
+
+    // each buffer still holds its own upload
+    for (int i=0; i<3; ++i) {
+        float readback[4];
+        glBindBuffer(GL_ARRAY_BUFFER, names[i]);
+        glGetBufferSubData(GL_ARRAY_BUFFER, 0, sizeof(readback), readback);
+        if (memcmp(readback, data[i], sizeof(readback))!=0) {
+            printf("// buffer ring fails : buffer %d contents\n", i);
+            count++;
+        }
+    }
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+    GLsizeiptr size = 2*sizeof(data);
+    if (not ring.Resize(2, size) or ring.GetDepth()!=2 or
+        ring.GetCurrent()!=0) {
+        printf("// buffer ring fails to resize to 2 buffers\n");
+        count++;
+    } else {
+        std::vector<float> big(size/sizeof(float), 1.0f);
+        GLuint first = ring.Upload(&big[0]);
+
+        GLint bufferSize=0;
+        glBindBuffer(GL_ARRAY_BUFFER, first);
+        glGetBufferParameteriv(GL_ARRAY_BUFFER, GL_BUFFER_SIZE, &bufferSize);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        if (ring.GetCurrentIndex()!=0 or bufferSize!=(GLint)size) {
+            printf("// buffer ring fails : resized buffer %d has %d bytes\n",
+                   ring.GetCurrentIndex(), bufferSize);
+            count++;
+        }
+        if (ring.Upload(&big[0])==first or ring.Upload(&big[0])!=first) {
+            printf("// buffer ring fails : resized ring does not rotate\n");
+            count++;
+        }
+    }
+
+    ring.Resize(0, 0);
+    if (ring.GetDepth()!=0 or ring.Upload(data[0])!=0 or ring.GetCurrent()!=0) {
+        printf("// buffer ring fails : released ring still uploads\n");
+        count++;
+    }
+
+    if (glGetError()!=GL_NO_ERROR) {
+        printf("// buffer ring fails : GL error\n");
+        count++;
+    }
+
+    if (count==0)
+        printf("    buffer ring : ok\n");
+
+    return count;
+}
+
 //------------------------------------------------------------------------------
 int main(int argc, char ** argv) {
 
@@ -387,6 +788,8 @@ int main(int argc, char ** argv) {
 
     printf("precision : %f\n",PRECISION);
 
+    total += checkBufferRing();
+
 #ifdef test_catmark_edgeonly
 #include "../shapes/catmark_edgeonly.h"
     total += checkMesh( "test_catmark_edgeonly", catmark_edgeonly, levels, kCatmark );